@@ -0,0 +1,77 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+package org.zenoss.zep.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.zep.dao.impl.DaoUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the string helpers applied to every field of every event: fingerprint hashing and UTF-8 truncation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class DaoUtilsBenchmark {
+
+    private static final int NUM_EVENTS = 1024;
+
+    /**
+     * Maximum number of UTF-8 bytes passed to truncateStringToUtf8 (255 is the limit of most short columns).
+     */
+    @Param({ "32", "255", "65535" })
+    public int maxBytes;
+
+    private String[] fingerprints;
+    private String[] summaries;
+    private int index = 0;
+
+    @Setup
+    public void setUp() {
+        final Event[] events = new SyntheticEvents().events(NUM_EVENTS);
+        fingerprints = new String[NUM_EVENTS];
+        summaries = new String[NUM_EVENTS];
+        for (int i = 0; i < NUM_EVENTS; i++) {
+            fingerprints[i] = events[i].getFingerprint();
+            summaries[i] = events[i].getSummary();
+        }
+    }
+
+    private int next() {
+        final int current = index;
+        index = (index + 1) % NUM_EVENTS;
+        return current;
+    }
+
+    @Benchmark
+    public byte[] sha1() {
+        return DaoUtils.sha1(fingerprints[next()]);
+    }
+
+    @Benchmark
+    public String truncateStringToUtf8() {
+        return DaoUtils.truncateStringToUtf8(summaries[next()], maxBytes);
+    }
+}
@@ -0,0 +1,68 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+package org.zenoss.zep.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.protobufs.zep.Zep.ZepConfig;
+import org.zenoss.zep.ZepConfigService;
+import org.zenoss.zep.ZepException;
+import org.zenoss.zep.dao.DaoCache;
+import org.zenoss.zep.dao.impl.EventDaoHelper;
+import org.zenoss.zep.dao.impl.compat.DatabaseCompatibilityMySQL;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link EventDaoHelper#createOccurrenceFields}, which truncates every column and serializes the
+ * event details to JSON for each occurrence written to the database. Name to id lookups use a stub cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class EventDaoHelperBenchmark {
+
+    private static final int NUM_EVENTS = 1024;
+
+    private EventDaoHelper eventDaoHelper;
+    private Event[] events;
+    private int index = 0;
+
+    @Setup
+    public void setUp() throws ZepException {
+        eventDaoHelper = new EventDaoHelper();
+        eventDaoHelper.setDaoCache(Stubs.create(DaoCache.class));
+        eventDaoHelper.setDatabaseCompatibility(new DatabaseCompatibilityMySQL());
+        eventDaoHelper.setZepConfigService(Stubs.create(ZepConfigService.class,
+                Collections.singletonMap("getConfig", ZepConfig.getDefaultInstance())));
+        events = new SyntheticEvents().events(NUM_EVENTS);
+    }
+
+    @Benchmark
+    public Map<String, Object> createOccurrenceFields() throws ZepException {
+        final Map<String, Object> fields = eventDaoHelper.createOccurrenceFields(events[index]);
+        index = (index + 1) % NUM_EVENTS;
+        return fields;
+    }
+}
@@ -0,0 +1,68 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+package org.zenoss.zep.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.protobufs.zep.Zep.ZepRawEvent;
+import org.zenoss.zep.dao.impl.EventDaoUtils;
+import org.zenoss.zep.impl.EventPreCreateContextImpl;
+import org.zenoss.zep.plugins.EventPreCreateContext;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link EventDaoUtils#createClearHashes}, computed for every clear event (and every event with clear
+ * classes) to find the events it clears.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class EventDaoUtilsBenchmark {
+
+    private static final int NUM_EVENTS = 1024;
+
+    private Event[] events;
+    private EventPreCreateContext[] contexts;
+    private int index = 0;
+
+    @Setup
+    public void setUp() {
+        final ZepRawEvent[] rawEvents = new SyntheticEvents().rawEvents(NUM_EVENTS);
+        events = new Event[NUM_EVENTS];
+        contexts = new EventPreCreateContext[NUM_EVENTS];
+        for (int i = 0; i < NUM_EVENTS; i++) {
+            events[i] = rawEvents[i].getEvent();
+            contexts[i] = new EventPreCreateContextImpl(rawEvents[i]);
+            // Clear the event's own class plus one other, as most clear events do.
+            contexts[i].getClearClasses().add("/Status/Ping");
+        }
+    }
+
+    @Benchmark
+    public List<byte[]> createClearHashes() {
+        final List<byte[]> hashes = EventDaoUtils.createClearHashes(events[index], contexts[index]);
+        index = (index + 1) % NUM_EVENTS;
+        return hashes;
+    }
+}
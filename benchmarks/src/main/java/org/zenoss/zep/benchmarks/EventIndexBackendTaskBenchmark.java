@@ -0,0 +1,83 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+package org.zenoss.zep.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.zep.index.impl.EventIndexBackendTask;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding and decoding of index work queue tasks, done for every event indexed by every backend.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class EventIndexBackendTaskBenchmark {
+
+    private static final int NUM_TASKS = 1024;
+
+    private EventIndexBackendTask[] tasks;
+    private String[] encoded;
+    private byte[][] encodedBytes;
+    private int index = 0;
+
+    @Setup
+    public void setUp() {
+        final Event[] events = new SyntheticEvents().events(NUM_TASKS);
+        tasks = new EventIndexBackendTask[NUM_TASKS];
+        encoded = new String[NUM_TASKS];
+        encodedBytes = new byte[NUM_TASKS][];
+        for (int i = 0; i < NUM_TASKS; i++) {
+            tasks[i] = EventIndexBackendTask.Index(events[i].getUuid(), events[i].getCreatedTime());
+            encoded[i] = tasks[i].toString();
+            encodedBytes[i] = tasks[i].toBytes();
+        }
+    }
+
+    private int next() {
+        final int current = index;
+        index = (index + 1) % NUM_TASKS;
+        return current;
+    }
+
+    @Benchmark
+    public String encode() {
+        return tasks[next()].toString();
+    }
+
+    @Benchmark
+    public EventIndexBackendTask parse() {
+        return EventIndexBackendTask.parse(encoded[next()]);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return tasks[next()].toBytes();
+    }
+
+    @Benchmark
+    public EventIndexBackendTask parseBinary() {
+        return EventIndexBackendTask.parse(encodedBytes[next()]);
+    }
+}
@@ -0,0 +1,65 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+package org.zenoss.zep.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zenoss.protobufs.zep.Zep.ZepRawEvent;
+import org.zenoss.zep.Counters;
+import org.zenoss.zep.PluginService;
+import org.zenoss.zep.ZepException;
+import org.zenoss.zep.dao.EventSummaryDao;
+import org.zenoss.zep.impl.EventProcessorImpl;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of {@link EventProcessorImpl#processEvent} (validation, pre-create context and
+ * plug-in dispatch) with a stub event summary DAO, so database time is excluded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class EventProcessorBenchmark {
+
+    private static final int NUM_EVENTS = 4096;
+
+    private EventProcessorImpl eventProcessor;
+    private ZepRawEvent[] events;
+    private int index = 0;
+
+    @Setup
+    public void setUp() {
+        eventProcessor = new EventProcessorImpl();
+        eventProcessor.setCounters(Stubs.create(Counters.class));
+        eventProcessor.setPluginService(Stubs.create(PluginService.class));
+        eventProcessor.setEventSummaryDao(Stubs.create(EventSummaryDao.class,
+                Collections.singletonMap("create", "00000000-0000-0000-0000-000000000000")));
+        events = new SyntheticEvents().rawEvents(NUM_EVENTS);
+    }
+
+    @Benchmark
+    public void processEvent() throws ZepException {
+        eventProcessor.processEvent(events[index]);
+        index = (index + 1) % NUM_EVENTS;
+    }
+}
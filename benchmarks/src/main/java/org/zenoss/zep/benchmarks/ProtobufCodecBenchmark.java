@@ -0,0 +1,146 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+package org.zenoss.zep.benchmarks;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.protobufs.zep.Zep.EventDetailItem;
+import org.zenoss.protobufs.zep.Zep.EventStatus;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.zep.index.impl.ProtobufCodec;
+import org.zenoss.zep.index.impl.lucene.LuceneEventIndexMapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.zenoss.zep.index.impl.IndexConstants.FIELD_LAST_SEEN_TIME;
+import static org.zenoss.zep.index.impl.IndexConstants.FIELD_PROTOBUF;
+import static org.zenoss.zep.index.impl.IndexConstants.LUCENE_VERSION;
+
+/**
+ * Compares the codecs used for the protobufs stored in the summary index. Each codec indexes the same events;
+ * the size of the index and of the compressed protobufs are printed during setup, and the benchmarks measure
+ * decoding a single protobuf and loading a page of search results the way the list queries do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ProtobufCodecBenchmark {
+
+    private static final int NUM_EVENTS = 20000;
+    private static final int NUM_DICTIONARY_SAMPLES = 1000;
+    private static final int DICTIONARY_SIZE = 16 * 1024;
+    private static final int PAGE_SIZE = 100;
+
+    private static final Set<String> PROTO_FIELDS = Collections.singleton(FIELD_PROTOBUF);
+
+    @Param({ "gzip", "none", "lz4", "dictionary" })
+    public String codecName;
+
+    private ProtobufCodec codec;
+    private byte[][] compressed;
+    private RAMDirectory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private Sort sort;
+    private int index = 0;
+
+    private static EventSummary toSummary(Event event, int i) {
+        return EventSummary.newBuilder().setUuid(event.getUuid()).setStatus(EventStatus.STATUS_NEW)
+                .setCount(1 + i % 10).setFirstSeenTime(event.getCreatedTime())
+                .setLastSeenTime(event.getCreatedTime() + i).setStatusChangeTime(event.getCreatedTime())
+                .setUpdateTime(event.getCreatedTime()).addOccurrence(event).build();
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        final Event[] events = new SyntheticEvents().events(NUM_EVENTS);
+        final List<EventSummary> summaries = new ArrayList<EventSummary>(NUM_EVENTS);
+        for (int i = 0; i < NUM_EVENTS; i++) {
+            summaries.add(toSummary(events[i], i));
+        }
+        final byte[] dictionary = ProtobufCodec.trainDictionary(summaries.subList(0, NUM_DICTIONARY_SAMPLES),
+                DICTIONARY_SIZE);
+        codec = new ProtobufCodec(ProtobufCodec.Type.valueOf(codecName.toUpperCase()), dictionary);
+
+        directory = new RAMDirectory();
+        final IndexWriter writer = new IndexWriter(directory,
+                new IndexWriterConfig(LUCENE_VERSION, LuceneEventIndexMapper.createAnalyzer()));
+        compressed = new byte[NUM_EVENTS][];
+        long compressedBytes = 0;
+        for (int i = 0; i < NUM_EVENTS; i++) {
+            compressed[i] = codec.compress(summaries.get(i));
+            compressedBytes += compressed[i].length;
+            writer.addDocument(LuceneEventIndexMapper.fromEventSummary(summaries.get(i),
+                    Collections.<String, EventDetailItem>emptyMap(), false, codec));
+        }
+        writer.forceMerge(1);
+        writer.close();
+
+        System.out.printf("%ncodec=%s protobufs=%d bytes index=%d bytes dictionary=%d bytes%n", codecName,
+                compressedBytes, directory.sizeInBytes(), dictionary.length);
+
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        sort = new Sort(new SortField(FIELD_LAST_SEEN_TIME, SortField.Type.LONG, true));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Benchmark
+    public EventSummary uncompress() throws Exception {
+        final byte[] bytes = compressed[index];
+        index = (index + 1) % NUM_EVENTS;
+        return codec.uncompress(bytes, 0, bytes.length);
+    }
+
+    @Benchmark
+    public List<EventSummary> listPage() throws Exception {
+        final TopDocs docs = searcher.search(new MatchAllDocsQuery(), null, PAGE_SIZE, sort);
+        final List<EventSummary> page = new ArrayList<EventSummary>(docs.scoreDocs.length);
+        for (ScoreDoc scoreDoc : docs.scoreDocs) {
+            final Document doc = searcher.doc(scoreDoc.doc, PROTO_FIELDS);
+            page.add(LuceneEventIndexMapper.toEventSummary(doc, codec));
+        }
+        return page;
+    }
+}
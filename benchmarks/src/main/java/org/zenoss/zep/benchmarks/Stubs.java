@@ -0,0 +1,87 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+
+package org.zenoss.zep.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Creates stub implementations of DAO and service interfaces so the benchmarks measure only the code under test.
+ * Every method returns an empty or zero value unless a canned result is registered for its name.
+ */
+public final class Stubs {
+
+    private Stubs() {
+    }
+
+    public static <T> T create(Class<T> clazz) {
+        return create(clazz, Collections.<String, Object>emptyMap());
+    }
+
+    public static <T> T create(Class<T> clazz, Map<String, ?> results) {
+        final Map<String, Object> canned = new HashMap<String, Object>(results);
+        final Object proxy = Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[] { clazz },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        final String name = method.getName();
+                        if (canned.containsKey(name)) {
+                            return canned.get(name);
+                        }
+                        if ("equals".equals(name)) {
+                            return proxy == args[0];
+                        }
+                        if ("hashCode".equals(name)) {
+                            return System.identityHashCode(proxy);
+                        }
+                        if ("toString".equals(name)) {
+                            return "Stub[" + method.getDeclaringClass().getSimpleName() + "]";
+                        }
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+        return clazz.cast(proxy);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == Boolean.TYPE) {
+            return Boolean.FALSE;
+        } else if (type == Integer.TYPE) {
+            return 0;
+        } else if (type == Long.TYPE) {
+            return 0L;
+        } else if (type == Double.TYPE) {
+            return 0.0;
+        } else if (type == Float.TYPE) {
+            return 0.0f;
+        } else if (type == Short.TYPE) {
+            return (short) 0;
+        } else if (type == Byte.TYPE) {
+            return (byte) 0;
+        } else if (type == Character.TYPE) {
+            return (char) 0;
+        } else if (List.class.isAssignableFrom(type)) {
+            return Collections.emptyList();
+        } else if (Set.class.isAssignableFrom(type)) {
+            return Collections.emptySet();
+        } else if (Map.class.isAssignableFrom(type)) {
+            return Collections.emptyMap();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,141 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+
+package org.zenoss.zep.benchmarks;
+
+import org.zenoss.protobufs.model.Model.ModelElementType;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.protobufs.zep.Zep.EventActor;
+import org.zenoss.protobufs.zep.Zep.EventDetail;
+import org.zenoss.protobufs.zep.Zep.EventSeverity;
+import org.zenoss.protobufs.zep.Zep.EventTag;
+import org.zenoss.protobufs.zep.Zep.ZepRawEvent;
+
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates synthetic events for the benchmarks. The generator is seeded so every run (and every fork) sees the
+ * same sequence of events. Devices, components and event classes are drawn from small pools so the generated
+ * events share fingerprints and clear fingerprints the way a real event stream does.
+ */
+public class SyntheticEvents {
+
+    private static final String[] EVENT_CLASSES = {
+            "/Status/Ping", "/Perf/CPU", "/Perf/Filesystem", "/Status/Snmp", "/App/Failed", "/Unknown"
+    };
+
+    private static final String[] SUMMARIES = {
+            "threshold of high cpu exceeded: current value 97.42",
+            "Device is DOWN!",
+            "disk space threshold exceeded on /var: current value 91.3%",
+            "SNMP agent down - no response received",
+            "Process not running: httpd",
+            // Multi-byte characters exercise the UTF-8 truncation path.
+            "\u00dcberwachung fehlgeschlagen: Dienst nicht erreichbar \u2014 \u76e3\u8996\u5931\u6557",
+    };
+
+    private final Random random;
+    private final int numDevices;
+    private final int numComponents;
+
+    public SyntheticEvents(long seed, int numDevices, int numComponents) {
+        this.random = new Random(seed);
+        this.numDevices = numDevices;
+        this.numComponents = numComponents;
+    }
+
+    public SyntheticEvents() {
+        this(42L, 1000, 10);
+    }
+
+    private UUID nextUuid() {
+        return new UUID(random.nextLong(), random.nextLong());
+    }
+
+    private static EventTag createTag(ModelElementType type, String uuid) {
+        return EventTag.newBuilder().setType("zenoss." + type.name().toLowerCase()).addUuid(uuid).build();
+    }
+
+    /**
+     * Returns the next synthetic event.
+     *
+     * @return A new event.
+     */
+    public Event nextEvent() {
+        final int device = random.nextInt(numDevices);
+        final int component = random.nextInt(numComponents);
+        final String eventClass = EVENT_CLASSES[random.nextInt(EVENT_CLASSES.length)];
+        final String summary = SUMMARIES[random.nextInt(SUMMARIES.length)];
+        final String deviceUuid = new UUID(0L, device).toString();
+        final String componentUuid = new UUID(device, component).toString();
+
+        final EventActor actor = EventActor.newBuilder()
+                .setElementIdentifier("device" + device + ".example.com")
+                .setElementTypeId(ModelElementType.DEVICE)
+                .setElementUuid(deviceUuid)
+                .setElementTitle("Device " + device)
+                .setElementSubIdentifier("component" + component)
+                .setElementSubTypeId(ModelElementType.COMPONENT)
+                .setElementSubUuid(componentUuid)
+                .setElementSubTitle("Component " + component)
+                .build();
+
+        final Event.Builder builder = Event.newBuilder();
+        builder.setUuid(nextUuid().toString());
+        builder.setCreatedTime(System.currentTimeMillis());
+        builder.setActor(actor);
+        builder.setEventClass(eventClass);
+        builder.setEventKey("key" + random.nextInt(4));
+        builder.setEventClassKey("eventClassKey");
+        builder.setEventGroup("group");
+        builder.setAgent("zenperfsnmp");
+        builder.setMonitor("localhost");
+        builder.setSeverity(EventSeverity.valueOf(random.nextInt(6)));
+        builder.setSummary(summary);
+        builder.setMessage(summary + "\n" + summary);
+        builder.setFingerprint(actor.getElementIdentifier() + "|" + actor.getElementSubIdentifier() + "|" +
+                eventClass + "|" + builder.getEventKey() + "|" + builder.getSeverity().getNumber());
+        builder.addDetails(EventDetail.newBuilder().setName("zenoss.device.production_state").addValue("1000"));
+        builder.addDetails(EventDetail.newBuilder().setName("zenoss.device.priority").addValue("3"));
+        builder.addDetails(EventDetail.newBuilder().setName("zenoss.device.ip_address").addValue("10.0.0." +
+                (device % 255)));
+        builder.addDetails(EventDetail.newBuilder().setName("current").addValue(Integer.toString(random.nextInt(100))));
+        builder.addTags(createTag(ModelElementType.DEVICE, deviceUuid));
+        builder.addTags(createTag(ModelElementType.COMPONENT, componentUuid));
+        return builder.build();
+    }
+
+    /**
+     * Returns the next synthetic raw event (as received from the AMQP queue).
+     *
+     * @return A new raw event.
+     */
+    public ZepRawEvent nextRawEvent() {
+        return ZepRawEvent.newBuilder().setEvent(nextEvent()).build();
+    }
+
+    public Event[] events(int count) {
+        final Event[] events = new Event[count];
+        for (int i = 0; i < count; i++) {
+            events[i] = nextEvent();
+        }
+        return events;
+    }
+
+    public ZepRawEvent[] rawEvents(int count) {
+        final ZepRawEvent[] events = new ZepRawEvent[count];
+        for (int i = 0; i < count; i++) {
+            events[i] = nextRawEvent();
+        }
+        return events;
+    }
+}
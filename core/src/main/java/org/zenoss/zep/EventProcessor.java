@@ -12,6 +12,8 @@ package org.zenoss.zep;
 
 import org.zenoss.protobufs.zep.Zep.ZepRawEvent;
 
+import java.util.List;
+
 /**
  * Service for processing incoming events from the raw event queue, processing
  * them (identifying the event class, transforming them, persisting them), and
@@ -28,4 +30,16 @@ public interface EventProcessor {
      *             If an error occurs processing the event.
      */
     public void processEvent(ZepRawEvent event) throws ZepException;
+
+    /**
+     * Processes a batch of events. The events are persisted in a single
+     * transaction, so either all of the events are processed or none of
+     * them are.
+     *
+     * @param events
+     *            The raw events, in the order they were received.
+     * @throws ZepException
+     *             If an error occurs processing the events.
+     */
+    public void processEvents(List<ZepRawEvent> events) throws ZepException;
 }
@@ -30,6 +30,23 @@ public interface EventSignalSpoolDao {
      */
     public String create(EventSignalSpool spool) throws ZepException;
 
+    /**
+     * Applies the signal spool changes of a batch in a single transaction. New spool items are created as by
+     * {@link #create(EventSignalSpool)}, modified spool items are updated as by {@link #update(EventSignalSpool)},
+     * and then the spool items of the event summaries are deleted.
+     *
+     * @param spoolsToCreate
+     *            Spool items to create.
+     * @param spoolsToUpdate
+     *            Spool items to update.
+     * @param eventSummaryUuidsToDelete
+     *            UUIDs of the event summaries whose spool items are deleted.
+     * @throws ZepException
+     *             If an error occurs saving the signal spool items.
+     */
+    public void saveBatch(Collection<EventSignalSpool> spoolsToCreate, Collection<EventSignalSpool> spoolsToUpdate,
+                          Collection<String> eventSummaryUuidsToDelete) throws ZepException;
+
     /**
      * Deletes the signal with the specified UUID.
      * 
@@ -11,9 +11,11 @@
 package org.zenoss.zep.dao;
 
 import org.zenoss.protobufs.model.Model.ModelElementType;
+import org.zenoss.protobufs.zep.Zep.Event;
 import org.zenoss.protobufs.zep.Zep.EventSeverity;
 import org.zenoss.protobufs.zep.Zep.EventStatus;
 import org.zenoss.zep.ZepException;
+import org.zenoss.zep.plugins.EventPreCreateContext;
 
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -22,6 +24,22 @@ import java.util.concurrent.TimeUnit;
  * DAO which provides an interface to the event summary table.
  */
 public interface EventSummaryDao extends EventSummaryBaseDao {
+    /**
+     * Creates or updates summary entries for a batch of event occurrences in a
+     * single transaction. Occurrences of the same open fingerprint are merged
+     * before being written, existing summaries are looked up with a single
+     * query and the resulting inserts and updates are executed as JDBC batches.
+     * Clear and closed events are processed in order with the same semantics as
+     * {@link #create(Event, EventPreCreateContext)}.
+     *
+     * @param events The event occurrences.
+     * @param contexts The context used to create each event (must be the same size as <code>events</code>).
+     * @return The UUID of the created (or updated) event for each occurrence, in the same order as
+     *         <code>events</code>. An entry is null if the occurrence was dropped.
+     * @throws ZepException If an error occurs.
+     */
+    public List<String> createBatch(List<Event> events, List<EventPreCreateContext> contexts) throws ZepException;
+
     /**
      * Updates event summaries recorded with null device UUIDs, after
      * receiving a ModelChange event for the device's addition - sets the
@@ -0,0 +1,166 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.dao.impl;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.Striped;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.zep.ZepException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Coalesces concurrent occurrences of the same open event so they are de-duplicated with a single
+ * write to the event_summary table.
+ * <p>
+ * Each occurrence is appended to a buffer keyed by its binary fingerprint hash. The thread then
+ * acquires one of a fixed number of striped locks for the hash and drains the buffer, so whichever
+ * thread gets the lock first saves every occurrence queued up to that point and the others find an
+ * empty buffer.
+ */
+public class EventDedupCoalescer {
+
+    /**
+     * Callback invoked with the stripe lock held to persist the drained occurrences.
+     *
+     * @param <T> The type returned by the callback.
+     */
+    public interface Callback<T> {
+        /**
+         * Persists the coalesced occurrences.
+         *
+         * @param events The occurrences drained from the buffer (may be empty if another thread saved them).
+         * @return The result passed back to the caller of {@link EventDedupCoalescer#coalesce}.
+         * @throws ZepException If an error occurs.
+         */
+        T drain(List<Event> events) throws ZepException;
+    }
+
+    private static class Buffer {
+        private final List<Event> events = new ArrayList<Event>(4);
+        private boolean drained = false;
+    }
+
+    public static final int DEFAULT_STRIPES = 1024;
+
+    private final Striped<Lock> locks;
+    private final ConcurrentMap<ByteBuffer, Buffer> buffers = new ConcurrentHashMap<ByteBuffer, Buffer>();
+
+    private MetricRegistry metrics = new MetricRegistry();
+    private Timer lockWaitTimer = metrics.timer("lockWaitForUnitTest");
+    private Meter queuedMeter = metrics.meter("queuedForUnitTest");
+    private Meter drainedMeter = metrics.meter("drainedForUnitTest");
+
+    public EventDedupCoalescer() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public EventDedupCoalescer(int stripes) {
+        this.locks = Striped.lock(stripes);
+    }
+
+    @Autowired
+    public void setMetricRegistry(MetricRegistry metrics) {
+        this.metrics = metrics;
+        final String prefix = this.getClass().getSimpleName();
+        this.lockWaitTimer = metrics.timer(MetricRegistry.name(prefix, "lockWait"));
+        this.queuedMeter = metrics.meter(MetricRegistry.name(prefix, "queued"));
+        this.drainedMeter = metrics.meter(MetricRegistry.name(prefix, "drained"));
+        // Average number of occurrences saved by each write to the database.
+        metrics.register(MetricRegistry.name(prefix, "coalesceRatio"), new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(queuedMeter.getCount(), drainedMeter.getCount());
+            }
+        });
+    }
+
+    /**
+     * Queues the occurrence and invokes the callback with every occurrence of the same fingerprint hash
+     * which has not yet been saved by another thread.
+     *
+     * @param fingerprintHash The SHA-1 hash of the event fingerprint.
+     * @param event The event occurrence.
+     * @param callback Callback used to persist the coalesced occurrences.
+     * @param <T> The type returned by the callback.
+     * @return The result of the callback.
+     * @throws ZepException If the callback fails.
+     */
+    public <T> T coalesce(byte[] fingerprintHash, Event event, Callback<T> callback) throws ZepException {
+        final ByteBuffer key = ByteBuffer.wrap(fingerprintHash);
+        enqueue(key, event);
+
+        final Lock lock = this.locks.get(key);
+        final Timer.Context waitContext = this.lockWaitTimer.time();
+        lock.lock();
+        waitContext.stop();
+        try {
+            final List<Event> events = drain(key);
+            if (!events.isEmpty()) {
+                this.drainedMeter.mark();
+            }
+            return callback.drain(events);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(ByteBuffer key, Event event) {
+        while (true) {
+            Buffer buffer = this.buffers.get(key);
+            if (buffer == null) {
+                final Buffer newBuffer = new Buffer();
+                buffer = this.buffers.putIfAbsent(key, newBuffer);
+                if (buffer == null) {
+                    buffer = newBuffer;
+                }
+            }
+            synchronized (buffer) {
+                if (!buffer.drained) {
+                    buffer.events.add(event);
+                    this.queuedMeter.mark();
+                    return;
+                }
+            }
+            // Buffer was drained after we looked it up - retry with a new one.
+        }
+    }
+
+    private List<Event> drain(ByteBuffer key) {
+        final Buffer buffer = this.buffers.remove(key);
+        if (buffer == null) {
+            return Collections.emptyList();
+        }
+        synchronized (buffer) {
+            buffer.drained = true;
+            return buffer.events;
+        }
+    }
+
+    /**
+     * Returns the number of fingerprint hashes with occurrences waiting to be saved.
+     *
+     * @return The number of pending fingerprint hashes.
+     */
+    public int getPendingCount() {
+        return this.buffers.size();
+    }
+}
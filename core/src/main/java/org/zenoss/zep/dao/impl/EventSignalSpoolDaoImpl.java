@@ -21,6 +21,7 @@ import org.zenoss.zep.annotations.TransactionalRollbackAllExceptions;
 import org.zenoss.zep.dao.EventSignalSpool;
 import org.zenoss.zep.dao.EventSignalSpoolDao;
 import org.zenoss.zep.dao.impl.compat.DatabaseCompatibility;
+import org.zenoss.zep.dao.impl.compat.DatabaseType;
 import org.zenoss.zep.dao.impl.compat.NestedTransactionService;
 import org.zenoss.zep.dao.impl.compat.TypeConverter;
 import org.zenoss.zep.dao.impl.compat.TypeConverterUtils;
@@ -30,6 +31,7 @@ import java.lang.reflect.Proxy;
 import javax.sql.DataSource;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -47,6 +49,12 @@ public class EventSignalSpoolDaoImpl implements EventSignalSpoolDao {
     public static final String COLUMN_EVENT_COUNT = "event_count";
     public static final String COLUMN_SENT_SIGNAL = "sent_signal";
 
+    private static final String UPDATE_SQL = "UPDATE event_trigger_signal_spool SET flush_time=:flush_time," +
+            "event_count=:event_count,sent_signal=:sent_signal WHERE uuid=:uuid";
+
+    // Limits the size of multi-row inserts
+    private static final int MAX_INSERT_ROWS = 500;
+
     private class EventSignalSpoolMapper implements RowMapper<EventSignalSpool> {
         @Override
         public EventSignalSpool mapRow(ResultSet rs, int rowNum)
@@ -133,6 +141,74 @@ public class EventSignalSpoolDaoImpl implements EventSignalSpoolDao {
         return uuid;
     }
 
+    @Override
+    @TransactionalRollbackAllExceptions
+    public void saveBatch(Collection<EventSignalSpool> spoolsToCreate, Collection<EventSignalSpool> spoolsToUpdate,
+                          Collection<String> eventSummaryUuidsToDelete) throws ZepException {
+        if (!spoolsToCreate.isEmpty()) {
+            if (databaseCompatibility.getDatabaseType() == DatabaseType.MYSQL) {
+                final List<EventSignalSpool> spools = new ArrayList<EventSignalSpool>(spoolsToCreate);
+                for (int i = 0; i < spools.size(); i += MAX_INSERT_ROWS) {
+                    insertOrUpdate(spools.subList(i, Math.min(i + MAX_INSERT_ROWS, spools.size())));
+                }
+            } else {
+                // PostgreSQL doesn't have a multi-row upsert
+                for (EventSignalSpool spool : spoolsToCreate) {
+                    create(spool);
+                }
+            }
+        }
+        if (!spoolsToUpdate.isEmpty()) {
+            @SuppressWarnings("unchecked")
+            final Map<String, Object>[] batch = new Map[spoolsToUpdate.size()];
+            int i = 0;
+            for (EventSignalSpool spool : spoolsToUpdate) {
+                batch[i++] = updateFields(spool);
+            }
+            this.template.batchUpdate(UPDATE_SQL, batch);
+        }
+        deleteByEventSummaryUuids(eventSummaryUuidsToDelete);
+    }
+
+    /**
+     * Inserts the spools with a single INSERT ... ON DUPLICATE KEY UPDATE statement. As with
+     * {@link #create(EventSignalSpool)}, the event count of an existing spool with the same UUID is incremented.
+     */
+    private void insertOrUpdate(List<EventSignalSpool> spools) {
+        final Map<String, Object> fields = new HashMap<String, Object>();
+        final StringBuilder names = new StringBuilder();
+        final StringBuilder rows = new StringBuilder();
+        for (int i = 0; i < spools.size(); i++) {
+            final EventSignalSpool spool = spools.get(i);
+            if (spool.getUuid() == null) {
+                spool.setUuid(uuidGenerator.generate().toString());
+            }
+            final Map<String, Object> spoolFields = spoolToFields(spool);
+            spoolFields.put(COLUMN_UUID, uuidConverter.toDatabaseType(spool.getUuid()));
+            rows.append((i > 0) ? ",(" : "(");
+            boolean first = true;
+            for (Map.Entry<String, Object> entry : spoolFields.entrySet()) {
+                if (i == 0) {
+                    if (!first) {
+                        names.append(',');
+                    }
+                    names.append(entry.getKey());
+                }
+                if (!first) {
+                    rows.append(',');
+                }
+                first = false;
+                final String name = entry.getKey() + "_" + i;
+                rows.append(':').append(name);
+                fields.put(name, entry.getValue());
+            }
+            rows.append(')');
+        }
+        final String sql = String.format("INSERT INTO event_trigger_signal_spool (%s) VALUES %s" +
+                " ON DUPLICATE KEY UPDATE event_count=IF(uuid=VALUES(uuid),event_count+1,event_count)", names, rows);
+        this.template.update(sql, fields);
+    }
+
     @Override
     @TransactionalRollbackAllExceptions
     public int delete(String uuid) throws ZepException {
@@ -205,14 +281,16 @@ public class EventSignalSpoolDaoImpl implements EventSignalSpoolDao {
     @Override
     @TransactionalRollbackAllExceptions
     public int update(EventSignalSpool spool) throws ZepException {
+        return this.template.update(UPDATE_SQL, updateFields(spool));
+    }
+
+    private Map<String, Object> updateFields(EventSignalSpool spool) {
         Map<String, Object> fields = new HashMap<String, Object>();
         fields.put(COLUMN_UUID, uuidConverter.toDatabaseType(spool.getUuid()));
         fields.put(COLUMN_FLUSH_TIME, spool.getFlushTime());
         fields.put(COLUMN_EVENT_COUNT, spool.getEventCount());
         fields.put(COLUMN_SENT_SIGNAL, spool.isSentSignal());
-        final String sql = "UPDATE event_trigger_signal_spool SET flush_time=:flush_time,event_count=:event_count,"
-                + "sent_signal=:sent_signal WHERE uuid=:uuid";
-        return this.template.update(sql, fields);
+        return fields;
     }
 
     @Override
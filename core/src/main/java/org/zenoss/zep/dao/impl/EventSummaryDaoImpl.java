@@ -19,6 +19,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.RowMapperResultSetExtractor;
 import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
@@ -64,6 +65,7 @@ import org.zenoss.zep.plugins.EventPreCreateContext;
 import javax.sql.DataSource;
 import java.io.IOException;
 import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -76,10 +78,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import static org.zenoss.zep.dao.impl.EventConstants.*;
@@ -93,7 +95,9 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
 
     private boolean txSynchronizedQueue = true;
 
-    private final ConcurrentMap<String, List<Event>> deduping = new ConcurrentHashMap<String, List<Event>>();
+    private EventDedupCoalescer dedupCoalescer = new EventDedupCoalescer();
+
+    private EventWriteBehindAccumulator writeBehindAccumulator = null;
 
     private final DataSource dataSource;
 
@@ -168,6 +172,21 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
         };
     }
 
+    public void setDedupCoalescer(EventDedupCoalescer dedupCoalescer) {
+        this.dedupCoalescer = dedupCoalescer;
+    }
+
+    public void setWriteBehindAccumulator(EventWriteBehindAccumulator writeBehindAccumulator) {
+        this.writeBehindAccumulator = writeBehindAccumulator;
+        writeBehindAccumulator.setFlusher(new EventWriteBehindAccumulator.Flusher() {
+            @Override
+            public String flush(byte[] fingerprintHash, List<Event> events, EventPreCreateContext context)
+                    throws ZepException {
+                return saveEventByFingerprint(fingerprintHash, events, context, true);
+            }
+        });
+    }
+
     public void setNestedTransactionService(NestedTransactionService nestedTransactionService) {
         this.nestedTransactionService = nestedTransactionService;
     }
@@ -240,48 +259,17 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
             uuid = saveEventByFingerprint(fingerprintHash, Collections.singleton(event), context, createClearHash);
         } else {
             fingerprintHash = DaoUtils.sha1(fingerprint);
-            final String hashAsString = new String(fingerprintHash).intern();
-            final Event finalEvent = event;
-            try {
-                metricRegistry.timer("EventSummaryDaoImpl.queueDedup").time(new Callable() {
+            final String heldUuid = offerWriteBehind(fingerprintHash, event, context);
+            if (heldUuid != null) {
+                uuid = heldUuid;
+            } else {
+                uuid = dedupCoalescer.coalesce(fingerprintHash, event, new EventDedupCoalescer.Callback<String>() {
                     @Override
-                    public Object call() throws Exception {
-                        boolean queued = false;
-                        while (!queued) {
-                            List<Event> events = deduping.get(hashAsString);
-                            if (events == null) {
-                                deduping.putIfAbsent(hashAsString, Collections.EMPTY_LIST);
-                                continue;
-                            }
-                            List<Event> newEvents = Lists.newArrayList(events);
-                            newEvents.add(finalEvent);
-                            queued = deduping.replace(hashAsString, events, newEvents);
-                        }
-                        return null;
+                    public String drain(List<Event> events) throws ZepException {
+                        return saveEventByFingerprint(fingerprintHash, events, context, createClearHash);
                     }
                 });
-            } catch (ZepException e) {
-                throw e;
-            } catch (Exception e) {
-                throw new ZepException(e);
-            }
-
-            try {
-                uuid = metricRegistry.timer("EventSummaryDaoImpl.dedupSync").time(new Callable<String>() {
-                    @Override
-                    public String call() throws Exception {
-                        synchronized (hashAsString) {
-                            List<Event> events = deduping.remove(hashAsString);
-                            if (events == null)
-                                events = Collections.EMPTY_LIST;
-                            return saveEventByFingerprint(fingerprintHash, events, context, createClearHash);
-                        }
-                    }
-                });
-            } catch (ZepException e) {
-                throw e;
-            } catch (Exception e) {
-                throw new ZepException(e);
+                trackWriteBehind(fingerprintHash, uuid, event, context);
             }
         }
         if (uuid == null && !clearedEventUuids.isEmpty()) {
@@ -373,15 +361,9 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
                         if (!oldSummaryList.isEmpty()) {
                             dedupCount = events.size();
                             final Map<String, Object> fields = getUpdateFields(summary, isNewer, context, createClearHash);
-                            final StringBuilder updateSql = new StringBuilder("UPDATE event_summary SET ");
-                            int i = 0;
-                            for (String fieldName : fields.keySet()) {
-                                if (++i > 1) updateSql.append(',');
-                                updateSql.append(fieldName).append("=:").append(fieldName);
-                            }
-                            updateSql.append(" WHERE fingerprint_hash=:fingerprint_hash");
-                            fields.put("fingerprint_hash", fingerprintHash);
-                            template.update(updateSql.toString(), fields);
+                            final String updateSql = createUpdateSql(fields.keySet());
+                            fields.put(COLUMN_FINGERPRINT_HASH, fingerprintHash);
+                            template.update(updateSql, fields);
 
                         } else {
                             dedupCount = events.size() - 1;
@@ -410,6 +392,203 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
         }
     }
 
+    /**
+     * Builds the UPDATE statement used to de-duplicate an event by fingerprint hash. The columns are sorted so the
+     * same set of fields always produces the same statement, which allows updates to be grouped into JDBC batches.
+     */
+    private static String createUpdateSql(Collection<String> fieldNames) {
+        final StringBuilder updateSql = new StringBuilder("UPDATE event_summary SET ");
+        int i = 0;
+        for (String fieldName : new TreeSet<String>(fieldNames)) {
+            if (++i > 1) updateSql.append(',');
+            updateSql.append(fieldName).append("=:").append(fieldName);
+        }
+        updateSql.append(" WHERE fingerprint_hash=:fingerprint_hash");
+        return updateSql.toString();
+    }
+
+    private String offerWriteBehind(byte[] fingerprintHash, Event event, EventPreCreateContext context)
+            throws ZepException {
+        if (writeBehindAccumulator == null) {
+            return null;
+        }
+        return writeBehindAccumulator.offer(fingerprintHash, event, context);
+    }
+
+    private void trackWriteBehind(byte[] fingerprintHash, String uuid, Event event, EventPreCreateContext context) {
+        if (writeBehindAccumulator != null && writeBehindAccumulator.isEnabled() && uuid != null) {
+            writeBehindAccumulator.track(fingerprintHash, uuid,
+                    EventDaoUtils.createClearHash(event, context.getClearFingerprintGenerator()));
+        }
+    }
+
+    /**
+     * Open event occurrences sharing the same fingerprint hash within a batch passed to
+     * {@link #createBatch(List, List)}.
+     */
+    private static class PendingFingerprint {
+        private final byte[] fingerprintHash;
+        private final List<Event> events = new ArrayList<Event>();
+        private final List<Integer> positions = new ArrayList<Integer>();
+        private EventPreCreateContext context;
+
+        private PendingFingerprint(byte[] fingerprintHash) {
+            this.fingerprintHash = fingerprintHash;
+        }
+    }
+
+    @Override
+    @Timed(absolute=true, name="EventSummary.createBatch")
+    @TransactionalRollbackAllExceptions
+    public List<String> createBatch(List<Event> events, List<EventPreCreateContext> contexts) throws ZepException {
+        if (events.size() != contexts.size()) {
+            throw new IllegalArgumentException("Expected one context per event");
+        }
+        final List<String> uuids = new ArrayList<String>(Collections.<String>nCopies(events.size(), null));
+        // Sorted by hash so concurrent batches always lock and insert rows in the same order.
+        final SortedMap<ByteBuffer, PendingFingerprint> pending = new TreeMap<ByteBuffer, PendingFingerprint>();
+        for (int i = 0; i < events.size(); i++) {
+            final Event event = events.get(i);
+            final EventPreCreateContext context = contexts.get(i);
+            if (event.getSeverity() == EventSeverity.SEVERITY_CLEAR ||
+                    ZepConstants.CLOSED_STATUSES.contains(event.getStatus())) {
+                // Clear and closed events must see every open occurrence which preceded them in the batch.
+                saveEventsByFingerprint(pending, uuids);
+                pending.clear();
+                uuids.set(i, create(event, context));
+            } else {
+                final String fingerprint = DaoUtils.truncateStringToUtf8(event.getFingerprint(), MAX_FINGERPRINT);
+                final byte[] fingerprintHash = DaoUtils.sha1(fingerprint);
+                final String heldUuid = offerWriteBehind(fingerprintHash, event, context);
+                if (heldUuid != null) {
+                    uuids.set(i, heldUuid);
+                    continue;
+                }
+                final ByteBuffer key = ByteBuffer.wrap(fingerprintHash);
+                PendingFingerprint pendingFingerprint = pending.get(key);
+                if (pendingFingerprint == null) {
+                    pendingFingerprint = new PendingFingerprint(fingerprintHash);
+                    pending.put(key, pendingFingerprint);
+                }
+                pendingFingerprint.events.add(event);
+                pendingFingerprint.positions.add(i);
+                pendingFingerprint.context = context;
+            }
+        }
+        saveEventsByFingerprint(pending, uuids);
+        return uuids;
+    }
+
+    /**
+     * Batch equivalent of {@link #saveEventByFingerprint}. All existing summaries are locked with a single
+     * multi-row SELECT ... FOR UPDATE, and the resulting inserts and updates are sent as JDBC batches.
+     */
+    private void saveEventsByFingerprint(final SortedMap<ByteBuffer, PendingFingerprint> pending,
+                                         final List<String> uuids) throws ZepException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            metricRegistry.timer("EventSummaryDaoImpl.saveEventsByFingerprint").time(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    final List<byte[]> fingerprintHashes = new ArrayList<byte[]>(pending.size());
+                    for (PendingFingerprint pendingFingerprint : pending.values()) {
+                        fingerprintHashes.add(pendingFingerprint.fingerprintHash);
+                    }
+                    final Map<ByteBuffer, EventSummary.Builder> oldSummaries =
+                            new HashMap<ByteBuffer, EventSummary.Builder>(pending.size());
+                    template.getNamedParameterJdbcOperations().query(
+                            "SELECT fingerprint_hash,event_count,first_seen,last_seen,details_json,status_id," +
+                                    "status_change,uuid FROM event_summary" +
+                                    " WHERE fingerprint_hash IN (:_fingerprint_hashes) FOR UPDATE",
+                            Collections.singletonMap("_fingerprint_hashes", fingerprintHashes),
+                            new RowCallbackHandler() {
+                                @Override
+                                public void processRow(ResultSet rs) throws SQLException {
+                                    oldSummaries.put(ByteBuffer.wrap(rs.getBytes(COLUMN_FINGERPRINT_HASH)),
+                                            eventDedupMapper.mapRow(rs, rs.getRow()));
+                                }
+                            });
+
+                    final long updateTime = System.currentTimeMillis();
+                    final List<Map<String, Object>> inserts = new ArrayList<Map<String, Object>>();
+                    final Map<String, List<Map<String, Object>>> updates =
+                            new HashMap<String, List<Map<String, Object>>>();
+                    final List<String> indexUuids = new ArrayList<String>(pending.size());
+                    long dedupCount = 0;
+                    for (Map.Entry<ByteBuffer, PendingFingerprint> entry : pending.entrySet()) {
+                        final PendingFingerprint pendingFingerprint = entry.getValue();
+                        EventSummary.Builder summary = oldSummaries.get(entry.getKey());
+                        final boolean exists = (summary != null);
+                        if (!exists) {
+                            summary = EventSummary.newBuilder();
+                            summary.setCount(0);
+                            summary.addOccurrenceBuilder(0);
+                        }
+
+                        boolean isNewer = false;
+                        for (Event event : pendingFingerprint.events) {
+                            isNewer = merge(summary, event) || isNewer;
+                        }
+                        summary.setUpdateTime(updateTime);
+
+                        if (exists) {
+                            dedupCount += pendingFingerprint.events.size();
+                            final Map<String, Object> fields = getUpdateFields(summary, isNewer,
+                                    pendingFingerprint.context, true);
+                            final String updateSql = createUpdateSql(fields.keySet());
+                            fields.put(COLUMN_FINGERPRINT_HASH, pendingFingerprint.fingerprintHash);
+                            List<Map<String, Object>> batch = updates.get(updateSql);
+                            if (batch == null) {
+                                batch = new ArrayList<Map<String, Object>>();
+                                updates.put(updateSql, batch);
+                            }
+                            batch.add(fields);
+                        } else {
+                            dedupCount += pendingFingerprint.events.size() - 1;
+                            summary.setUuid(uuidGenerator.generate().toString());
+                            final Map<String, Object> fields = getInsertFields(summary, pendingFingerprint.context,
+                                    true);
+                            fields.put(COLUMN_FINGERPRINT_HASH, pendingFingerprint.fingerprintHash);
+                            inserts.add(fields);
+                        }
+                        indexUuids.add(summary.getUuid());
+                        for (int position : pendingFingerprint.positions) {
+                            uuids.set(position, summary.getUuid());
+                        }
+                        final List<Event> pendingEvents = pendingFingerprint.events;
+                        trackWriteBehind(pendingFingerprint.fingerprintHash, summary.getUuid(),
+                                pendingEvents.get(pendingEvents.size() - 1), pendingFingerprint.context);
+                    }
+
+                    if (!inserts.isEmpty()) {
+                        insert.executeBatch(inserts.toArray(new Map[inserts.size()]));
+                    }
+                    for (Map.Entry<String, List<Map<String, Object>>> entry : updates.entrySet()) {
+                        final List<Map<String, Object>> batch = entry.getValue();
+                        template.batchUpdate(entry.getKey(), batch.toArray(new Map[batch.size()]));
+                    }
+                    indexSignal(indexUuids);
+                    if (dedupCount > 0) {
+                        final long finalDedupCount = dedupCount;
+                        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                            @Override
+                            public void afterCommit() {
+                                counters.addToDedupedEventCount(finalDedupCount);
+                            }
+                        });
+                    }
+                    return null;
+                }
+            });
+        } catch (ZepException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ZepException(e);
+        }
+    }
+
     private boolean merge(EventSummary.Builder merged, Event occurrence)
             throws ZepException {
         boolean isNewer = false;
@@ -562,6 +741,10 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
             logger.debug("Clear event didn't contain any clear hashes: {}, {}", event, context);
             return Collections.emptyList();
         }
+        // Occurrences held in memory must be written before they can be cleared.
+        if (writeBehindAccumulator != null) {
+            writeBehindAccumulator.invalidateByClearHashes(clearHashes);
+        }
         final long lastSeen = event.getCreatedTime();
 
         Map<String, Object> fields = new HashMap<String, Object>(2);
@@ -895,6 +1078,7 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
     @Timed(absolute=true, name="EventSummary.addNote")
     public int addNote(String uuid, EventNote note) throws ZepException {
         final long updateTime = System.currentTimeMillis();
+        invalidateWriteBehind(Collections.singletonList(uuid));
         this.indexSignal(uuid);
 
         return this.eventDaoHelper.addNote(TABLE_EVENT_SUMMARY, uuid, note, template);
@@ -906,6 +1090,7 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
     public int updateDetails(String uuid, EventDetailSet details)
             throws ZepException {
         final long updateTime = System.currentTimeMillis();
+        invalidateWriteBehind(Collections.singletonList(uuid));
         this.indexSignal(uuid);
 
         return this.eventDaoHelper.updateDetails(TABLE_EVENT_SUMMARY, uuid, details.getDetailsList(), template);
@@ -969,6 +1154,7 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
         if (uuids.isEmpty()) {
             return 0;
         }
+        invalidateWriteBehind(uuids);
         TypeConverter<Long> timestampConverter = databaseCompatibility.getTimestampConverter();
         final long now = System.currentTimeMillis();
         final Map<String, Object> fields = updateFields.toMap(uuidConverter);
@@ -1229,6 +1415,7 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
         }
 
         final long updateTime = System.currentTimeMillis();
+        invalidateWriteBehind(uuids);
         /* signal event_summary table rows to get indexed */
         this.indexSignal(uuids);
 
@@ -1281,6 +1468,10 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
         this.insert.execute(fields);
     }
 
+    /**
+     * Signals the events returned by the query to be indexed, writing any of their occurrences held in memory
+     * first as the events are about to be updated.
+     */
     private void indexResults(final String sql, final Map<String, ?> fields) throws ZepException {
         List<String> ids = this.template.query(sql, new RowMapper<String>() {
             @Override
@@ -1289,9 +1480,17 @@ public class EventSummaryDaoImpl implements EventSummaryDao {
                 return uuidConverter.fromDatabaseType(rs, COLUMN_UUID);
             }
         }, fields);
+        invalidateWriteBehind(ids);
         this.indexSignal(ids);
     }
 
+    /* Writes the occurrences held in memory for the events, which must be done before they are updated. */
+    private void invalidateWriteBehind(Collection<String> uuids) throws ZepException {
+        if (writeBehindAccumulator != null && !uuids.isEmpty()) {
+            writeBehindAccumulator.invalidateByUuids(uuids);
+        }
+    }
+
     private void indexSignal(final String eventUuid) {
         this.indexSignal(Collections.singletonList(eventUuid));
     }
@@ -0,0 +1,608 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.dao.impl;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.zep.ZepException;
+import org.zenoss.zep.plugins.EventPreCreateContext;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Optional write-behind buffer for duplicates of open events.
+ * <p>
+ * Once an open event has been saved, its fingerprint hash is tracked along with the UUID of the summary.
+ * Further occurrences of the fingerprint are held in memory instead of locking and updating the
+ * event_summary row for every occurrence. The held occurrences are merged into the row (with a single
+ * index signal) when the oldest has waited for the flush interval, when the maximum number of occurrences
+ * is reached, or when the event is cleared or otherwise updated (for example by a user, aging or archiving).
+ * <p>
+ * Expired and full entries are written in transactions owned by the accumulator, and are requeued once if every
+ * attempt fails. An occurrence offered in a transaction which rolls back is withdrawn, because the caller will
+ * process it again. Occurrences are only held in memory until they are flushed, so they can be lost if ZEP exits
+ * abnormally.
+ */
+public class EventWriteBehindAccumulator {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventWriteBehindAccumulator.class);
+
+    /**
+     * Persists occurrences of an open event, in the current transaction.
+     */
+    public interface Flusher {
+        /**
+         * Merges the occurrences into the event summary with the specified fingerprint hash.
+         *
+         * @param fingerprintHash The fingerprint hash of the event summary.
+         * @param events The occurrences to merge.
+         * @param context The context of the most recent occurrence.
+         * @return The UUID of the event summary.
+         * @throws ZepException If an error occurs.
+         */
+        String flush(byte[] fingerprintHash, List<Event> events, EventPreCreateContext context) throws ZepException;
+    }
+
+    private static class Entry {
+        private final ByteBuffer key;
+        private final byte[] clearHash;
+        private String uuid;
+        private List<Event> events = new ArrayList<Event>();
+        private EventPreCreateContext context;
+        private long firstQueued;
+        private long lastUsed;
+        private boolean removed = false;
+
+        private Entry(ByteBuffer key, byte[] clearHash, String uuid) {
+            this.key = key;
+            this.clearHash = clearHash;
+            this.uuid = uuid;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        /* Must be called with the entry locked. */
+        private List<Event> drain() {
+            final List<Event> drained = this.events;
+            this.events = new ArrayList<Event>();
+            return drained;
+        }
+    }
+
+    private static class Drained {
+        private final Entry entry;
+        private final List<Event> events;
+        private final EventPreCreateContext context;
+
+        private Drained(Entry entry, List<Event> events, EventPreCreateContext context) {
+            this.entry = entry;
+            this.events = events;
+            this.context = context;
+        }
+    }
+
+    private final ConcurrentMap<ByteBuffer, Entry> entries = new ConcurrentHashMap<ByteBuffer, Entry>();
+    // Tracked entries by UUID and by clear hash, guarded by indexLock. Entry locks are taken before indexLock.
+    private final Object indexLock = new Object();
+    private final Map<String, Entry> entriesByUuid = new HashMap<String, Entry>();
+    private final Map<ByteBuffer, Set<Entry>> entriesByClearHash = new HashMap<ByteBuffer, Set<Entry>>();
+    private final TransactionTemplate transactionTemplate;
+    private final TaskScheduler scheduler;
+    private Flusher flusher;
+    private ScheduledFuture<?> flushFuture = null;
+
+    private boolean enabled = false;
+    private long flushIntervalMillis = 1000L;
+    private int maxOccurrences = 1000;
+    private int maxFingerprints = 10000;
+    private long idleTimeoutMillis = 60000L;
+
+    private MetricRegistry metrics = new MetricRegistry();
+    private Meter accumulatedMeter = metrics.meter("accumulatedForUnitTest");
+    private Meter flushedMeter = metrics.meter("flushedForUnitTest");
+
+    public EventWriteBehindAccumulator(PlatformTransactionManager transactionManager, TaskScheduler scheduler) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.scheduler = scheduler;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets the maximum amount of time an occurrence is held in memory before it is written to the database.
+     *
+     * @param flushIntervalMillis The flush interval in milliseconds.
+     */
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    /**
+     * Sets the number of occurrences of one fingerprint which triggers an immediate write to the database.
+     *
+     * @param maxOccurrences The maximum number of occurrences held for one fingerprint.
+     */
+    public void setMaxOccurrences(int maxOccurrences) {
+        this.maxOccurrences = maxOccurrences;
+    }
+
+    /**
+     * Sets the maximum number of fingerprints tracked at any time.
+     *
+     * @param maxFingerprints The maximum number of fingerprints tracked.
+     */
+    public void setMaxFingerprints(int maxFingerprints) {
+        this.maxFingerprints = maxFingerprints;
+    }
+
+    /**
+     * Sets the amount of time after which a fingerprint with no new occurrences is no longer tracked.
+     *
+     * @param idleTimeoutMillis The idle timeout in milliseconds.
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public void setFlusher(Flusher flusher) {
+        this.flusher = flusher;
+    }
+
+    @Autowired
+    public void setMetricRegistry(MetricRegistry metrics) {
+        this.metrics = metrics;
+        final String prefix = this.getClass().getSimpleName();
+        this.accumulatedMeter = metrics.meter(MetricRegistry.name(prefix, "accumulated"));
+        this.flushedMeter = metrics.meter(MetricRegistry.name(prefix, "flushed"));
+        metrics.register(MetricRegistry.name(prefix, "fingerprints"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return entries.size();
+            }
+        });
+    }
+
+    public synchronized void init() {
+        if (!this.enabled || this.flushFuture != null) {
+            return;
+        }
+        logger.info("Starting write-behind de-duplication with flush interval: {} ms", this.flushIntervalMillis);
+        this.flushFuture = this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushExpired(System.currentTimeMillis());
+                } catch (Exception e) {
+                    logger.warn("Failed to flush de-duplicated events", e);
+                }
+            }
+        }, Math.max(1L, this.flushIntervalMillis / 2));
+    }
+
+    public synchronized void shutdown() {
+        if (this.flushFuture != null) {
+            this.flushFuture.cancel(false);
+            this.flushFuture = null;
+        }
+        if (this.enabled) {
+            try {
+                flushExpired(Long.MAX_VALUE);
+            } catch (Exception e) {
+                logger.warn("Failed to flush de-duplicated events on shutdown", e);
+            }
+        }
+    }
+
+    /**
+     * Holds the occurrence in memory if the fingerprint is tracked. If the maximum number of occurrences for the
+     * fingerprint is reached, the held occurrences are written in a transaction of their own and the caller must
+     * save the occurrence. If the current transaction rolls back, the held occurrence is withdrawn.
+     *
+     * @param fingerprintHash The fingerprint hash of the occurrence.
+     * @param event The occurrence.
+     * @param context The context used to create the occurrence.
+     * @return The UUID of the event summary, or null if the caller must save the occurrence.
+     */
+    public String offer(byte[] fingerprintHash, final Event event, EventPreCreateContext context) {
+        if (!this.enabled) {
+            return null;
+        }
+        final Entry entry = this.entries.get(ByteBuffer.wrap(fingerprintHash));
+        if (entry == null) {
+            return null;
+        }
+        final List<Drained> drained;
+        synchronized (entry) {
+            if (entry.removed) {
+                return null;
+            }
+            final long now = System.currentTimeMillis();
+            entry.lastUsed = now;
+            if (entry.events.size() + 1 >= this.maxOccurrences) {
+                drained = entry.events.isEmpty() ? null :
+                        Arrays.asList(new Drained(entry, entry.drain(), entry.context));
+            } else {
+                if (entry.events.isEmpty()) {
+                    entry.firstQueued = now;
+                }
+                entry.events.add(event);
+                entry.context = context;
+                this.accumulatedMeter.mark();
+                withdrawOnRollback(entry, event);
+                return entry.uuid;
+            }
+        }
+        if (drained != null) {
+            scheduleFlush(drained);
+        }
+        return null;
+    }
+
+    /* Withdraws the held occurrence if the current transaction rolls back, as the caller will process it again. */
+    private void withdrawOnRollback(final Entry entry, final Event event) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status != TransactionSynchronization.STATUS_ROLLED_BACK) {
+                    return;
+                }
+                synchronized (entry) {
+                    for (Iterator<Event> it = entry.events.iterator(); it.hasNext(); ) {
+                        if (it.next() == event) {
+                            it.remove();
+                            break;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /* Writes the drained occurrences of a full entry on the scheduler, outside of the caller's transaction. */
+    private void scheduleFlush(final List<Drained> drained) {
+        try {
+            this.scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flushInNewTransaction(drained);
+                    } catch (Exception e) {
+                        logger.warn("Failed to flush de-duplicated events", e);
+                    }
+                }
+            }, new Date());
+        } catch (RuntimeException e) {
+            logger.debug("Failed to schedule flush of de-duplicated events", e);
+            requeue(drained);
+        }
+    }
+
+    /**
+     * Starts holding further occurrences of the fingerprint in memory once the current transaction commits.
+     *
+     * @param fingerprintHash The fingerprint hash of the saved event.
+     * @param uuid The UUID of the event summary.
+     * @param clearHash The clear fingerprint hash of the event.
+     */
+    public void track(byte[] fingerprintHash, final String uuid, final byte[] clearHash) {
+        if (!this.enabled || uuid == null) {
+            return;
+        }
+        final ByteBuffer key = ByteBuffer.wrap(fingerprintHash);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    doTrack(key, uuid, clearHash);
+                }
+            });
+        } else {
+            doTrack(key, uuid, clearHash);
+        }
+    }
+
+    private void doTrack(ByteBuffer key, String uuid, byte[] clearHash) {
+        if (this.entries.size() >= this.maxFingerprints) {
+            return;
+        }
+        final Entry entry = new Entry(key, clearHash, uuid);
+        final Entry existing;
+        synchronized (entry) {
+            existing = this.entries.putIfAbsent(key, entry);
+            if (existing == null) {
+                addToIndexes(entry);
+            }
+        }
+        if (existing != null) {
+            synchronized (existing) {
+                setUuid(existing, uuid);
+            }
+        }
+    }
+
+    /* Must be called with the entry locked. */
+    private void addToIndexes(Entry entry) {
+        synchronized (this.indexLock) {
+            this.entriesByUuid.put(entry.uuid, entry);
+            if (entry.clearHash != null) {
+                final ByteBuffer clearKey = ByteBuffer.wrap(entry.clearHash);
+                Set<Entry> clearEntries = this.entriesByClearHash.get(clearKey);
+                if (clearEntries == null) {
+                    clearEntries = new HashSet<Entry>();
+                    this.entriesByClearHash.put(clearKey, clearEntries);
+                }
+                clearEntries.add(entry);
+            }
+        }
+    }
+
+    /* Must be called with the entry locked. */
+    private void removeFromIndexes(Entry entry) {
+        synchronized (this.indexLock) {
+            if (this.entriesByUuid.get(entry.uuid) == entry) {
+                this.entriesByUuid.remove(entry.uuid);
+            }
+            if (entry.clearHash != null) {
+                final ByteBuffer clearKey = ByteBuffer.wrap(entry.clearHash);
+                final Set<Entry> clearEntries = this.entriesByClearHash.get(clearKey);
+                if (clearEntries != null && clearEntries.remove(entry) && clearEntries.isEmpty()) {
+                    this.entriesByClearHash.remove(clearKey);
+                }
+            }
+        }
+    }
+
+    /* Must be called with the entry locked. */
+    private void setUuid(Entry entry, String uuid) {
+        if (uuid == null || uuid.equals(entry.uuid)) {
+            return;
+        }
+        synchronized (this.indexLock) {
+            if (!entry.removed) {
+                if (this.entriesByUuid.get(entry.uuid) == entry) {
+                    this.entriesByUuid.remove(entry.uuid);
+                }
+                this.entriesByUuid.put(uuid, entry);
+            }
+            entry.uuid = uuid;
+        }
+    }
+
+    /* Must be called with the entry locked. */
+    private void remove(Entry entry) {
+        entry.removed = true;
+        this.entries.remove(entry.key, entry);
+        removeFromIndexes(entry);
+    }
+
+    /**
+     * Writes any held occurrences which would be cleared by the specified clear hashes and stops tracking them,
+     * in the current transaction. This must be called before a clear event is processed.
+     *
+     * @param clearHashes The clear hashes of the clear event.
+     * @throws ZepException If writing the held occurrences fails.
+     */
+    public void invalidateByClearHashes(Collection<byte[]> clearHashes) throws ZepException {
+        if (!this.enabled || this.entries.isEmpty()) {
+            return;
+        }
+        final List<Entry> matching = new ArrayList<Entry>();
+        synchronized (this.indexLock) {
+            for (byte[] clearHash : clearHashes) {
+                final Set<Entry> clearEntries = this.entriesByClearHash.get(ByteBuffer.wrap(clearHash));
+                if (clearEntries != null) {
+                    matching.addAll(clearEntries);
+                }
+            }
+        }
+        final List<Drained> drained = new ArrayList<Drained>();
+        for (Entry entry : matching) {
+            invalidate(entry, drained);
+        }
+        flushInvalidated(drained);
+    }
+
+    /**
+     * Writes any held occurrences of the events with the specified UUIDs and stops tracking them, in the
+     * current transaction. This must be called before the events are updated.
+     *
+     * @param uuids The UUIDs of the events.
+     * @throws ZepException If writing the held occurrences fails.
+     */
+    public void invalidateByUuids(Collection<String> uuids) throws ZepException {
+        if (!this.enabled || this.entries.isEmpty()) {
+            return;
+        }
+        final List<Entry> matching = new ArrayList<Entry>();
+        synchronized (this.indexLock) {
+            for (String uuid : uuids) {
+                final Entry entry = this.entriesByUuid.get(uuid);
+                if (entry != null) {
+                    matching.add(entry);
+                }
+            }
+        }
+        final List<Drained> drained = new ArrayList<Drained>();
+        for (Entry entry : matching) {
+            invalidate(entry, drained);
+        }
+        flushInvalidated(drained);
+    }
+
+    private void invalidate(Entry entry, List<Drained> drained) {
+        synchronized (entry) {
+            if (entry.removed) {
+                return;
+            }
+            remove(entry);
+            if (!entry.events.isEmpty()) {
+                drained.add(new Drained(entry, entry.drain(), entry.context));
+            }
+        }
+    }
+
+    /**
+     * Writes held occurrences which have waited for at least the flush interval (in a new transaction) and stops
+     * tracking idle fingerprints.
+     *
+     * @param now The current time (Long.MAX_VALUE to flush all held occurrences).
+     * @throws Exception If writing the held occurrences fails.
+     */
+    void flushExpired(long now) throws Exception {
+        final List<Drained> drained = new ArrayList<Drained>();
+        for (Entry entry : this.entries.values()) {
+            synchronized (entry) {
+                if (entry.removed) {
+                    continue;
+                }
+                if (!entry.events.isEmpty()) {
+                    if (now - entry.firstQueued >= this.flushIntervalMillis) {
+                        drained.add(new Drained(entry, entry.drain(), entry.context));
+                    }
+                } else if (now - entry.lastUsed >= this.idleTimeoutMillis) {
+                    remove(entry);
+                }
+            }
+        }
+        if (!drained.isEmpty()) {
+            flushInNewTransaction(drained);
+        }
+    }
+
+    /*
+     * Writes the drained occurrences in a transaction owned by the accumulator, retrying on deadlock. A rolled back
+     * attempt writes nothing, so each retry writes the same occurrences, and they are requeued only if every
+     * attempt fails.
+     */
+    private void flushInNewTransaction(final List<Drained> drained) throws Exception {
+        final List<String> uuids;
+        try {
+            uuids = DaoUtils.deadlockRetry(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws Exception {
+                    return transactionTemplate.execute(new TransactionCallback<List<String>>() {
+                        @Override
+                        public List<String> doInTransaction(TransactionStatus status) {
+                            try {
+                                return flush(drained);
+                            } catch (ZepException e) {
+                                throw new RuntimeException(e.getLocalizedMessage(), e);
+                            }
+                        }
+                    });
+                }
+            });
+        } catch (Exception e) {
+            requeue(drained);
+            throw e;
+        }
+        for (int i = 0; i < drained.size(); i++) {
+            final Entry entry = drained.get(i).entry;
+            synchronized (entry) {
+                setUuid(entry, uuids.get(i));
+            }
+        }
+    }
+
+    /* Writes the drained occurrences in the current transaction. */
+    private List<String> flush(List<Drained> drained) throws ZepException {
+        final List<String> uuids = new ArrayList<String>(drained.size());
+        for (Drained d : drained) {
+            uuids.add(this.flusher.flush(d.entry.key.array(), d.events, d.context));
+            this.flushedMeter.mark();
+        }
+        return uuids;
+    }
+
+    /*
+     * Writes occurrences drained by an invalidation in the caller's transaction. They were offered in transactions
+     * which have committed, so nothing else will process them again if this transaction rolls back - they are
+     * requeued instead. A caller which retries the transaction drains and writes them again.
+     */
+    private void flushInvalidated(final List<Drained> drained) throws ZepException {
+        if (drained.isEmpty()) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == TransactionSynchronization.STATUS_ROLLED_BACK) {
+                        requeue(drained);
+                    }
+                }
+            });
+        }
+        flush(drained);
+    }
+
+    private void requeue(List<Drained> drained) {
+        for (Drained d : drained) {
+            Entry entry = this.entries.get(d.entry.key);
+            if (entry == null) {
+                final Entry newEntry = new Entry(d.entry.key, d.entry.clearHash, d.entry.uuid);
+                synchronized (newEntry) {
+                    entry = this.entries.putIfAbsent(d.entry.key, newEntry);
+                    if (entry == null) {
+                        addToIndexes(newEntry);
+                        entry = newEntry;
+                    }
+                }
+            }
+            synchronized (entry) {
+                if (entry.removed) {
+                    logger.warn("Dropped {} de-duplicated occurrences after failed flush", d.events.size());
+                    continue;
+                }
+                if (entry.events.isEmpty()) {
+                    entry.firstQueued = System.currentTimeMillis();
+                    entry.context = d.context;
+                }
+                entry.events.addAll(0, d.events);
+            }
+        }
+    }
+}
@@ -31,6 +31,8 @@ public abstract class AbstractQueueListener extends QueueListener {
 
     protected ExecutorService executorService;
 
+    protected PartitionedExecutor partitionedExecutor;
+
     @Autowired
     protected MetricRegistry metricRegistry;
 
@@ -45,6 +47,39 @@ public abstract class AbstractQueueListener extends QueueListener {
         this.executorService = executorService;
     }
     
+    /**
+     * Sets an optional executor used to process messages with the same partition key (see
+     * {@link #getPartitionKey(com.google.protobuf.Message)}) serially on a single lane.
+     *
+     * @param partitionedExecutor The partitioned executor.
+     */
+    public void setPartitionedExecutor(PartitionedExecutor partitionedExecutor) {
+        this.partitionedExecutor = partitionedExecutor;
+    }
+
+    /**
+     * Returns the key used to choose the lane of the partitioned executor for the message. Messages without a
+     * key (the default) are processed on the shared executor service.
+     *
+     * @param message The message body.
+     * @return The partition key, or null to process the message on the shared executor service.
+     */
+    protected Object getPartitionKey(com.google.protobuf.Message message) {
+        return null;
+    }
+
+    /**
+     * Executes the task on the lane of the partitioned executor for the key, or on the shared executor service
+     * if there is no key or the partitioned executor is not enabled.
+     */
+    protected void execute(Object partitionKey, Runnable task) {
+        if (partitionKey != null && this.partitionedExecutor != null && this.partitionedExecutor.isEnabled()) {
+            this.partitionedExecutor.execute(partitionKey, task);
+        } else {
+            this.executorService.submit(task);
+        }
+    }
+
     protected void rejectMessage(final Consumer<?> consumer, final Message<?> message, final boolean requeue) {
         try {
             metricRegistry.timer(rejectMessageTimerName).time(new Callable<Object>() {
@@ -63,13 +98,44 @@ public abstract class AbstractQueueListener extends QueueListener {
         }
     }
 
+    protected void ackMessage(final Consumer<com.google.protobuf.Message> consumer,
+                              final Message<com.google.protobuf.Message> message) throws Exception {
+        metricRegistry.timer(ackMessageTimerName).time(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                consumer.ackMessage(message);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Rejects a message which could not be processed, re-queueing it if the failure may be temporary.
+     */
+    protected void handleFailure(final Consumer<?> consumer, final Message<?> message, final Exception e) {
+        if (ZepUtils.isExceptionOfType(e, TransientDataAccessException.class)) {
+            /* Re-queue the message if we get a temporary database failure */
+            logger.debug("Transient database exception", e);
+            logger.debug("Re-queueing message due to transient failure: {}", message);
+            rejectMessage(consumer, message, true);
+        } else if (!message.getEnvelope().isRedeliver()) {
+            /* Attempt one redelivery of the message */
+            logger.debug("First failure processing message: " + message, e);
+            rejectMessage(consumer, message, true);
+        } else {
+            /* TODO: Dead letter queue or other safety net? */
+            logger.warn("Failed processing message: " + message, e);
+            rejectMessage(consumer, message, false);
+        }
+    }
+
     @Override
     protected void receive(final Message<com.google.protobuf.Message> message,
             final Consumer<com.google.protobuf.Message> consumer) throws Exception {
         metricRegistry.timer(receiveMessageTimerName).time(new Callable<Object>() {
             @Override
             public Object call() throws Exception {
-                AbstractQueueListener.this.executorService.submit(new Runnable() {
+                execute(getPartitionKey(message.getBody()), new Runnable() {
                     @Override
                     public void run() {
                         try {
@@ -86,28 +152,9 @@ public abstract class AbstractQueueListener extends QueueListener {
                                     return null;
                                 }
                             });
-                            metricRegistry.timer(ackMessageTimerName).time(new Callable<Object>() {
-                                @Override
-                                public Object call() throws Exception {
-                                    consumer.ackMessage(message);
-                                    return null;
-                                }
-                            });
+                            ackMessage(consumer, message);
                         } catch (Exception e) {
-                            if (ZepUtils.isExceptionOfType(e, TransientDataAccessException.class)) {
-                        /* Re-queue the message if we get a temporary database failure */
-                                logger.debug("Transient database exception", e);
-                                logger.debug("Re-queueing message due to transient failure: {}", message);
-                                rejectMessage(consumer, message, true);
-                            } else if (!message.getEnvelope().isRedeliver()) {
-                        /* Attempt one redelivery of the message */
-                                logger.debug("First failure processing message: " + message, e);
-                                rejectMessage(consumer, message, true);
-                            } else {
-                        /* TODO: Dead letter queue or other safety net? */
-                                logger.warn("Failed processing message: " + message, e);
-                                rejectMessage(consumer, message, false);
-                            }
+                            handleFailure(consumer, message, e);
                         }
                     }
                 });
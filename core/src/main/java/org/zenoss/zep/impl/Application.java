@@ -93,6 +93,7 @@ public class Application implements ApplicationEventPublisherAware, ApplicationC
     private ApplicationContext applicationContext;
     private ExecutorService queueExecutor;
     private ExecutorService migratedExecutor;
+    private PartitionedExecutor partitionedQueueExecutor;
 
     private List<String> queueListeners = new ArrayList<String>();
     private ApplicationEventPublisher applicationEventPublisher;
@@ -149,6 +150,10 @@ public class Application implements ApplicationEventPublisherAware, ApplicationC
         this.queueExecutor = queueExecutor;
     }
 
+    public void setPartitionedQueueExecutor(PartitionedExecutor partitionedQueueExecutor) {
+        this.partitionedQueueExecutor = partitionedQueueExecutor;
+    }
+
     public void setScheduler(ThreadPoolTaskScheduler scheduler) {
         this.scheduler = scheduler;
     }
@@ -256,6 +261,14 @@ public class Application implements ApplicationEventPublisherAware, ApplicationC
 
         stopExecutor(this.queueExecutor);
         stopExecutor(this.migratedExecutor);
+        if (this.partitionedQueueExecutor != null) {
+            this.partitionedQueueExecutor.shutdown();
+            try {
+                this.partitionedQueueExecutor.awaitTermination(0L, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
         this.amqpConnectionManager.shutdown();
 
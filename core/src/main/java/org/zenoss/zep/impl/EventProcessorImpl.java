@@ -31,6 +31,8 @@ import org.zenoss.zep.plugins.EventPreCreateContext;
 import org.zenoss.zep.plugins.EventPreCreatePlugin;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -80,25 +82,35 @@ public class EventProcessorImpl implements EventProcessor {
         return event;
     }
 
-    @Override
-    @Timed(absolute=true, name="EventProcessor.processEvent")
-    public void processEvent(ZepRawEvent zepRawEvent) throws ZepException {
-        logger.debug("processEvent: event={}", zepRawEvent);
-        counters.addToProcessedEventCount(1);
-
+    /**
+     * Returns true if the raw event can be processed, otherwise the event is counted as dropped.
+     */
+    private boolean isValid(ZepRawEvent zepRawEvent) {
         if (zepRawEvent.getEvent().getStatus() == EventStatus.STATUS_DROPPED) {
             logger.debug("Event dropped: {}", zepRawEvent);
             counters.addToDroppedEventCount(1);
-            return;
+            return false;
         } else if (zepRawEvent.getEvent().getUuid().isEmpty()) {
             logger.error("Could not process event, has no uuid: {}",
                     zepRawEvent);
             counters.addToDroppedEventCount(1);
-            return;
+            return false;
         } else if (!zepRawEvent.getEvent().hasCreatedTime()) {
             logger.error("Could not process event, has no created_time: {}",
                     zepRawEvent);
             counters.addToDroppedEventCount(1);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    @Timed(absolute=true, name="EventProcessor.processEvent")
+    public void processEvent(ZepRawEvent zepRawEvent) throws ZepException {
+        logger.debug("processEvent: event={}", zepRawEvent);
+        counters.addToProcessedEventCount(1);
+
+        if (!isValid(zepRawEvent)) {
             return;
         }
 
@@ -136,10 +148,80 @@ public class EventProcessorImpl implements EventProcessor {
             uuid = this.eventSummaryDao.create(event, ctx);
         }
 
+        runPostCreatePlugins(pluginService.getPluginsByType(EventPostCreatePlugin.class), event, uuid);
+    }
+
+    @Override
+    @Timed(absolute=true, name="EventProcessor.processEvents")
+    public void processEvents(List<ZepRawEvent> zepRawEvents) throws ZepException {
+        logger.debug("processEvents: {} events", zepRawEvents.size());
+        counters.addToProcessedEventCount(zepRawEvents.size());
+
+        final List<Event> events = new ArrayList<Event>(zepRawEvents.size());
+        final List<EventPreCreateContext> contexts = new ArrayList<EventPreCreateContext>(zepRawEvents.size());
+        for (ZepRawEvent zepRawEvent : zepRawEvents) {
+            if (isValid(zepRawEvent)) {
+                events.add(eventFromRawEvent(zepRawEvent));
+                contexts.add(new EventPreCreateContextImpl(zepRawEvent));
+            }
+        }
+
+        // Each plug-in runs over the whole batch (in order) before the next plug-in is invoked.
+        for (EventPreCreatePlugin plugin : pluginService.getPluginsByType(EventPreCreatePlugin.class)) {
+            int numKept = 0;
+            for (int i = 0; i < events.size(); i++) {
+                final Event event = events.get(i);
+                final EventPreCreateContext ctx = contexts.get(i);
+                final Timer.Context timerContext = preCreatePluginsTimer.time();
+                Event modified = plugin.processEvent(event, ctx);
+                timerContext.stop();
+                if (modified != null && modified.getStatus() == EventStatus.STATUS_DROPPED) {
+                    logger.debug("Event dropped by {}", plugin.getId());
+                    counters.addToDroppedEventCount(1);
+                    continue;
+                }
+
+                if (modified != null && !modified.equals(event)) {
+                    logger.debug("Event modified by {} as {}", plugin.getId(), modified);
+                    events.set(numKept, modified);
+                } else {
+                    events.set(numKept, event);
+                }
+                contexts.set(numKept, ctx);
+                ++numKept;
+            }
+            events.subList(numKept, events.size()).clear();
+            contexts.subList(numKept, contexts.size()).clear();
+        }
+
+        if (events.isEmpty()) {
+            return;
+        }
+
+        List<String> uuids;
+        try {
+            uuids = this.eventSummaryDao.createBatch(events, contexts);
+        } catch (DuplicateKeyException e) {
+            // Another batch inserted one of our new fingerprints first - the retry will de-duplicate against it.
+            logger.info("DuplicateKeyException - retrying batch of {} events", events.size());
+            uuids = this.eventSummaryDao.createBatch(events, contexts);
+        }
+
+        final List<EventPostCreatePlugin> postCreatePlugins =
+                pluginService.getPluginsByType(EventPostCreatePlugin.class);
+        if (!postCreatePlugins.isEmpty()) {
+            for (int i = 0; i < events.size(); i++) {
+                runPostCreatePlugins(postCreatePlugins, events.get(i), uuids.get(i));
+            }
+        }
+    }
+
+    private void runPostCreatePlugins(List<EventPostCreatePlugin> plugins, Event event, String uuid)
+            throws ZepException {
         EventSummary summary = null;
         EventPostCreateContext context = new EventPostCreateContext() {
         };
-        for (EventPostCreatePlugin plugin : pluginService.getPluginsByType(EventPostCreatePlugin.class)) {
+        for (EventPostCreatePlugin plugin : plugins) {
             if (summary == null && uuid != null) {
                 summary = this.eventSummaryDao.findByUuid(uuid);
             }
@@ -0,0 +1,347 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationListener;
+import org.springframework.scheduling.TaskScheduler;
+import org.zenoss.zep.events.EventIndexQueueSizeEvent;
+import org.zenoss.zep.index.WorkQueue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Decides how fast the raw event consumer may accept new events.
+ * <p>
+ * The controller periodically samples the depth of the event summary index queue, the saturation of the
+ * database connection pool and the number of tasks waiting on the queue executors. Each is divided by its
+ * threshold and the largest ratio is the current pressure. Listeners are given a credit between 0 and 1
+ * (the fraction of their normal prefetch they may use) and are paused when the pressure reaches 1. A paused
+ * consumer is only resumed once the pressure drops below the resume ratio.
+ */
+public class FlowController implements ApplicationListener<EventIndexQueueSizeEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(FlowController.class);
+
+    /**
+     * Receives changes to the flow control state.
+     */
+    public interface Listener {
+        /**
+         * Called when the flow control state changes.
+         *
+         * @param paused True if the consumer should stop processing new messages.
+         * @param credit The fraction (0 to 1) of the normal prefetch count the consumer may use.
+         */
+        void flowChanged(boolean paused, double credit);
+    }
+
+    private final TaskScheduler scheduler;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private boolean enabled = true;
+    private long intervalMillis = 1000L;
+    private int indexQueueThreshold = 10000;
+    private double dbPoolThreshold = 0.9;
+    private int executorQueueThreshold = 1000;
+    private double resumeRatio = 0.5;
+
+    private WorkQueue indexQueue;
+    private DataSource dataSource;
+    private ExecutorService queueExecutor;
+    private PartitionedExecutor partitionedExecutor;
+
+    private volatile long indexQueueSize = 0L;
+    private volatile int indexQueueLimit = 0;
+    private volatile int dbPoolActive = 0;
+    private volatile int executorQueueSize = 0;
+    private volatile double pressure = 0.0;
+    private volatile boolean paused = false;
+    private volatile double credit = 1.0;
+
+    private ScheduledFuture<?> future;
+
+    private MetricRegistry metrics = new MetricRegistry();
+    private Meter pausedMeter = metrics.meter("pausedForUnitTest");
+
+    public FlowController(TaskScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    @Autowired
+    public void setMetricRegistry(MetricRegistry metrics) {
+        this.metrics = metrics;
+        final String prefix = this.getClass().getSimpleName();
+        this.pausedMeter = metrics.meter(MetricRegistry.name(prefix, "pauses"));
+        metrics.register(MetricRegistry.name(prefix, "indexQueueSize"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return indexQueueSize;
+            }
+        });
+        metrics.register(MetricRegistry.name(prefix, "indexQueueThreshold"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getEffectiveIndexQueueThreshold();
+            }
+        });
+        metrics.register(MetricRegistry.name(prefix, "dbPoolActive"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return dbPoolActive;
+            }
+        });
+        metrics.register(MetricRegistry.name(prefix, "dbPoolThreshold"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return dbPoolThreshold;
+            }
+        });
+        metrics.register(MetricRegistry.name(prefix, "executorQueueSize"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return executorQueueSize;
+            }
+        });
+        metrics.register(MetricRegistry.name(prefix, "executorQueueThreshold"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return executorQueueThreshold;
+            }
+        });
+        metrics.register(MetricRegistry.name(prefix, "pressure"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return pressure;
+            }
+        });
+        metrics.register(MetricRegistry.name(prefix, "credit"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return credit;
+            }
+        });
+        metrics.register(MetricRegistry.name(prefix, "paused"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return paused ? 1 : 0;
+            }
+        });
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Sets how often the controller samples its inputs.
+     *
+     * @param intervalMillis The sampling interval in milliseconds.
+     */
+    public void setIntervalMillis(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Sets the event summary index queue depth at which the consumer is paused. If 0, the threshold is twice
+     * the index batch size reported by the indexer.
+     *
+     * @param indexQueueThreshold The index queue threshold.
+     */
+    public void setIndexQueueThreshold(int indexQueueThreshold) {
+        this.indexQueueThreshold = indexQueueThreshold;
+    }
+
+    /**
+     * Sets the fraction of the database connection pool in use at which the consumer is paused.
+     *
+     * @param dbPoolThreshold The database pool threshold (0 to 1), or 0 to ignore the database pool.
+     */
+    public void setDbPoolThreshold(double dbPoolThreshold) {
+        this.dbPoolThreshold = dbPoolThreshold;
+    }
+
+    /**
+     * Sets the number of tasks waiting on the queue executors at which the consumer is paused.
+     *
+     * @param executorQueueThreshold The executor queue threshold, or 0 to ignore the executors.
+     */
+    public void setExecutorQueueThreshold(int executorQueueThreshold) {
+        this.executorQueueThreshold = executorQueueThreshold;
+    }
+
+    /**
+     * Sets the pressure below which a paused consumer is resumed.
+     *
+     * @param resumeRatio The resume ratio (0 to 1).
+     */
+    public void setResumeRatio(double resumeRatio) {
+        this.resumeRatio = resumeRatio;
+    }
+
+    public void setIndexQueue(WorkQueue indexQueue) {
+        this.indexQueue = indexQueue;
+    }
+
+    public void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public void setQueueExecutor(ExecutorService queueExecutor) {
+        this.queueExecutor = queueExecutor;
+    }
+
+    public void setPartitionedExecutor(PartitionedExecutor partitionedExecutor) {
+        this.partitionedExecutor = partitionedExecutor;
+    }
+
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    public boolean isPaused() {
+        return this.paused;
+    }
+
+    public double getCredit() {
+        return this.credit;
+    }
+
+    public void init() {
+        if (this.enabled && this.scheduler != null) {
+            this.future = this.scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sample();
+                        evaluate();
+                    } catch (Exception e) {
+                        logger.warn("Failed evaluating flow control", e);
+                    }
+                }
+            }, this.intervalMillis);
+        }
+    }
+
+    public void shutdown() {
+        if (this.future != null) {
+            this.future.cancel(false);
+            this.future = null;
+        }
+    }
+
+    @Override
+    public void onApplicationEvent(EventIndexQueueSizeEvent event) {
+        if (this.enabled && event.getTableName().startsWith("event_summary")) {
+            // The indexer reports the size after every pass - react without waiting for the next sample.
+            this.indexQueueSize = event.getSize();
+            this.indexQueueLimit = event.getLimit();
+            evaluate();
+        }
+    }
+
+    private void sample() {
+        if (this.indexQueue != null) {
+            try {
+                this.indexQueueSize = this.indexQueue.size();
+            } catch (RuntimeException e) {
+                logger.debug("Failed retrieving index queue size", e);
+            }
+        }
+        if (this.dataSource != null) {
+            this.dbPoolActive = this.dataSource.getActive();
+        }
+        int queued = 0;
+        if (this.queueExecutor instanceof ThreadPoolExecutor) {
+            queued += ((ThreadPoolExecutor) this.queueExecutor).getQueue().size();
+        }
+        if (this.partitionedExecutor != null) {
+            queued += this.partitionedExecutor.getQueueDepth();
+        }
+        this.executorQueueSize = queued;
+    }
+
+    private int getEffectiveIndexQueueThreshold() {
+        if (this.indexQueueThreshold == 0) {
+            return Math.max(this.indexQueueLimit, 100) * 2;
+        }
+        return this.indexQueueThreshold;
+    }
+
+    private double computePressure() {
+        double current = 0.0;
+        final int indexThreshold = getEffectiveIndexQueueThreshold();
+        if (indexThreshold > 0) {
+            current = Math.max(current, (double) this.indexQueueSize / indexThreshold);
+        }
+        if (this.dataSource != null && this.dbPoolThreshold > 0.0) {
+            final int maxActive = this.dataSource.getMaxActive();
+            if (maxActive > 0) {
+                current = Math.max(current, ((double) this.dbPoolActive / maxActive) / this.dbPoolThreshold);
+            }
+            if (this.dataSource.getWaitCount() > 0) {
+                // Threads are already waiting for a connection.
+                current = Math.max(current, 1.0);
+            }
+        }
+        if (this.executorQueueThreshold > 0) {
+            current = Math.max(current, (double) this.executorQueueSize / this.executorQueueThreshold);
+        }
+        return current;
+    }
+
+    /**
+     * Recomputes the pressure from the last sampled values and notifies listeners if the state changed.
+     */
+    synchronized void evaluate() {
+        if (!this.enabled) {
+            return;
+        }
+        final double current = computePressure();
+        this.pressure = current;
+
+        boolean newPaused = this.paused;
+        if (!this.paused && current >= 1.0) {
+            logger.warn("Pausing zenevents consumer. Index queue: {}, DB connections: {}, executor queue: {}",
+                    new Object[] { this.indexQueueSize, this.dbPoolActive, this.executorQueueSize });
+            this.pausedMeter.mark();
+            newPaused = true;
+        } else if (this.paused && current < this.resumeRatio) {
+            logger.info("Resuming zenevents consumer. Index queue: {}, DB connections: {}, executor queue: {}",
+                    new Object[] { this.indexQueueSize, this.dbPoolActive, this.executorQueueSize });
+            newPaused = false;
+        }
+        // Scale the credit down linearly as pressure builds, in steps of a tenth to avoid constant changes.
+        final double newCredit = newPaused ? 0.0 : Math.max(0.1, Math.ceil((1.0 - current) * 10.0) / 10.0);
+
+        if (newPaused != this.paused || newCredit != this.credit) {
+            this.paused = newPaused;
+            this.credit = newCredit;
+            for (Listener listener : this.listeners) {
+                try {
+                    listener.flowChanged(newPaused, newCredit);
+                } catch (RuntimeException e) {
+                    logger.warn("Flow control listener failed", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes tasks on a fixed number of single-threaded lanes, choosing the lane from a partition key. Tasks with
+ * the same key always run on the same lane in the order they were submitted, so they never contend with each
+ * other, while tasks with different keys run in parallel.
+ * <p>
+ * Each lane has a bounded queue. Submitting to a full lane blocks the caller until there is room, which pushes
+ * back on the AMQP consumer instead of buffering an unbounded number of messages.
+ */
+public class PartitionedExecutor {
+
+    private static final long SHUTDOWN_CHECK_INTERVAL = 100L;
+
+    private final String name;
+    private final ThreadPoolExecutor[] lanes;
+
+    private MetricRegistry metrics = new MetricRegistry();
+    private Timer blockedTimer = metrics.timer("blockedForUnitTest");
+
+    /**
+     * Rejection policy which waits for room in the lane's queue. A lane which is shut down while the caller waits
+     * may already have stopped its thread, so the task is rejected rather than left in the queue.
+     */
+    private class BlockingPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Lane is shut down");
+            }
+            final BlockingQueue<Runnable> queue = executor.getQueue();
+            final Timer.Context context = blockedTimer.time();
+            try {
+                while (!queue.offer(r, SHUTDOWN_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("Lane is shut down");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            } finally {
+                context.stop();
+            }
+            // If the lane thread already took the task it will run; otherwise take it back out.
+            if (executor.isShutdown() && queue.remove(r)) {
+                throw new RejectedExecutionException("Lane is shut down");
+            }
+        }
+    }
+
+    /**
+     * Creates the executor.
+     *
+     * @param name The name used for lane threads and metrics.
+     * @param numLanes The number of lanes (threads). If zero, the executor is disabled.
+     * @param laneCapacity The maximum number of tasks waiting on each lane.
+     */
+    public PartitionedExecutor(String name, int numLanes, int laneCapacity) {
+        if (numLanes < 0 || laneCapacity <= 0) {
+            throw new IllegalArgumentException("Invalid lane configuration");
+        }
+        this.name = name;
+        this.lanes = new ThreadPoolExecutor[numLanes];
+        final BlockingPolicy blockingPolicy = new BlockingPolicy();
+        for (int i = 0; i < numLanes; i++) {
+            this.lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(laneCapacity),
+                    new CustomizableThreadFactory(name + "-" + i + "-"), blockingPolicy);
+        }
+    }
+
+    @Autowired
+    public void setMetricRegistry(MetricRegistry metrics) {
+        this.metrics = metrics;
+        final String prefix = MetricRegistry.name(this.getClass().getSimpleName(), this.name);
+        this.blockedTimer = metrics.timer(MetricRegistry.name(prefix, "blocked"));
+        for (int i = 0; i < this.lanes.length; i++) {
+            final ThreadPoolExecutor lane = this.lanes[i];
+            metrics.register(MetricRegistry.name(prefix, "lane" + i, "queueDepth"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return lane.getQueue().size();
+                }
+            });
+        }
+        metrics.register(MetricRegistry.name(prefix, "queueDepth"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getQueueDepth();
+            }
+        });
+    }
+
+    /**
+     * Returns true if the executor has at least one lane.
+     *
+     * @return True if tasks can be submitted to the executor.
+     */
+    public boolean isEnabled() {
+        return this.lanes.length > 0;
+    }
+
+    public int getNumLanes() {
+        return this.lanes.length;
+    }
+
+    /**
+     * Returns the lane used for tasks with the specified key.
+     *
+     * @param key The partition key.
+     * @return The index of the lane.
+     */
+    public int getLane(Object key) {
+        int h = key.hashCode();
+        // Spread the hash so keys which differ only in the high bits use different lanes.
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return (h & Integer.MAX_VALUE) % this.lanes.length;
+    }
+
+    /**
+     * Executes the task on the lane for the key, blocking while the lane is full.
+     *
+     * @param key The partition key.
+     * @param task The task to execute.
+     * @throws RejectedExecutionException If the executor is shut down or the caller is interrupted.
+     */
+    public void execute(Object key, Runnable task) {
+        this.lanes[getLane(key)].execute(task);
+    }
+
+    /**
+     * Returns the total number of tasks waiting on all lanes.
+     *
+     * @return The number of waiting tasks.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor lane : this.lanes) {
+            depth += lane.getQueue().size();
+        }
+        return depth;
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : this.lanes) {
+            lane.shutdown();
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ThreadPoolExecutor lane : this.lanes) {
+            if (!lane.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
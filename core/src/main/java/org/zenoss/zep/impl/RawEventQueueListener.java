@@ -14,15 +14,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.ApplicationEventPublisherAware;
-import org.springframework.context.ApplicationListener;
+import org.springframework.scheduling.TaskScheduler;
 import org.zenoss.amqp.AmqpException;
 import org.zenoss.amqp.Channel;
+import org.zenoss.amqp.Consumer;
+import org.zenoss.amqp.Message;
+import org.zenoss.protobufs.zep.Zep.Event;
 import org.zenoss.protobufs.zep.Zep.ZepRawEvent;
 import org.zenoss.zep.EventProcessor;
-import org.zenoss.zep.events.EventIndexQueueSizeEvent;
+import org.zenoss.zep.dao.impl.DaoUtils;
+import org.zenoss.zep.dao.impl.EventDaoUtils;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 
 public class RawEventQueueListener extends AbstractQueueListener
-    implements ApplicationListener<EventIndexQueueSizeEvent>, ApplicationEventPublisherAware {
+    implements FlowController.Listener, ApplicationEventPublisherAware {
 
     private static final Logger logger = LoggerFactory.getLogger(RawEventQueueListener.class);
 
@@ -34,41 +45,36 @@ public class RawEventQueueListener extends AbstractQueueListener
         this.prefetchCount = prefetchCount;
     }
     
-    private boolean throttleConsumer = true;
-    private volatile boolean indexQueueLag = false;
-    private int indexQueueThreshold = 10000;
-    private int consumerSleepTime = 1000;
+    private volatile Channel channel = null;
+    private int currentPrefetchCount = -1;
+    private final Object flowLock = new Object();
+    private boolean paused = false;
+    private boolean draining = false;
+    private List<PendingMessage> parked = new ArrayList<PendingMessage>();
 
-    @Override
-    public void onApplicationEvent(EventIndexQueueSizeEvent event) {
-        if (this.throttleConsumer && event.getTableName().startsWith("event_summary")) {
-            int localThreshold = this.indexQueueThreshold;
-            if (localThreshold == 0) {
-                // autoset the threshold
-                // event.getLimit() contains the current batch size
-                localThreshold = Math.max(event.getLimit(), 100) * 2;
-            }
+    private boolean partitionByClearFingerprint = false;
 
-            final int size = (int) event.getSize();
+    private int batchSize = 1;
+    private long batchTimeoutMillis = 100L;
+    private TaskScheduler scheduler;
+    private final Object batchLock = new Object();
+    private List<PendingMessage> pendingBatch = new ArrayList<PendingMessage>();
+    private ScheduledFuture<?> pendingBatchFlush = null;
 
-            // If already throttling, we wont resume until we are
-            // 50% below the threshold
-            if (this.indexQueueLag==true) {
-                localThreshold = (int) (localThreshold - 0.5*localThreshold);
-            }
+    private final String handleBatchTimerName = this.getClass().getSimpleName() + ".handleBatch";
+    private final String batchSizeHistogramName = this.getClass().getSimpleName() + ".batchSize";
 
-            if (size > localThreshold) {
-                // enable the throttle
-                if (this.indexQueueLag != true) {
-                    logger.warn("Enabling zenevents consumer throttling. Queue Size: {}.", size);
-                    this.indexQueueLag = true;
-                }
-            } else {
-                if (this.indexQueueLag != false) {
-                    logger.info("Disabling zenevents consumer throttling. Queue Size: {}.", size);
-                    this.indexQueueLag = false;
-                }
-            }
+    /**
+     * A received message (and the consumer which must acknowledge it) waiting to be processed in a batch.
+     */
+    private static class PendingMessage {
+        private final Message<com.google.protobuf.Message> message;
+        private final Consumer<com.google.protobuf.Message> consumer;
+
+        private PendingMessage(Message<com.google.protobuf.Message> message,
+                               Consumer<com.google.protobuf.Message> consumer) {
+            this.message = message;
+            this.consumer = consumer;
         }
     }
 
@@ -79,8 +85,88 @@ public class RawEventQueueListener extends AbstractQueueListener
 
     @Override
     protected void configureChannel(Channel channel) throws AmqpException {
-        logger.debug("Using prefetch count: {} for queue: {}", this.prefetchCount, getQueueIdentifier());
-        channel.setQos(0, this.prefetchCount);
+        synchronized (this.flowLock) {
+            this.channel = channel;
+            final int count = (this.currentPrefetchCount > 0) ? this.currentPrefetchCount : this.prefetchCount;
+            logger.debug("Using prefetch count: {} for queue: {}", count, getQueueIdentifier());
+            channel.setQos(0, count);
+            this.currentPrefetchCount = count;
+        }
+    }
+
+    public void setFlowController(FlowController flowController) {
+        flowController.addListener(this);
+    }
+
+    /**
+     * Applies a flow control change. The prefetch count of the channel is scaled by the credit, so the broker
+     * delivers fewer unacknowledged messages as pressure builds. While paused, received messages are parked
+     * without being processed or acknowledged; once the prefetch window is full the broker stops delivering
+     * until they are released on resume. Parked messages are released on the listener's executor, so neither
+     * the flow controller nor the consumer waits for them to be dispatched.
+     */
+    @Override
+    public void flowChanged(boolean paused, double credit) {
+        boolean drain = false;
+        synchronized (this.flowLock) {
+            final int count = paused ? 1 : Math.max(1, (int) Math.ceil(this.prefetchCount * credit));
+            final Channel current = this.channel;
+            if (current != null && count != this.currentPrefetchCount) {
+                try {
+                    current.setQos(0, count);
+                    this.currentPrefetchCount = count;
+                    logger.debug("Changed prefetch count to {} for queue: {}", count, getQueueIdentifier());
+                } catch (AmqpException e) {
+                    logger.warn("Failed changing prefetch count", e);
+                }
+            }
+            this.paused = paused;
+            if (!paused && !this.draining && !this.parked.isEmpty()) {
+                this.draining = true;
+                drain = true;
+            }
+        }
+        if (drain) {
+            try {
+                this.executorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        releaseParked();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                logger.warn("Failed releasing parked messages", e);
+                synchronized (this.flowLock) {
+                    this.draining = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Dispatches the parked messages until none are left or the consumer is paused again. Messages received
+     * meanwhile are parked behind them, so they are processed in the order they were received.
+     */
+    private void releaseParked() {
+        while (true) {
+            final List<PendingMessage> released;
+            synchronized (this.flowLock) {
+                if (this.paused || this.parked.isEmpty()) {
+                    this.draining = false;
+                    return;
+                }
+                released = this.parked;
+                this.parked = new ArrayList<PendingMessage>();
+            }
+            logger.debug("Releasing {} parked messages", released.size());
+            for (PendingMessage pending : released) {
+                try {
+                    dispatch(pending.message, pending.consumer);
+                } catch (Exception e) {
+                    handleFailure(pending.consumer, pending.message, e);
+                }
+            }
+        }
     }
 
     @Override
@@ -94,16 +180,54 @@ public class RawEventQueueListener extends AbstractQueueListener
 
     private ApplicationEventPublisher applicationEventPublisher;
 
-    public void setThrottleConsumer(boolean throttleConsumer) {
-        this.throttleConsumer = throttleConsumer;
+    /**
+     * Sets the maximum number of events processed (and committed) together. A value of 1 disables batching and
+     * processes each event in its own transaction.
+     *
+     * @param batchSize The maximum number of events in a batch.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Sets the maximum amount of time a received event waits for a batch to fill before the partial batch is
+     * processed.
+     *
+     * @param batchTimeoutMillis The maximum time (in milliseconds) to wait for a batch to fill.
+     */
+    public void setBatchTimeoutMillis(long batchTimeoutMillis) {
+        this.batchTimeoutMillis = batchTimeoutMillis;
+    }
+
+    public void setScheduler(TaskScheduler scheduler) {
+        this.scheduler = scheduler;
     }
 
-    public void setIndexQueueThreshold(int indexQueueThreshold) {
-        this.indexQueueThreshold = indexQueueThreshold;
+    /**
+     * Sets whether events are assigned to a lane of the partitioned executor by their clear fingerprint instead of
+     * their fingerprint. Partitioning by the clear fingerprint processes a clear on the same lane as the events it
+     * clears (when they share an event class), at the cost of less even distribution across lanes.
+     *
+     * @param partitionByClearFingerprint True to partition events by the clear fingerprint.
+     */
+    public void setPartitionByClearFingerprint(boolean partitionByClearFingerprint) {
+        this.partitionByClearFingerprint = partitionByClearFingerprint;
     }
 
-    public void setConsumerSleepTime(int consumerSleepTime) {
-        this.consumerSleepTime = consumerSleepTime;
+    @Override
+    protected Object getPartitionKey(com.google.protobuf.Message message) {
+        if (!(message instanceof ZepRawEvent)) {
+            return null;
+        }
+        final Event event = ((ZepRawEvent) message).getEvent();
+        if (this.partitionByClearFingerprint) {
+            final String clearFingerprint = EventDaoUtils.DEFAULT_GENERATOR.generateClearFingerprint(event);
+            if (clearFingerprint != null) {
+                return clearFingerprint;
+            }
+        }
+        return event.hasFingerprint() ? event.getFingerprint() : null;
     }
 
     @Override
@@ -111,10 +235,113 @@ public class RawEventQueueListener extends AbstractQueueListener
         if (!(message instanceof ZepRawEvent)) {
             logger.warn("Unexpected message type: {}", message);
         } else {
-            while (this.indexQueueLag && this.throttleConsumer) {
-                Thread.sleep(this.consumerSleepTime);
-            }
             this.eventProcessor.processEvent((ZepRawEvent) message);
         }
     }
+
+    @Override
+    protected void receive(final Message<com.google.protobuf.Message> message,
+                           final Consumer<com.google.protobuf.Message> consumer) throws Exception {
+        synchronized (this.flowLock) {
+            if (this.paused || this.draining || !this.parked.isEmpty()) {
+                this.parked.add(new PendingMessage(message, consumer));
+                return;
+            }
+        }
+        dispatch(message, consumer);
+    }
+
+    private void dispatch(final Message<com.google.protobuf.Message> message,
+                          final Consumer<com.google.protobuf.Message> consumer) throws Exception {
+        if (this.batchSize <= 1 || this.scheduler == null) {
+            super.receive(message, consumer);
+            return;
+        }
+        List<PendingMessage> batch = null;
+        synchronized (this.batchLock) {
+            this.pendingBatch.add(new PendingMessage(message, consumer));
+            if (this.pendingBatch.size() >= this.batchSize) {
+                batch = drainPendingBatch();
+            } else if (this.pendingBatchFlush == null) {
+                this.pendingBatchFlush = this.scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushPendingBatch();
+                    }
+                }, new Date(System.currentTimeMillis() + this.batchTimeoutMillis));
+            }
+        }
+        if (batch != null) {
+            submitBatch(batch);
+        }
+    }
+
+    /* Must be called with batchLock held. */
+    private List<PendingMessage> drainPendingBatch() {
+        final List<PendingMessage> batch = this.pendingBatch;
+        this.pendingBatch = new ArrayList<PendingMessage>(this.batchSize);
+        if (this.pendingBatchFlush != null) {
+            this.pendingBatchFlush.cancel(false);
+            this.pendingBatchFlush = null;
+        }
+        return batch;
+    }
+
+    private void flushPendingBatch() {
+        final List<PendingMessage> batch;
+        synchronized (this.batchLock) {
+            this.pendingBatchFlush = null;
+            if (this.pendingBatch.isEmpty()) {
+                return;
+            }
+            batch = drainPendingBatch();
+        }
+        submitBatch(batch);
+    }
+
+    private void submitBatch(final List<PendingMessage> batch) {
+        metricRegistry.histogram(batchSizeHistogramName).update(batch.size());
+        this.executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                final List<ZepRawEvent> events = new ArrayList<ZepRawEvent>(batch.size());
+                for (PendingMessage pending : batch) {
+                    final com.google.protobuf.Message body = pending.message.getBody();
+                    if (body instanceof ZepRawEvent) {
+                        events.add((ZepRawEvent) body);
+                    } else {
+                        logger.warn("Unexpected message type: {}", body);
+                    }
+                }
+                try {
+                    DaoUtils.deadlockRetry(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            metricRegistry.timer(handleBatchTimerName).time(new Callable<Object>() {
+                                @Override
+                                public Object call() throws Exception {
+                                    eventProcessor.processEvents(events);
+                                    return null;
+                                }
+                            });
+                            return null;
+                        }
+                    });
+                } catch (Exception e) {
+                    // The batch was processed in a single transaction, so none of its events were persisted.
+                    for (PendingMessage pending : batch) {
+                        handleFailure(pending.consumer, pending.message, e);
+                    }
+                    return;
+                }
+                for (PendingMessage pending : batch) {
+                    try {
+                        ackMessage(pending.consumer, pending.message);
+                    } catch (Exception e) {
+                        logger.warn("Failed acknowledging message: " + pending.message, e);
+                    }
+                }
+            }
+        });
+    }
 }
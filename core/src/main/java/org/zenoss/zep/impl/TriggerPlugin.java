@@ -10,10 +10,12 @@
 
 package org.zenoss.zep.impl;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.annotation.Timed;
 import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
 import org.python.core.Py;
-import org.python.core.PyDictionary;
 import org.python.core.PyException;
 import org.python.core.PyFunction;
 import org.python.core.PyInteger;
@@ -29,6 +31,7 @@ import org.springframework.core.task.TaskRejectedException;
 import org.springframework.scheduling.TaskScheduler;
 import org.springframework.scheduling.Trigger;
 import org.springframework.scheduling.TriggerContext;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.zenoss.amqp.AmqpConnectionManager;
 import org.zenoss.amqp.AmqpException;
 import org.zenoss.amqp.ExchangeConfiguration;
@@ -56,8 +59,14 @@ import org.zenoss.zep.plugins.EventPostIndexPlugin;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.zenoss.zep.ZepConstants.*;
 
@@ -91,18 +100,30 @@ public class TriggerPlugin extends EventPostIndexPlugin {
     // Can be overridden by specifying plugin.TriggerPlugin.triggerRuleCacheSize
     // in the zeneventserver.conf file.
     private int triggerRuleCacheSize;
+    private boolean verifyCompiledRules = false;
+    private int ruleEvaluationThreads = 0;
+    private ExecutorService ruleEvaluationExecutor;
     /**
      * Caches the result of compiling a trigger rule. Contains the original rule source, and the compiled PyFunction
      * from the source. The PyFunction can be null if the rule source is invalid and can't be compiled to valid
-     * Python. It is cached no matter what to prevent trying to compile an invalid rule over and over again.
+     * Python. It is cached no matter what to prevent trying to compile an invalid rule over and over again. Rules
+     * which are valid Python are also compiled to Java where possible (see {@link TriggerRuleCompiler}); the
+     * compiled rule is null if the rule must be evaluated by Jython.
      */
     static final class TriggerRuleCache {
         private final String ruleSource;
         private final PyFunction pyFunction;
+        private final TriggerRuleCompiler.CompiledRule compiledRule;
         
         public TriggerRuleCache(String ruleSource, PyFunction pyFunction) {
+            this(ruleSource, pyFunction, null);
+        }
+
+        public TriggerRuleCache(String ruleSource, PyFunction pyFunction,
+                                TriggerRuleCompiler.CompiledRule compiledRule) {
             this.ruleSource = ruleSource;
             this.pyFunction = pyFunction;
+            this.compiledRule = compiledRule;
         }
 
         public String getRuleSource() {
@@ -113,10 +134,15 @@ public class TriggerPlugin extends EventPostIndexPlugin {
             return pyFunction;
         }
 
+        public TriggerRuleCompiler.CompiledRule getCompiledRule() {
+            return compiledRule;
+        }
+
         @Override
         public String toString() {
             return "TriggerRuleCache{" +
                     "ruleSource='" + ruleSource + '\'' +
+                    ", compiled=" + (compiledRule != null) +
                     '}';
         }
     }
@@ -129,6 +155,11 @@ public class TriggerPlugin extends EventPostIndexPlugin {
 
     private TaskScheduler scheduler;
     private ScheduledFuture<?> spoolFuture;
+    private volatile TriggerRuleIndex triggerRuleIndex;
+
+    private MetricRegistry metrics = new MetricRegistry();
+    private Meter ruleEvaluationsMeter = metrics.meter("ruleEvaluationsForUnitTest");
+    private Meter skippedRuleEvaluationsMeter = metrics.meter("skippedRuleEvaluationsForUnitTest");
     PythonHelper pythonHelper = new PythonHelper();
 
     /**
@@ -139,26 +170,17 @@ public class TriggerPlugin extends EventPostIndexPlugin {
         private volatile boolean initialized = false;
 
         private PythonInterpreter python;
-        private PyFunction toObject;
 
         private synchronized void initialize() {
             if (initialized) {
                 return;
             }
             logger.info("Initializing Jython");
-            this.initialized = true;
             PythonInterpreter.initialize(System.getProperties(), new Properties(), new String[0]);
 
             this.python = new PythonInterpreter();
-
-            // define basic infrastructure class for evaluating rules
-            this.python.exec(
-                "class DictAsObj(object):\n" +
-                "  def __init__(self, **kwargs):\n" +
-                "    for k,v in kwargs.iteritems(): setattr(self,k,v)");
-
-            // expose to Java a Python dict->DictAsObj conversion function
-            this.toObject = (PyFunction)this.python.eval("lambda dd : DictAsObj(**dd)");
+            // Only publish the interpreter once it is ready, as rules may be evaluated on several threads
+            this.initialized = true;
             logger.info("Completed Jython initialization");
         }
 
@@ -169,13 +191,6 @@ public class TriggerPlugin extends EventPostIndexPlugin {
             return this.python;
         }
 
-        public PyFunction getToObject() {
-            if (!initialized) {
-                initialize();
-            }
-            return this.toObject;
-        }
-
         public void cleanup() {
             if (initialized) {
                 this.python.cleanup();
@@ -193,6 +208,14 @@ public class TriggerPlugin extends EventPostIndexPlugin {
         this.scheduler = scheduler;
     }
 
+    @Autowired
+    public void setMetricRegistry(MetricRegistry metrics) {
+        this.metrics = metrics;
+        final String prefix = this.getClass().getSimpleName();
+        this.ruleEvaluationsMeter = metrics.meter(MetricRegistry.name(prefix, "ruleEvaluations"));
+        this.skippedRuleEvaluationsMeter = metrics.meter(MetricRegistry.name(prefix, "skippedRuleEvaluations"));
+    }
+
     @Autowired
     public void setUuidGenerator(UUIDGenerator uuidGenerator) {
         this.uuidGenerator = uuidGenerator;
@@ -204,12 +227,22 @@ public class TriggerPlugin extends EventPostIndexPlugin {
         logger.info("TriggerPlugin trigger rule cache size: {}", triggerRuleCacheSize);
         Map<String,TriggerRuleCache> boundedMap = ZepUtils.createBoundedMap(triggerRuleCacheSize);
         this.triggerRuleCache = Collections.synchronizedMap(boundedMap);
+        if (ruleEvaluationThreads > 0) {
+            logger.info("TriggerPlugin rule evaluation threads: {}", ruleEvaluationThreads);
+            final CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("ZEP-trigger-");
+            threadFactory.setDaemon(true);
+            this.ruleEvaluationExecutor = Executors.newFixedThreadPool(ruleEvaluationThreads, threadFactory);
+        }
         super.start(properties);
         scheduleSpool();
     }
 
     @Override
     public void stop() {
+        if (ruleEvaluationExecutor != null) {
+            ruleEvaluationExecutor.shutdownNow();
+            ruleEvaluationExecutor = null;
+        }
         this.pythonHelper.cleanup();
         if (spoolFuture != null) {
             spoolFuture.cancel(true);
@@ -224,6 +257,26 @@ public class TriggerPlugin extends EventPostIndexPlugin {
         triggerRuleCacheSize = size;
     }
 
+    /**
+     * If true, rules compiled to Java are also evaluated by Jython, and a warning is logged if the results differ.
+     * The Jython result is used.
+     *
+     * @param verifyCompiledRules Whether to verify the results of compiled rules.
+     */
+    public void setVerifyCompiledRules(boolean verifyCompiledRules) {
+        this.verifyCompiledRules = verifyCompiledRules;
+    }
+
+    /**
+     * Sets the number of threads evaluating trigger rules for the events of an indexed batch. If 0, rules are
+     * evaluated on the indexing thread as each event is processed.
+     *
+     * @param ruleEvaluationThreads The number of threads evaluating trigger rules.
+     */
+    public void setRuleEvaluationThreads(int ruleEvaluationThreads) {
+        this.ruleEvaluationThreads = ruleEvaluationThreads;
+    }
+
     private boolean cacheIsFull(Map<String, TriggerRuleCache> cache) {
         return cache.size() >= this.getTriggerRuleCacheSize();
     }
@@ -289,26 +342,42 @@ public class TriggerPlugin extends EventPostIndexPlugin {
     }
 
     /**
-     * Local context class used to store the Python objects created from the event which are passed in to the
-     * trigger's rule for evaluation.
+     * Local context class which provides the attributes of the event passed in to the trigger's rule for
+     * evaluation. Attributes are read from the event when a rule first uses them, so the organizers and details of
+     * the event are only processed if a rule refers to them.
      */
     static class RuleContext {
-        PyObject event;
-        PyObject device;
-        PyObject element;
-        PyObject subElement;
-        PyObject zpDetails;
-
-        private RuleContext() {
-        }
-
-        private static void putTitleAndUuidInDict(PyDictionary dict, String title, String uuid) {
-            if (title != null) {
-                dict.put("name", title);
+        private static final String EVENT = "evt";
+        private static final String DEVICE = "dev";
+        private static final String ELEMENT = "elem";
+        private static final String SUB_ELEMENT = "sub_elem";
+        private static final String ZP_DETAILS = "zp_det";
+
+        private final EventSummary evtsummary;
+        private final Event event;
+        private final EventActor actor;
+        // The element or sub-element which is the device, if any
+        private final String deviceElement;
+
+        private DeviceDetails deviceDetails;
+        private List<String> groupsAndParents;
+        private List<String> systemsAndParents;
+        private Map<String, String> zpDetails;
+        private PyObject[] pythonArguments;
+
+        private RuleContext(EventSummary evtsummary) {
+            this.evtsummary = evtsummary;
+            // extract event data from most recent occurrence
+            this.event = evtsummary.getOccurrence(0);
+            this.actor = event.getActor();
+            String deviceElement = null;
+            if (actor.hasElementTypeId() && actor.getElementTypeId() == ModelElementType.DEVICE) {
+                deviceElement = ELEMENT;
             }
-            if (uuid != null) {
-                dict.put("uuid", uuid);
+            if (actor.hasElementSubTypeId() && actor.getElementSubTypeId() == ModelElementType.DEVICE) {
+                deviceElement = SUB_ELEMENT;
             }
+            this.deviceElement = deviceElement;
         }
 
         private static final Splitter ORGANIZER_SPLITTER = Splitter.on('/').omitEmptyStrings();
@@ -335,84 +404,34 @@ public class TriggerPlugin extends EventPostIndexPlugin {
         }
 
         /**
-         * Creates a rule context from the toObject function and event summary.
+         * Creates a rule context for the event summary.
          *
-         * @param toObject The toObject function which converts a dictionary to the appropriate object.
          * @param evtsummary The event to convert to a context.
          * @return A rule context for the event.
          */
-        public static RuleContext createContext(PyFunction toObject, EventSummary evtsummary) {
-            // set up interpreter environment to evaluate the rule source
-            PyDictionary eventdict = new PyDictionary();
-            PyDictionary devdict = new PyDictionary();
-            PyDictionary elemdict = new PyDictionary();
-            PyDictionary subelemdict = new PyDictionary();
-            PyDictionary zpDetDict = new PyDictionary();
+        public static RuleContext createContext(EventSummary evtsummary) {
+            return new RuleContext(evtsummary);
+        }
 
+        /**
+         * The device attributes which are read from the event details.
+         */
+        private static final class DeviceDetails {
             // Match old behavior (pre-4.x)
-            int prodState = 0;
-            int devicePriority = DEVICE_PRIORITY_NORMAL;
-            String ipAddress = "";
-            List<String> systemsAndParents = Collections.emptyList();
-            List<String> groupsAndParents = Collections.emptyList();
-            String location = "";
-            String deviceClass = "";
-
-            // extract event data from most recent occurrence
-            Event event = evtsummary.getOccurrence(0);
-
-            // copy event data to eventdict
-            eventdict.put("summary", new PyString(event.getSummary()));
-            eventdict.put("message", new PyString(event.getMessage()));
-            eventdict.put("event_class", new PyString(event.getEventClass()));
-            eventdict.put("fingerprint", new PyString(event.getFingerprint()));
-            eventdict.put("event_key", new PyString(event.getEventKey()));
-            eventdict.put("agent", new PyString(event.getAgent()));
-            eventdict.put("monitor", new PyString(event.getMonitor()));
-            eventdict.put("severity", event.getSeverity().getNumber());
-            eventdict.put("event_class_key", new PyString(event.getEventClassKey()));
-            if (event.hasSyslogPriority()) {
-                eventdict.put("syslog_priority", new PyInteger(event.getSyslogPriority().getNumber()));
-            }
-            if (event.hasSyslogFacility()) {
-                eventdict.put("syslog_facility", event.getSyslogFacility());
-            }
-            if (event.hasNtEventCode()) {
-                eventdict.put("nt_event_code", event.getNtEventCode());
-            }
-            // Initialize to empty attributes on elem and subelem in case a rule references
-            // it and they do not exist
-            putTitleAndUuidInDict(subelemdict, "", "");
-            putTitleAndUuidInDict(elemdict, "", "");
-
-            EventActor actor = event.getActor();
-
-            if (actor.hasElementTypeId()) {
-                if (actor.getElementTypeId() == ModelElementType.DEVICE) {
-                    devdict = elemdict;
-                }
-
-                elemdict.put("type", actor.getElementTypeId().name());
-                final String id = (actor.hasElementIdentifier()) ? actor.getElementIdentifier() : null;
-                final String title = (actor.hasElementTitle()) ? actor.getElementTitle() : id;
-                final String uuid = actor.hasElementUuid() ? actor.getElementUuid() : null;
-
-                putTitleAndUuidInDict(elemdict, title, uuid);
-            }
-
-            if (actor.hasElementSubTypeId()) {
-                if (actor.getElementSubTypeId() == ModelElementType.DEVICE) {
-                    devdict = subelemdict;
-                }
-
-                subelemdict.put("type", actor.getElementSubTypeId().name());
-                final String id = (actor.hasElementSubIdentifier()) ? actor.getElementSubIdentifier() : null;
-                final String title = (actor.hasElementSubTitle()) ? actor.getElementSubTitle() : id;
-                final String uuid = actor.hasElementSubUuid() ? actor.getElementSubUuid() : null;
+            private long prodState = 0;
+            private long devicePriority = DEVICE_PRIORITY_NORMAL;
+            private String ipAddress = "";
+            private List<String> systems = Collections.emptyList();
+            private List<String> groups = Collections.emptyList();
+            private String location = "";
+            private String deviceClass = "";
+        }
 
-                putTitleAndUuidInDict(subelemdict, title, uuid);
+        private DeviceDetails getDeviceDetails() {
+            if (deviceDetails != null) {
+                return deviceDetails;
             }
-
+            final DeviceDetails details = new DeviceDetails();
             for (EventDetail detail : event.getDetailsList()) {
                 final String detailName = detail.getName();
                 // This should never happen
@@ -420,113 +439,328 @@ public class TriggerPlugin extends EventPostIndexPlugin {
                     continue;
                 }
                 final String singleDetailValue = detail.getValue(0);
-                
+
                 if (DETAIL_DEVICE_PRODUCTION_STATE.equals(detailName)) {
                     try {
-                        prodState = Integer.parseInt(singleDetailValue);
+                        details.prodState = Integer.parseInt(singleDetailValue);
                     } catch (NumberFormatException e) {
                         logger.warn("Failed retrieving production state", e);
                     }
                 }
                 else if (DETAIL_DEVICE_PRIORITY.equals(detailName)) {
                     try {
-                        devicePriority = Integer.parseInt(singleDetailValue);
+                        details.devicePriority = Integer.parseInt(singleDetailValue);
                     } catch (NumberFormatException e) {
                         logger.warn("Failed retrieving device priority", e);
                     }
                 }
                 else if (DETAIL_DEVICE_CLASS.equals(detailName)) {
                     // expect that this is a single-value detail.
-                    deviceClass = singleDetailValue;
+                    details.deviceClass = singleDetailValue;
                 }
                 else if (DETAIL_DEVICE_SYSTEMS.equals(detailName)) {
                     // expect that this is a multi-value detail.
-                    systemsAndParents = includeParentOrganizers(detail.getValueList());
+                    details.systems = detail.getValueList();
                 }
                 else if (DETAIL_DEVICE_GROUPS.equals(detailName)) {
                     // expect that this is a multi-value detail.
-                    groupsAndParents = includeParentOrganizers(detail.getValueList());
+                    details.groups = detail.getValueList();
                 }
                 else if (DETAIL_DEVICE_IP_ADDRESS.equals(detailName)) {
                     // expect that this is a single-value detail.
-                    ipAddress = singleDetailValue;
+                    details.ipAddress = singleDetailValue;
                 }
                 else if (DETAIL_DEVICE_LOCATION.equals(detailName)) {
                     // expect that this is a single-value detail.
-                    location = singleDetailValue;
+                    details.location = singleDetailValue;
                 }
-                else {
-                    // Custom details added by ZenPacks, we replace the dots by underscore and add them
-                    // to the zp detail dict. The UI did the same when the rule was created
-                    String customDetail = detailName.replaceAll("\\.", "_");
-                    zpDetDict.put(customDetail, new PyString(singleDetailValue));
+            }
+            this.deviceDetails = details;
+            return details;
+        }
+
+        private Map<String, String> getZpDetails() {
+            if (zpDetails != null) {
+                return zpDetails;
+            }
+            final Map<String, String> details = new HashMap<String, String>();
+            for (EventDetail detail : event.getDetailsList()) {
+                final String detailName = detail.getName();
+                if (detail.getValueCount() == 0 || DEVICE_DETAILS.contains(detailName)) {
+                    continue;
                 }
+                // Custom details added by ZenPacks, we replace the dots by underscore and add them
+                // to the zp detail dict. The UI did the same when the rule was created
+                details.put(detailName.replace('.', '_'), detail.getValue(0));
+            }
+            this.zpDetails = details;
+            return details;
+        }
+
+        private static final Set<String> DEVICE_DETAILS = new HashSet<String>(Arrays.asList(
+                DETAIL_DEVICE_PRODUCTION_STATE, DETAIL_DEVICE_PRIORITY, DETAIL_DEVICE_CLASS, DETAIL_DEVICE_SYSTEMS,
+                DETAIL_DEVICE_GROUPS, DETAIL_DEVICE_IP_ADDRESS, DETAIL_DEVICE_LOCATION));
+
+        private Object getEventAttribute(String name) {
+            switch (name) {
+                case "summary":
+                    return event.getSummary();
+                case "message":
+                    return event.getMessage();
+                case "event_class":
+                    return event.getEventClass();
+                case "fingerprint":
+                    return event.getFingerprint();
+                case "event_key":
+                    return event.getEventKey();
+                case "agent":
+                    return event.getAgent();
+                case "monitor":
+                    return event.getMonitor();
+                case "severity":
+                    return (long) event.getSeverity().getNumber();
+                case "event_class_key":
+                    return event.getEventClassKey();
+                case "syslog_priority":
+                    return event.hasSyslogPriority() ? (long) event.getSyslogPriority().getNumber() : null;
+                case "syslog_facility":
+                    return event.hasSyslogFacility() ? (long) event.getSyslogFacility() : null;
+                case "nt_event_code":
+                    return event.hasNtEventCode() ? (long) event.getNtEventCode() : null;
+                // add more data from the EventSummary itself
+                case "status":
+                    return (long) evtsummary.getStatus().getNumber();
+                case "count":
+                    return (long) evtsummary.getCount();
+                case "current_user_name":
+                    return evtsummary.getCurrentUserName();
+                default:
+                    return null;
             }
+        }
+
+        private Object getDeviceAttribute(String name) {
+            switch (name) {
+                case "device_class":
+                    return getDeviceDetails().deviceClass;
+                case "production_state":
+                    return getDeviceDetails().prodState;
+                case "priority":
+                    return getDeviceDetails().devicePriority;
+                case "groups":
+                    if (groupsAndParents == null) {
+                        groupsAndParents = includeParentOrganizers(getDeviceDetails().groups);
+                    }
+                    return groupsAndParents;
+                case "systems":
+                    if (systemsAndParents == null) {
+                        systemsAndParents = includeParentOrganizers(getDeviceDetails().systems);
+                    }
+                    return systemsAndParents;
+                case "ip_address":
+                    return getDeviceDetails().ipAddress;
+                case "location":
+                    return getDeviceDetails().location;
+                default:
+                    return null;
+            }
+        }
 
-            devdict.put("device_class", new PyString(deviceClass));
-            devdict.put("production_state", new PyInteger(prodState));
-            devdict.put("priority", new PyInteger(devicePriority));
-            devdict.put("groups", new PyList(groupsAndParents));
-            devdict.put("systems", new PyList(systemsAndParents));
-            devdict.put("ip_address", new PyString(ipAddress));
-            devdict.put("location", new PyString(location));
+        private Object getElementAttribute(String name, boolean hasTypeId, ModelElementType typeId, boolean hasId,
+                                           String id, boolean hasTitle, String title, boolean hasUuid,
+                                           String uuid) {
+            // Elements have empty names and uuids in case a rule references them and they do not exist
+            switch (name) {
+                case "type":
+                    return hasTypeId ? typeId.name() : null;
+                case "name":
+                    if (hasTypeId && (hasTitle || hasId)) {
+                        return hasTitle ? title : id;
+                    }
+                    return "";
+                case "uuid":
+                    return (hasTypeId && hasUuid) ? uuid : "";
+                default:
+                    return null;
+            }
+        }
 
-            // add more data from the EventSummary itself
-            eventdict.put("status", evtsummary.getStatus().getNumber());
-            eventdict.put("count", new PyInteger(evtsummary.getCount()));
-            eventdict.put("current_user_name", new PyString(evtsummary.getCurrentUserName()));
+        /**
+         * Returns the value of an attribute of one of the rule's variables.
+         *
+         * @param variable The variable name (evt, dev, elem, sub_elem or zp_det).
+         * @param name The attribute name.
+         * @return The value (a Long, String or List of Strings), or null if the variable doesn't have the attribute.
+         */
+        Object getAttribute(String variable, String name) {
+            switch (variable) {
+                case EVENT:
+                    return getEventAttribute(name);
+                case DEVICE: {
+                    final Object value = getDeviceAttribute(name);
+                    return (value != null || deviceElement == null) ? value : getAttribute(deviceElement, name);
+                }
+                case ELEMENT: {
+                    final Object value = getElementAttribute(name, actor.hasElementTypeId(),
+                            actor.getElementTypeId(), actor.hasElementIdentifier(), actor.getElementIdentifier(),
+                            actor.hasElementTitle(), actor.getElementTitle(), actor.hasElementUuid(),
+                            actor.getElementUuid());
+                    return (value != null || !ELEMENT.equals(deviceElement)) ? value : getDeviceAttribute(name);
+                }
+                case SUB_ELEMENT: {
+                    final Object value = getElementAttribute(name, actor.hasElementSubTypeId(),
+                            actor.getElementSubTypeId(), actor.hasElementSubIdentifier(),
+                            actor.getElementSubIdentifier(), actor.hasElementSubTitle(), actor.getElementSubTitle(),
+                            actor.hasElementSubUuid(), actor.getElementSubUuid());
+                    return (value != null || !SUB_ELEMENT.equals(deviceElement)) ? value : getDeviceAttribute(name);
+                }
+                case ZP_DETAILS:
+                    return getZpDetails().get(name);
+                default:
+                    return null;
+            }
+        }
 
-            RuleContext ctx = new RuleContext();
-            // create vars to pass to rule expression function
-            ctx.event = toObject.__call__(eventdict);
-            ctx.device = toObject.__call__(devdict);
-            ctx.element = toObject.__call__(elemdict);
-            ctx.subElement = toObject.__call__(subelemdict);
-            ctx.zpDetails = toObject.__call__(zpDetDict);
-            return ctx;
+        /**
+         * Returns the Python objects passed to rules evaluated by Jython (evt, dev, elem, sub_elem and zp_det).
+         *
+         * @return The arguments to the rule function.
+         */
+        PyObject[] getPythonArguments() {
+            if (pythonArguments == null) {
+                pythonArguments = new PyObject[] { new RuleVariable(this, EVENT), new RuleVariable(this, DEVICE),
+                        new RuleVariable(this, ELEMENT), new RuleVariable(this, SUB_ELEMENT),
+                        new RuleVariable(this, ZP_DETAILS) };
+            }
+            return pythonArguments;
         }
     }
 
-    int cacheSizeWarningCounter = 0;
+    /**
+     * Python object for a variable of a rule, which converts the attributes of the event to Python objects as the
+     * rule reads them.
+     */
+    static final class RuleVariable extends PyObject {
+        private static final long serialVersionUID = 1L;
+        private final transient RuleContext context;
+        private final String variable;
+        private final Map<String, PyObject> attributes = new HashMap<String, PyObject>();
+
+        RuleVariable(RuleContext context, String variable) {
+            this.context = context;
+            this.variable = variable;
+        }
 
-    protected boolean eventSatisfiesRule(RuleContext ruleContext, String triggerUuid, String ruleSource) {
-        PyObject result;
-        try {
-            // check to see if the cache is full and log an error if so
-            if (this.cacheIsFull(this.triggerRuleCache)) {
-                ++cacheSizeWarningCounter;
-                if (cacheSizeWarningCounter % 100 == 0) {
-                    logger.error("Trigger rule cache is full ({}); consider reconfiguring zeneventserver, making it larger",
-                            this.getTriggerRuleCacheSize());
-                    cacheSizeWarningCounter = 0;
-                }
-            }
-            // use rule to build and evaluate a Python lambda expression
-            TriggerRuleCache cacheItem = triggerRuleCache.get(triggerUuid);
-            PyFunction fn = null;
-            if (cacheItem == null || !cacheItem.getRuleSource().equals(ruleSource)) {
-                try {
-                    fn = (PyFunction)this.pythonHelper.getPythonInterpreter().eval(
-                            "lambda evt, dev, elem, sub_elem, zp_det : " + ruleSource
-                    );
-                } catch (PySyntaxError e) {
-                    String fmt = Py.formatException(e.type, e.value);
-                    logger.warn("syntax error exception raised while compiling rule: {}, {}", ruleSource, fmt);
+        @Override
+        public PyObject __findattr_ex__(String name) {
+            PyObject attribute = attributes.get(name);
+            if (attribute == null) {
+                final Object value = context.getAttribute(variable, name);
+                if (value == null) {
+                    return super.__findattr_ex__(name);
                 }
-                // Cache result of trigger evaluation (even if it failed to compile). This will prevent trying to
-                // recompile the same invalid rule over and over again.
-                triggerRuleCache.put(triggerUuid, new TriggerRuleCache(ruleSource, fn));
+                if (value instanceof Long) {
+                    attribute = new PyInteger(((Long) value).intValue());
+                } else if (value instanceof List) {
+                    attribute = new PyList((List<?>) value);
+                } else {
+                    attribute = new PyString((String) value);
+                }
+                attributes.put(name, attribute);
             }
-            else {
-                fn = cacheItem.getPyFunction();
+            return attribute;
+        }
+
+        @Override
+        public String toString() {
+            return "<" + variable + ">";
+        }
+    }
+
+    final AtomicInteger cacheSizeWarningCounter = new AtomicInteger();
+
+    protected boolean eventSatisfiesRule(RuleContext ruleContext, String triggerUuid, String ruleSource) {
+        // check to see if the cache is full and log an error if so
+        if (this.cacheIsFull(this.triggerRuleCache)) {
+            if (cacheSizeWarningCounter.incrementAndGet() % 100 == 0) {
+                logger.error("Trigger rule cache is full ({}); consider reconfiguring zeneventserver, making it larger",
+                        this.getTriggerRuleCacheSize());
+                cacheSizeWarningCounter.set(0);
             }
-            if (fn == null) {
-                logger.debug("Invalid rule source: {}", ruleSource);
+        }
+        TriggerRuleCache cacheItem = triggerRuleCache.get(triggerUuid);
+        if (cacheItem == null || !cacheItem.getRuleSource().equals(ruleSource)) {
+            try {
+                cacheItem = compileRule(ruleSource);
+            } catch (PyException pyexc) {
+                String fmt = Py.formatException(pyexc.type, pyexc.value);
+                logger.warn("exception raised while compiling rule: {}, {}", ruleSource, fmt);
                 return false;
             }
+            // Cache result of trigger evaluation (even if it failed to compile). This will prevent trying to
+            // recompile the same invalid rule over and over again.
+            triggerRuleCache.put(triggerUuid, cacheItem);
+        }
+        PyFunction fn = cacheItem.getPyFunction();
+        if (fn == null) {
+            logger.debug("Invalid rule source: {}", ruleSource);
+            return false;
+        }
+        Boolean compiledResult = null;
+        if (cacheItem.getCompiledRule() != null) {
+            try {
+                compiledResult = cacheItem.getCompiledRule().matches(ruleContext);
+            } catch (TriggerRuleCompiler.EvaluationException e) {
+                if (e.isFallback()) {
+                    logger.debug("Evaluating rule with Jython: {}, {}", ruleSource, e.getMessage());
+                } else {
+                    // Python would raise an exception - treat as "False" eval
+                    logger.debug("exception raised while evaluating rule: {}, {}", ruleSource, e.getMessage());
+                    compiledResult = false;
+                }
+            }
+            if (compiledResult != null && !verifyCompiledRules) {
+                return compiledResult;
+            }
+        }
+        final boolean result = evaluatePythonRule(fn, ruleContext, ruleSource);
+        if (compiledResult != null && compiledResult != result) {
+            logger.warn("Compiled rule evaluated to {} but Jython evaluated to {}: {}",
+                    new Object[] { compiledResult, result, ruleSource });
+        }
+        return result;
+    }
+
+    private TriggerRuleCache compileRule(String ruleSource) {
+        // use rule to build a Python lambda expression. The interpreter isn't thread-safe, but the compiled
+        // functions can be called concurrently.
+        PyFunction fn = null;
+        try {
+            final PythonInterpreter python = this.pythonHelper.getPythonInterpreter();
+            synchronized (python) {
+                fn = (PyFunction) python.eval("lambda evt, dev, elem, sub_elem, zp_det : " + ruleSource);
+            }
+        } catch (PySyntaxError e) {
+            String fmt = Py.formatException(e.type, e.value);
+            logger.warn("syntax error exception raised while compiling rule: {}, {}", ruleSource, fmt);
+        }
+        // Only valid Python is compiled to Java, so invalid rules never match
+        TriggerRuleCompiler.CompiledRule compiledRule = null;
+        if (fn != null) {
+            try {
+                compiledRule = TriggerRuleCompiler.compile(ruleSource);
+            } catch (TriggerRuleCompiler.UnsupportedRuleException e) {
+                logger.debug("Rule will be evaluated with Jython: {}, {}", ruleSource, e.getMessage());
+            }
+        }
+        return new TriggerRuleCache(ruleSource, fn, compiledRule);
+    }
+
+    private boolean evaluatePythonRule(PyFunction fn, RuleContext ruleContext, String ruleSource) {
+        PyObject result;
+        try {
             // evaluate the rule function
-            PyObject [] args = { ruleContext.event, ruleContext.device, ruleContext.element, ruleContext.subElement, ruleContext.zpDetails } ;
-            result = fn.__call__(args);
+            result = fn.__call__(ruleContext.getPythonArguments());
         } catch (PySyntaxError pysynerr) {
             // evaluating rule raised an exception - treat as "False" eval
             String fmt = Py.formatException(pysynerr.type, pysynerr.value);
@@ -554,9 +788,16 @@ public class TriggerPlugin extends EventPostIndexPlugin {
 
     private static class BatchIndexState {
         private List<EventTrigger> triggers;
+        private TriggerRuleIndex triggerRuleIndex;
+        // Triggers matched by events evaluated in parallel by preProcessEvents
+        private Map<EventSummary, BitSet> triggerMatches = new IdentityHashMap<EventSummary, BitSet>();
         private Map<String, List<EventTriggerSubscription>> triggerSubscriptions =
                 new HashMap<String, List<EventTriggerSubscription>>();
         private Map<String, EventSummary> eventsToDeleteFromSpool = new HashMap<String, EventSummary>();
+        // Spool changes saved by endBatch, keyed by spool UUID
+        private Map<String, EventSignalSpool> spoolsToCreate = new LinkedHashMap<String, EventSignalSpool>();
+        private Map<String, EventSignalSpool> spoolsToUpdate = new LinkedHashMap<String, EventSignalSpool>();
+        private boolean rescheduleSpool = false;
     }
 
     private final ThreadLocal<BatchIndexState> batchState = new ThreadLocal<BatchIndexState>();
@@ -577,10 +818,20 @@ public class TriggerPlugin extends EventPostIndexPlugin {
             return;
         }
         BatchIndexState state = batchState.get();
-        if (!state.eventsToDeleteFromSpool.isEmpty()) {
-            Set<String> eventUuids = state.eventsToDeleteFromSpool.keySet();
-            List<EventSignalSpool> spools = signalSpoolDao.findAllByEventSummaryUuids(eventUuids);
-            for (EventSignalSpool spool : spools) {
+        Set<String> eventUuids = state.eventsToDeleteFromSpool.keySet();
+        if (!eventUuids.isEmpty()) {
+            // Include spools created or updated earlier in this batch
+            Map<String, EventSignalSpool> spools = new LinkedHashMap<String, EventSignalSpool>();
+            for (EventSignalSpool spool : signalSpoolDao.findAllByEventSummaryUuids(eventUuids)) {
+                spools.put(spool.getUuid(), spool);
+            }
+            for (EventSignalSpool spool : Iterables.concat(state.spoolsToUpdate.values(),
+                    state.spoolsToCreate.values())) {
+                if (eventUuids.contains(spool.getEventSummaryUuid())) {
+                    spools.put(spool.getUuid(), spool);
+                }
+            }
+            for (EventSignalSpool spool : spools.values()) {
                 if (spool.isSentSignal()) {
                     logger.debug("sending clear signal for event: {}", spool.getEventSummaryUuid());
                     EventTriggerSubscription subscription =
@@ -592,7 +843,12 @@ public class TriggerPlugin extends EventPostIndexPlugin {
                             spool.getEventSummaryUuid(), spool.getSubscriptionUuid());
                 }
             }
-            signalSpoolDao.deleteByEventSummaryUuids(eventUuids);
+        }
+        if (!state.spoolsToCreate.isEmpty() || !state.spoolsToUpdate.isEmpty() || !eventUuids.isEmpty()) {
+            signalSpoolDao.saveBatch(state.spoolsToCreate.values(), state.spoolsToUpdate.values(), eventUuids);
+        }
+        if (state.rescheduleSpool) {
+            scheduleSpool();
         }
         batchState.remove();
     }
@@ -606,6 +862,113 @@ public class TriggerPlugin extends EventPostIndexPlugin {
         for (EventSignalSpool spool : spools) {
             rememberSpool(spool, context);
         }
+        if (ruleEvaluationExecutor != null && !context.isArchive()) {
+            List<EventSummary> openEvents = new ArrayList<EventSummary>(eventSummaries.size());
+            for (EventSummary event : eventSummaries) {
+                if (OPEN_STATUSES.contains(event.getStatus())) {
+                    openEvents.add(event);
+                }
+            }
+            if (openEvents.size() > 1) {
+                BatchIndexState state = batchState.get();
+                state.triggerMatches.putAll(evaluateTriggers(openEvents, getTriggers(state),
+                        state.triggerRuleIndex));
+            }
+        }
+    }
+
+    private List<EventTrigger> getTriggers(BatchIndexState state) throws ZepException {
+        if (state.triggers == null) {
+            state.triggers = this.triggerDao.findAllEnabled();
+            state.triggerRuleIndex = getTriggerRuleIndex(state.triggers);
+        }
+        return state.triggers;
+    }
+
+    /**
+     * Evaluates the triggers' rules for the events, splitting the events between the rule evaluation threads.
+     *
+     * @param events The events.
+     * @param triggers The enabled triggers.
+     * @param index The index of the triggers' rules.
+     * @return The positions in the list of triggers of the triggers matched by each event. Events which couldn't be
+     *         evaluated are omitted.
+     */
+    Map<EventSummary, BitSet> evaluateTriggers(List<EventSummary> events, final List<EventTrigger> triggers,
+                                               final TriggerRuleIndex index) {
+        final Map<EventSummary, BitSet> matches = new IdentityHashMap<EventSummary, BitSet>(events.size());
+        if (triggers.isEmpty()) {
+            return matches;
+        }
+        final int partitions = Math.min(ruleEvaluationThreads, events.size());
+        final int partitionSize = (events.size() + partitions - 1) / partitions;
+        final List<Future<Map<EventSummary, BitSet>>> futures =
+                new ArrayList<Future<Map<EventSummary, BitSet>>>(partitions);
+        for (int i = 0; i < events.size(); i += partitionSize) {
+            final List<EventSummary> partition = events.subList(i, Math.min(i + partitionSize, events.size()));
+            futures.add(ruleEvaluationExecutor.submit(new Callable<Map<EventSummary, BitSet>>() {
+                @Override
+                public Map<EventSummary, BitSet> call() {
+                    final Map<EventSummary, BitSet> partitionMatches =
+                            new IdentityHashMap<EventSummary, BitSet>(partition.size());
+                    for (EventSummary event : partition) {
+                        partitionMatches.put(event, evaluateTriggers(event, triggers, index));
+                    }
+                    return partitionMatches;
+                }
+            }));
+        }
+        try {
+            for (Future<Map<EventSummary, BitSet>> future : futures) {
+                try {
+                    matches.putAll(future.get());
+                } catch (ExecutionException e) {
+                    // The events will be evaluated as they are processed
+                    logger.warn("Failed to evaluate trigger rules", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<Map<EventSummary, BitSet>> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Evaluates the triggers' rules for the event.
+     *
+     * @param eventSummary The event.
+     * @param triggers The enabled triggers.
+     * @param index The index of the triggers' rules.
+     * @return The positions in the list of triggers of the triggers matched by the event.
+     */
+    private BitSet evaluateTriggers(EventSummary eventSummary, List<EventTrigger> triggers, TriggerRuleIndex index) {
+        final BitSet matches = new BitSet(triggers.size());
+        RuleContext ruleContext = null;
+        BitSet candidates = null;
+        for (int i = 0; i < triggers.size(); i++) {
+            final EventTrigger trigger = triggers.get(i);
+            // verify trigger has a defined rule and subscriptions registered with it
+            if (!(trigger.hasRule() && trigger.getRule().hasSource()) || trigger.getSubscriptionsCount() == 0) {
+                continue;
+            }
+            // Determine if event matches trigger rule, skipping rules whose guards the event doesn't satisfy
+            if (ruleContext == null) {
+                ruleContext = RuleContext.createContext(eventSummary);
+                candidates = index.getCandidates(ruleContext);
+            }
+            if (candidates.get(i)) {
+                ruleEvaluationsMeter.mark();
+                if (eventSatisfiesRule(ruleContext, trigger.getUuid(), trigger.getRule().getSource())) {
+                    matches.set(i);
+                }
+            } else {
+                skippedRuleEvaluationsMeter.mark();
+            }
+        }
+        return matches;
     }
 
     private void rememberSpool(EventSignalSpool spool, EventPostIndexContext context) {
@@ -651,26 +1014,40 @@ public class TriggerPlugin extends EventPostIndexPlugin {
         }
     }
 
+    /**
+     * Returns the index of the triggers' rules, rebuilding it if the enabled triggers have changed.
+     */
+    private TriggerRuleIndex getTriggerRuleIndex(List<EventTrigger> triggers) {
+        TriggerRuleIndex index = this.triggerRuleIndex;
+        if (index == null || !index.getTriggers().equals(triggers)) {
+            index = new TriggerRuleIndex(triggers);
+            logger.debug("Indexed guards of {} of {} trigger rules", index.getGuardedTriggerCount(),
+                    triggers.size());
+            this.triggerRuleIndex = index;
+        }
+        return index;
+    }
+
     private void processOpenEvent(EventSummary eventSummary, EventPostIndexContext context) throws ZepException {
         final long now = System.currentTimeMillis();
         BatchIndexState state = batchState.get();
-        List<EventTrigger> triggers = state.triggers;
-        if (triggers == null) {
-            triggers = this.triggerDao.findAllEnabled();
-            state.triggers = triggers;
-        }
+        List<EventTrigger> triggers = getTriggers(state);
 
         // iterate over all enabled triggers to see if any rules will match
         // for this event summary
         boolean rescheduleSpool = false;
 
-        RuleContext ruleContext = null;
-
         if (!triggers.isEmpty()) {
             logger.debug("Event: {}", eventSummary);
         }
 
-        for (EventTrigger trigger : triggers) {
+        BitSet matches = state.triggerMatches.remove(eventSummary);
+        if (matches == null) {
+            matches = evaluateTriggers(eventSummary, triggers, state.triggerRuleIndex);
+        }
+
+        for (int i = 0; i < triggers.size(); i++) {
+            final EventTrigger trigger = triggers.get(i);
 
             // verify trigger has a defined rule
             if (!(trigger.hasRule() && trigger.getRule().hasSource())) {
@@ -687,12 +1064,7 @@ public class TriggerPlugin extends EventPostIndexPlugin {
             }
 
             final String ruleSource = trigger.getRule().getSource();
-
-            // Determine if event matches trigger rule
-            if (ruleContext == null) {
-                ruleContext = RuleContext.createContext(this.pythonHelper.getToObject(), eventSummary);
-            }
-            final boolean eventSatisfiesRule = eventSatisfiesRule(ruleContext, trigger.getUuid(), ruleSource);
+            final boolean eventSatisfiesRule = matches.get(i);
 
             if (eventSatisfiesRule) {
                 logger.debug("Trigger {} ({}) MATCHES", trigger.getName(), ruleSource);
@@ -737,7 +1109,7 @@ public class TriggerPlugin extends EventPostIndexPlugin {
                         if (!spoolExists) {
                             currentSpool = EventSignalSpool.buildSpool(subscription, eventSummary, this.uuidGenerator);
                             currentSpool.setSentSignal(true);
-                            this.signalSpoolDao.create(currentSpool);
+                            createSpool(currentSpool, context);
                             rescheduleSpool = true;
                         }
                         else if (!currentSpool.isSentSignal()) {
@@ -752,7 +1124,7 @@ public class TriggerPlugin extends EventPostIndexPlugin {
                             
                             currentSpool = EventSignalSpool.buildSpool(subscription, eventSummary, this.uuidGenerator);
                             currentSpool.setSentSignal(true);
-                            this.signalSpoolDao.create(currentSpool);
+                            createSpool(currentSpool, context);
                             rescheduleSpool = true;
                         }
                         else {
@@ -770,7 +1142,7 @@ public class TriggerPlugin extends EventPostIndexPlugin {
                     // delaySeconds > 0
                     if (!spoolExists) {
                         currentSpool = EventSignalSpool.buildSpool(subscription, eventSummary, this.uuidGenerator);
-                        this.signalSpoolDao.create(currentSpool);
+                        createSpool(currentSpool, context);
                         rescheduleSpool = true;
                     }
                     else {
@@ -791,16 +1163,24 @@ public class TriggerPlugin extends EventPostIndexPlugin {
                     }
                 }
                 
-                if (spoolModified) {
-                    this.signalSpoolDao.update(currentSpool);
+                if (spoolModified && !state.spoolsToCreate.containsKey(currentSpool.getUuid())) {
+                    state.spoolsToUpdate.put(currentSpool.getUuid(), currentSpool);
                 }
             }
         }
         if (rescheduleSpool) {
-            scheduleSpool();
+            state.rescheduleSpool = true;
         }
     }
 
+    /**
+     * Queues the spool to be created when the batch ends, and remembers it so later events in the batch find it.
+     */
+    private void createSpool(EventSignalSpool spool, EventPostIndexContext context) {
+        batchState.get().spoolsToCreate.put(spool.getUuid(), spool);
+        rememberSpool(spool, context);
+    }
+
     @Timed(absolute=true, name="Trigger.publishSignal")
     protected void publishSignal(EventSummary eventSummary, EventTriggerSubscription subscription) throws ZepException {
         Event occurrence = eventSummary.getOccurrence(0);
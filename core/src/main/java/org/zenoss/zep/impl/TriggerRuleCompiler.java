@@ -0,0 +1,1105 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import org.zenoss.zep.impl.TriggerPlugin.RuleContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiles trigger rules to trees of Java expressions, so that rules are evaluated without Jython.
+ * <p>
+ * Only the subset of Python generated by the trigger rule editor is compiled: string and number literals,
+ * lists and tuples of them, attributes of <code>evt</code>, <code>dev</code>, <code>elem</code>,
+ * <code>sub_elem</code> and <code>zp_det</code>, comparisons (including <code>in</code>, <code>not in</code> and
+ * <code>is None</code>), <code>and</code>, <code>or</code>, <code>not</code> and the <code>startswith</code>,
+ * <code>endswith</code>, <code>lower</code>, <code>upper</code> and <code>strip</code> methods of strings.
+ * Other rules can't be compiled and are evaluated by Jython. A compiled rule evaluates to the same result as
+ * Python 2; where Python would raise an exception, the rule doesn't match.
+ */
+final class TriggerRuleCompiler {
+
+    private TriggerRuleCompiler() {
+    }
+
+    /**
+     * Thrown when a rule isn't in the compiled subset of Python.
+     */
+    static final class UnsupportedRuleException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedRuleException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown while evaluating a compiled rule where Python would raise an exception, in which case the rule doesn't
+     * match, or where the result depends on Python semantics which aren't compiled and the rule must be evaluated by
+     * Jython.
+     */
+    static final class EvaluationException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final boolean fallback;
+
+        private EvaluationException(String message, boolean fallback) {
+            super(message, null, false, false);
+            this.fallback = fallback;
+        }
+
+        /**
+         * Returns true if the rule must be evaluated by Jython, or false if Python would raise the exception.
+         */
+        boolean isFallback() {
+            return fallback;
+        }
+    }
+
+    private static EvaluationException pythonError(String message) {
+        return new EvaluationException(message, false);
+    }
+
+    private static EvaluationException fallback(String message) {
+        return new EvaluationException(message, true);
+    }
+
+    /**
+     * A compiled trigger rule.
+     */
+    interface CompiledRule {
+        /**
+         * Evaluates the rule.
+         *
+         * @param context The event.
+         * @return True if the event matches the rule.
+         * @throws EvaluationException If Python would raise an exception or the rule must be evaluated by Jython.
+         */
+        boolean matches(RuleContext context) throws EvaluationException;
+    }
+
+    /**
+     * Compiles the rule.
+     *
+     * @param source The rule source.
+     * @return The compiled rule.
+     * @throws UnsupportedRuleException If the rule isn't in the compiled subset of Python.
+     */
+    static CompiledRule compile(String source) throws UnsupportedRuleException {
+        final Parser parser = new Parser(new Lexer(source).tokenize());
+        final Node root = parser.parseRule();
+        return new CompiledRule() {
+            @Override
+            public boolean matches(RuleContext context) {
+                return isTrue(root.evaluate(context));
+            }
+        };
+    }
+
+    /**
+     * A condition on an attribute which must hold for a rule to match: the attribute is equal to one of a set of
+     * values, or is an integer within a range.
+     */
+    static final class Guard {
+        private final String variable;
+        private final String attribute;
+        private final Set<Object> values;
+        private final long lower;
+        private final long upper;
+
+        private Guard(String variable, String attribute, Set<Object> values, long lower, long upper) {
+            this.variable = variable;
+            this.attribute = attribute;
+            this.values = values;
+            this.lower = lower;
+            this.upper = upper;
+        }
+
+        String getVariable() {
+            return variable;
+        }
+
+        String getAttribute() {
+            return attribute;
+        }
+
+        /**
+         * Returns the values which the attribute must be equal to, or null if this is a range guard. Integral
+         * numbers are returned as Longs.
+         */
+        Set<Object> getValues() {
+            return values;
+        }
+
+        /**
+         * Returns the inclusive lower bound of a range guard. Only applies to integer attributes.
+         */
+        long getLower() {
+            return lower;
+        }
+
+        /**
+         * Returns the inclusive upper bound of a range guard. Only applies to integer attributes.
+         */
+        long getUpper() {
+            return upper;
+        }
+
+        @Override
+        public String toString() {
+            return variable + "." + attribute + ((values != null) ? " in " + values : " in [" + lower + ", " +
+                    upper + "]");
+        }
+    }
+
+    /**
+     * Extracts the guards of a rule: comparisons of attributes with literals which are combined with the rest of
+     * the rule by <code>and</code>, so that the rule doesn't match unless every guard holds. Equality and
+     * <code>in</code> guards hold for attributes of any type, but range guards only hold for integer attributes.
+     *
+     * @param source The rule source.
+     * @return The guards of the rule.
+     * @throws UnsupportedRuleException If the rule isn't in the compiled subset of Python.
+     */
+    static List<Guard> extractGuards(String source) throws UnsupportedRuleException {
+        final Node root = new Parser(new Lexer(source).tokenize()).parseRule();
+        final List<Guard> guards = new ArrayList<Guard>();
+        addGuards(root, guards);
+        return guards;
+    }
+
+    private static void addGuards(Node node, List<Guard> guards) {
+        if (node instanceof And) {
+            for (Node operand : ((And) node).operands) {
+                addGuards(operand, guards);
+            }
+        } else if (node instanceof Comparison) {
+            final Comparison comparison = (Comparison) node;
+            Node left = comparison.first;
+            for (int i = 0; i < comparison.operators.length; i++) {
+                final Node right = comparison.operands[i];
+                final Guard guard = createGuard(left, comparison.operators[i], right);
+                if (guard != null) {
+                    guards.add(guard);
+                }
+                left = right;
+            }
+        }
+    }
+
+    private static final double MAX_EXACT_DOUBLE = 9007199254740992.0;
+
+    private static Object normalize(Object literal) {
+        if (literal instanceof Boolean) {
+            return longValue(literal);
+        }
+        if (literal instanceof Double) {
+            final double d = (Double) literal;
+            if (d == Math.rint(d) && Math.abs(d) < MAX_EXACT_DOUBLE) {
+                return (long) d;
+            }
+        }
+        return literal;
+    }
+
+    private static Guard createGuard(Node left, Operator operator, Node right) {
+        final Attribute attribute;
+        final Node other;
+        if (left instanceof Attribute) {
+            attribute = (Attribute) left;
+            other = right;
+        } else if (right instanceof Attribute && operator != Operator.IN) {
+            attribute = (Attribute) right;
+            other = left;
+            // Compare the attribute with the literal
+            switch (operator) {
+                case LT:
+                    operator = Operator.GT;
+                    break;
+                case LE:
+                    operator = Operator.GE;
+                    break;
+                case GT:
+                    operator = Operator.LT;
+                    break;
+                case GE:
+                    operator = Operator.LE;
+                    break;
+                default:
+                    break;
+            }
+        } else {
+            return null;
+        }
+        if (operator == Operator.EQ && other instanceof Literal && ((Literal) other).value != null) {
+            return new Guard(attribute.variable, attribute.name,
+                    Collections.singleton(normalize(((Literal) other).value)), 0L, 0L);
+        }
+        if (operator == Operator.IN && other instanceof Sequence) {
+            final Set<Object> values = new HashSet<Object>();
+            for (Node element : ((Sequence) other).elements) {
+                if (!(element instanceof Literal) || ((Literal) element).value == null) {
+                    return null;
+                }
+                values.add(normalize(((Literal) element).value));
+            }
+            return new Guard(attribute.variable, attribute.name, values, 0L, 0L);
+        }
+        if (!(other instanceof Literal) || !isNumber(((Literal) other).value)) {
+            return null;
+        }
+        // Integer attributes are within [ceil(bound), floor(bound)] inclusive
+        final Object bound = ((Literal) other).value;
+        final long floor, ceil;
+        if (bound instanceof Double) {
+            final double d = (Double) bound;
+            if (Double.isNaN(d) || Math.abs(d) >= MAX_EXACT_DOUBLE) {
+                return null;
+            }
+            floor = (long) Math.floor(d);
+            ceil = (long) Math.ceil(d);
+        } else {
+            floor = ceil = longValue(bound);
+            if (floor == Long.MIN_VALUE || floor == Long.MAX_VALUE) {
+                return null;
+            }
+        }
+        switch (operator) {
+            case GT:
+                return new Guard(attribute.variable, attribute.name, null, floor + 1, Long.MAX_VALUE);
+            case GE:
+                return new Guard(attribute.variable, attribute.name, null, ceil, Long.MAX_VALUE);
+            case LT:
+                return new Guard(attribute.variable, attribute.name, null, Long.MIN_VALUE, ceil - 1);
+            case LE:
+                return new Guard(attribute.variable, attribute.name, null, Long.MIN_VALUE, floor);
+            default:
+                return null;
+        }
+    }
+
+    /* Values are null (None), Boolean, Long, Double, String or List. */
+
+    static boolean isTrue(Object value) {
+        if (value == null) {
+            return false;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if (value instanceof Long) {
+            return (Long) value != 0L;
+        }
+        if (value instanceof Double) {
+            return (Double) value != 0.0;
+        }
+        if (value instanceof String) {
+            return !((String) value).isEmpty();
+        }
+        if (value instanceof List) {
+            return !((List<?>) value).isEmpty();
+        }
+        throw fallback("Unexpected value: " + value.getClass());
+    }
+
+    private static boolean isNumber(Object value) {
+        return value instanceof Long || value instanceof Double || value instanceof Boolean;
+    }
+
+    private static long longValue(Object value) {
+        if (value instanceof Boolean) {
+            return ((Boolean) value) ? 1L : 0L;
+        }
+        return (Long) value;
+    }
+
+    private static int compareNumbers(Object a, Object b) {
+        if (a instanceof Double || b instanceof Double) {
+            final double x = (a instanceof Double) ? (Double) a : longValue(a);
+            final double y = (b instanceof Double) ? (Double) b : longValue(b);
+            return Double.compare(x, y);
+        }
+        final long x = longValue(a), y = longValue(b);
+        return (x < y) ? -1 : ((x == y) ? 0 : 1);
+    }
+
+    static boolean equal(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (isNumber(a) && isNumber(b)) {
+            if (a instanceof Double || b instanceof Double) {
+                final double x = (a instanceof Double) ? (Double) a : longValue(a);
+                final double y = (b instanceof Double) ? (Double) b : longValue(b);
+                return x == y;
+            }
+            return longValue(a) == longValue(b);
+        }
+        if (a instanceof String && b instanceof String) {
+            return a.equals(b);
+        }
+        if (a instanceof List || b instanceof List) {
+            // Lists and tuples are never equal in Python - leave them to Jython
+            throw fallback("Comparison of sequences");
+        }
+        // Values of different types are never equal
+        return false;
+    }
+
+    private static int compare(Object a, Object b) {
+        if (a != null && b != null) {
+            if (isNumber(a) && isNumber(b)) {
+                return compareNumbers(a, b);
+            }
+            if (a instanceof String && b instanceof String) {
+                return ((String) a).compareTo((String) b);
+            }
+        }
+        // Python 2 orders values of different types by type name
+        throw fallback("Ordering of values of different types");
+    }
+
+    private static boolean contains(Object container, Object item) {
+        if (container instanceof String) {
+            if (!(item instanceof String)) {
+                throw pythonError("'in <string>' requires string as left operand");
+            }
+            return ((String) container).contains((String) item);
+        }
+        if (container instanceof List) {
+            for (Object element : (List<?>) container) {
+                if (equal(item, element)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        throw pythonError("argument is not iterable");
+    }
+
+    private static String string(Object value, String method) {
+        if (!(value instanceof String)) {
+            throw pythonError("object has no attribute '" + method + "'");
+        }
+        return (String) value;
+    }
+
+    /* Expression tree */
+
+    private static abstract class Node {
+        abstract Object evaluate(RuleContext context);
+    }
+
+    private static final class Literal extends Node {
+        private final Object value;
+
+        private Literal(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(RuleContext context) {
+            return value;
+        }
+    }
+
+    private static final class Attribute extends Node {
+        private final String variable;
+        private final String name;
+
+        private Attribute(String variable, String name) {
+            this.variable = variable;
+            this.name = name;
+        }
+
+        @Override
+        Object evaluate(RuleContext context) {
+            final Object value = context.getAttribute(variable, name);
+            if (value == null) {
+                throw pythonError("'" + variable + "' has no attribute '" + name + "'");
+            }
+            return value;
+        }
+    }
+
+    private static final class Sequence extends Node {
+        private final Node[] elements;
+
+        private Sequence(List<Node> elements) {
+            this.elements = elements.toArray(new Node[elements.size()]);
+        }
+
+        @Override
+        Object evaluate(RuleContext context) {
+            final List<Object> values = new ArrayList<Object>(elements.length);
+            for (Node element : elements) {
+                values.add(element.evaluate(context));
+            }
+            return values;
+        }
+    }
+
+    private static final class Not extends Node {
+        private final Node operand;
+
+        private Not(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Object evaluate(RuleContext context) {
+            return !isTrue(operand.evaluate(context));
+        }
+    }
+
+    private static final class Negate extends Node {
+        private final Node operand;
+
+        private Negate(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Object evaluate(RuleContext context) {
+            final Object value = operand.evaluate(context);
+            if (value instanceof Double) {
+                return -(Double) value;
+            }
+            if (value instanceof Long || value instanceof Boolean) {
+                final long l = longValue(value);
+                if (l == Long.MIN_VALUE) {
+                    throw fallback("Integer overflow");
+                }
+                return -l;
+            }
+            throw pythonError("bad operand type for unary -");
+        }
+    }
+
+    /* Python's and / or evaluate to one of their operands. */
+
+    private static final class And extends Node {
+        private final Node[] operands;
+
+        private And(List<Node> operands) {
+            this.operands = operands.toArray(new Node[operands.size()]);
+        }
+
+        @Override
+        Object evaluate(RuleContext context) {
+            Object value = null;
+            for (Node operand : operands) {
+                value = operand.evaluate(context);
+                if (!isTrue(value)) {
+                    break;
+                }
+            }
+            return value;
+        }
+    }
+
+    private static final class Or extends Node {
+        private final Node[] operands;
+
+        private Or(List<Node> operands) {
+            this.operands = operands.toArray(new Node[operands.size()]);
+        }
+
+        @Override
+        Object evaluate(RuleContext context) {
+            Object value = null;
+            for (Node operand : operands) {
+                value = operand.evaluate(context);
+                if (isTrue(value)) {
+                    break;
+                }
+            }
+            return value;
+        }
+    }
+
+    private static enum Operator {
+        EQ, NE, LT, LE, GT, GE, IN, NOT_IN, IS, IS_NOT;
+
+        boolean apply(Object a, Object b) {
+            switch (this) {
+                case EQ:
+                    return equal(a, b);
+                case NE:
+                    return !equal(a, b);
+                case LT:
+                    return compare(a, b) < 0;
+                case LE:
+                    return compare(a, b) <= 0;
+                case GT:
+                    return compare(a, b) > 0;
+                case GE:
+                    return compare(a, b) >= 0;
+                case IN:
+                    return contains(b, a);
+                case NOT_IN:
+                    return !contains(b, a);
+                case IS:
+                    // Only compiled with None
+                    return a == b;
+                case IS_NOT:
+                    return a != b;
+                default:
+                    throw new IllegalStateException(name());
+            }
+        }
+    }
+
+    /** A chain of comparisons (a < b < c is a < b and b < c, evaluating b once). */
+    private static final class Comparison extends Node {
+        private final Node first;
+        private final Operator[] operators;
+        private final Node[] operands;
+
+        private Comparison(Node first, List<Operator> operators, List<Node> operands) {
+            this.first = first;
+            this.operators = operators.toArray(new Operator[operators.size()]);
+            this.operands = operands.toArray(new Node[operands.size()]);
+        }
+
+        @Override
+        Object evaluate(RuleContext context) {
+            Object left = first.evaluate(context);
+            for (int i = 0; i < operators.length; i++) {
+                final Object right = operands[i].evaluate(context);
+                if (!operators[i].apply(left, right)) {
+                    return Boolean.FALSE;
+                }
+                left = right;
+            }
+            return Boolean.TRUE;
+        }
+    }
+
+    private static final class MethodCall extends Node {
+        private final Node target;
+        private final String method;
+        private final Node[] arguments;
+
+        private MethodCall(Node target, String method, List<Node> arguments) {
+            this.target = target;
+            this.method = method;
+            this.arguments = arguments.toArray(new Node[arguments.size()]);
+        }
+
+        @Override
+        Object evaluate(RuleContext context) {
+            final String value = string(target.evaluate(context), method);
+            if (!isAscii(value)) {
+                throw fallback("Non-ASCII string");
+            }
+            if ("lower".equals(method)) {
+                return lower(value);
+            }
+            if ("upper".equals(method)) {
+                return upper(value);
+            }
+            if ("strip".equals(method)) {
+                return strip(value);
+            }
+            final Object argument = arguments[0].evaluate(context);
+            if (!(argument instanceof String)) {
+                // Python also accepts tuples of prefixes
+                throw fallback(method + " argument");
+            }
+            if ("startswith".equals(method)) {
+                return value.startsWith((String) argument);
+            }
+            return value.endsWith((String) argument);
+        }
+    }
+
+    /* Python 2 str methods only change ASCII characters. */
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String lower(String value) {
+        final char[] chars = value.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                chars[i] += 'a' - 'A';
+            }
+        }
+        return new String(chars);
+    }
+
+    private static String upper(String value) {
+        final char[] chars = value.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'a' && chars[i] <= 'z') {
+                chars[i] -= 'a' - 'A';
+            }
+        }
+        return new String(chars);
+    }
+
+    private static boolean isPythonWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\u000b' || c == '\f';
+    }
+
+    private static String strip(String value) {
+        int start = 0, end = value.length();
+        while (start < end && isPythonWhitespace(value.charAt(start))) {
+            start++;
+        }
+        while (end > start && isPythonWhitespace(value.charAt(end - 1))) {
+            end--;
+        }
+        return value.substring(start, end);
+    }
+
+    /* Lexer */
+
+    private static enum TokenType {
+        NAME, STRING, NUMBER, OPERATOR, END
+    }
+
+    private static final class Token {
+        private final TokenType type;
+        private final String text;
+        private final Object value;
+
+        private Token(TokenType type, String text, Object value) {
+            this.type = type;
+            this.text = text;
+            this.value = value;
+        }
+
+        boolean is(TokenType type, String text) {
+            return this.type == type && this.text.equals(text);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private static final List<String> OPERATORS = Arrays.asList("==", "!=", "<=", ">=", "<", ">", "(", ")", "[",
+            "]", ",", ".", "-");
+
+    private static final class Lexer {
+        private final String source;
+        private int position = 0;
+
+        private Lexer(String source) {
+            this.source = source;
+        }
+
+        List<Token> tokenize() throws UnsupportedRuleException {
+            final List<Token> tokens = new ArrayList<Token>();
+            while (true) {
+                while (position < source.length() && (source.charAt(position) == ' ' ||
+                        source.charAt(position) == '\t')) {
+                    position++;
+                }
+                if (position >= source.length()) {
+                    tokens.add(new Token(TokenType.END, "", null));
+                    return tokens;
+                }
+                final char c = source.charAt(position);
+                if (c == '\'' || c == '"') {
+                    tokens.add(string(false));
+                } else if ((c == 'r' || c == 'R') && position + 1 < source.length() &&
+                        (source.charAt(position + 1) == '\'' || source.charAt(position + 1) == '"')) {
+                    position++;
+                    tokens.add(string(true));
+                } else if (Character.isDigit(c) || (c == '.' && position + 1 < source.length() &&
+                        Character.isDigit(source.charAt(position + 1)))) {
+                    tokens.add(number());
+                } else if (c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                    final int start = position;
+                    while (position < source.length() && (source.charAt(position) == '_' ||
+                            Character.isLetterOrDigit(source.charAt(position)))) {
+                        position++;
+                    }
+                    final String name = source.substring(start, position);
+                    tokens.add(new Token(TokenType.NAME, name, null));
+                } else {
+                    Token operator = null;
+                    for (String op : OPERATORS) {
+                        if (source.startsWith(op, position)) {
+                            operator = new Token(TokenType.OPERATOR, op, null);
+                            position += op.length();
+                            break;
+                        }
+                    }
+                    if (operator == null) {
+                        throw new UnsupportedRuleException("Unsupported character: " + c);
+                    }
+                    tokens.add(operator);
+                }
+            }
+        }
+
+        private Token string(boolean raw) throws UnsupportedRuleException {
+            final char quote = source.charAt(position);
+            if (source.startsWith(new String(new char[] { quote, quote, quote }), position)) {
+                throw new UnsupportedRuleException("Triple quoted strings");
+            }
+            final int start = position++;
+            final StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (position >= source.length()) {
+                    throw new UnsupportedRuleException("Unterminated string");
+                }
+                final char c = source.charAt(position++);
+                if (c == quote) {
+                    break;
+                }
+                if (c > 0x7f) {
+                    throw new UnsupportedRuleException("Non-ASCII string");
+                }
+                if (c == '\\') {
+                    if (position >= source.length()) {
+                        throw new UnsupportedRuleException("Unterminated string");
+                    }
+                    final char escaped = source.charAt(position++);
+                    if (raw) {
+                        sb.append(c).append(escaped);
+                        continue;
+                    }
+                    switch (escaped) {
+                        case '\\':
+                        case '\'':
+                        case '"':
+                            sb.append(escaped);
+                            break;
+                        case 'n':
+                            sb.append('\n');
+                            break;
+                        case 't':
+                            sb.append('\t');
+                            break;
+                        case 'r':
+                            sb.append('\r');
+                            break;
+                        default:
+                            if (Character.isLetterOrDigit(escaped) || escaped == '\n') {
+                                throw new UnsupportedRuleException("Unsupported escape: \\" + escaped);
+                            }
+                            // Python keeps unknown escapes
+                            sb.append(c).append(escaped);
+                    }
+                    continue;
+                }
+                sb.append(c);
+            }
+            return new Token(TokenType.STRING, source.substring(start, position), sb.toString());
+        }
+
+        private Token number() throws UnsupportedRuleException {
+            final int start = position;
+            boolean isFloat = false;
+            while (position < source.length()) {
+                final char c = source.charAt(position);
+                if (Character.isDigit(c)) {
+                    position++;
+                } else if (c == '.' || c == 'e' || c == 'E') {
+                    isFloat = true;
+                    position++;
+                    if ((c == 'e' || c == 'E') && position < source.length() &&
+                            (source.charAt(position) == '+' || source.charAt(position) == '-')) {
+                        position++;
+                    }
+                } else if (Character.isLetter(c) || c == '_') {
+                    // Long, hex, octal and imaginary literals
+                    throw new UnsupportedRuleException("Unsupported number: " + source.substring(start));
+                } else {
+                    break;
+                }
+            }
+            final String text = source.substring(start, position);
+            try {
+                if (isFloat) {
+                    return new Token(TokenType.NUMBER, text, Double.valueOf(text));
+                }
+                if (text.length() > 1 && text.charAt(0) == '0') {
+                    throw new UnsupportedRuleException("Octal number: " + text);
+                }
+                return new Token(TokenType.NUMBER, text, Long.valueOf(text));
+            } catch (NumberFormatException e) {
+                throw new UnsupportedRuleException("Unsupported number: " + text);
+            }
+        }
+    }
+
+    /* Parser (precedence of Python 2: or, and, not, comparisons, unary minus, attributes and calls) */
+
+    private static final List<String> VARIABLES = Arrays.asList("evt", "dev", "elem", "sub_elem", "zp_det");
+    private static final List<String> STRING_METHODS = Arrays.asList("startswith", "endswith", "lower", "upper",
+            "strip");
+
+    private static final class Parser {
+        private final List<Token> tokens;
+        private int position = 0;
+
+        private Parser(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        private Token peek() {
+            return tokens.get(position);
+        }
+
+        private Token next() {
+            return tokens.get(position++);
+        }
+
+        private boolean accept(TokenType type, String text) {
+            if (peek().is(type, text)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String operator) throws UnsupportedRuleException {
+            if (!accept(TokenType.OPERATOR, operator)) {
+                throw new UnsupportedRuleException("Expected '" + operator + "' at '" + peek() + "'");
+            }
+        }
+
+        Node parseRule() throws UnsupportedRuleException {
+            final Node node = parseOr();
+            if (peek().type != TokenType.END) {
+                throw new UnsupportedRuleException("Unexpected '" + peek() + "'");
+            }
+            return node;
+        }
+
+        private Node parseOr() throws UnsupportedRuleException {
+            final List<Node> operands = new ArrayList<Node>();
+            operands.add(parseAnd());
+            while (accept(TokenType.NAME, "or")) {
+                operands.add(parseAnd());
+            }
+            return (operands.size() == 1) ? operands.get(0) : new Or(operands);
+        }
+
+        private Node parseAnd() throws UnsupportedRuleException {
+            final List<Node> operands = new ArrayList<Node>();
+            operands.add(parseNot());
+            while (accept(TokenType.NAME, "and")) {
+                operands.add(parseNot());
+            }
+            return (operands.size() == 1) ? operands.get(0) : new And(operands);
+        }
+
+        private Node parseNot() throws UnsupportedRuleException {
+            if (accept(TokenType.NAME, "not")) {
+                return new Not(parseNot());
+            }
+            return parseComparison();
+        }
+
+        private Operator parseOperator() {
+            final Token token = peek();
+            Operator operator = null;
+            if (token.type == TokenType.OPERATOR) {
+                if ("==".equals(token.text)) {
+                    operator = Operator.EQ;
+                } else if ("!=".equals(token.text)) {
+                    operator = Operator.NE;
+                } else if ("<".equals(token.text)) {
+                    operator = Operator.LT;
+                } else if ("<=".equals(token.text)) {
+                    operator = Operator.LE;
+                } else if (">".equals(token.text)) {
+                    operator = Operator.GT;
+                } else if (">=".equals(token.text)) {
+                    operator = Operator.GE;
+                }
+                if (operator != null) {
+                    position++;
+                }
+            } else if (token.is(TokenType.NAME, "in")) {
+                position++;
+                operator = Operator.IN;
+            } else if (token.is(TokenType.NAME, "not") && tokens.get(position + 1).is(TokenType.NAME, "in")) {
+                position += 2;
+                operator = Operator.NOT_IN;
+            } else if (token.is(TokenType.NAME, "is")) {
+                position++;
+                operator = accept(TokenType.NAME, "not") ? Operator.IS_NOT : Operator.IS;
+            }
+            return operator;
+        }
+
+        private Node parseComparison() throws UnsupportedRuleException {
+            final Node first = parseUnary();
+            final List<Operator> operators = new ArrayList<Operator>();
+            final List<Node> operands = new ArrayList<Node>();
+            Operator operator;
+            while ((operator = parseOperator()) != null) {
+                final Node operand = parseUnary();
+                if (operator == Operator.IS || operator == Operator.IS_NOT) {
+                    // Identity is only compiled for None, which has a single instance
+                    final Node left = operands.isEmpty() ? first : operands.get(operands.size() - 1);
+                    if (!isNone(left) && !isNone(operand)) {
+                        throw new UnsupportedRuleException("'is' only supported with None");
+                    }
+                }
+                operators.add(operator);
+                operands.add(operand);
+            }
+            return operators.isEmpty() ? first : new Comparison(first, operators, operands);
+        }
+
+        private boolean isNone(Node node) {
+            return node instanceof Literal && ((Literal) node).value == null;
+        }
+
+        private Node parseUnary() throws UnsupportedRuleException {
+            if (accept(TokenType.OPERATOR, "-")) {
+                return new Negate(parseUnary());
+            }
+            return parsePrimary();
+        }
+
+        private Node parsePrimary() throws UnsupportedRuleException {
+            Node node = parseAtom();
+            while (accept(TokenType.OPERATOR, ".")) {
+                final Token name = next();
+                if (name.type != TokenType.NAME) {
+                    throw new UnsupportedRuleException("Expected attribute name at '" + name + "'");
+                }
+                if (name.text.startsWith("__")) {
+                    throw new UnsupportedRuleException("Unsupported attribute: " + name);
+                }
+                if (peek().is(TokenType.OPERATOR, "(")) {
+                    node = parseMethodCall(node, name.text);
+                } else if (node instanceof Variable) {
+                    node = new Attribute(((Variable) node).name, name.text);
+                } else {
+                    throw new UnsupportedRuleException("Unsupported attribute: " + name);
+                }
+            }
+            if (node instanceof Variable) {
+                throw new UnsupportedRuleException("Unsupported use of " + ((Variable) node).name);
+            }
+            return node;
+        }
+
+        private Node parseMethodCall(Node target, String method) throws UnsupportedRuleException {
+            if (!STRING_METHODS.contains(method) || target instanceof Variable) {
+                throw new UnsupportedRuleException("Unsupported method: " + method);
+            }
+            expect("(");
+            final List<Node> arguments = new ArrayList<Node>();
+            if (!accept(TokenType.OPERATOR, ")")) {
+                do {
+                    arguments.add(parseOr());
+                } while (accept(TokenType.OPERATOR, ","));
+                expect(")");
+            }
+            final int expected = ("startswith".equals(method) || "endswith".equals(method)) ? 1 : 0;
+            if (arguments.size() != expected) {
+                throw new UnsupportedRuleException("Unsupported arguments of " + method);
+            }
+            return new MethodCall(target, method, arguments);
+        }
+
+        private Node parseAtom() throws UnsupportedRuleException {
+            final Token token = next();
+            switch (token.type) {
+                case STRING: {
+                    final StringBuilder sb = new StringBuilder((String) token.value);
+                    // Adjacent strings are concatenated
+                    while (peek().type == TokenType.STRING) {
+                        sb.append((String) next().value);
+                    }
+                    return new Literal(sb.toString());
+                }
+                case NUMBER:
+                    return new Literal(token.value);
+                case NAME:
+                    if ("None".equals(token.text)) {
+                        return new Literal(null);
+                    }
+                    if ("True".equals(token.text)) {
+                        return new Literal(Boolean.TRUE);
+                    }
+                    if ("False".equals(token.text)) {
+                        return new Literal(Boolean.FALSE);
+                    }
+                    if (VARIABLES.contains(token.text)) {
+                        return new Variable(token.text);
+                    }
+                    throw new UnsupportedRuleException("Unsupported name: " + token);
+                case OPERATOR:
+                    if ("(".equals(token.text)) {
+                        if (accept(TokenType.OPERATOR, ")")) {
+                            return new Sequence(Collections.<Node>emptyList());
+                        }
+                        final Node node = parseOr();
+                        if (accept(TokenType.OPERATOR, ")")) {
+                            return node;
+                        }
+                        return parseSequence(node, ")");
+                    }
+                    if ("[".equals(token.text)) {
+                        if (accept(TokenType.OPERATOR, "]")) {
+                            return new Sequence(Collections.<Node>emptyList());
+                        }
+                        return parseSequence(parseOr(), "]");
+                    }
+                    break;
+                default:
+                    break;
+            }
+            throw new UnsupportedRuleException("Unexpected '" + token + "'");
+        }
+
+        private Node parseSequence(Node first, String close) throws UnsupportedRuleException {
+            final List<Node> elements = new ArrayList<Node>();
+            elements.add(first);
+            while (accept(TokenType.OPERATOR, ",")) {
+                if (peek().is(TokenType.OPERATOR, close)) {
+                    break;
+                }
+                elements.add(parseOr());
+            }
+            expect(close);
+            return new Sequence(elements);
+        }
+    }
+
+    /** A rule variable, only valid followed by an attribute. */
+    private static final class Variable extends Node {
+        private final String name;
+
+        private Variable(String name) {
+            this.name = name;
+        }
+
+        @Override
+        Object evaluate(RuleContext context) {
+            throw new IllegalStateException(name);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.protobufs.zep.Zep.EventTrigger;
+import org.zenoss.zep.impl.TriggerPlugin.RuleContext;
+import org.zenoss.zep.impl.TriggerRuleCompiler.Guard;
+import org.zenoss.zep.impl.TriggerRuleCompiler.UnsupportedRuleException;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the guards of trigger rules (see {@link TriggerRuleCompiler#extractGuards(String)}) on the production
+ * state, severity, device class and event class, which is used to find the triggers whose rules can match an event
+ * without evaluating every rule.
+ */
+final class TriggerRuleIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(TriggerRuleIndex.class);
+
+    private final List<EventTrigger> triggers;
+    private final List<AttributeIndex> indexes = new ArrayList<AttributeIndex>();
+    private int guardedTriggerCount = 0;
+
+    /**
+     * Creates an index of the triggers.
+     *
+     * @param triggers The triggers.
+     */
+    TriggerRuleIndex(List<EventTrigger> triggers) {
+        this.triggers = triggers;
+        final AttributeIndex[] attributeIndexes = {
+                new AttributeIndex("dev", "production_state", true),
+                new AttributeIndex("evt", "severity", true),
+                new AttributeIndex("dev", "device_class", false),
+                new AttributeIndex("evt", "event_class", false),
+        };
+        for (int i = 0; i < triggers.size(); i++) {
+            final EventTrigger trigger = triggers.get(i);
+            List<Guard> guards = Collections.emptyList();
+            if (trigger.hasRule() && trigger.getRule().hasSource()) {
+                try {
+                    guards = TriggerRuleCompiler.extractGuards(trigger.getRule().getSource());
+                } catch (UnsupportedRuleException e) {
+                    logger.debug("Trigger rule not indexed: {}, {}", trigger.getRule().getSource(), e.getMessage());
+                }
+            }
+            boolean guarded = false;
+            for (AttributeIndex index : attributeIndexes) {
+                guarded |= index.add(i, guards);
+            }
+            if (guarded) {
+                ++guardedTriggerCount;
+            }
+        }
+        for (AttributeIndex index : attributeIndexes) {
+            if (index.isUsed()) {
+                index.sortRanges();
+                indexes.add(index);
+            }
+        }
+    }
+
+    /**
+     * Returns the indexed triggers.
+     *
+     * @return The indexed triggers.
+     */
+    List<EventTrigger> getTriggers() {
+        return triggers;
+    }
+
+    /**
+     * Returns the number of triggers with guards on indexed attributes.
+     *
+     * @return The number of triggers with guards on indexed attributes.
+     */
+    int getGuardedTriggerCount() {
+        return guardedTriggerCount;
+    }
+
+    /**
+     * Returns the triggers which can match the event.
+     *
+     * @param context The event.
+     * @return The positions in {@link #getTriggers()} of the triggers which can match the event. The rules of other
+     *         triggers don't match the event.
+     */
+    BitSet getCandidates(RuleContext context) {
+        final BitSet candidates = new BitSet(triggers.size());
+        candidates.set(0, triggers.size());
+        for (AttributeIndex index : indexes) {
+            index.retainCandidates(context.getAttribute(index.variable, index.attribute), candidates);
+        }
+        return candidates;
+    }
+
+    private static final class Range {
+        private final int trigger;
+        private final long lower;
+        private final long upper;
+
+        private Range(int trigger, long lower, long upper) {
+            this.trigger = trigger;
+            this.lower = lower;
+            this.upper = upper;
+        }
+    }
+
+    private static final Comparator<Range> RANGE_COMPARATOR = new Comparator<Range>() {
+        @Override
+        public int compare(Range r1, Range r2) {
+            return (r1.lower < r2.lower) ? -1 : ((r1.lower == r2.lower) ? 0 : 1);
+        }
+    };
+
+    /**
+     * Index of the guards on a single attribute. Triggers with equality guards are found by hashing the value,
+     * triggers with range guards are found from the ranges sorted by lower bound, and triggers without guards on the
+     * attribute are always candidates.
+     */
+    private static final class AttributeIndex {
+        private final String variable;
+        private final String attribute;
+        private final boolean integer;
+        private final BitSet unguarded = new BitSet();
+        private final Map<Object, BitSet> values = new HashMap<Object, BitSet>();
+        private final List<Range> ranges = new ArrayList<Range>();
+        private boolean used = false;
+
+        private AttributeIndex(String variable, String attribute, boolean integer) {
+            this.variable = variable;
+            this.attribute = attribute;
+            this.integer = integer;
+        }
+
+        /**
+         * Adds a trigger to the index, returning true if it has a guard on the attribute.
+         */
+        boolean add(int trigger, List<Guard> guards) {
+            Set<Object> allowed = null;
+            long lower = Long.MIN_VALUE, upper = Long.MAX_VALUE;
+            boolean hasRange = false;
+            for (Guard guard : guards) {
+                if (!variable.equals(guard.getVariable()) || !attribute.equals(guard.getAttribute())) {
+                    continue;
+                }
+                if (guard.getValues() != null) {
+                    if (allowed == null) {
+                        allowed = new HashSet<Object>(guard.getValues());
+                    } else {
+                        allowed.retainAll(guard.getValues());
+                    }
+                } else if (integer) {
+                    hasRange = true;
+                    lower = Math.max(lower, guard.getLower());
+                    upper = Math.min(upper, guard.getUpper());
+                }
+            }
+            if (allowed == null && !hasRange) {
+                unguarded.set(trigger);
+                return false;
+            }
+            used = true;
+            if (allowed != null) {
+                for (Object value : allowed) {
+                    if (hasRange && !(value instanceof Long && (Long) value >= lower && (Long) value <= upper)) {
+                        continue;
+                    }
+                    BitSet triggers = values.get(value);
+                    if (triggers == null) {
+                        triggers = new BitSet();
+                        values.put(value, triggers);
+                    }
+                    triggers.set(trigger);
+                }
+            } else if (lower <= upper) {
+                ranges.add(new Range(trigger, lower, upper));
+            }
+            return true;
+        }
+
+        boolean isUsed() {
+            return used;
+        }
+
+        void sortRanges() {
+            Collections.sort(ranges, RANGE_COMPARATOR);
+        }
+
+        void retainCandidates(Object value, BitSet candidates) {
+            final BitSet matching = (BitSet) unguarded.clone();
+            if (value != null) {
+                final BitSet equal = values.get(value);
+                if (equal != null) {
+                    matching.or(equal);
+                }
+                if (value instanceof Long) {
+                    final long l = (Long) value;
+                    for (Range range : ranges) {
+                        if (range.lower > l) {
+                            break;
+                        }
+                        if (range.upper >= l) {
+                            matching.set(range.trigger);
+                        }
+                    }
+                }
+            }
+            candidates.and(matching);
+        }
+    }
+}
@@ -14,6 +14,7 @@ import org.zenoss.zep.ZepException;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Set;
 
 public interface EventIndexBackend {
 
@@ -129,6 +130,17 @@ public interface EventIndexBackend {
      */
     EventSummaryResult list(EventSummaryRequest request) throws ZepException;
 
+    /**
+     * Retrieves event summary entries matching the specified query, returning only the requested fields
+     * where the backend can do so without loading the entire event.
+     *
+     * @param request Event summary query.
+     * @param fields The names of the index fields to return, or null to return the entire event summaries.
+     * @return The matching event summary entries.
+     * @throws ZepException If an error occurs.
+     */
+    EventSummaryResult list(EventSummaryRequest request, Set<String> fields) throws ZepException;
+
     /**
      * Retrieves event summary UUIDs matching the specified query.
      *
@@ -20,6 +20,7 @@ import org.zenoss.zep.ZepException;
 import org.zenoss.zep.dao.Purgable;
 
 import java.util.List;
+import java.util.Set;
 
 /**
  * DAO for Event Index.
@@ -102,6 +103,25 @@ public interface EventIndexDao extends Purgable {
     public EventSummaryResult list(EventSummaryRequest request)
             throws ZepException;
 
+    /**
+     * Retrieves event summary entries matching the specified query, returning
+     * only the requested fields of each event summary where the index can do
+     * so without loading the entire event.
+     *
+     * @param request
+     *            Event summary query.
+     * @param fields
+     *            The names of the index fields to return (see
+     *            {@link org.zenoss.zep.index.impl.IndexConstants}). If null or
+     *            empty, or if the index cannot return one of the fields on its
+     *            own, the entire event summaries are returned.
+     * @return The matching event summary entries.
+     * @throws ZepException
+     *             If an error occurs.
+     */
+    public EventSummaryResult list(EventSummaryRequest request, Set<String> fields)
+            throws ZepException;
+
     /**
      * Retrieves event summary UUIDs matching the specified query.
      *
@@ -93,15 +93,20 @@ public abstract class BaseEventIndexBackend<SS extends SavedSearch> implements E
         public int total = 0;
 
         public void updateCounts(final EventSeverity severity, final int count, boolean isAcknowledged) {
+            updateCounts(severity, 1, count, isAcknowledged);
+        }
+
+        public void updateCounts(final EventSeverity severity, final int events, final int count,
+                                 boolean isAcknowledged) {
             this.total += count;
             Counter counter = counters.get(severity);
             if (counter == null) {
                 counter = new Counter();
                 counters.put(severity, counter);
             }
-            ++counter.count;
+            counter.count += events;
             if (isAcknowledged)
-                ++counter.ackCount;
+                counter.ackCount += events;
         }
 
         public EventTagSeverities toEventTagSeverities(String uuid) {
@@ -130,6 +135,24 @@ public abstract class BaseEventIndexBackend<SS extends SavedSearch> implements E
          * @param acknowledged the status of the event is "acknowledged"
          */
         void update(String uuid, EventSeverity severity, int count, boolean acknowledged);
+
+        /**
+         * Update the counts of the event tag severities with several events at once.
+         * @param uuid the event tag UUID
+         * @param severity the severity of the events
+         * @param events the number of events
+         * @param count the sum of the counts of the events
+         * @param acknowledged the status of the events is "acknowledged"
+         */
+        void update(String uuid, EventSeverity severity, int events, int count, boolean acknowledged);
+    }
+
+    /**
+     * Returns the entire event summaries. Backends which can load the requested fields on their own override this.
+     */
+    @Override
+    public EventSummaryResult list(EventSummaryRequest request, Set<String> fields) throws ZepException {
+        return list(request);
     }
 
     @Override
@@ -152,13 +175,18 @@ public abstract class BaseEventIndexBackend<SS extends SavedSearch> implements E
         searchEventTagSeverities(filter, new EventTagSeverityCounter() {
             @Override
             public void update(String uuid, EventSeverity severity, int count, boolean acknowledged) {
+                update(uuid, severity, 1, count, acknowledged);
+            }
+
+            @Override
+            public void update(String uuid, EventSeverity severity, int events, int count, boolean acknowledged) {
                 TagSeverities severities = tagSeveritiesMap.get(uuid);
                 if (severities == null && !hasTagsFilter) {
                     severities = new TagSeverities();
                     tagSeveritiesMap.put(uuid, severities);
                 }
                 if (severities != null)
-                    severities.updateCounts(severity, count, acknowledged);
+                    severities.updateCounts(severity, events, count, acknowledged);
             }
         });
         EventTagSeveritiesSet.Builder builder = EventTagSeveritiesSet.newBuilder();
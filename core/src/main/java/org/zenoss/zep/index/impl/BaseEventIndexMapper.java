@@ -10,46 +10,14 @@ package org.zenoss.zep.index.impl;
 
 import org.zenoss.protobufs.zep.Zep.EventSummary;
 import org.zenoss.zep.ZepException;
-import org.zenoss.zep.ZepUtils;
-
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 public class BaseEventIndexMapper {
     protected static byte[] compressProtobuf(EventSummary eventSummary) throws ZepException {
-        final byte[] uncompressed = eventSummary.toByteArray();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(uncompressed.length);
-        GZIPOutputStream gzos = null;
-        try {
-            gzos = new GZIPOutputStream(baos);
-            gzos.write(uncompressed);
-            gzos.finish();
-            return baos.toByteArray();
-        } catch (IOException e) {
-            throw new ZepException(e.getLocalizedMessage(), e);
-        } finally {
-            if (gzos != null) {
-                ZepUtils.close(gzos);
-            }
-        }
+        return ProtobufCodec.DEFAULT.compress(eventSummary);
     }
 
     protected static EventSummary uncompressProtobuf(byte[] compressed) throws ZepException {
-        ByteArrayInputStream bais = new ByteArrayInputStream(compressed);
-        GZIPInputStream gzis = null;
-        try {
-            gzis = new GZIPInputStream(bais);
-            return EventSummary.newBuilder().mergeFrom(gzis).build();
-        } catch (IOException e) {
-            throw new ZepException(e.getLocalizedMessage(), e);
-        } finally {
-            if (gzis != null) {
-                ZepUtils.close(gzis);
-            }
-        }
+        return ProtobufCodec.DEFAULT.uncompress(compressed, 0, compressed.length);
     }
 
 }
@@ -1,7 +1,30 @@
 package org.zenoss.zep.index.impl;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
 public final class EventIndexBackendTask {
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /*
+     * Binary encoding: a header byte followed by the optional fields it flags.
+     *
+     *   header:   bits 0-1 op (1 = FLUSH, 2 = INDEX_EVENT) and FLAG_* bits for the fields present
+     *   uuid:     16 bytes (most significant long, least significant long), or a varint length followed by
+     *             UTF-8 bytes if the uuid is not in canonical form
+     *   lastSeen: unsigned varint (7 bits per byte, least significant group first)
+     *
+     * The header byte is always a control character, so it never collides with the first character ('o')
+     * of the text encoding produced by toString().
+     */
+    private static final int OP_MASK = 0x03;
+    private static final int FLAG_UUID = 0x04;
+    private static final int FLAG_STRING_UUID = 0x08;
+    private static final int FLAG_LAST_SEEN = 0x10;
+
     public enum Op {FLUSH, INDEX_EVENT}
 
     public final Op op;
@@ -32,6 +55,24 @@ public final class EventIndexBackendTask {
         return sb.toString();
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof EventIndexBackendTask)) return false;
+        EventIndexBackendTask that = (EventIndexBackendTask) o;
+        return op == that.op
+                && (uuid == null ? that.uuid == null : uuid.equals(that.uuid))
+                && (lastSeen == null ? that.lastSeen == null : lastSeen.equals(that.lastSeen));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = op.hashCode();
+        result = 31 * result + (uuid != null ? uuid.hashCode() : 0);
+        result = 31 * result + (lastSeen != null ? lastSeen.hashCode() : 0);
+        return result;
+    }
+
     public static EventIndexBackendTask parse(String s) {
         try {
             Op op = null;
@@ -53,4 +94,132 @@ public final class EventIndexBackendTask {
             throw new IllegalArgumentException("Unparsable task: " + s, e);
         }
     }
+
+    private static int opCode(Op op) {
+        return (op == Op.FLUSH) ? 1 : 2;
+    }
+
+    private static Op opFromCode(int code) {
+        switch (code) {
+            case 1:
+                return Op.FLUSH;
+            case 2:
+                return Op.INDEX_EVENT;
+            default:
+                throw new IllegalArgumentException("Unknown op: " + code);
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Returns the compact binary encoding of the task. Tasks encoded this way are decoded by
+     * {@link #parse(byte[])}.
+     *
+     * @return The binary encoding of the task.
+     */
+    public byte[] toBytes() {
+        int header = opCode(op);
+        byte[] uuidBytes = null;
+        UUID parsedUuid = null;
+        if (uuid != null) {
+            try {
+                parsedUuid = UUID.fromString(uuid);
+                if (!parsedUuid.toString().equals(uuid)) {
+                    parsedUuid = null;
+                }
+            } catch (IllegalArgumentException e) {
+                parsedUuid = null;
+            }
+            if (parsedUuid != null) {
+                header |= FLAG_UUID;
+            } else {
+                header |= FLAG_STRING_UUID;
+                uuidBytes = uuid.getBytes(UTF8);
+            }
+        }
+        if (lastSeen != null) {
+            header |= FLAG_LAST_SEEN;
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        out.write(header);
+        if (parsedUuid != null) {
+            final ByteBuffer buf = ByteBuffer.allocate(16);
+            buf.putLong(parsedUuid.getMostSignificantBits());
+            buf.putLong(parsedUuid.getLeastSignificantBits());
+            out.write(buf.array(), 0, 16);
+        } else if (uuidBytes != null) {
+            writeVarLong(out, uuidBytes.length);
+            out.write(uuidBytes, 0, uuidBytes.length);
+        }
+        if (lastSeen != null) {
+            writeVarLong(out, lastSeen);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a task from either the binary encoding produced by {@link #toBytes()} or the UTF-8 bytes of the
+     * text encoding produced by {@link #toString()}.
+     *
+     * @param bytes The encoded task.
+     * @return The decoded task.
+     * @throws IllegalArgumentException If the task cannot be decoded.
+     */
+    public static EventIndexBackendTask parse(byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            throw new IllegalArgumentException("Unparsable task: empty");
+        }
+        if (!isBinary(bytes)) {
+            return parse(new String(bytes, UTF8));
+        }
+        try {
+            final ByteBuffer buf = ByteBuffer.wrap(bytes);
+            final int header = buf.get() & 0xFF;
+            final Op op = opFromCode(header & OP_MASK);
+            String uuid = null;
+            Long lastSeen = null;
+            if ((header & FLAG_UUID) != 0) {
+                uuid = new UUID(buf.getLong(), buf.getLong()).toString();
+            } else if ((header & FLAG_STRING_UUID) != 0) {
+                final byte[] uuidBytes = new byte[(int) readVarLong(buf)];
+                buf.get(uuidBytes);
+                uuid = new String(uuidBytes, UTF8);
+            }
+            if ((header & FLAG_LAST_SEEN) != 0) {
+                lastSeen = readVarLong(buf);
+            }
+            return new EventIndexBackendTask(op, uuid, lastSeen);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Unparsable binary task", e);
+        }
+    }
+
+    /**
+     * Returns true if the encoded task uses the binary encoding rather than the text encoding.
+     *
+     * @param bytes The encoded task.
+     * @return True if the task is binary encoded.
+     */
+    public static boolean isBinary(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] < 0x20 && bytes[0] >= 0;
+    }
 }
@@ -51,6 +51,7 @@ public class EventIndexRebuilderImpl implements EventIndexRebuilder, Application
     private EventIndexDao indexDao;
     private IndexMetadataDao indexMetadataDao;
     private IndexedDetailsConfiguration indexedDetailsConfiguration;
+    private ProtobufCodec protobufCodec = ProtobufCodec.DEFAULT;
 
     private final ExecutorService executorService = Executors.newSingleThreadExecutor();
     private Future<?> rebuildFuture = null;
@@ -78,7 +79,7 @@ public class EventIndexRebuilderImpl implements EventIndexRebuilder, Application
                         configurationChanged = false;
                         Map<String,EventDetailItem> detailItems =
                                 indexedDetailsConfiguration.getEventDetailItemsByName();
-                        indexVersionHash = calculateIndexVersionHash(detailItems);
+                        indexVersionHash = calculateIndexVersionHash(detailItems, protobufCodec);
                         recreateIndexIfNeeded();
 
                         // Wait to be interrupted if the configuration changes for the index
@@ -143,13 +144,18 @@ public class EventIndexRebuilderImpl implements EventIndexRebuilder, Application
         this.indexedDetailsConfiguration = indexedDetailsConfiguration;
     }
 
+    public void setProtobufCodec(ProtobufCodec protobufCodec) {
+        this.protobufCodec = protobufCodec;
+    }
+
     private void deleteStateFile() {
         if (this.indexStateFile.isFile() && !this.indexStateFile.delete()) {
             logger.info("Failed to remove index rebuild state file");
         }
     }
 
-    private static byte[] calculateIndexVersionHash(Map<String,EventDetailItem> detailItems) throws ZepException {
+    private static byte[] calculateIndexVersionHash(Map<String,EventDetailItem> detailItems,
+                                                    ProtobufCodec protobufCodec) throws ZepException {
         TreeMap<String,EventDetailItem> sorted = new TreeMap<String,EventDetailItem>(detailItems);
         StringBuilder indexConfigStr = new StringBuilder();
         for (EventDetailItem item : sorted.values()) {
@@ -160,6 +166,11 @@ public class EventIndexRebuilderImpl implements EventIndexRebuilder, Application
             indexConfigStr.append(item.getType().name());
             indexConfigStr.append('|');
         }
+        // Protobufs compressed with a dictionary can't be read with another one
+        final String dictionaryId = protobufCodec.getDictionaryId();
+        if (dictionaryId != null) {
+            indexConfigStr.append("|dictionary|").append(dictionaryId).append('|');
+        }
         if (indexConfigStr.length() == 0) {
             return null;
         }
@@ -226,6 +237,9 @@ public class EventIndexRebuilderImpl implements EventIndexRebuilder, Application
                     }
                 }
             }
+            else if (indexVersionChanged(indexMetadata)) {
+                recreateIndex = true;
+            }
         }
 
         if (recreateIndex) {
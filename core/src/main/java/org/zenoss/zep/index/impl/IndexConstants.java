@@ -23,7 +23,7 @@ public class IndexConstants {
      * The version of the event index. This should be updated each time a new field
      * is added to the index or the way a field gets indexed changes.
      */
-    public static final int INDEX_VERSION = 10;
+    public static final int INDEX_VERSION = 13;
 
     public static final String FIELD_UUID = "uuid";
     public static final String FIELD_STATUS = "status";
@@ -39,6 +39,10 @@ public class IndexConstants {
     public static final String FIELD_ELEMENT_SUB_IDENTIFIER_NOT_ANALYZED = "element_sub_identifier_not_analyzed";
     public static final String FIELD_ELEMENT_SUB_TITLE = "element_sub_title";
     public static final String FIELD_ELEMENT_SUB_TITLE_NOT_ANALYZED = "element_sub_title_not_analyzed";
+    public static final String FIELD_ELEMENT_IDENTIFIER_REVERSED = "element_identifier_reversed";
+    public static final String FIELD_ELEMENT_TITLE_REVERSED = "element_title_reversed";
+    public static final String FIELD_ELEMENT_SUB_IDENTIFIER_REVERSED = "element_sub_identifier_reversed";
+    public static final String FIELD_ELEMENT_SUB_TITLE_REVERSED = "element_sub_title_reversed";
     public static final String FIELD_FINGERPRINT = "fingerprint";
     public static final String FIELD_SUMMARY = "summary";
     public static final String FIELD_SUMMARY_NOT_ANALYZED = "summary_not_analyzed";
@@ -68,6 +72,17 @@ public class IndexConstants {
         NON_ANALYZED = Collections.unmodifiableMap(m);
     }
 
+    // Lowercased identifiers stored reversed, to match leading wildcards as prefixes
+    public static final Map<String,String> REVERSED;
+    static {
+        final Map<String,String> m = Maps.newHashMap();
+        m.put(FIELD_ELEMENT_IDENTIFIER, FIELD_ELEMENT_IDENTIFIER_REVERSED);
+        m.put(FIELD_ELEMENT_TITLE, FIELD_ELEMENT_TITLE_REVERSED);
+        m.put(FIELD_ELEMENT_SUB_TITLE, FIELD_ELEMENT_SUB_TITLE_REVERSED);
+        m.put(FIELD_ELEMENT_SUB_IDENTIFIER, FIELD_ELEMENT_SUB_IDENTIFIER_REVERSED);
+        REVERSED = Collections.unmodifiableMap(m);
+    }
+
     // For PATH and IP_ADDRESS details
     public static final String SORT_SUFFIX = "_sort";
     
@@ -0,0 +1,405 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.zep.index.WorkQueue;
+import org.zenoss.zep.utils.ArrayBlockingSetQueue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded de-duping task queue held in memory, for deployments where all
+ * producers and consumers of the queue run in this process.
+ *
+ * It has the same semantics as {@link RedisWorkQueue}: tasks are ordered
+ * FIFO, a task which is already on the queue is not inserted again, polled
+ * tasks are held "in-progress" until they are marked complete, and tasks
+ * which are in-progress for too long are re-inserted at the tail of the
+ * queue by {@link #requeueOldTasks()}. Adding to a full queue blocks until
+ * a poll makes room; if the adding thread is interrupted or the queue is
+ * closed meanwhile, the add fails with an {@link IllegalStateException}.
+ *
+ * If a journal file is given, every task which is added to the queue and
+ * every task which is completed (and not queued again in the meantime) is
+ * appended to the journal. When the queue is created, the journal is
+ * replayed and all tasks which were queued or in-progress are queued again.
+ * The journal is rewritten with only the outstanding tasks once it has
+ * grown well past their number.
+ */
+public class LocalWorkQueue implements WorkQueue, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalWorkQueue.class);
+
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_COMPLETE = 2;
+    private static final long MINIMUM_IN_PROGRESS_DURATION = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAXIMUM_IN_PROGRESS_DURATION = TimeUnit.DAYS.toMillis(30);
+    private static final int MINIMUM_COMPACTION_THRESHOLD = 10000;
+
+    private final String name;
+    private final ArrayBlockingSetQueue<EventIndexBackendTask> queue;
+    private final Map<EventIndexBackendTask, Long> inProgress = Maps.newHashMap();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private long inProgressDurationInMillis;
+    private boolean closed = false;
+
+    private final File journalFile;
+    private final boolean syncJournal;
+    private FileOutputStream journalFileStream;
+    private DataOutputStream journal;
+    private long journalRecords = 0;
+
+    /**
+     * Creates a queue without a journal.
+     *
+     * @param name The name of the queue.
+     * @param capacity The maximum number of queued (not in-progress) tasks.
+     */
+    public LocalWorkQueue(String name, int capacity) {
+        this(name, capacity, null, false);
+    }
+
+    /**
+     * Creates a queue, recovering the outstanding tasks from the journal if it exists.
+     *
+     * @param name The name of the queue.
+     * @param capacity The maximum number of queued (not in-progress) tasks.
+     * @param journalFile The journal file, or null to keep the queue only in memory.
+     * @param syncJournal True to force journal writes to disk before add and complete return.
+     */
+    public LocalWorkQueue(String name, int capacity, File journalFile, boolean syncJournal) {
+        this.name = name;
+        this.journalFile = journalFile;
+        this.syncJournal = syncJournal;
+        Set<EventIndexBackendTask> recovered = Collections.emptySet();
+        if (journalFile != null) {
+            try {
+                recovered = replayJournal();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read work queue journal: " + journalFile, e);
+            }
+        }
+        this.queue = new ArrayBlockingSetQueue<EventIndexBackendTask>(Math.max(capacity, recovered.size()));
+        this.queue.addAll(recovered);
+        if (journalFile != null) {
+            if (!recovered.isEmpty()) {
+                logger.info("Recovered {} tasks from journal for {}", recovered.size(), this);
+            }
+            lock.lock();
+            try {
+                compactJournal();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to write work queue journal: " + journalFile, e);
+            } finally {
+                lock.unlock();
+            }
+        }
+        setInProgressDuration(1, TimeUnit.MINUTES);
+    }
+
+    public String toString() {
+        return new StringBuilder()
+                .append(LocalWorkQueue.class.getSimpleName())
+                .append("[")
+                .append(name)
+                .append("]")
+                .toString();
+    }
+
+    public void setInProgressDuration(long duration, TimeUnit unit) {
+        long millis = unit.toMillis(duration);
+        if (millis < MINIMUM_IN_PROGRESS_DURATION)
+            millis = MINIMUM_IN_PROGRESS_DURATION;
+        else if (millis > MAXIMUM_IN_PROGRESS_DURATION)
+            millis = MAXIMUM_IN_PROGRESS_DURATION;
+        this.inProgressDurationInMillis = millis;
+    }
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    @Override
+    public void add(EventIndexBackendTask task) {
+        if (task == null) return;
+        addAll(Collections.singleton(task));
+    }
+
+    @Override
+    public void addAll(Collection<EventIndexBackendTask> tasks) {
+        if (tasks == null || tasks.isEmpty())
+            return;
+        lock.lock();
+        int added = 0;
+        try {
+            for (EventIndexBackendTask task : tasks) {
+                if (queue.contains(task))
+                    continue;
+                while (!queue.offer(task)) {
+                    if (closed)
+                        throw new IllegalStateException("Failed to add tasks to closed " + this);
+                    flushJournal();
+                    notFull.await();
+                }
+                writeRecord(RECORD_ADD, task);
+                added++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted adding tasks to " + this, e);
+        } finally {
+            // Tasks added before a failure stay queued.
+            if (added > 0) {
+                flushJournal();
+                notEmpty.signalAll();
+            }
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<EventIndexBackendTask> poll(int maxSize, int timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (queue.isEmpty()) {
+                if (nanos <= 0)
+                    return Collections.emptyList();
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            List<EventIndexBackendTask> tasks = Lists.newArrayListWithExpectedSize(Math.min(maxSize, queue.size()));
+            queue.drainTo(tasks, maxSize);
+            final Long now = System.currentTimeMillis();
+            for (EventIndexBackendTask task : tasks) {
+                inProgress.put(task, now);
+            }
+            notFull.signalAll();
+            return tasks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void complete(EventIndexBackendTask task) {
+        if (task == null) return;
+        completeAll(Collections.singleton(task));
+    }
+
+    @Override
+    public void completeAll(Collection<EventIndexBackendTask> tasks) {
+        if (tasks == null || tasks.isEmpty())
+            return;
+        lock.lock();
+        try {
+            for (EventIndexBackendTask task : tasks) {
+                // A task which was queued again while in-progress is still outstanding.
+                if (inProgress.remove(task) != null && !queue.contains(task))
+                    writeRecord(RECORD_COMPLETE, task);
+            }
+            flushJournal();
+            maybeCompactJournal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long requeueOldTasks() {
+        final long maxStartTime = System.currentTimeMillis() - inProgressDurationInMillis;
+        long count = 0;
+        lock.lock();
+        try {
+            Iterator<Map.Entry<EventIndexBackendTask, Long>> it = inProgress.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<EventIndexBackendTask, Long> entry = it.next();
+                if (entry.getValue() > maxStartTime)
+                    continue;
+                // Leave the rest in-progress until a poll makes room, rather than block while holding the lock.
+                if (!queue.offer(entry.getKey()))
+                    break;
+                it.remove();
+                count++;
+            }
+            if (count > 0)
+                notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return count;
+    }
+
+    @Override
+    public long size() {
+        return queue.size();
+    }
+
+    /**
+     * Closes the journal and fails any adds waiting for room in the queue. The queue must not be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+            if (journal != null) {
+                journal.close();
+                journal = null;
+                journalFileStream = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* -------------------------------------------------------------------- */
+    /* Journal: a sequence of records (type byte, unsigned short length,    */
+    /* task in the EventIndexBackendTask binary encoding).                  */
+    /* -------------------------------------------------------------------- */
+
+    private Set<EventIndexBackendTask> replayJournal() throws IOException {
+        final Set<EventIndexBackendTask> outstanding = new LinkedHashSet<EventIndexBackendTask>();
+        if (!journalFile.isFile())
+            return outstanding;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            while (true) {
+                final byte type;
+                final byte[] bytes;
+                try {
+                    type = in.readByte();
+                    bytes = new byte[in.readUnsignedShort()];
+                    in.readFully(bytes);
+                } catch (EOFException e) {
+                    break;
+                }
+                final EventIndexBackendTask task;
+                try {
+                    task = EventIndexBackendTask.parse(bytes);
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Skipping unparsable task in journal for {}", this);
+                    continue;
+                }
+                if (type == RECORD_ADD)
+                    outstanding.add(task);
+                else if (type == RECORD_COMPLETE)
+                    outstanding.remove(task);
+                else
+                    logger.warn("Skipping unknown record type {} in journal for {}", type, this);
+            }
+        } finally {
+            in.close();
+        }
+        return outstanding;
+    }
+
+    /** Only call while holding the lock. */
+    private void writeRecord(byte type, EventIndexBackendTask task) {
+        if (journal == null)
+            return;
+        try {
+            byte[] bytes = task.toBytes();
+            journal.writeByte(type);
+            journal.writeShort(bytes.length);
+            journal.write(bytes);
+            journalRecords++;
+        } catch (IOException e) {
+            logger.warn("Failed to write to journal for " + this, e);
+        }
+    }
+
+    /** Only call while holding the lock. */
+    private void flushJournal() {
+        if (journal == null)
+            return;
+        try {
+            journal.flush();
+            if (syncJournal)
+                journalFileStream.getFD().sync();
+        } catch (IOException e) {
+            logger.warn("Failed to flush journal for " + this, e);
+        }
+    }
+
+    /** Only call while holding the lock. */
+    private void maybeCompactJournal() {
+        if (journal == null)
+            return;
+        final long outstanding = (long) queue.size() + inProgress.size();
+        if (journalRecords < Math.max(MINIMUM_COMPACTION_THRESHOLD, 2 * outstanding))
+            return;
+        try {
+            compactJournal();
+        } catch (IOException e) {
+            logger.warn("Failed to compact journal for " + this, e);
+        }
+    }
+
+    /**
+     * Rewrites the journal with the tasks which are in-progress or queued. Only call while holding the lock.
+     */
+    private void compactJournal() throws IOException {
+        final File tmp = new File(journalFile.getPath() + ".tmp");
+        final Set<EventIndexBackendTask> outstanding = Sets.newLinkedHashSet(inProgress.keySet());
+        outstanding.addAll(queue);
+        final FileOutputStream tmpStream = new FileOutputStream(tmp);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tmpStream));
+        try {
+            for (EventIndexBackendTask task : outstanding) {
+                byte[] bytes = task.toBytes();
+                out.writeByte(RECORD_ADD);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+            out.flush();
+            tmpStream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        if (!tmp.renameTo(journalFile)) {
+            if (!journalFile.delete() || !tmp.renameTo(journalFile))
+                throw new IOException("Failed to replace journal " + journalFile);
+        }
+        journalFileStream = new FileOutputStream(journalFile, true);
+        journal = new DataOutputStream(new BufferedOutputStream(journalFileStream));
+        journalRecords = outstanding.size();
+    }
+}
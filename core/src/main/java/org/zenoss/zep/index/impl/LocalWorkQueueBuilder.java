@@ -0,0 +1,89 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl;
+
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.zep.index.WorkQueue;
+import org.zenoss.zep.index.WorkQueueBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds {@link LocalWorkQueue}s. Queues are shared by name, so every producer and consumer which builds a queue
+ * with the same name uses the same queue, as they would with {@link RedisWorkQueue}.
+ */
+public class LocalWorkQueueBuilder implements WorkQueueBuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalWorkQueueBuilder.class);
+
+    private final Map<String, LocalWorkQueue> queues = Maps.newHashMap();
+    private int capacity = 100000;
+    private File journalDirectory = null;
+    private boolean syncJournal = false;
+    private long inProgressDurationSeconds = 60;
+
+    /**
+     * Sets the maximum number of queued (not in-progress) tasks in each queue.
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Sets the directory holding the queue journals. If empty, queues are only kept in memory.
+     */
+    public void setJournalDirectory(String journalDirectory) {
+        this.journalDirectory = (journalDirectory == null || journalDirectory.trim().isEmpty()) ? null :
+                new File(journalDirectory.trim());
+    }
+
+    /**
+     * Sets whether journal writes are forced to disk before a queue operation returns.
+     */
+    public void setSyncJournal(boolean syncJournal) {
+        this.syncJournal = syncJournal;
+    }
+
+    public void setInProgressDurationSeconds(long inProgressDurationSeconds) {
+        this.inProgressDurationSeconds = inProgressDurationSeconds;
+    }
+
+    @Override
+    public synchronized WorkQueue build(String queueId) {
+        LocalWorkQueue queue = queues.get(queueId);
+        if (queue == null) {
+            File journalFile = null;
+            if (journalDirectory != null) {
+                if (!journalDirectory.isDirectory() && !journalDirectory.mkdirs())
+                    throw new IllegalStateException("Failed to create work queue journal directory: " + journalDirectory);
+                journalFile = new File(journalDirectory, queueId + ".journal");
+            }
+            queue = new LocalWorkQueue(queueId, capacity, journalFile, syncJournal);
+            queue.setInProgressDuration(inProgressDurationSeconds, TimeUnit.SECONDS);
+            queues.put(queueId, queue);
+        }
+        return queue;
+    }
+
+    public synchronized void close() {
+        for (LocalWorkQueue queue : queues.values()) {
+            try {
+                queue.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close " + queue, e);
+            }
+        }
+        queues.clear();
+    }
+}
@@ -8,12 +8,17 @@
  ****************************************************************************/
 package org.zenoss.zep.index.impl;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.base.Predicates;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.zenoss.protobufs.zep.Zep.*;
 import org.zenoss.zep.Messages;
 import org.zenoss.zep.UUIDGenerator;
@@ -32,6 +37,13 @@ import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -55,6 +67,9 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
     private final ReadWriteLock backendsLock = new ReentrantReadWriteLock();
     private final Lock backendsUse = backendsLock.readLock();
     private final Lock backendsModify = backendsLock.writeLock();
+    private int fetchThreads = 1;
+    private int pipelineDepth = 2;
+    private MetricRegistry metrics = new MetricRegistry();
 
     public MultiBackendEventIndexDao(String name, EventSummaryBaseDao eventDao, WorkQueueBuilder queueBuilder, KeyValueStore store,
                                      Messages messages, TaskScheduler scheduler, UUIDGenerator uuidGenerator) {
@@ -69,6 +84,27 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
         initialBackendConfigurations = Lists.newArrayList();
     }
 
+    @Autowired
+    public void setMetricRegistry(MetricRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the number of threads per backend which fetch events from the database for indexing. Takes effect
+     * when a backend worker is (re)started.
+     */
+    public void setFetchThreads(int fetchThreads) {
+        this.fetchThreads = Math.max(1, fetchThreads);
+    }
+
+    /**
+     * Sets the maximum number of batches per backend which may be fetched ahead of the batch being indexed.
+     * Takes effect when a backend worker is (re)started.
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = Math.max(1, pipelineDepth);
+    }
+
     public final synchronized void disableAsyncProcessing() {
         this.enableAsyncProcessing = false;
         backendsUse.lock();
@@ -78,28 +114,43 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
         } finally { backendsUse.unlock(); }
     }
 
-    /** Only call this within a backendsUse.lock() block. */
-    private void processTasks(String backendId, List<EventIndexBackendTask> tasks, WorkQueue q) throws ZepException {
-        final EventIndexBackendConfiguration configuration = backends.get(backendId);
-        if (configuration == null)
-            throw new ZepException("Tried to process tasks for unknown backend: " + backendId);
-        final EventIndexBackend backend = configuration.getBackend();
-        if (backend == null)
-            throw new ZepException("Tried to process tasks for unknown backend: " + backendId);
-        logger.debug("Processing {} tasks for backend {}", tasks.size(), backendId);
+    /**
+     * The result of the fetch stage for a batch of tasks: the events looked up in the database, ready to be
+     * passed to the backend by the index stage.
+     */
+    private static class FetchedBatch {
+        private final List<EventIndexBackendTask> tasks;
+        private final Set<EventIndexBackendTask> flushes = Sets.newHashSet();
+        private final Map<String,EventIndexBackendTask> indexTasks;
+        private final Set<EventSummary> toIndex;
+        private List<EventSummary> events = Collections.emptyList();
+        private ZepException fetchError = null;
+
+        private FetchedBatch(List<EventIndexBackendTask> tasks) {
+            this.tasks = tasks;
+            this.indexTasks = Maps.newHashMapWithExpectedSize(tasks.size());
+            this.toIndex = Sets.newHashSetWithExpectedSize(tasks.size());
+        }
+    }
 
-        final Set<EventIndexBackendTask> flushes = Sets.newHashSet();
-        final Map<String,EventIndexBackendTask> indexTasks = Maps.newHashMapWithExpectedSize(tasks.size());
-        final Set<EventSummary> toIndex = Sets.newHashSetWithExpectedSize(tasks.size());
+    private Timer stageTimer(String backendId, String stage) {
+        return metrics.timer(MetricRegistry.name(getClass().getSimpleName(), getName(), backendId, stage));
+    }
 
+    /**
+     * Fetch stage: looks up the events referenced by the tasks. Does not use the backend, so batches may be
+     * fetched concurrently.
+     */
+    private FetchedBatch fetchTasks(String backendId, List<EventIndexBackendTask> tasks, WorkQueue q) {
+        final FetchedBatch batch = new FetchedBatch(tasks);
         for (EventIndexBackendTask task : tasks) {
             switch (task.op) {
                 case FLUSH:
-                    flushes.add(task);
+                    batch.flushes.add(task);
                     break;
                 case INDEX_EVENT:
-                    indexTasks.put(task.uuid, task);
-                    toIndex.add(EventSummary.newBuilder().setUuid(task.uuid).setLastSeenTime(task.lastSeen).build());
+                    batch.indexTasks.put(task.uuid, task);
+                    batch.toIndex.add(EventSummary.newBuilder().setUuid(task.uuid).setLastSeenTime(task.lastSeen).build());
                     break;
                 default:
                     logger.error("UNEXPECTED TASK OPERATION: {}", task.op);
@@ -107,26 +158,67 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
             }
         }
 
-        try {
-            if (!toIndex.isEmpty()) {
-                logger.debug(String.format("Looking up %d events by primary key", toIndex.size()));
-                List<EventSummary> events = eventDao.findByKey(toIndex);
-                if (events.size() != toIndex.size())
-                    logger.info("Found {} of {} events by primary key", events.size(), toIndex.size());
+        if (!batch.toIndex.isEmpty()) {
+            final Timer.Context timerContext = stageTimer(backendId, "fetch").time();
+            try {
+                logger.debug(String.format("Looking up %d events by primary key", batch.toIndex.size()));
+                batch.events = eventDao.findByKey(batch.toIndex);
+                if (batch.events.size() != batch.toIndex.size())
+                    logger.info("Found {} of {} events by primary key", batch.events.size(), batch.toIndex.size());
                 else
-                    logger.debug("Found {} of {} events by primary key", events.size(), toIndex.size());
-                boolean success = true;
+                    logger.debug("Found {} of {} events by primary key", batch.events.size(), batch.toIndex.size());
+            } catch (ZepException e) {
+                batch.fetchError = e;
+            } finally {
+                timerContext.stop();
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Index stage: passes the fetched events to the backend and completes the tasks. Batches must be indexed
+     * in the order they were polled, so an older copy of an event never overwrites a newer one.
+     *
+     * Only call this within a backendsUse.lock() block.
+     */
+    private void indexFetched(String backendId, FetchedBatch batch, WorkQueue q) throws ZepException {
+        final EventIndexBackendConfiguration configuration = backends.get(backendId);
+        if (configuration == null)
+            throw new ZepException("Tried to process tasks for unknown backend: " + backendId);
+        final EventIndexBackend backend = configuration.getBackend();
+        if (backend == null)
+            throw new ZepException("Tried to process tasks for unknown backend: " + backendId);
+        logger.debug("Processing {} tasks for backend {}", batch.tasks.size(), backendId);
+
+        final Map<String,EventIndexBackendTask> indexTasks = batch.indexTasks;
+        if (batch.fetchError != null) {
+            if (logger.isDebugEnabled())
+                logger.warn(String.format("failed to find events for UUIDs %s for backend %s", indexTasks.keySet(), backendId), batch.fetchError);
+            else
+                logger.warn(String.format("failed to find events for UUIDs %s for backend %s", indexTasks.keySet(), backendId));
+            return;
+        }
+
+        if (!batch.toIndex.isEmpty()) {
+            final List<EventSummary> events = batch.events;
+            boolean success = true;
+            final Timer.Context indexContext = stageTimer(backendId, "index").time();
+            try {
+                backend.index(events);
+                logger.debug("Indexed {} events", events.size());
+            } catch (ZepException e) {
+                success = false;
+                if (logger.isDebugEnabled())
+                    logger.warn(String.format("failed to process task to index events (%d) for backend %s", events.size(), backendId), e);
+                else
+                    logger.warn(String.format("failed to process task to index events (%d) for backend %s", events.size(), backendId));
+            } finally {
+                indexContext.stop();
+            }
+            if(success) {
+                final Timer.Context completeContext = stageTimer(backendId, "complete").time();
                 try {
-                    backend.index(events);
-                    logger.debug("Indexed {} events", events.size());
-                } catch (ZepException e) {
-                    success = false;
-                    if (logger.isDebugEnabled())
-                        logger.warn(String.format("failed to process task to index events (%d) for backend %s", events.size(), backendId), e);
-                    else
-                        logger.warn(String.format("failed to process task to index events (%d) for backend %s", events.size(), backendId));
-                }
-                if(success) {
                     List<EventIndexBackendTask> completedTasks = Lists.newArrayListWithExpectedSize(events.size());
                     for (EventSummary event : events) {
                         EventIndexBackendTask task = indexTasks.remove(event.getUuid());
@@ -144,36 +236,84 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
                             q.completeAll(indexTasks.values());
                         } catch (ZepException e) {
                             if (logger.isDebugEnabled())
-                                logger.warn(String.format("failed to delete %d events from backend %s", toIndex.size(), backendId), e);
+                                logger.warn(String.format("failed to delete %d events from backend %s", batch.toIndex.size(), backendId), e);
                             else
-                                logger.warn(String.format("failed to delete %d events from backend %s", toIndex.size(), backendId));
+                                logger.warn(String.format("failed to delete %d events from backend %s", batch.toIndex.size(), backendId));
                         }
                     }
+                } finally {
+                    completeContext.stop();
                 }
             }
+        }
+
+        if (!batch.flushes.isEmpty()) {
+            final Timer.Context flushContext = stageTimer(backendId, "flush").time();
+            try {
+                logger.debug("flushing backend");
+                backend.flush();
+                q.completeAll(batch.flushes);
+            } catch (ZepException e) {
+                if (logger.isDebugEnabled())
+                    logger.warn(String.format("failed to process tasks %s for backend %s", batch.flushes, backendId), e);
+                else
+                    logger.warn(String.format("failed to process tasks %s for backend %s", batch.flushes, backendId));
+            } finally {
+                flushContext.stop();
+            }
+        }
+    }
+
+    /**
+     * Index stage of a backend worker. Takes fetched batches in the order they were polled and indexes them
+     * until it receives the end marker (a batch of null).
+     */
+    private class IndexerThread extends Thread {
+        private final String backendId;
+        private final WorkQueue q;
+        private final BlockingQueue<Future<FetchedBatch>> pending;
+
+        public IndexerThread(String backendId, WorkQueue q, BlockingQueue<Future<FetchedBatch>> pending) {
+            this.backendId = backendId;
+            this.q = q;
+            this.pending = pending;
+            this.setDaemon(true);
+            this.setName(MultiBackendEventIndexDao.this + " backend " + backendId + " event indexing thread");
+        }
 
-            if (!flushes.isEmpty()) {
+        @Override
+        public void run() {
+            while (true) {
+                final FetchedBatch batch;
                 try {
-                    logger.debug("flushing backend");
-                    backend.flush();
-                    q.completeAll(flushes);
+                    batch = pending.take().get();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (ExecutionException e) {
+                    logger.warn(String.format("failed to fetch events for backend %s", backendId), e.getCause());
+                    continue;
+                }
+                if (batch == null)
+                    return;
+                backendsUse.lock();
+                try {
+                    indexFetched(backendId, batch, q);
                 } catch (ZepException e) {
-                    if (logger.isDebugEnabled())
-                        logger.warn(String.format("failed to process tasks %s for backend %s", flushes, backendId), e);
-                    else
-                        logger.warn(String.format("failed to process tasks %s for backend %s", flushes, backendId));
-
+                    logger.warn(String.format("failed to process tasks %s for backend %s", batch.tasks, backendId), e);
+                } catch (RuntimeException e) {
+                    logger.warn(String.format("failed to process tasks %s for backend %s", batch.tasks, backendId), e);
+                } finally {
+                    backendsUse.unlock();
                 }
             }
-        } catch (ZepException e) {
-            if (logger.isDebugEnabled())
-                logger.warn(String.format("failed to find events for UUIDs %s for backend %s", indexTasks.keySet(), backendId), e);
-            else
-                logger.warn(String.format("failed to find events for UUIDs %s for backend %s", indexTasks.keySet(), backendId));
         }
     }
 
     /**
+     * Polls tasks for a backend and pipelines them through the fetch stage (a pool of fetchThreads threads) and
+     * the index stage (a single thread). Up to pipelineDepth batches may be in flight, so fetching the next
+     * batches from the database overlaps indexing the current one.
+     *
      * The thread will exit cleanly once its backend has no registered work queue (in workQueues).
      */
     private class WorkerThread extends Thread {
@@ -194,6 +334,12 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
                 logger.error("Stopping worker for unknown backend: {}", backendId);
             }
             else {
+                final ExecutorService fetchers = Executors.newFixedThreadPool(fetchThreads,
+                        new CustomizableThreadFactory(MultiBackendEventIndexDao.this + " backend " + backendId + " fetch-"));
+                final BlockingQueue<Future<FetchedBatch>> pending =
+                        new ArrayBlockingQueue<Future<FetchedBatch>>(pipelineDepth);
+                final IndexerThread indexer = new IndexerThread(backendId, q, pending);
+                indexer.start();
                 List<EventIndexBackendTask> tasks;
                 while(q != null && config != null && workers.get(backendId) == this) {
                     boolean sleep_and_continue = false;
@@ -217,17 +363,23 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
                     try {
                         int batchSize = config.getBatchSize();
                         //logger.debug("Polling for tasks to process");
-                        tasks = q.poll(batchSize, 500, TimeUnit.MILLISECONDS);
-                        if (tasks == null || tasks.isEmpty()) continue;
-                        backendsUse.lock();
+                        final Timer.Context pollContext = stageTimer(backendId, "poll").time();
                         try {
-                            logger.debug(getName() + " fetched {} tasks to process", tasks.size());
-                            processTasks(backendId, tasks, q);
-                        } catch (ZepException e) {
-                            logger.warn(String.format("failed to process tasks %s for backend %s", tasks, backendId), e);
+                            tasks = q.poll(batchSize, 500, TimeUnit.MILLISECONDS);
                         } finally {
-                            backendsUse.unlock();
+                            pollContext.stop();
                         }
+                        if (tasks == null || tasks.isEmpty()) continue;
+                        logger.debug(getName() + " fetched {} tasks to process", tasks.size());
+                        final List<EventIndexBackendTask> batchTasks = tasks;
+                        final WorkQueue batchQueue = q;
+                        // Blocks while pipelineDepth batches are already in flight.
+                        pending.put(fetchers.submit(new Callable<FetchedBatch>() {
+                            @Override
+                            public FetchedBatch call() throws Exception {
+                                return fetchTasks(backendId, batchTasks, batchQueue);
+                            }
+                        }));
                     } catch (InterruptedException e) {
                         // continue
                     } catch (RuntimeException e) {
@@ -238,6 +390,18 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
                         config = getBackendConfiguration(backendId);
                     }
                 }
+                // Let the indexer finish the batches already in flight before exiting.
+                boolean stopped = false;
+                while (!stopped) {
+                    try {
+                        pending.put(Futures.<FetchedBatch>immediateFuture(null));
+                        indexer.join();
+                        stopped = true;
+                    } catch (InterruptedException e) {
+                        // continue
+                    }
+                }
+                fetchers.shutdown();
             }
             logger.info("Stopped processing queue for {}", backendId);
         }
@@ -658,6 +822,14 @@ public class MultiBackendEventIndexDao extends BaseEventIndexDaoImpl<MultiBacken
         } finally { backendsUse.unlock(); }
     }
 
+    @Override
+    public EventSummaryResult list(EventSummaryRequest request, Set<String> fields) throws ZepException {
+        backendsUse.lock();
+        try {
+            return getReader().list(request, fields);
+        } finally { backendsUse.unlock(); }
+    }
+
     @Override
     public EventSummaryResult listUuids(EventSummaryRequest request) throws ZepException {
         backendsUse.lock();
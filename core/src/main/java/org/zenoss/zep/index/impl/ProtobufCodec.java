@@ -0,0 +1,507 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.compressing.Compressor;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.zep.ZepException;
+import org.zenoss.zep.ZepUtils;
+import org.zenoss.zep.dao.EventBatch;
+import org.zenoss.zep.dao.EventSummaryBaseDao;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the serialized event summaries stored in the index.
+ * <p>
+ * Apart from GZIP, the original format, every compressed protobuf starts with a byte identifying its codec
+ * and the length of the uncompressed protobuf. A GZIP stream always starts with 0x1f, which is never a codec
+ * byte, so any codec reads indexes containing a mix of formats. Protobufs compressed with a dictionary can
+ * only be read with the same dictionary.
+ */
+public class ProtobufCodec {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProtobufCodec.class);
+
+    public enum Type {
+        /**
+         * GZIP stream, without a codec byte.
+         */
+        GZIP(0),
+        /**
+         * The uncompressed protobuf.
+         */
+        NONE(1),
+        /**
+         * LZ4, which decompresses several times faster than GZIP at the cost of a larger index.
+         */
+        LZ4(2),
+        /**
+         * Deflate at its fastest level, with a preset dictionary of the strings common to most events.
+         */
+        DICTIONARY(3);
+
+        private final int id;
+
+        private Type(int id) {
+            this.id = id;
+        }
+    }
+
+    private static final int GZIP_MAGIC = 0x1f;
+
+    // Deflate can't refer further back than its window
+    private static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    // The length of the byte sequences counted when training a dictionary (packed into a long)
+    private static final int GRAM_SIZE = 8;
+
+    // The most serialized sample bytes read when training a dictionary
+    static final long MAX_TRAINING_BYTES = 8L * 1024 * 1024;
+
+    // The most distinct byte sequences counted when training a dictionary
+    static final int MAX_TRAINING_GRAMS = 1 << 17;
+
+    private static final ThreadLocal<Compressor> LZ4_COMPRESSOR = new ThreadLocal<Compressor>() {
+        @Override
+        protected Compressor initialValue() {
+            return CompressionMode.FAST.newCompressor();
+        }
+    };
+
+    /**
+     * The codec used for indexes which don't configure one.
+     */
+    public static final ProtobufCodec DEFAULT = new ProtobufCodec(Type.GZIP, null);
+
+    private final Type type;
+    private final byte[] dictionary;
+    private final long dictionaryChecksum;
+
+    /**
+     * Creates the codec.
+     *
+     * @param type The codec used to compress protobufs.
+     * @param dictionary The preset dictionary used to compress and read {@link Type#DICTIONARY} protobufs, or
+     *                   null if there is none.
+     */
+    public ProtobufCodec(Type type, byte[] dictionary) {
+        if (type == Type.DICTIONARY && dictionary == null) {
+            throw new IllegalArgumentException("The dictionary codec requires a dictionary");
+        }
+        if (dictionary != null && dictionary.length > MAX_DICTIONARY_SIZE) {
+            dictionary = Arrays.copyOfRange(dictionary, dictionary.length - MAX_DICTIONARY_SIZE, dictionary.length);
+        }
+        this.type = type;
+        this.dictionary = dictionary;
+        this.dictionaryChecksum = (dictionary == null) ? -1L : checksum(dictionary);
+    }
+
+    /**
+     * Creates a codec from the configuration.
+     *
+     * @param name The name of the codec type (gzip, none, lz4 or dictionary).
+     * @param dictionaryFile The file containing the preset dictionary, or an empty string if there is none.
+     * @return The codec.
+     * @throws IOException If the dictionary can't be read.
+     */
+    public static ProtobufCodec create(String name, String dictionaryFile) throws IOException {
+        final Type type = Type.valueOf(name.trim().toUpperCase());
+        byte[] dictionary = null;
+        if (dictionaryFile != null && !dictionaryFile.trim().isEmpty()) {
+            dictionary = Files.toByteArray(new File(dictionaryFile.trim()));
+        }
+        return new ProtobufCodec(type, dictionary);
+    }
+
+    /**
+     * Creates a codec from the configuration, training the dictionary if the dictionary codec is configured and
+     * the dictionary file doesn't exist yet. The dictionary is trained from a sample of the event summaries in
+     * the database and written to the dictionary file, so the same dictionary is used after a restart. If there
+     * are no events to train from, GZIP is used until the next start.
+     *
+     * @param name The name of the codec type (gzip, none, lz4 or dictionary).
+     * @param dictionaryFile The file containing the preset dictionary, or an empty string if there is none.
+     * @param sampleDao The DAO the training sample is read from.
+     * @param sampleSize The number of event summaries in the training sample.
+     * @return The codec.
+     * @throws IOException If the dictionary can't be read or written.
+     * @throws ZepException If the training sample can't be read.
+     */
+    public static ProtobufCodec create(String name, String dictionaryFile, EventSummaryBaseDao sampleDao,
+                                       int sampleSize) throws IOException, ZepException {
+        final Type type = Type.valueOf(name.trim().toUpperCase());
+        if (type != Type.DICTIONARY || dictionaryFile == null || dictionaryFile.trim().isEmpty()) {
+            return create(name, dictionaryFile);
+        }
+        final File file = new File(dictionaryFile.trim());
+        if (file.isFile()) {
+            return create(name, dictionaryFile);
+        }
+        final EventBatch batch = sampleDao.listBatch(null, System.currentTimeMillis(), sampleSize);
+        if (batch.events.isEmpty()) {
+            logger.warn("No events to train the protobuf dictionary from, using gzip until the next start");
+            return new ProtobufCodec(Type.GZIP, null);
+        }
+        final byte[] dictionary = trainDictionary(batch.events, MAX_DICTIONARY_SIZE);
+        Files.createParentDirs(file);
+        Files.write(dictionary, file);
+        logger.info("Trained protobuf dictionary from {} events: {}", batch.events.size(), file);
+        return new ProtobufCodec(type, dictionary);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns an identifier of the preset dictionary, which changes whenever the dictionary does.
+     *
+     * @return The SHA-1 of the dictionary, or null if there is none.
+     */
+    public String getDictionaryId() {
+        if (dictionary == null) {
+            return null;
+        }
+        try {
+            return ZepUtils.hexstr(MessageDigest.getInstance("SHA-1").digest(dictionary));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Must support SHA-1", e);
+        }
+    }
+
+    private static long checksum(byte[] dictionary) {
+        final Adler32 adler32 = new Adler32();
+        adler32.update(dictionary);
+        return adler32.getValue();
+    }
+
+    /**
+     * Serializes and compresses the event summary.
+     *
+     * @param eventSummary The event summary.
+     * @return The compressed protobuf.
+     * @throws ZepException If the event summary can't be compressed.
+     */
+    public byte[] compress(EventSummary eventSummary) throws ZepException {
+        final byte[] uncompressed = eventSummary.toByteArray();
+        switch (type) {
+            case NONE:
+                return compressNone(uncompressed);
+            case LZ4:
+                return compressLz4(uncompressed);
+            case DICTIONARY:
+                return compressDictionary(uncompressed);
+            default:
+                return compressGzip(uncompressed);
+        }
+    }
+
+    private static byte[] compressGzip(byte[] uncompressed) throws ZepException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(uncompressed.length);
+        GZIPOutputStream gzos = null;
+        try {
+            gzos = new GZIPOutputStream(baos);
+            gzos.write(uncompressed);
+            gzos.finish();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new ZepException(e.getLocalizedMessage(), e);
+        } finally {
+            if (gzos != null) {
+                ZepUtils.close(gzos);
+            }
+        }
+    }
+
+    private static byte[] compressNone(byte[] uncompressed) {
+        final byte[] compressed = new byte[uncompressed.length + 1];
+        compressed[0] = (byte) Type.NONE.id;
+        System.arraycopy(uncompressed, 0, compressed, 1, uncompressed.length);
+        return compressed;
+    }
+
+    private static byte[] compressLz4(byte[] uncompressed) throws ZepException {
+        // Codec byte, length and the worst case of LZ4 (incompressible input)
+        final byte[] compressed = new byte[6 + uncompressed.length + uncompressed.length / 255 + 16];
+        final ByteArrayDataOutput out = new ByteArrayDataOutput(compressed);
+        try {
+            out.writeByte((byte) Type.LZ4.id);
+            out.writeVInt(uncompressed.length);
+            LZ4_COMPRESSOR.get().compress(uncompressed, 0, uncompressed.length, out);
+        } catch (IOException e) {
+            throw new ZepException(e.getLocalizedMessage(), e);
+        }
+        return Arrays.copyOf(compressed, out.getPosition());
+    }
+
+    private byte[] compressDictionary(byte[] uncompressed) throws ZepException {
+        final byte[] header = new byte[6];
+        final ByteArrayDataOutput out = new ByteArrayDataOutput(header);
+        try {
+            out.writeByte((byte) Type.DICTIONARY.id);
+            out.writeVInt(uncompressed.length);
+        } catch (IOException e) {
+            throw new ZepException(e.getLocalizedMessage(), e);
+        }
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(uncompressed.length / 2 + header.length);
+        baos.write(header, 0, out.getPosition());
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(uncompressed);
+            deflater.finish();
+            final byte[] buf = new byte[1024];
+            while (!deflater.finished()) {
+                final int n = deflater.deflate(buf);
+                baos.write(buf, 0, n);
+            }
+        } finally {
+            deflater.end();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Decompresses and parses a protobuf compressed with any codec.
+     *
+     * @param compressed The buffer containing the compressed protobuf.
+     * @param offset The offset of the compressed protobuf in the buffer.
+     * @param length The length of the compressed protobuf.
+     * @return The event summary.
+     * @throws ZepException If the protobuf can't be read.
+     */
+    public EventSummary uncompress(byte[] compressed, int offset, int length) throws ZepException {
+        if (length == 0) {
+            throw new ZepException("Empty protobuf");
+        }
+        final int id = compressed[offset] & 0xff;
+        try {
+            if (id == GZIP_MAGIC) {
+                return uncompressGzip(compressed, offset, length);
+            } else if (id == Type.NONE.id) {
+                return EventSummary.newBuilder().mergeFrom(compressed, offset + 1, length - 1).build();
+            }
+            final ByteArrayDataInput in = new ByteArrayDataInput(compressed, offset + 1, length - 1);
+            final int uncompressedLength = in.readVInt();
+            if (id == Type.LZ4.id) {
+                final BytesRef bytes = new BytesRef();
+                CompressionMode.FAST.newDecompressor().decompress(in, uncompressedLength, 0, uncompressedLength,
+                        bytes);
+                return EventSummary.newBuilder().mergeFrom(bytes.bytes, bytes.offset, bytes.length).build();
+            } else if (id == Type.DICTIONARY.id) {
+                final byte[] uncompressed = inflate(compressed, in.getPosition(),
+                        offset + length - in.getPosition(), uncompressedLength);
+                return EventSummary.newBuilder().mergeFrom(uncompressed).build();
+            }
+        } catch (IOException e) {
+            throw new ZepException(e.getLocalizedMessage(), e);
+        }
+        throw new ZepException("Unknown protobuf codec: " + id);
+    }
+
+    private static EventSummary uncompressGzip(byte[] compressed, int offset, int length) throws ZepException {
+        ByteArrayInputStream bais = new ByteArrayInputStream(compressed, offset, length);
+        GZIPInputStream gzis = null;
+        try {
+            gzis = new GZIPInputStream(bais);
+            return EventSummary.newBuilder().mergeFrom(gzis).build();
+        } catch (IOException e) {
+            throw new ZepException(e.getLocalizedMessage(), e);
+        } finally {
+            if (gzis != null) {
+                ZepUtils.close(gzis);
+            }
+        }
+    }
+
+    private byte[] inflate(byte[] compressed, int offset, int length, int uncompressedLength) throws ZepException {
+        final byte[] uncompressed = new byte[uncompressedLength];
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed, offset, length);
+            int position = 0;
+            while (position < uncompressed.length) {
+                final int n = inflater.inflate(uncompressed, position, uncompressed.length - position);
+                if (n == 0) {
+                    if (!inflater.needsDictionary()) {
+                        throw new ZepException("Truncated protobuf");
+                    }
+                    if (dictionary == null || inflater.getAdler() != dictionaryChecksum) {
+                        throw new ZepException("Protobuf was compressed with a different dictionary - " +
+                                "the index must be rebuilt");
+                    }
+                    inflater.setDictionary(dictionary);
+                }
+                position += n;
+            }
+            return uncompressed;
+        } catch (DataFormatException e) {
+            throw new ZepException(e.getLocalizedMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Builds a preset dictionary from a sample of event summaries. The dictionary is made of the byte sequences
+     * which occur most often in the serialized samples, with the most common last where Deflate refers to them
+     * most cheaply. Training reads at most {@link #MAX_TRAINING_BYTES} of samples and counts at most
+     * {@link #MAX_TRAINING_GRAMS} distinct sequences, so its memory use doesn't depend on the sample size.
+     *
+     * @param samples The sample event summaries.
+     * @param size The maximum size of the dictionary.
+     * @return The dictionary.
+     */
+    public static byte[] trainDictionary(Iterable<EventSummary> samples, int size) {
+        size = Math.min(size, MAX_DICTIONARY_SIZE);
+        final GramTable grams = new GramTable(MAX_TRAINING_GRAMS);
+        long position = 0;
+        for (EventSummary sample : samples) {
+            final byte[] bytes = sample.toByteArray();
+            long gram = 0;
+            for (int i = 0; i < bytes.length; i++, position++) {
+                gram = (gram << 8) | (bytes[i] & 0xffL);
+                if (i >= GRAM_SIZE - 1) {
+                    grams.add(gram, position);
+                }
+            }
+            if (position >= MAX_TRAINING_BYTES) {
+                break;
+            }
+        }
+
+        final List<Integer> common = Lists.newArrayList();
+        for (int slot = 0; slot < grams.counts.length; slot++) {
+            if (grams.counts[slot] > 1) {
+                common.add(slot);
+            }
+        }
+        // Most common first, and the sequences of a longer common string in the order they occur in
+        Collections.sort(common, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                final long ca = grams.counts[a], cb = grams.counts[b];
+                if (ca != cb) {
+                    return (ca > cb) ? -1 : 1;
+                }
+                final long pa = grams.positions[a], pb = grams.positions[b];
+                return (pa < pb) ? -1 : ((pa == pb) ? 0 : 1);
+            }
+        });
+
+        // Join sequences which overlap (the sequences of a longer string) into runs
+        final List<byte[]> runs = Lists.newArrayList();
+        final ByteArrayOutputStream run = new ByteArrayOutputStream();
+        boolean first = true;
+        long previous = 0;
+        int total = 0;
+        for (int slot : common) {
+            final long gram = grams.grams[slot];
+            final boolean overlaps = !first && overlaps(previous, gram);
+            final int added = overlaps ? 1 : GRAM_SIZE;
+            if (total + added > size) {
+                break;
+            }
+            if (!overlaps && run.size() > 0) {
+                runs.add(run.toByteArray());
+                run.reset();
+            }
+            if (overlaps) {
+                run.write((int) gram);
+            } else {
+                for (int shift = (GRAM_SIZE - 1) * 8; shift >= 0; shift -= 8) {
+                    run.write((int) (gram >>> shift));
+                }
+            }
+            total += added;
+            previous = gram;
+            first = false;
+        }
+        if (run.size() > 0) {
+            runs.add(run.toByteArray());
+        }
+
+        final ByteArrayOutputStream dictionary = new ByteArrayOutputStream(total);
+        for (byte[] r : Lists.reverse(runs)) {
+            dictionary.write(r, 0, r.length);
+        }
+        return dictionary.toByteArray();
+    }
+
+    /* True if the last bytes of the previous sequence are the first bytes of the next one. */
+    private static boolean overlaps(long previous, long next) {
+        return (previous << 8) == (next & ~0xffL);
+    }
+
+    /**
+     * Counts the occurrences and first position of byte sequences packed into longs, in a fixed-size open
+     * addressing table. Once the table is full, sequences which aren't in it yet are ignored.
+     */
+    private static final class GramTable {
+        private final long[] grams;
+        private final long[] counts;
+        private final long[] positions;
+        private final int maxSize;
+        private int size = 0;
+
+        private GramTable(int maxSize) {
+            // A power of two, keeping the load factor at most about 1/2
+            final int capacity = Integer.highestOneBit(Math.max(maxSize - 1, 1)) << 2;
+            this.grams = new long[capacity];
+            this.counts = new long[capacity];
+            this.positions = new long[capacity];
+            this.maxSize = maxSize;
+        }
+
+        private void add(long gram, long position) {
+            final int mask = grams.length - 1;
+            int slot = (int) ((gram * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+            while (counts[slot] != 0) {
+                if (grams[slot] == gram) {
+                    counts[slot]++;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (size < maxSize) {
+                grams[slot] = gram;
+                counts[slot] = 1;
+                positions[slot] = position;
+                size++;
+            }
+        }
+    }
+}
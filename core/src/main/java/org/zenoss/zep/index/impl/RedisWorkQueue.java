@@ -15,9 +15,11 @@ import org.zenoss.zep.index.WorkQueue;
 import org.zenoss.zep.utils.JedisPoolUtil;
 import org.zenoss.zep.utils.JedisUser;
 import org.zenoss.zep.utils.RedisTransactionCollision;
+import redis.clients.jedis.BinaryJedisPubSub;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Transaction;
 
+import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
@@ -37,6 +39,18 @@ import java.util.concurrent.TimeUnit;
  * holding area until they are marked "complete", after which time the copies
  * are removed. Tasks which are "in-progress" for too long are assumed to
  * have failed, and are automatically re-inserted at the tail of the queue.
+ *
+ * Tasks are stored using the compact binary encoding of
+ * {@link EventIndexBackendTask#toBytes()}. Tasks queued by earlier versions
+ * in the text encoding are still read, and are removed in both encodings
+ * when completed.
+ *
+ * Every push publishes a notification on a Redis channel for the queue.
+ * Pollers block on a local condition which a subscriber thread signals for
+ * each notification, so idle workers neither sleep-poll nor query Redis.
+ * If the subscription is lost, polling falls back to the poll interval
+ * until it is re-established. {@link #close()} unsubscribes and stops the
+ * subscriber thread.
  */
 public class RedisWorkQueue implements WorkQueue {
 
@@ -46,17 +60,29 @@ public class RedisWorkQueue implements WorkQueue {
     private long inProgressDurationInMillis;
     private final JedisPoolUtil pool;
     private final String name;
-    private final String queueListKey;
-    private final String queueSetKey;
-    private final String holdZsetKey;
+    private final byte[] queueListKey;
+    private final byte[] queueSetKey;
+    private final byte[] holdZsetKey;
     private volatile JedisUser<Long> requeueJedisUser;
     private final JedisUser<Long> sizeJedisUser;
-    private final List<String> queueKeys;
-    private final List<String> allKeys;
-
-    private static final String NEGATIVE_INF = "-inf";
+    private final List<byte[]> queueKeys;
+    private final List<byte[]> allKeys;
+    private volatile boolean textTasksSeen = false;
+    private final byte[] notifyChannel;
+    private final Object notifyLock = new Object();
+    private long notifyGeneration = 0;
+    private volatile boolean subscribed = false;
+    private volatile boolean closed = false;
+    private BinaryJedisPubSub pubSub = null;
+    private Thread subscriberThread = null;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] NEGATIVE_INF = bytes("-inf");
     private static final long MINIMUM_POLL_INTERVAL = TimeUnit.MICROSECONDS.toNanos(100);
     private static final long MAXIMUM_POLL_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAXIMUM_NOTIFY_WAIT = TimeUnit.SECONDS.toNanos(1);
+    private static final long SUBSCRIBE_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long SUBSCRIBER_STOP_MILLIS = TimeUnit.SECONDS.toMillis(5);
     private static final long MINIMUM_IN_PROGRESS_DURATION = TimeUnit.SECONDS.toMillis(1);
     private static final long MAXIMUM_IN_PROGRESS_DURATION = TimeUnit.DAYS.toMillis(30);
 
@@ -65,9 +91,10 @@ public class RedisWorkQueue implements WorkQueue {
     public RedisWorkQueue(JedisPoolUtil pool, String name) {
         this.pool = pool;
         this.name = name;
-        this.queueListKey = "zep.work.queue.list:" + name;
-        this.queueSetKey = "zep.work.queue.set:" + name;
-        this.holdZsetKey = "zep.work.inprogress.zset:" + name;
+        this.queueListKey = bytes("zep.work.queue.list:" + name);
+        this.queueSetKey = bytes("zep.work.queue.set:" + name);
+        this.holdZsetKey = bytes("zep.work.inprogress.zset:" + name);
+        this.notifyChannel = bytes("zep.work.queue.notify:" + name);
         this.queueKeys = Lists.newArrayList(queueListKey, queueSetKey);
         this.allKeys = Lists.newArrayList(queueListKey, queueSetKey, holdZsetKey);
         requeueJedisUser = null;
@@ -76,6 +103,10 @@ public class RedisWorkQueue implements WorkQueue {
         setPollInterval(1, TimeUnit.MILLISECONDS);
     }
 
+    private static byte[] bytes(String s) {
+        return s.getBytes(UTF8);
+    }
+
     public String toString() {
         return new StringBuilder()
                 .append(RedisWorkQueue.class.getSimpleName())
@@ -105,18 +136,19 @@ public class RedisWorkQueue implements WorkQueue {
     @Override
     public void complete(EventIndexBackendTask task) {
         if (task == null) return;
-        complete(serialize(task));
+        List<byte[]> serialized = Lists.newArrayListWithCapacity(2);
+        addSerialized(serialized, task);
+        complete(serialized.toArray(new byte[serialized.size()][]));
     }
 
     @Override
     public void completeAll(Collection<EventIndexBackendTask> tasks) {
         if (tasks == null || tasks.isEmpty()) return;
-        String[] serialized = new String[tasks.size()];
-        int i=0;
+        List<byte[]> serialized = Lists.newArrayListWithExpectedSize(tasks.size());
         for (EventIndexBackendTask task : tasks) {
-            serialized[i++] = serialize(task);
+            addSerialized(serialized, task);
         }
-        complete(serialized);
+        complete(serialized.toArray(new byte[serialized.size()][]));
     }
 
     @Override
@@ -180,28 +212,36 @@ public class RedisWorkQueue implements WorkQueue {
         this.inProgressDurationInMillis = millis;
     }
 
-    private String serialize(EventIndexBackendTask task) {
-        return task.toString();
+    private static byte[] serialize(EventIndexBackendTask task) {
+        return task.toBytes();
+    }
+
+    /**
+     * Adds the encodings under which the task may be held in the in-progress set. Once a task in the text
+     * encoding has been read, completions also remove the text encoding.
+     */
+    private void addSerialized(List<byte[]> serialized, EventIndexBackendTask task) {
+        serialized.add(serialize(task));
+        if (textTasksSeen) {
+            serialized.add(bytes(task.toString()));
+        }
     }
 
-    private EventIndexBackendTask deserialize(String task) {
-        String s = new String(task);
+    private EventIndexBackendTask deserialize(byte[] task) {
         try {
-            return EventIndexBackendTask.parse(s);
-        } catch (NullPointerException e) {
-            logger.warn("Encountered unparsable task: " + s, e);
-            //TODO: increment some metric
-            complete(task);
-            return null;
+            if (!EventIndexBackendTask.isBinary(task)) {
+                textTasksSeen = true;
+            }
+            return EventIndexBackendTask.parse(task);
         } catch (IllegalArgumentException e) {
-            logger.warn("Encountered unparsable task: " + s, e);
+            logger.warn("Encountered unparsable task: " + new String(task, UTF8), e);
             //TODO: increment some metric
             complete(task);
             return null;
         }
     }
 
-    private void complete(final String... tasks) {
+    private void complete(final byte[]... tasks) {
         pool.useJedis(new JedisUser<Boolean>() {
             @Override
             public Boolean use(Jedis jedis) throws RedisTransactionCollision {
@@ -212,21 +252,142 @@ public class RedisWorkQueue implements WorkQueue {
 
     @Override
     public List<EventIndexBackendTask> poll(int maxSize, int timeout, TimeUnit unit) throws InterruptedException {
-        List<EventIndexBackendTask> result = poll(maxSize);
+        ensureSubscribed();
         final long due = System.nanoTime() + unit.toNanos(timeout);
-        while (result == null || result.isEmpty()) {
+        while (true) {
+            // Read the generation first, so a push which lands after the poll below is never missed.
+            final long generation = getNotifyGeneration();
+            final List<EventIndexBackendTask> result = poll(maxSize);
+            if (!result.isEmpty())
+                return result;
             final long remaining = due - System.nanoTime();
             if (remaining <= 0)
                 return Collections.emptyList();
-            final long nanos = (remaining < pollIntervalInNanos) ? remaining : pollIntervalInNanos;
-            Thread.sleep(nanos / 1000000, (int)nanos % 1000000);
-            result = poll(maxSize);
+            if (subscribed) {
+                awaitNotification(generation, Math.min(remaining, MAXIMUM_NOTIFY_WAIT));
+            } else {
+                final long nanos = Math.min(remaining, pollIntervalInNanos);
+                Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+            }
         }
-        return result;
+    }
+
+    private long getNotifyGeneration() {
+        synchronized (notifyLock) {
+            return notifyGeneration;
+        }
+    }
+
+    private void awaitNotification(long generation, long nanos) throws InterruptedException {
+        final long due = System.nanoTime() + nanos;
+        synchronized (notifyLock) {
+            long remaining = nanos;
+            while (notifyGeneration == generation && remaining > 0) {
+                TimeUnit.NANOSECONDS.timedWait(notifyLock, remaining);
+                remaining = due - System.nanoTime();
+            }
+        }
+    }
+
+    private void signal() {
+        synchronized (notifyLock) {
+            notifyGeneration++;
+            notifyLock.notifyAll();
+        }
+    }
+
+    private synchronized void ensureSubscribed() {
+        if (subscriberThread != null || closed)
+            return;
+        pubSub = new BinaryJedisPubSub() {
+            @Override
+            public void onMessage(byte[] channel, byte[] message) {
+                signal();
+            }
+
+            @Override
+            public void onPMessage(byte[] pattern, byte[] channel, byte[] message) {
+            }
+
+            @Override
+            public void onSubscribe(byte[] channel, int subscribedChannels) {
+                if (closed) {
+                    // Closed while subscribing - close() couldn't unsubscribe yet.
+                    unsubscribe();
+                    return;
+                }
+                subscribed = true;
+                // Wake up pollers so anything pushed while unsubscribed is picked up.
+                signal();
+            }
+
+            @Override
+            public void onUnsubscribe(byte[] channel, int subscribedChannels) {
+                subscribed = false;
+            }
+
+            @Override
+            public void onPUnsubscribe(byte[] pattern, int subscribedChannels) {
+            }
+
+            @Override
+            public void onPSubscribe(byte[] pattern, int subscribedChannels) {
+            }
+        };
+        subscriberThread = new Thread("RedisWorkQueue-notify-" + name) {
+            @Override
+            public void run() {
+                while (!closed) {
+                    try {
+                        pool.subscribe(pubSub, notifyChannel);
+                    } catch (RuntimeException e) {
+                        logger.debug("Lost subscription to notifications for " + RedisWorkQueue.this, e);
+                    }
+                    subscribed = false;
+                    if (closed)
+                        return;
+                    try {
+                        Thread.sleep(SUBSCRIBE_RETRY_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        subscriberThread.setDaemon(true);
+        subscriberThread.start();
+    }
+
+    /**
+     * Unsubscribes from push notifications and waits for the subscriber thread to stop. The queue itself is kept
+     * in Redis, and polls after closing fall back to the poll interval.
+     */
+    public void close() throws InterruptedException {
+        final BinaryJedisPubSub closedPubSub;
+        final Thread thread;
+        synchronized (this) {
+            closed = true;
+            closedPubSub = pubSub;
+            thread = subscriberThread;
+        }
+        if (thread == null)
+            return;
+        if (closedPubSub.isSubscribed()) {
+            try {
+                closedPubSub.unsubscribe();
+            } catch (RuntimeException e) {
+                logger.debug("Failed to unsubscribe from notifications for " + this, e);
+            }
+        }
+        // Wakes the thread if it is waiting to subscribe again
+        thread.interrupt();
+        thread.join(SUBSCRIBER_STOP_MILLIS);
+        if (thread.isAlive())
+            logger.warn("Timed out waiting for the notification subscriber of {} to stop", this);
     }
 
     private List<EventIndexBackendTask> poll(int maxSize) {
-        List<String> fetched;
+        List<byte[]> fetched;
         if (pool.supportsEval())
             fetched = pool.useJedis(new PollEvalJedisUser(maxSize));
         else
@@ -234,8 +395,10 @@ public class RedisWorkQueue implements WorkQueue {
         if (fetched == null || fetched.isEmpty())
             return Collections.emptyList();
         List<EventIndexBackendTask> tasks = Lists.newArrayListWithExpectedSize(fetched.size());
-        for (String s : fetched) {
-            tasks.add(deserialize(s));
+        for (byte[] s : fetched) {
+            EventIndexBackendTask task = deserialize(s);
+            if (task != null)
+                tasks.add(task);
         }
         return tasks;
     }
@@ -254,13 +417,13 @@ public class RedisWorkQueue implements WorkQueue {
         }
     };
     private static char[] RANDOM_KEY_CHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
-    private static String randomKey() {
+    private static byte[] randomKey() {
         Random random = THREAD_LOCAL_RANDOM.get();
         StringBuilder sb = new StringBuilder();
         for (int i=0; i<64; i++) {
             sb.append(RANDOM_KEY_CHARS[random.nextInt(RANDOM_KEY_CHARS.length)]);
         }
-        return sb.toString();
+        return bytes(sb.toString());
     }
 
 
@@ -272,21 +435,29 @@ public class RedisWorkQueue implements WorkQueue {
     /**
      * KEYS[1]: queueListKey
      * KEYS[2]: queueSetKey
-     * ARGV[*]: serialized tasks
+     * ARGV[1]: notification channel
+     * ARGV[2..n]: serialized tasks
      */
     private static final String LUA_PUSH = (""
-            + " for i, t in ipairs(ARGV) do"
-            + "   if redis.call('sadd', KEYS[2], t) > 0 then"
-            + "     redis.call('lpush', KEYS[1], t);"
+            + " local c = 0;"
+            + " for i = 2, #ARGV do"
+            + "   if redis.call('sadd', KEYS[2], ARGV[i]) > 0 then"
+            + "     redis.call('lpush', KEYS[1], ARGV[i]);"
+            + "     c = c + 1;"
             + "   end"
             + " end"
+            + " if c > 0 then"
+            + "   redis.call('publish', ARGV[1], c);"
+            + " end"
     ).replaceAll("\\s+"," ");
+    private static final byte[] LUA_PUSH_BYTES = bytes(LUA_PUSH);
 
     private class PushEvalJedisUser implements JedisUser<Object> {
-        private final List<String> args;
+        private final List<byte[]> args;
 
         public PushEvalJedisUser(Collection<EventIndexBackendTask> tasks) {
-            args = Lists.newArrayListWithExpectedSize(tasks.size());
+            args = Lists.newArrayListWithExpectedSize(tasks.size() + 1);
+            args.add(notifyChannel);
             for (EventIndexBackendTask task : tasks) {
                 args.add(serialize(task));
             }
@@ -294,7 +465,7 @@ public class RedisWorkQueue implements WorkQueue {
 
         @Override
         public Object use(Jedis jedis) {
-            jedis.eval(LUA_PUSH, queueKeys, args);
+            jedis.eval(LUA_PUSH_BYTES, queueKeys, args);
             return null;
         }
     }
@@ -324,8 +495,9 @@ public class RedisWorkQueue implements WorkQueue {
             + "   end"
             + " end"
     ).replaceAll("\\s+"," ");
+    private static final byte[] LUA_POLL_BYTES = bytes(LUA_POLL);
 
-    private class PollEvalJedisUser implements JedisUser<List<String>> {
+    private class PollEvalJedisUser implements JedisUser<List<byte[]>> {
         private final int maxSize;
 
         public PollEvalJedisUser(int maxSize) {
@@ -334,10 +506,10 @@ public class RedisWorkQueue implements WorkQueue {
 
         @Override
         @SuppressWarnings("unchecked")
-        public List<String> use(Jedis jedis) {
-            String currentTime = Long.toString(System.currentTimeMillis());
-            String maxSize = Long.toString(this.maxSize);
-            List<String> result = (List<String>) jedis.eval(LUA_POLL, allKeys, Lists.newArrayList(currentTime, maxSize));
+        public List<byte[]> use(Jedis jedis) {
+            byte[] currentTime = bytes(Long.toString(System.currentTimeMillis()));
+            byte[] maxSize = bytes(Long.toString(this.maxSize));
+            List<byte[]> result = (List<byte[]>) jedis.eval(LUA_POLL_BYTES, allKeys, Lists.newArrayList(currentTime, maxSize));
             return result == null ? null : Lists.reverse(result);
         }
     }
@@ -348,6 +520,7 @@ public class RedisWorkQueue implements WorkQueue {
      * KEYS[3]: holdZsetKey
      * ARGV[1]: minStartTime
      * ARGV[2]: maxStartTime
+     * ARGV[3]: notification channel
      *
      * Returns a count of the tasks that were taken out of the "in-progress"
      * queue and (possibly) put back into the main queue.
@@ -362,16 +535,20 @@ public class RedisWorkQueue implements WorkQueue {
             + "     end"
             + "     redis.call('zrem', KEYS[3], time, event);"
             + "   end"
+            + "   if c > 0 then"
+            + "     redis.call('publish', ARGV[3], c);"
+            + "   end"
             + "   return c;"
             + " end"
     ).replaceAll("\\s+", " ");
+    private static final byte[] LUA_REQUEUE_BYTES = bytes(LUA_REQUEUE);
 
     private class RequeueEvalJedisUser implements JedisUser<Long> {
         @Override
         public Long use(Jedis jedis) throws RedisTransactionCollision {
             long maxStartTime = System.currentTimeMillis() - inProgressDurationInMillis;
-            String cutoff = Long.toString(maxStartTime);
-            return (Long) jedis.eval(LUA_REQUEUE, allKeys, Lists.newArrayList(NEGATIVE_INF, cutoff));
+            byte[] cutoff = bytes(Long.toString(maxStartTime));
+            return (Long) jedis.eval(LUA_REQUEUE_BYTES, allKeys, Lists.newArrayList(NEGATIVE_INF, cutoff, notifyChannel));
         }
     }
 
@@ -381,10 +558,10 @@ public class RedisWorkQueue implements WorkQueue {
     /* -------------------------------------------------------------------- */
 
     private class PushTxJedisUser implements JedisUser<Boolean> {
-        private final String[] values;
+        private final byte[][] values;
 
         public PushTxJedisUser(Collection<EventIndexBackendTask> tasks) {
-            values = new String[tasks.size()];
+            values = new byte[tasks.size()][];
             int i=0;
             for (EventIndexBackendTask task : tasks)
                 values[i++] = serialize(task);
@@ -392,21 +569,22 @@ public class RedisWorkQueue implements WorkQueue {
 
         @Override
         public Boolean use(Jedis jedis) throws RedisTransactionCollision {
-            String randomKey = randomKey();
+            byte[] randomKey = randomKey();
             try {
                 jedis.sadd(randomKey, values);
                 jedis.watch(queueSetKey);
-                Set<String> toPush = jedis.sdiff(randomKey, queueSetKey);
+                Set<byte[]> toPush = jedis.sdiff(randomKey, queueSetKey);
                 if (toPush.isEmpty()) {
                     jedis.unwatch();
                     return false;
                 } else {
                     Transaction tx = jedis.multi();
-                    String[] values = toPush.toArray(new String[toPush.size()]);
+                    byte[][] values = toPush.toArray(new byte[toPush.size()][]);
                     tx.sadd(queueSetKey, values);
                     tx.lpush(queueListKey, values);
                     if (tx.exec() == null)
-                        throw new RedisTransactionCollision(new String(queueSetKey));
+                        throw new RedisTransactionCollision(new String(queueSetKey, UTF8));
+                    jedis.publish(notifyChannel, bytes(Integer.toString(values.length)));
                     return true;
                 }
             } finally {
@@ -415,29 +593,29 @@ public class RedisWorkQueue implements WorkQueue {
         }
     }
 
-    private class PollTxJedisUser implements JedisUser<List<String>> {
+    private class PollTxJedisUser implements JedisUser<List<byte[]>> {
         private final int maxSize;
         public PollTxJedisUser(int maxSize) {
             this.maxSize = maxSize;
         }
         @Override
-        public List<String> use(Jedis jedis) throws RedisTransactionCollision {
+        public List<byte[]> use(Jedis jedis) throws RedisTransactionCollision {
             jedis.watch(queueListKey);
             if (jedis.llen(queueListKey) == 0) {
                 jedis.unwatch();
                 return null;
             } else {
-                List<String> elements = Lists.reverse(jedis.lrange(queueListKey, -maxSize, -1));
+                List<byte[]> elements = Lists.reverse(jedis.lrange(queueListKey, -maxSize, -1));
                 Transaction tx = jedis.multi();
                 tx.ltrim(queueListKey, 0, -(1+elements.size()));
-                tx.srem(queueSetKey, elements.toArray(new String[elements.size()]));
+                tx.srem(queueSetKey, elements.toArray(new byte[elements.size()][]));
                 //TODO: perhaps combine all the ZADD calls into one, but probably it doesn't matter since it's a multi.
                 long now = System.currentTimeMillis();
-                for (String e : elements) {
+                for (byte[] e : elements) {
                     tx.zadd(holdZsetKey, now, e);
                 }
                 if (tx.exec() == null)
-                    throw new RedisTransactionCollision(new String(queueListKey));
+                    throw new RedisTransactionCollision(new String(queueListKey, UTF8));
                 return elements;
             }
         }
@@ -447,14 +625,14 @@ public class RedisWorkQueue implements WorkQueue {
         @Override
         public Long use(Jedis jedis) throws RedisTransactionCollision {
             long maxStartTime = System.currentTimeMillis() - inProgressDurationInMillis;
-            String cutoff = Long.toString(maxStartTime);
+            byte[] cutoff = bytes(Long.toString(maxStartTime));
             long count = 0;
 
             jedis.watch(holdZsetKey, queueSetKey);
 
-            Set<String> tasks = jedis.zrangeByScore(holdZsetKey, NEGATIVE_INF, cutoff);
-            Set<String> tasksAlreadyInQueue = new HashSet<String>();
-            for (String task : tasks) {
+            Set<byte[]> tasks = jedis.zrangeByScore(holdZsetKey, NEGATIVE_INF, cutoff);
+            Set<byte[]> tasksAlreadyInQueue = new HashSet<byte[]>();
+            for (byte[] task : tasks) {
                 if (jedis.sismember(queueSetKey, task)) {
                     tasksAlreadyInQueue.add(task);
                 }
@@ -462,7 +640,7 @@ public class RedisWorkQueue implements WorkQueue {
             tasks.removeAll(tasksAlreadyInQueue);
 
             Transaction tx = jedis.multi();
-            for (String task : tasks) {
+            for (byte[] task : tasks) {
                 count++;
                 if (!tasksAlreadyInQueue.contains(task)) {
                     tx.sadd(queueSetKey, task);
@@ -471,7 +649,9 @@ public class RedisWorkQueue implements WorkQueue {
                 tx.zrem(holdZsetKey, task);
             }
             if (tx.exec() == null)
-                throw new RedisTransactionCollision(new String(holdZsetKey) + " or " + new String(queueSetKey));
+                throw new RedisTransactionCollision(new String(holdZsetKey, UTF8) + " or " + new String(queueSetKey, UTF8));
+            if (count > 0)
+                jedis.publish(notifyChannel, bytes(Long.toString(count)));
             return count;
         }
     }
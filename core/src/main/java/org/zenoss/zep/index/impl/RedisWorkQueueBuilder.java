@@ -1,19 +1,61 @@
 package org.zenoss.zep.index.impl;
 
+import com.google.common.collect.Maps;
 import org.zenoss.zep.index.WorkQueue;
 import org.zenoss.zep.index.WorkQueueBuilder;
 import org.zenoss.zep.utils.JedisPoolUtil;
 
+import java.util.Map;
+
+/**
+ * Builds {@link RedisWorkQueue}s. Queues are shared by name, so rebuilding a queue reuses its notification
+ * subscriber instead of starting another one.
+ */
 public class RedisWorkQueueBuilder implements WorkQueueBuilder {
 
     private final JedisPoolUtil pool;
+    private final Map<String, RedisWorkQueue> queues = Maps.newHashMap();
+    private WorkQueueBuilder localWorkQueueBuilder;
+    private boolean useLocalQueues = false;
 
     public RedisWorkQueueBuilder(JedisPoolUtil pool) {
         this.pool = pool;
     }
 
+    /**
+     * Sets the builder used for queues kept in this process, for single-node deployments.
+     */
+    public void setLocalWorkQueueBuilder(WorkQueueBuilder localWorkQueueBuilder) {
+        this.localWorkQueueBuilder = localWorkQueueBuilder;
+    }
+
+    /**
+     * If true (and a local work queue builder is set), builds queues kept in this process instead of in Redis.
+     */
+    public void setUseLocalQueues(boolean useLocalQueues) {
+        this.useLocalQueues = useLocalQueues;
+    }
+
     @Override
-    public WorkQueue build(String queueId) {
-        return new RedisWorkQueue(pool, queueId);
+    public synchronized WorkQueue build(String queueId) {
+        if (useLocalQueues && localWorkQueueBuilder != null) {
+            return localWorkQueueBuilder.build(queueId);
+        }
+        RedisWorkQueue queue = queues.get(queueId);
+        if (queue == null) {
+            queue = new RedisWorkQueue(pool, queueId);
+            queues.put(queueId, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Stops the notification subscribers of the Redis queues built by this builder.
+     */
+    public synchronized void close() throws InterruptedException {
+        for (RedisWorkQueue queue : queues.values()) {
+            queue.close();
+        }
+        queues.clear();
     }
 }
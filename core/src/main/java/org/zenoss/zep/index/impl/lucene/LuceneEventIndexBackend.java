@@ -12,13 +12,14 @@ package org.zenoss.zep.index.impl.lucene;
 
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.api.client.util.Maps;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
-import com.google.common.util.concurrent.SimpleTimeLimiter;
-import com.google.common.util.concurrent.TimeLimiter;
-import com.google.common.util.concurrent.UncheckedTimeoutException;
+import com.google.common.io.Files;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
@@ -41,21 +42,26 @@ import org.zenoss.protobufs.zep.Zep.EventSummary;
 import org.zenoss.protobufs.zep.Zep.EventSummaryRequest;
 import org.zenoss.protobufs.zep.Zep.EventSummaryResult;
 import org.zenoss.protobufs.zep.Zep.EventTag;
+import org.zenoss.protobufs.zep.Zep.EventTagFilter;
 import org.zenoss.zep.Messages;
 import org.zenoss.zep.UUIDGenerator;
 import org.zenoss.zep.ZepConstants;
 import org.zenoss.zep.ZepException;
 import org.zenoss.zep.dao.EventSummaryBaseDao;
+import org.zenoss.zep.dao.impl.DaoUtils;
 import org.zenoss.zep.index.IndexedDetailsConfiguration;
 import org.zenoss.zep.index.SavedSearchProcessor;
 import org.zenoss.zep.index.impl.BaseEventIndexBackend;
+import org.zenoss.zep.index.impl.ProtobufCodec;
 
 import javax.annotation.Resource;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.Executors;
 
 import static org.zenoss.zep.index.impl.IndexConstants.*;
 
@@ -63,15 +69,25 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
 
     private static final Logger logger = LoggerFactory.getLogger(LuceneEventIndexBackend.class);
 
+    // The first page of the default query of the event console
+    private static final EventSummaryRequest DEFAULT_WARM_REQUEST = EventSummaryRequest.newBuilder()
+            .setEventFilter(EventFilter.newBuilder()
+                    .addAllStatus(Lists.newArrayList(EventStatus.values()))
+                    .addAllSeverity(Lists.newArrayList(EventSeverity.values())))
+            .addSort(EventSort.newBuilder().setField(EventSort.Field.SEVERITY).setDirection(Direction.DESCENDING))
+            .addSort(EventSort.newBuilder().setField(EventSort.Field.LAST_SEEN).setDirection(Direction.DESCENDING))
+            .setOffset(0).setLimit(100).build();
+
     private final String name;
     private final IndexWriter writer;
     private final SearcherManager searcherManager;
+    private final LuceneSearcherFactory searcherFactory;
     private final boolean archive;
     private final EventSummaryBaseDao eventSummaryBaseDao;
     private final LuceneFilterCacheManager filterCacheManager;
     private final TrackingIndexWriter trackingIndexWriter;
     private ControlledRealTimeReopenThread nrtManagerReopenThread;
-    private int readerReopenInterval;
+    private volatile int readerReopenInterval;
     private volatile boolean ready = false;
 
 
@@ -82,22 +98,52 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
     private MetricRegistry metrics;
     private int indexResultsCount = -1;
     private int luceneSearchTimeout = 0;
-    private TimeLimiter timeLimiter = null;
+    private int tagSeverityRollupCacheSize = 100;
+    private Cache<Object, Cache<EventFilter, LuceneTagSeverityRollup>> tagSeverityRollups = null;
+    private ProtobufCodec protobufCodec = ProtobufCodec.DEFAULT;
+    private LuceneQueryResultCache resultCache = null;
+    private volatile boolean warmOnReopen = false;
+    private volatile List<EventSummaryRequest> warmRequests = Collections.singletonList(DEFAULT_WARM_REQUEST);
+    private Timer warmTimer = null;
 
     public LuceneEventIndexBackend(String name, IndexWriter writer, EventSummaryBaseDao eventSummaryBaseDao,
                                    Integer maxClauseCount, LuceneFilterCacheManager filterCacheManager, int readerRefreshInterval,
                                    Messages messages, TaskScheduler scheduler, UUIDGenerator uuidGenerator,
                                    int tagSeverityCacheSize, int tagSeveritiesCacheTTL)
             throws IOException
+    {
+        this(name, writer, eventSummaryBaseDao, maxClauseCount, filterCacheManager, readerRefreshInterval, messages,
+                scheduler, uuidGenerator, tagSeverityCacheSize, tagSeveritiesCacheTTL, new LuceneSearcherFactory(0, 0));
+    }
+
+    public LuceneEventIndexBackend(String name, IndexWriter writer, EventSummaryBaseDao eventSummaryBaseDao,
+                                   Integer maxClauseCount, LuceneFilterCacheManager filterCacheManager, int readerRefreshInterval,
+                                   Messages messages, TaskScheduler scheduler, UUIDGenerator uuidGenerator,
+                                   int tagSeverityCacheSize, int tagSeveritiesCacheTTL,
+                                   final LuceneSearcherFactory searcherFactory)
+            throws IOException
     {
         super(messages, scheduler, uuidGenerator, tagSeverityCacheSize, tagSeveritiesCacheTTL);
         this.name = name;
         this.writer = writer;
         this.trackingIndexWriter = new TrackingIndexWriter(this.writer);
-        this.searcherManager = new SearcherManager(this.writer, true, null);
         this.eventSummaryBaseDao = eventSummaryBaseDao;
         this.archive = "event_archive".equals(name);
+        setTagSeverityRollupCacheSize(this.tagSeverityRollupCacheSize);
         this.filterCacheManager = filterCacheManager;
+        this.searcherFactory = searcherFactory;
+        // Searchers are warmed before they are published to queries. Without the reopen thread searchers are
+        // reopened by queries, which would then wait for the warming, so they are only warmed by the reopen thread.
+        this.searcherManager = new SearcherManager(this.writer, true, new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+                final IndexSearcher searcher = searcherFactory.newSearcher(reader);
+                if (warmOnReopen && readerReopenInterval > 0) {
+                    warm(searcher);
+                }
+                return searcher;
+            }
+        });
         this.readerReopenInterval = readerRefreshInterval;
         BooleanQuery.setMaxClauseCount(maxClauseCount);
         // Deal with the reader reopen thread
@@ -128,9 +174,44 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
                 return indexResultsCount;
             }
         });
+        if (!this.archive) {
+            this.warmTimer = this.metrics.timer(this.getMetricName("WarmTime"));
+            this.metrics.register(this.getMetricName("ResultCacheHitRatio"), new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    final LuceneQueryResultCache cache = resultCache;
+                    return (cache == null) ? 0.0 : cache.stats().hitRate();
+                }
+            });
+            this.metrics.register(this.getMetricName("ResultCacheHits"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    final LuceneQueryResultCache cache = resultCache;
+                    return (cache == null) ? 0L : cache.stats().hitCount();
+                }
+            });
+            this.metrics.register(this.getMetricName("ResultCacheMisses"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    final LuceneQueryResultCache cache = resultCache;
+                    return (cache == null) ? 0L : cache.stats().missCount();
+                }
+            });
+            this.metrics.register(this.getMetricName("ResultCacheEntries"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    final LuceneQueryResultCache cache = resultCache;
+                    return (cache == null) ? 0L : cache.size();
+                }
+            });
+        }
     }
 
     public void init() {
+        if (this.warmOnReopen && this.readerReopenInterval == 0) {
+            logger.warn("Searchers for {} are never warmed on reopen, as the reader reopen interval is 0. " +
+                    "Set zep.query.cache_refresh_interval to warm searchers.", name);
+        }
         //Do Zenoss' default query to warm the cache on a thread, as not to delay startup
         class CacheWarmer implements Runnable {
             @Override
@@ -139,17 +220,8 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
                 IndexSearcher searcher = null;
                 try {
                     searcher = getSearcher();
-                    EventFilter filter = EventFilter.newBuilder()
-                            .addAllStatus(Lists.newArrayList(EventStatus.values()))
-                            .addAllSeverity(Lists.newArrayList(EventSeverity.values()))
-                            .build();
-                    Query query = buildQuery(searcher.getIndexReader(), filter, null);
-                    List<EventSort> sortList = new ArrayList<EventSort>(2);
-                    sortList.add(EventSort.newBuilder().setField(EventSort.Field.SEVERITY).setDirection(Direction.DESCENDING).build());
-                    sortList.add(EventSort.newBuilder().setField(EventSort.Field.LAST_SEEN).setDirection(Direction.DESCENDING).build());
-                    Sort sort = buildSort(sortList);
                     logger.info("Warming cache for {}", name);
-                    searchToEventSummaryResult(searcher, query, sort, Sets.newHashSet(FIELD_PROTOBUF), 0, 1000);
+                    warm(searcher, DEFAULT_WARM_REQUEST);
                     logger.info("Done warming cache for {}!", name);
                     ready = true;
                 } catch (Exception e) {
@@ -170,6 +242,41 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
         warmer.start();
     }
 
+    /**
+     * Runs the warm requests on a newly opened searcher, so that the sort values, cached filters and results
+     * of the most frequent queries are loaded for its new segments before it serves queries. Failures are
+     * logged; a searcher which couldn't be warmed is still published.
+     */
+    private void warm(IndexSearcher searcher) {
+        final Timer.Context timer = (this.warmTimer != null) ? this.warmTimer.time() : null;
+        try {
+            for (EventSummaryRequest request : this.warmRequests) {
+                try {
+                    warm(searcher, request);
+                } catch (Exception e) {
+                    logger.warn("Failed to warm searcher for {}", name, e);
+                }
+            }
+        } finally {
+            if (timer != null) {
+                logger.debug("Warmed searcher for {} in {} milliseconds", name,
+                        TimeUnit.NANOSECONDS.toMillis(timer.stop()));
+            }
+        }
+    }
+
+    private void warm(IndexSearcher searcher, EventSummaryRequest request) throws IOException, ZepException {
+        final Query query = buildQuery(searcher.getIndexReader(), request.getEventFilter(),
+                request.getExclusionFilter());
+        final Sort sort = buildSort(request.getSortList());
+        final EventSummaryResult result = searchToEventSummaryResult(searcher, query, sort, PROTO_FIELDS,
+                request.getOffset(), request.getLimit());
+        final LuceneQueryResultCache cache = this.resultCache;
+        if (cache != null) {
+            cache.put(searcher.getIndexReader(), request, PROTO_FIELDS, result);
+        }
+    }
+
     private synchronized void startReopenThread() {
         stopReopenThread();
         logger.debug("Starting NRT Reopen Thread");
@@ -211,10 +318,73 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
         closeSearcherManager();
     }
 
+    /**
+     * Sets the number of filters for which the tag severity counts of each index segment are cached. If 0,
+     * tag severities are always counted over the whole index.
+     */
+    public void setTagSeverityRollupCacheSize(int tagSeverityRollupCacheSize) {
+        this.tagSeverityRollupCacheSize = tagSeverityRollupCacheSize;
+        if (tagSeverityRollupCacheSize > 0 && !this.archive) {
+            // Segment readers are used as keys and compared by identity; entries go away with their readers.
+            this.tagSeverityRollups = CacheBuilder.newBuilder().weakKeys().build();
+        } else {
+            this.tagSeverityRollups = null;
+        }
+    }
+
+    /**
+     * Sets the codec used to compress the protobufs stored in the index. Protobufs already in the index are
+     * read whatever their codec.
+     */
+    public void setProtobufCodec(ProtobufCodec protobufCodec) {
+        this.protobufCodec = protobufCodec;
+    }
+
+    /**
+     * Sets the size in megabytes of the cache of list results. Results are cached until the index reader is
+     * reopened. If 0, results are not cached. The archive doesn't cache results, as it loads events from the
+     * database.
+     */
+    public void setResultCacheSizeMb(int resultCacheSizeMb) {
+        if (resultCacheSizeMb > 0 && !this.archive) {
+            this.resultCache = new LuceneQueryResultCache(resultCacheSizeMb * 1024L * 1024L);
+        } else {
+            this.resultCache = null;
+        }
+    }
+
+    /**
+     * Sets whether each searcher opened after a refresh of the index is warmed with the warm requests before it
+     * is used. Searchers are only warmed when they are refreshed by the reopen thread (the reader reopen interval
+     * is not 0), as otherwise the querying thread would wait for the warming.
+     */
+    public void setWarmOnReopen(boolean warmOnReopen) {
+        this.warmOnReopen = warmOnReopen;
+    }
+
+    /**
+     * Sets the file of the requests used to warm searchers, one JSON event summary request per line. If empty,
+     * the default query of the event console is used.
+     */
+    public void setWarmRequestsFile(String warmRequestsFile) throws IOException {
+        final List<EventSummaryRequest> requests = new ArrayList<EventSummaryRequest>();
+        if (warmRequestsFile != null && !warmRequestsFile.isEmpty()) {
+            for (String line : Files.readLines(new File(warmRequestsFile), Charset.forName("UTF-8"))) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    requests.add(DaoUtils.protobufFromJson(line, EventSummaryRequest.getDefaultInstance()));
+                }
+            }
+        }
+        if (requests.isEmpty()) {
+            requests.add(DEFAULT_WARM_REQUEST);
+        }
+        this.warmRequests = requests;
+    }
+
     public void setLuceneSearchTimeout(int luceneSearchTimeout) {
         if (luceneSearchTimeout > 0) {
             this.luceneSearchTimeout = luceneSearchTimeout;
-            this.timeLimiter = new SimpleTimeLimiter(Executors.newCachedThreadPool());
             logger.info("Lucene search timeout set to " + this.luceneSearchTimeout + " seconds.");
         }
     }
@@ -280,7 +450,8 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
         Document doc = LuceneEventIndexMapper.fromEventSummary(
                 event,
                 indexedDetailsConfiguration.getEventDetailItemsByName(),
-                this.archive);
+                this.archive,
+                this.protobufCodec);
         try {
             this.trackingIndexWriter.updateDocument(
                     new Term(FIELD_UUID, event.getUuid()),
@@ -371,6 +542,24 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
         return listInternal(request, PROTO_FIELDS);
     }
 
+    /**
+     * Summary documents store the columns in {@link LuceneEventIndexMapper#PROJECTION_FIELDS}, so a projection
+     * of those columns is loaded from stored fields without inflating the protobuf. The archive doesn't store
+     * them (see ZEN-2159) and returns entire events from the database.
+     */
+    @Override
+    public EventSummaryResult list(EventSummaryRequest request, Set<String> fields) throws ZepException {
+        if (this.archive || fields == null || fields.isEmpty() ||
+                !LuceneEventIndexMapper.PROJECTION_FIELDS.containsAll(fields)) {
+            return list(request);
+        }
+        // Every summary document stores its first seen time - the field identifies documents indexed before
+        // the projected columns were stored, which are loaded from their protobuf.
+        final Set<String> fieldsToLoad = ImmutableSet.<String>builder().add(FIELD_UUID, FIELD_FIRST_SEEN_TIME)
+                .addAll(fields).build();
+        return listInternal(request, fieldsToLoad);
+    }
+
     @Override
     public EventSummaryResult listUuids(EventSummaryRequest request) throws ZepException {
         return listInternal(request, UUID_FIELDS);
@@ -382,9 +571,21 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
         Query query = null;
         try {
             searcher = getSearcher();
+            final LuceneQueryResultCache cache = this.resultCache;
+            if (cache != null) {
+                EventSummaryResult result = cache.get(searcher.getIndexReader(), request, fieldsToLoad);
+                if (result != null) {
+                    return result;
+                }
+            }
             query = buildQuery(searcher.getIndexReader(), request.getEventFilter(), request.getExclusionFilter());
             Sort sort = buildSort(request.getSortList());
-            return searchToEventSummaryResult(searcher, query, sort, fieldsToLoad, request.getOffset(), request.getLimit());
+            EventSummaryResult result = searchToEventSummaryResult(searcher, query, sort, fieldsToLoad,
+                    request.getOffset(), request.getLimit());
+            if (cache != null) {
+                cache.put(searcher.getIndexReader(), request, fieldsToLoad, result);
+            }
+            return result;
         } catch (IOException e) {
             throw new ZepException(e.getLocalizedMessage(), e);
         } catch (OutOfMemoryError e) {
@@ -400,33 +601,24 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
     }
 
     private TopDocs timeLimitedSearch(final IndexSearcher searcher, final Query query,
-                                         final Sort sort, final int offset, final int limit, final int numDocs)
+                                         final Sort sort, final int offset, final int limit, final int numDocs,
+                                         final ScoreDoc after)
         throws ZepException {
 
         TopDocs docs;
 
-        Callable search_call = new Callable<TopDocs>() {
-            public TopDocs call() throws IOException, Exception {
-                TopDocs tdocs;
-                if (sort != null) {
-                    logger.debug("Query: {}, Sort: {}, Offset: {}, Limit: {}", new Object[]{query, sort, offset, limit});
-                    tdocs = searcher.search(query, null, numDocs, sort);
-                } else {
-                    logger.debug("Query: {}, Offset: {}, Limit: {}", new Object[]{query, offset, limit});
-                    tdocs = searcher.search(query, null, numDocs);
-                }
-                return tdocs;
-            }
-        };
-
         try {
-            if (this.luceneSearchTimeout > 0) {
-                docs = (TopDocs)this.timeLimiter.callWithTimeout(search_call, this.luceneSearchTimeout, TimeUnit.SECONDS, true);
+            if (sort != null) {
+                logger.debug("Query: {}, Sort: {}, Offset: {}, Limit: {}", new Object[]{query, sort, offset, limit});
+            } else {
+                logger.debug("Query: {}, Offset: {}, Limit: {}", new Object[]{query, offset, limit});
             }
-            else
-                docs = (TopDocs)search_call.call();
+            final LuceneIndexSearcher luceneSearcher = (searcher instanceof LuceneIndexSearcher) ?
+                    (LuceneIndexSearcher) searcher : new LuceneIndexSearcher(searcher.getIndexReader(), null);
+            docs = luceneSearcher.search(query, sort, numDocs, after,
+                    TimeUnit.SECONDS.toMillis(this.luceneSearchTimeout));
         }
-        catch (UncheckedTimeoutException e) {
+        catch (TimeLimitingCollector.TimeExceededException e) {
             String msg = "Lucene search exceeded time limit ( " + this.luceneSearchTimeout + " seconds.)";
             if (sort != null)
                 logger.warn(msg + "Query: {}, Sort: {}, Offset: {}, Limit: {}", new Object[]{query, sort, offset, limit});
@@ -449,6 +641,18 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
     private EventSummaryResult searchToEventSummaryResult(IndexSearcher searcher, Query query, Sort sort,
                                                           Set<String> fieldsToLoad, int offset, int limit)
             throws IOException, ZepException {
+        return searchToEventSummaryResult(searcher, query, sort, fieldsToLoad, offset, limit, null);
+    }
+
+    /**
+     * Searches for a page of results. If a saved search is given and the page starts where the previous page of
+     * the saved search ended, the page is searched after the last hit of the previous page so the cost of a page
+     * does not grow with its offset.
+     */
+    private EventSummaryResult searchToEventSummaryResult(IndexSearcher searcher, Query query, Sort sort,
+                                                          Set<String> fieldsToLoad, int offset, int limit,
+                                                          LuceneSavedSearch savedSearch)
+            throws IOException, ZepException {
         if (limit < 0) {
             throw new ZepException(messages.getMessage("invalid_query_limit", limit));
         }
@@ -459,10 +663,14 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
             offset = 0;
         }
 
+        final ScoreDoc after = (savedSearch != null && offset > 0) ? savedSearch.getCursor(offset) : null;
+        // The hits of the page start at this index of the returned hits
+        final int start = (after != null) ? 0 : offset;
+
         // Lucene doesn't like querying for 0 documents - search for at least one here
-        final int numDocs = Math.max(limit + offset, 1);
+        final int numDocs = Math.max(limit + start, 1);
 
-        final TopDocs docs = this.timeLimitedSearch(searcher, query, sort, offset, limit, numDocs);
+        final TopDocs docs = this.timeLimitedSearch(searcher, query, sort, offset, limit, numDocs, after);
 
         this.indexResultsCount = docs.totalHits;
         logger.debug("Found {} results", docs.totalHits);
@@ -475,14 +683,17 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
 
         // Return the number of results they asked for (the query has to return at least one match
         // but the request may specified a limit of zero).
-        final int lastDocument = Math.min(limit + offset, docs.scoreDocs.length);
+        final int lastDocument = Math.min(limit + start, docs.scoreDocs.length);
+        if (savedSearch != null && lastDocument > start) {
+            savedSearch.setCursor(offset + lastDocument - start, docs.scoreDocs[lastDocument - 1]);
+        }
 
-        if (this.archive && !UUID_FIELDS.equals(fieldsToLoad)) {
+        if (this.archive && fieldsToLoad.contains(FIELD_PROTOBUF)) {
             // Event archive only stores UUID & last_seen - have to query results from database
             Map<String, EventSummary> sortedResults = Maps.newLinkedHashMap();
             Set<EventSummary> toLookup = Sets.newHashSetWithExpectedSize(lastDocument);
             Set<String> uuidAndLastSeen = Sets.newHashSet(FIELD_UUID, FIELD_LAST_SEEN_TIME);
-            for (int i = offset; i < lastDocument; i++) {
+            for (int i = start; i < lastDocument; i++) {
                 Document doc = searcher.doc(docs.scoreDocs[i].doc, uuidAndLastSeen);
                 EventSummary event = LuceneEventIndexMapper.toEventSummary(doc);
                 sortedResults.put(event.getUuid(), null);
@@ -510,8 +721,13 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
             }
 
         } else {
-            for (int i = offset; i < lastDocument; i++) {
-                result.addEvents(LuceneEventIndexMapper.toEventSummary(searcher.doc(docs.scoreDocs[i].doc, fieldsToLoad)));
+            final boolean projected = fieldsToLoad.contains(FIELD_FIRST_SEEN_TIME);
+            for (int i = start; i < lastDocument; i++) {
+                Document doc = searcher.doc(docs.scoreDocs[i].doc, fieldsToLoad);
+                if (projected && doc.getField(FIELD_FIRST_SEEN_TIME) == null) {
+                    doc = searcher.doc(docs.scoreDocs[i].doc, PROTO_FIELDS);
+                }
+                result.addEvents(LuceneEventIndexMapper.toEventSummary(doc, this.protobufCodec));
             }
         }
         return result.build();
@@ -535,7 +751,8 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
                         logger.info("Event archive index out of sync - expected event {} not found", uuid);
                     }
                 } else {
-                    summary = LuceneEventIndexMapper.toEventSummary(searcher.doc(docs.scoreDocs[0].doc));
+                    summary = LuceneEventIndexMapper.toEventSummary(searcher.doc(docs.scoreDocs[0].doc),
+                            this.protobufCodec);
                 }
             }
         } catch (IOException e) {
@@ -745,81 +962,46 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
         return qb.build();
     }
 
+    private static void collectDocs(IndexSearcher searcher, Query query, final OpenBitSet docs) throws IOException {
+        searcher.search(query, new Collector() {
+            private int docBase;
+
+            @Override
+            public void setScorer(Scorer scorer) throws IOException {
+            }
+
+            @Override
+            public void collect(int doc) throws IOException {
+                docs.set(docBase + doc);
+            }
+
+            @Override
+            public void setNextReader(AtomicReaderContext atomicReaderContext) throws IOException {
+                this.docBase = atomicReaderContext.docBase;
+            }
+
+            @Override
+            public boolean acceptsDocsOutOfOrder() {
+                return true;
+            }
+        });
+    }
+
     protected void searchEventTagSeverities(EventFilter filter, EventTagSeverityCounter counter) throws ZepException {
         final boolean hasTagsFilter = filter.getTagFilterCount() > 0;
         IndexSearcher searcher = null;
         try {
             searcher = getSearcher();
             final Query query = buildQueryFromFilter(searcher.getIndexReader(), filter);
-            final OpenBitSet docs = new OpenBitSet(searcher.getIndexReader().maxDoc());
-            searcher.search(query, new Collector() {
-                private int docBase;
-
-                @Override
-                public void setScorer(Scorer scorer) throws IOException {
-                }
-
-                @Override
-                public void collect(int doc) throws IOException {
-                    docs.set(docBase + doc);
-                }
-
-                @Override
-                public void setNextReader(AtomicReaderContext atomicReaderContext) throws IOException {
-                    this.docBase = atomicReaderContext.docBase;
-                }
-
-                @Override
-                public boolean acceptsDocsOutOfOrder() {
-                    return true;
-                }
-            });
-            int docId;
-            final DocIdSetIterator it = docs.iterator();
-            while ((docId = it.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
-                final EventSummary summary;
-                if (this.archive) {
-                    // TODO: This isn't very cheap - would be better to batch by UUID in separate calls
-                    // This doesn't get called on the event archive right now, so leave it until need to optimize.
-                    Document doc = searcher.doc(docId, UUID_FIELDS);
-                    summary = this.eventSummaryBaseDao.findByUuid(doc.get(FIELD_UUID));
-                } else {
-                    Document doc = searcher.doc(docId);
-                    // this is an optimization for getting the non-archived tags from an organizer for ticket
-                    // see ZEN-7239. For this ticket we updated the index to store what we needed for generating the
-                    // tags severities. Since we do not want a migrate of completely deleting the index this
-                    // method is backwards compatible by uncompressing the protobuf
-                    if (doc.get(FIELD_SEVERITY) != null) {
-                        int count = Integer.parseInt(doc.get(FIELD_COUNT));
-                        boolean acknowledged = EventStatus.STATUS_ACKNOWLEDGED.equals(EventStatus.valueOf(Integer.parseInt(doc.get(FIELD_STATUS))));
-                        EventSeverity severity = EventSeverity.valueOf(Integer.parseInt(doc.get(FIELD_SEVERITY)));
-
-                        // get the map for each filter and update the count
-                        for (String tag : doc.getValues(FIELD_TAGS))
-                            counter.update(tag, severity, count, acknowledged);
-                        continue;
-                    } else {
-                        summary = LuceneEventIndexMapper.toEventSummary(doc);
-                    }
-                }
-                boolean acknowledged = EventStatus.STATUS_ACKNOWLEDGED == summary.getStatus();
-                Event occurrence = summary.getOccurrence(0);
-                EventSeverity severity = occurrence.getSeverity();
-                int count = occurrence.getCount();
-                EventActor actor = occurrence.getActor();
-
-                // Build tags from element_uuids - no tags specified in filter
-                if (!hasTagsFilter) {
-                    if (actor.hasElementUuid())
-                        counter.update(actor.getElementUuid(), severity, count, acknowledged);
-                }
-                // Build tag severities from passed in filter
-                else {
-                    for (String uuid : Arrays.asList(actor.getElementUuid(), actor.getElementSubUuid()))
-                        counter.update(uuid, severity, count, acknowledged);
-                    for (EventTag tag : occurrence.getTagsList())
-                        for (String tagUuid : tag.getUuidList())
-                            counter.update(tagUuid, severity, count, acknowledged);
+            if (this.archive) {
+                final OpenBitSet docs = new OpenBitSet(searcher.getIndexReader().maxDoc());
+                collectDocs(searcher, query, docs);
+                countStoredDocs(searcher, docs, hasTagsFilter, counter);
+            } else {
+                // Segments are immutable, so only segments which are new (or have new deletions) since the last
+                // request for this filter need to be counted.
+                for (AtomicReaderContext leaf : searcher.getIndexReader().leaves()) {
+                    getTagSeverityRollup(filter, query, leaf).replay(counter);
                 }
             }
         } catch (IOException e) {
@@ -833,6 +1015,104 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
         }
     }
 
+    private LuceneTagSeverityRollup getTagSeverityRollup(final EventFilter filter, final Query query,
+                                                         final AtomicReaderContext leaf) throws IOException, ZepException {
+        if (this.tagSeverityRollups == null) {
+            return countTagSeverities(filter, query, leaf);
+        }
+        final Object segmentKey = leaf.reader().getCombinedCoreAndDeletesKey();
+        Cache<EventFilter, LuceneTagSeverityRollup> rollups = this.tagSeverityRollups.getIfPresent(segmentKey);
+        if (rollups == null) {
+            try {
+                rollups = this.tagSeverityRollups.get(segmentKey, new Callable<Cache<EventFilter, LuceneTagSeverityRollup>>() {
+                    @Override
+                    public Cache<EventFilter, LuceneTagSeverityRollup> call() {
+                        return CacheBuilder.newBuilder().maximumSize(tagSeverityRollupCacheSize).build();
+                    }
+                });
+            } catch (ExecutionException e) {
+                throw new ZepException(e.getCause());
+            }
+        }
+        LuceneTagSeverityRollup rollup = rollups.getIfPresent(filter);
+        if (rollup == null) {
+            rollup = countTagSeverities(filter, query, leaf);
+            rollups.put(filter, rollup);
+        }
+        return rollup;
+    }
+
+    private LuceneTagSeverityRollup countTagSeverities(EventFilter filter, Query query, AtomicReaderContext leaf)
+            throws IOException, ZepException {
+        final boolean hasTagsFilter = filter.getTagFilterCount() > 0;
+        Set<String> uuids = null;
+        if (hasTagsFilter) {
+            uuids = Sets.newHashSet();
+            for (EventTagFilter tagFilter : filter.getTagFilterList()) {
+                uuids.addAll(tagFilter.getTagUuidsList());
+            }
+        }
+        final LuceneTagSeverityRollup rollup = new LuceneTagSeverityRollup(uuids);
+        final IndexSearcher leafSearcher = new IndexSearcher(leaf);
+        // Count straight from the doc values; only documents indexed before they were added are loaded.
+        final LuceneTagSeverityCollector collector = new LuceneTagSeverityCollector(rollup, leaf.reader().maxDoc());
+        leafSearcher.search(query, collector);
+        countStoredDocs(leafSearcher, collector.getUnmigratedDocs(), hasTagsFilter, rollup);
+        return rollup;
+    }
+
+    private void countStoredDocs(IndexSearcher searcher, OpenBitSet docs, boolean hasTagsFilter,
+                                 EventTagSeverityCounter counter) throws IOException, ZepException {
+        int docId;
+        final DocIdSetIterator it = docs.iterator();
+        while ((docId = it.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            final EventSummary summary;
+            if (this.archive) {
+                // TODO: This isn't very cheap - would be better to batch by UUID in separate calls
+                // This doesn't get called on the event archive right now, so leave it until need to optimize.
+                Document doc = searcher.doc(docId, UUID_FIELDS);
+                summary = this.eventSummaryBaseDao.findByUuid(doc.get(FIELD_UUID));
+            } else {
+                Document doc = searcher.doc(docId);
+                // this is an optimization for getting the non-archived tags from an organizer for ticket
+                // see ZEN-7239. For this ticket we updated the index to store what we needed for generating the
+                // tags severities. Since we do not want a migrate of completely deleting the index this
+                // method is backwards compatible by uncompressing the protobuf
+                if (doc.get(FIELD_SEVERITY) != null) {
+                    int count = Integer.parseInt(doc.get(FIELD_COUNT));
+                    boolean acknowledged = EventStatus.STATUS_ACKNOWLEDGED.equals(EventStatus.valueOf(Integer.parseInt(doc.get(FIELD_STATUS))));
+                    EventSeverity severity = EventSeverity.valueOf(Integer.parseInt(doc.get(FIELD_SEVERITY)));
+
+                    // get the map for each filter and update the count
+                    for (String tag : doc.getValues(FIELD_TAGS))
+                        counter.update(tag, severity, count, acknowledged);
+                    continue;
+                } else {
+                    summary = LuceneEventIndexMapper.toEventSummary(doc, this.protobufCodec);
+                }
+            }
+            boolean acknowledged = EventStatus.STATUS_ACKNOWLEDGED == summary.getStatus();
+            Event occurrence = summary.getOccurrence(0);
+            EventSeverity severity = occurrence.getSeverity();
+            int count = occurrence.getCount();
+            EventActor actor = occurrence.getActor();
+
+            // Build tags from element_uuids - no tags specified in filter
+            if (!hasTagsFilter) {
+                if (actor.hasElementUuid())
+                    counter.update(actor.getElementUuid(), severity, count, acknowledged);
+            }
+            // Build tag severities from passed in filter
+            else {
+                for (String uuid : Arrays.asList(actor.getElementUuid(), actor.getElementSubUuid()))
+                    counter.update(uuid, severity, count, acknowledged);
+                for (EventTag tag : occurrence.getTagsList())
+                    for (String tagUuid : tag.getUuidList())
+                        counter.update(tagUuid, severity, count, acknowledged);
+            }
+        }
+    }
+
     private class Processor implements SavedSearchProcessor<LuceneSavedSearch> {
         private final Set<String> fieldsToLoad;
         public Processor(Set<String> fieldsToLoad) {
@@ -843,8 +1123,9 @@ public class LuceneEventIndexBackend extends BaseEventIndexBackend<LuceneSavedSe
             IndexReader reader = search.getReader();
             reader.incRef();
             try {
-                IndexSearcher searcher = new IndexSearcher(reader);
-                return searchToEventSummaryResult(searcher, search.getQuery(), search.getSort(), fieldsToLoad, offset, limit);
+                IndexSearcher searcher = searcherFactory.newSearcher(reader);
+                return searchToEventSummaryResult(searcher, search.getQuery(), search.getSort(), fieldsToLoad, offset,
+                        limit, search);
             } catch (IOException e) {
                 throw new ZepException(e);
             }
@@ -10,6 +10,7 @@
 
 package org.zenoss.zep.index.impl.lucene;
 
+import com.google.common.collect.ImmutableSet;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
@@ -20,9 +21,12 @@ import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.FloatField;
 import org.apache.lucene.document.IntField;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
 import org.apache.lucene.document.DoubleField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,11 +34,14 @@ import org.zenoss.protobufs.zep.Zep.Event;
 import org.zenoss.protobufs.zep.Zep.EventActor;
 import org.zenoss.protobufs.zep.Zep.EventDetail;
 import org.zenoss.protobufs.zep.Zep.EventDetailItem;
+import org.zenoss.protobufs.zep.Zep.EventSeverity;
+import org.zenoss.protobufs.zep.Zep.EventStatus;
 import org.zenoss.protobufs.zep.Zep.EventSummary;
 import org.zenoss.protobufs.zep.Zep.EventTag;
 import org.zenoss.zep.ZepException;
 import org.zenoss.zep.ZepInstance;
 import org.zenoss.zep.index.impl.BaseEventIndexMapper;
+import org.zenoss.zep.index.impl.ProtobufCodec;
 import org.zenoss.zep.utils.IpUtils;
 
 import java.io.StringReader;
@@ -44,18 +51,23 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_AGENT;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_COUNT;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_CURRENT_USER_NAME;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_ELEMENT_IDENTIFIER;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_ELEMENT_IDENTIFIER_NOT_ANALYZED;
+import static org.zenoss.zep.index.impl.IndexConstants.FIELD_ELEMENT_IDENTIFIER_REVERSED;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_ELEMENT_SUB_IDENTIFIER;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_ELEMENT_SUB_IDENTIFIER_NOT_ANALYZED;
+import static org.zenoss.zep.index.impl.IndexConstants.FIELD_ELEMENT_SUB_IDENTIFIER_REVERSED;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_ELEMENT_SUB_TITLE;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_ELEMENT_SUB_TITLE_NOT_ANALYZED;
+import static org.zenoss.zep.index.impl.IndexConstants.FIELD_ELEMENT_SUB_TITLE_REVERSED;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_ELEMENT_TITLE;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_ELEMENT_TITLE_NOT_ANALYZED;
+import static org.zenoss.zep.index.impl.IndexConstants.FIELD_ELEMENT_TITLE_REVERSED;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_EVENT_CLASS;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_EVENT_CLASS_KEY;
 import static org.zenoss.zep.index.impl.IndexConstants.FIELD_EVENT_CLASS_NOT_ANALYZED;
@@ -114,47 +126,60 @@ public class LuceneEventIndexMapper extends BaseEventIndexMapper {
     private static final Logger logger = LoggerFactory.getLogger(LuceneEventIndexMapper.class);
 
     public static Document fromEventSummary(EventSummary summary, Map<String, EventDetailItem> detailsConfig, boolean isArchive) throws ZepException {
+        return fromEventSummary(summary, detailsConfig, isArchive, ProtobufCodec.DEFAULT);
+    }
+
+    public static Document fromEventSummary(EventSummary summary, Map<String, EventDetailItem> detailsConfig,
+                                            boolean isArchive, ProtobufCodec codec) throws ZepException {
         Document doc = new Document();
 
         // Store the entire serialized protobuf so we can reproduce the entire event from the index.
         // Archive events don't store serialized protobufs - see ZEN-2159
         if (!isArchive) {
-            doc.add(new Field(FIELD_PROTOBUF, compressProtobuf(summary)));
+            doc.add(new Field(FIELD_PROTOBUF, codec.compress(summary)));
         }
 
         // Store the UUID for more lightweight queries against the index
         doc.add(new Field(FIELD_UUID, summary.getUuid(), Store.YES, Index.NOT_ANALYZED_NO_NORMS));
 
-        doc.add(new Field(FIELD_CURRENT_USER_NAME, summary.getCurrentUserName(), Store.NO,
+        // Summary events also store the columns which can be projected without inflating the protobuf
+        final Store projected = isArchive ? Store.NO : Store.YES;
+
+        doc.add(new Field(FIELD_CURRENT_USER_NAME, summary.getCurrentUserName(), projected,
                 Index.NOT_ANALYZED_NO_NORMS));
 
         doc.add(new IntField(FIELD_STATUS, summary.getStatus().getNumber(), Store.YES));
         doc.add(new LongField(FIELD_COUNT, summary.getCount(), Store.YES));
+        // Doc values used to count tag severities without loading stored fields
+        doc.add(new NumericDocValuesField(FIELD_STATUS, summary.getStatus().getNumber()));
+        doc.add(new NumericDocValuesField(FIELD_COUNT, summary.getCount()));
         doc.add(new LongField(FIELD_LAST_SEEN_TIME, summary.getLastSeenTime(), Store.YES));
-        doc.add(new LongField(FIELD_FIRST_SEEN_TIME, summary.getFirstSeenTime(), Store.NO));
-        doc.add(new LongField(FIELD_STATUS_CHANGE_TIME, summary.getStatusChangeTime(), Store.NO));
-        doc.add(new LongField(FIELD_UPDATE_TIME, summary.getUpdateTime(), Store.NO));
+        doc.add(new LongField(FIELD_FIRST_SEEN_TIME, summary.getFirstSeenTime(), projected));
+        doc.add(new LongField(FIELD_STATUS_CHANGE_TIME, summary.getStatusChangeTime(), projected));
+        doc.add(new LongField(FIELD_UPDATE_TIME, summary.getUpdateTime(), projected));
 
         Event event = summary.getOccurrence(0);
-        doc.add(new Field(FIELD_FINGERPRINT, event.getFingerprint(), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
-        doc.add(new Field(FIELD_SUMMARY, event.getSummary(), Store.NO, Index.ANALYZED_NO_NORMS));
+        doc.add(new Field(FIELD_FINGERPRINT, event.getFingerprint(), projected, Index.NOT_ANALYZED_NO_NORMS));
+        doc.add(new Field(FIELD_SUMMARY, event.getSummary(), projected, Index.ANALYZED_NO_NORMS));
         doc.add(new Field(FIELD_SUMMARY_NOT_ANALYZED, event.getSummary().toLowerCase(), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
         doc.add(new IntField(FIELD_SEVERITY, event.getSeverity().getNumber(), Store.YES));
+        doc.add(new NumericDocValuesField(FIELD_SEVERITY, event.getSeverity().getNumber()));
 
-        doc.add(new Field(FIELD_EVENT_CLASS, event.getEventClass(), Store.NO, Index.ANALYZED_NO_NORMS));
+        doc.add(new Field(FIELD_EVENT_CLASS, event.getEventClass(), projected, Index.ANALYZED_NO_NORMS));
         // Store with a trailing slash to make lookups simpler
         doc.add(new Field(FIELD_EVENT_CLASS_NOT_ANALYZED, event.getEventClass().toLowerCase() + "/", Store.NO,
                 Index.NOT_ANALYZED_NO_NORMS));
-        doc.add(new Field(FIELD_AGENT, event.getAgent(), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
-        doc.add(new Field(FIELD_MONITOR, event.getMonitor(), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
-        doc.add(new Field(FIELD_EVENT_KEY, event.getEventKey(), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
-        doc.add(new Field(FIELD_EVENT_CLASS_KEY, event.getEventClassKey(), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
-        doc.add(new Field(FIELD_EVENT_GROUP, event.getEventGroup(), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
+        doc.add(new Field(FIELD_AGENT, event.getAgent(), projected, Index.NOT_ANALYZED_NO_NORMS));
+        doc.add(new Field(FIELD_MONITOR, event.getMonitor(), projected, Index.NOT_ANALYZED_NO_NORMS));
+        doc.add(new Field(FIELD_EVENT_KEY, event.getEventKey(), projected, Index.NOT_ANALYZED_NO_NORMS));
+        doc.add(new Field(FIELD_EVENT_CLASS_KEY, event.getEventClassKey(), projected, Index.NOT_ANALYZED_NO_NORMS));
+        doc.add(new Field(FIELD_EVENT_GROUP, event.getEventGroup(), projected, Index.NOT_ANALYZED_NO_NORMS));
         doc.add(new Field(FIELD_MESSAGE, event.getMessage(), Store.NO, Index.ANALYZED_NO_NORMS));
 
         for (EventTag tag : event.getTagsList()) {
             for (String tagUuid : tag.getUuidList()) {
                 doc.add(new Field(FIELD_TAGS, tagUuid, Store.YES, Index.NOT_ANALYZED_NO_NORMS));
+                doc.add(new SortedSetDocValuesField(FIELD_TAGS, new BytesRef(tagUuid)));
             }
         }
 
@@ -162,28 +187,34 @@ public class LuceneEventIndexMapper extends BaseEventIndexMapper {
         String uuid = actor.getElementUuid();
         if (uuid != null && !uuid.isEmpty()) {
             doc.add(new Field(FIELD_TAGS, uuid, Store.YES, Index.NOT_ANALYZED_NO_NORMS));
+            doc.add(new SortedSetDocValuesField(FIELD_TAGS, new BytesRef(uuid)));
         }
 
         String id = actor.getElementIdentifier();
-        doc.add(new Field(FIELD_ELEMENT_IDENTIFIER, id, Store.NO, Index.ANALYZED_NO_NORMS));
+        doc.add(new Field(FIELD_ELEMENT_IDENTIFIER, id, projected, Index.ANALYZED_NO_NORMS));
         doc.add(new Field(FIELD_ELEMENT_IDENTIFIER_NOT_ANALYZED, id.toLowerCase(), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
+        doc.add(new Field(FIELD_ELEMENT_IDENTIFIER_REVERSED, reverseIdentifier(id), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
 
         String title = actor.getElementTitle();
-        doc.add(new Field(FIELD_ELEMENT_TITLE, title, Store.NO, Index.ANALYZED_NO_NORMS));
+        doc.add(new Field(FIELD_ELEMENT_TITLE, title, projected, Index.ANALYZED_NO_NORMS));
         doc.add(new Field(FIELD_ELEMENT_TITLE_NOT_ANALYZED, title.toLowerCase(), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
+        doc.add(new Field(FIELD_ELEMENT_TITLE_REVERSED, reverseIdentifier(title), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
 
         String subUuid = actor.getElementSubUuid();
         if (subUuid != null && !subUuid.isEmpty()) {
             doc.add(new Field(FIELD_TAGS, subUuid, Store.YES, Index.NOT_ANALYZED_NO_NORMS));
+            doc.add(new SortedSetDocValuesField(FIELD_TAGS, new BytesRef(subUuid)));
         }
 
         String subId = actor.getElementSubIdentifier();
-        doc.add(new Field(FIELD_ELEMENT_SUB_IDENTIFIER, subId, Store.NO, Index.ANALYZED_NO_NORMS));
+        doc.add(new Field(FIELD_ELEMENT_SUB_IDENTIFIER, subId, projected, Index.ANALYZED_NO_NORMS));
         doc.add(new Field(FIELD_ELEMENT_SUB_IDENTIFIER_NOT_ANALYZED, subId.toLowerCase(), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
+        doc.add(new Field(FIELD_ELEMENT_SUB_IDENTIFIER_REVERSED, reverseIdentifier(subId), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
 
         String subTitle = actor.getElementSubTitle();
-        doc.add(new Field(FIELD_ELEMENT_SUB_TITLE, subTitle, Store.NO, Index.ANALYZED_NO_NORMS));
+        doc.add(new Field(FIELD_ELEMENT_SUB_TITLE, subTitle, projected, Index.ANALYZED_NO_NORMS));
         doc.add(new Field(FIELD_ELEMENT_SUB_TITLE_NOT_ANALYZED, subTitle.toLowerCase(), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
+        doc.add(new Field(FIELD_ELEMENT_SUB_TITLE_REVERSED, reverseIdentifier(subTitle), Store.NO, Index.NOT_ANALYZED_NO_NORMS));
         // find details  for indexing
         List<EventDetail> evtDetails = event.getDetailsList();
 
@@ -308,6 +339,14 @@ public class LuceneEventIndexMapper extends BaseEventIndexMapper {
                 Index.NOT_ANALYZED_NO_NORMS));
     }
 
+    /**
+     * Returns the lowercased identifier reversed, as indexed in the reversed identifier fields. A wildcard
+     * query on the end of an identifier is a prefix query on the reversed field.
+     */
+    static String reverseIdentifier(String identifier) {
+        return new StringBuilder(identifier.toLowerCase()).reverse().toString();
+    }
+
     private static void createIpAddressFields(Document doc, String detailKeyName, InetAddress value) {
         final String typeVal = (value instanceof Inet6Address) ? IP_ADDRESS_TYPE_6 : IP_ADDRESS_TYPE_4;
         doc.add(new Field(detailKeyName + IP_ADDRESS_TYPE_SUFFIX, typeVal, Store.NO, Index.NOT_ANALYZED_NO_NORMS));
@@ -317,25 +356,108 @@ public class LuceneEventIndexMapper extends BaseEventIndexMapper {
     }
 
     public static EventSummary toEventSummary(Document item) throws ZepException {
+        return toEventSummary(item, ProtobufCodec.DEFAULT);
+    }
+
+    public static EventSummary toEventSummary(Document item, ProtobufCodec codec) throws ZepException {
         final EventSummary summary;
         final BytesRef protobuf_bytesRef = item.getBinaryValue(FIELD_PROTOBUF);
         if (protobuf_bytesRef != null) {
-            final byte[] protobuf = protobuf_bytesRef.bytes;
-            summary = uncompressProtobuf(protobuf);
+            summary = codec.uncompress(protobuf_bytesRef.bytes, protobuf_bytesRef.offset, protobuf_bytesRef.length);
         }
         else {
-            // Only other possible fields stored on index.
-            final String uuid = item.get(FIELD_UUID);
-            final String lastSeen = item.get(FIELD_LAST_SEEN_TIME);
-            EventSummary.Builder summaryBuilder = EventSummary.newBuilder();
-            if (uuid != null) {
-                summaryBuilder.setUuid(uuid);
+            summary = toProjectedEventSummary(item);
+        }
+        return summary;
+    }
+
+    /**
+     * The fields which are stored on summary documents and can be returned without the protobuf.
+     */
+    public static final Set<String> PROJECTION_FIELDS = ImmutableSet.of(FIELD_UUID, FIELD_STATUS, FIELD_COUNT,
+            FIELD_FIRST_SEEN_TIME, FIELD_LAST_SEEN_TIME, FIELD_STATUS_CHANGE_TIME, FIELD_UPDATE_TIME,
+            FIELD_CURRENT_USER_NAME, FIELD_FINGERPRINT, FIELD_SUMMARY, FIELD_SEVERITY, FIELD_EVENT_CLASS,
+            FIELD_AGENT, FIELD_MONITOR, FIELD_EVENT_KEY, FIELD_EVENT_CLASS_KEY, FIELD_EVENT_GROUP,
+            FIELD_ELEMENT_IDENTIFIER, FIELD_ELEMENT_TITLE, FIELD_ELEMENT_SUB_IDENTIFIER, FIELD_ELEMENT_SUB_TITLE);
+
+    /**
+     * Builds a partial event summary from the stored fields of a document loaded without its protobuf.
+     */
+    private static EventSummary toProjectedEventSummary(Document item) {
+        final EventSummary.Builder summaryBuilder = EventSummary.newBuilder();
+        final Event.Builder eventBuilder = Event.newBuilder();
+        final EventActor.Builder actorBuilder = EventActor.newBuilder();
+        boolean hasEvent = false, hasActor = false;
+        for (IndexableField field : item.getFields()) {
+            final String value = field.stringValue();
+            if (value == null) {
+                continue;
             }
-            if (lastSeen != null) {
-                summaryBuilder.setLastSeenTime(Long.parseLong(lastSeen));
+            final String name = field.name();
+            if (FIELD_UUID.equals(name)) {
+                summaryBuilder.setUuid(value);
+            } else if (FIELD_STATUS.equals(name)) {
+                summaryBuilder.setStatus(EventStatus.valueOf(Integer.parseInt(value)));
+            } else if (FIELD_COUNT.equals(name)) {
+                summaryBuilder.setCount(Integer.parseInt(value));
+            } else if (FIELD_FIRST_SEEN_TIME.equals(name)) {
+                summaryBuilder.setFirstSeenTime(Long.parseLong(value));
+            } else if (FIELD_LAST_SEEN_TIME.equals(name)) {
+                summaryBuilder.setLastSeenTime(Long.parseLong(value));
+            } else if (FIELD_STATUS_CHANGE_TIME.equals(name)) {
+                summaryBuilder.setStatusChangeTime(Long.parseLong(value));
+            } else if (FIELD_UPDATE_TIME.equals(name)) {
+                summaryBuilder.setUpdateTime(Long.parseLong(value));
+            } else if (FIELD_CURRENT_USER_NAME.equals(name)) {
+                summaryBuilder.setCurrentUserName(value);
+            } else if (FIELD_FINGERPRINT.equals(name)) {
+                eventBuilder.setFingerprint(value);
+                hasEvent = true;
+            } else if (FIELD_SUMMARY.equals(name)) {
+                eventBuilder.setSummary(value);
+                hasEvent = true;
+            } else if (FIELD_SEVERITY.equals(name)) {
+                eventBuilder.setSeverity(EventSeverity.valueOf(Integer.parseInt(value)));
+                hasEvent = true;
+            } else if (FIELD_EVENT_CLASS.equals(name)) {
+                eventBuilder.setEventClass(value);
+                hasEvent = true;
+            } else if (FIELD_AGENT.equals(name)) {
+                eventBuilder.setAgent(value);
+                hasEvent = true;
+            } else if (FIELD_MONITOR.equals(name)) {
+                eventBuilder.setMonitor(value);
+                hasEvent = true;
+            } else if (FIELD_EVENT_KEY.equals(name)) {
+                eventBuilder.setEventKey(value);
+                hasEvent = true;
+            } else if (FIELD_EVENT_CLASS_KEY.equals(name)) {
+                eventBuilder.setEventClassKey(value);
+                hasEvent = true;
+            } else if (FIELD_EVENT_GROUP.equals(name)) {
+                eventBuilder.setEventGroup(value);
+                hasEvent = true;
+            } else if (FIELD_ELEMENT_IDENTIFIER.equals(name)) {
+                actorBuilder.setElementIdentifier(value);
+                hasActor = true;
+            } else if (FIELD_ELEMENT_TITLE.equals(name)) {
+                actorBuilder.setElementTitle(value);
+                hasActor = true;
+            } else if (FIELD_ELEMENT_SUB_IDENTIFIER.equals(name)) {
+                actorBuilder.setElementSubIdentifier(value);
+                hasActor = true;
+            } else if (FIELD_ELEMENT_SUB_TITLE.equals(name)) {
+                actorBuilder.setElementSubTitle(value);
+                hasActor = true;
             }
-            summary = summaryBuilder.build();
         }
-        return summary;
+        if (hasActor) {
+            eventBuilder.setActor(actorBuilder.buildPartial());
+        }
+        if (hasEvent || hasActor) {
+            summaryBuilder.addOccurrence(eventBuilder.buildPartial());
+        }
+        // A projection leaves out fields which may be required by the full message
+        return summaryBuilder.buildPartial();
     }
 }
@@ -9,107 +9,421 @@
 
 package org.zenoss.zep.index.impl.lucene;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queries.TermsFilter;
-import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.NGramPhraseQuery;
 import org.apache.lucene.search.PrefixFilter;
 import org.apache.lucene.search.QueryWrapperFilter;
 import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+/**
+ * Caches the documents matched by the filters of queries, for each segment of the index.
+ * <p>
+ * The cache is bounded by the memory used by the cached documents rather than by the number of filters: a
+ * wildcard filter on a large segment takes much more than a term filter matching a few events. The least
+ * recently used segments of filters are evicted once the total exceeds the budget, and the entries of a
+ * segment are evicted when the segment is closed.
+ */
 public class LuceneFilterCacheManager {
 
     private static final Logger logger = LoggerFactory.getLogger(LuceneFilterCacheManager.class);
 
+    public static final int DEFAULT_CACHE_SIZE_MB = 64;
+
     public static enum FilterType {
         PREFIX, TERMS, WILDCARD, NGRAM
     }
 
-    private final LoadingCache<Term, CachingWrapperFilter> prefixCache;
-    private final LoadingCache<Set<Term>, CachingWrapperFilter> termsCache;
-    private final LoadingCache<Term, CachingWrapperFilter> wildcardCache;
-    private final LoadingCache<List<Term>, CachingWrapperFilter> nGramCache;
+    private static final class FilterKey {
+        private final FilterType type;
+        private final Object terms;
 
-    public LuceneFilterCacheManager() {
+        private FilterKey(FilterType type, Object terms) {
+            this.type = type;
+            this.terms = terms;
+        }
 
-        prefixCache = CacheBuilder.newBuilder()
-                .maximumSize(1000)
-                .build(
-                        new CacheLoader<Term, CachingWrapperFilter>() {
-                            @Override
-                            public CachingWrapperFilter load(Term t) throws Exception {
-                                logger.debug("Encountered a new PrefixFilter term: {}", t);
-                                return new CachingWrapperFilter(new PrefixFilter(t));
-                            }
-                        }
-                );
-
-        wildcardCache = CacheBuilder.newBuilder()
-                .maximumSize(1000)
-                .build(
-                        new CacheLoader<Term, CachingWrapperFilter>() {
-                            @Override
-                            public CachingWrapperFilter load(Term t) throws Exception {
-                                logger.debug("Encountered a new WildcardQuery term: {}", t);
-                                return new CachingWrapperFilter(new QueryWrapperFilter(new WildcardQuery(t)));
-                            }
-                        }
-                );
-
-        termsCache = CacheBuilder.newBuilder()
-                .maximumSize(1000)
-                .build(
-                        new CacheLoader<Set<Term>, CachingWrapperFilter>() {
-                            @Override
-                            public CachingWrapperFilter load(Set<Term> t) throws Exception {
-                                logger.debug("Encountered a new TermsFilter term: {}", t);
-                                TermsFilter termsFilter = new TermsFilter(Lists.newArrayList(t));
-                                return new CachingWrapperFilter(termsFilter);
-                            }
-                        }
-                );
-
-        nGramCache = CacheBuilder.newBuilder()
-                .maximumSize(1000)
-                .build(
-                        new CacheLoader<List<Term>, CachingWrapperFilter>() {
-                            @Override
-                            public CachingWrapperFilter load(List<Term> t) throws Exception {
-                                logger.debug("Encountered a new NGramPhaseQuery term: {}", t);
-                                NGramPhraseQuery pq = new NGramPhraseQuery(LuceneIdentifierAnalyzer.MIN_NGRAM_SIZE);
-                                for (Term term : t) {
-                                    pq.add(term);
-                                }
-                                return new CachingWrapperFilter(new QueryWrapperFilter(pq));
-                            }
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FilterKey)) {
+                return false;
+            }
+            final FilterKey other = (FilterKey) o;
+            return type == other.type && terms.equals(other.terms);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + terms.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return type + ":" + terms;
+        }
+    }
+
+    private static final class SegmentKey {
+        private final FilterKey filterKey;
+        private final Object coreKey;
+
+        private SegmentKey(FilterKey filterKey, Object coreKey) {
+            this.filterKey = filterKey;
+            this.coreKey = coreKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SegmentKey)) {
+                return false;
+            }
+            final SegmentKey other = (SegmentKey) o;
+            return coreKey == other.coreKey && filterKey.equals(other.filterKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * filterKey.hashCode() + System.identityHashCode(coreKey);
+        }
+    }
+
+    /**
+     * The documents of a segment matched by a filter. Sparse results are stored as a sorted array of document
+     * numbers, others as a bit set.
+     */
+    static final class CachedDocIdSet extends DocIdSet {
+        private final FixedBitSet bits;
+        private final int[] docs;
+
+        private CachedDocIdSet(FixedBitSet bits, int[] docs) {
+            this.bits = bits;
+            this.docs = docs;
+        }
+
+        static CachedDocIdSet create(DocIdSetIterator iterator, int maxDoc) throws IOException {
+            final FixedBitSet bits = new FixedBitSet(maxDoc);
+            if (iterator != null) {
+                bits.or(iterator);
+            }
+            final int cardinality = bits.cardinality();
+            if ((long) cardinality * 4 >= (long) bits.getBits().length * 8) {
+                return new CachedDocIdSet(bits, null);
+            }
+            final int[] docs = new int[cardinality];
+            final DocIdSetIterator it = bits.iterator();
+            for (int i = 0, doc; (doc = it.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS; i++) {
+                docs[i] = doc;
+            }
+            return new CachedDocIdSet(null, docs);
+        }
+
+        long sizeInBytes() {
+            return (bits != null) ? bits.getBits().length * 8L : docs.length * 4L;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() throws IOException {
+            if (bits != null) {
+                return bits.iterator();
+            }
+            return new DocIdSetIterator() {
+                private int index = -1;
+                private int doc = -1;
+
+                @Override
+                public int docID() {
+                    return doc;
+                }
+
+                @Override
+                public int nextDoc() {
+                    return doc = (++index < docs.length) ? docs[index] : NO_MORE_DOCS;
+                }
+
+                @Override
+                public int advance(int target) {
+                    while (++index < docs.length) {
+                        if (docs[index] >= target) {
+                            return doc = docs[index];
                         }
-                );
+                    }
+                    return doc = NO_MORE_DOCS;
+                }
+
+                @Override
+                public long cost() {
+                    return docs.length;
+                }
+            };
+        }
+
+        @Override
+        public Bits bits() {
+            return bits;
+        }
+
+        @Override
+        public boolean isCacheable() {
+            return true;
+        }
+    }
+
+    /**
+     * Filter reading its documents from the cache, and computing them with the wrapped filter on a miss.
+     */
+    private final class CachedFilter extends Filter {
+        private final FilterKey key;
+        private final Filter filter;
+
+        private CachedFilter(FilterKey key, Filter filter) {
+            this.key = key;
+            this.filter = filter;
+        }
+
+        @Override
+        public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            final AtomicReader reader = context.reader();
+            final SegmentKey segmentKey = new SegmentKey(key, reader.getCoreCacheKey());
+            CachedDocIdSet docIdSet = getCached(segmentKey);
+            if (docIdSet == null) {
+                logger.debug("Caching filter {} for segment {}", key, reader);
+                // Deleted documents are filtered below, so the cached documents hold for the whole core
+                final DocIdSet uncached = filter.getDocIdSet(context, null);
+                docIdSet = CachedDocIdSet.create((uncached == null) ? null : uncached.iterator(), reader.maxDoc());
+                putCached(segmentKey, docIdSet, reader);
+            }
+            return BitsFilteredDocIdSet.wrap(docIdSet, acceptDocs);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof CachedFilter) && key.equals(((CachedFilter) o).key);
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "CachedFilter(" + filter + ")";
+        }
+    }
+
+    private final long maxBytes;
+    // Cached documents in least recently used order
+    private final LinkedHashMap<SegmentKey, CachedDocIdSet> cache =
+            new LinkedHashMap<SegmentKey, CachedDocIdSet>(16, 0.75f, true);
+    // Cached filters of each segment core, evicted when the core is closed
+    private final Map<Object, Set<SegmentKey>> segments = new HashMap<Object, Set<SegmentKey>>();
+    private long bytes = 0L;
+
+    private MetricRegistry metrics = new MetricRegistry();
+    private Map<FilterType, Meter> hits = createMeters("hitsForUnitTest");
+    private Map<FilterType, Meter> misses = createMeters("missesForUnitTest");
+    private Map<FilterType, Meter> evictions = createMeters("evictionsForUnitTest");
+
+    private final SegmentReader.CoreClosedListener coreClosedListener = new SegmentReader.CoreClosedListener() {
+        @Override
+        public void onClose(Object ownerCoreCacheKey) {
+            evictSegment(ownerCoreCacheKey);
+        }
+    };
+
+    public LuceneFilterCacheManager() {
+        this(DEFAULT_CACHE_SIZE_MB);
+    }
+
+    /**
+     * Creates the cache.
+     *
+     * @param cacheSizeMb The maximum size in megabytes of the documents cached for all filters.
+     */
+    public LuceneFilterCacheManager(int cacheSizeMb) {
+        this.maxBytes = cacheSizeMb * 1024L * 1024L;
+    }
+
+    private Map<FilterType, Meter> createMeters(String name) {
+        final Map<FilterType, Meter> meters = new EnumMap<FilterType, Meter>(FilterType.class);
+        for (FilterType type : FilterType.values()) {
+            meters.put(type, metrics.meter(MetricRegistry.name(name, type.name().toLowerCase())));
+        }
+        return meters;
+    }
+
+    @Autowired
+    public void setMetricRegistry(MetricRegistry metrics) {
+        this.metrics = metrics;
+        final String prefix = this.getClass().getSimpleName();
+        this.hits = createMeters(MetricRegistry.name(prefix, "hits"));
+        this.misses = createMeters(MetricRegistry.name(prefix, "misses"));
+        this.evictions = createMeters(MetricRegistry.name(prefix, "evictions"));
+        metrics.register(MetricRegistry.name(prefix, "bytes"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                synchronized (LuceneFilterCacheManager.this) {
+                    return bytes;
+                }
+            }
+        });
+        metrics.register(MetricRegistry.name(prefix, "entries"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                synchronized (LuceneFilterCacheManager.this) {
+                    return cache.size();
+                }
+            }
+        });
+    }
+
+    private synchronized CachedDocIdSet getCached(SegmentKey key) {
+        final CachedDocIdSet docIdSet = cache.get(key);
+        (docIdSet != null ? hits : misses).get(key.filterKey.type).mark();
+        return docIdSet;
+    }
+
+    private void putCached(SegmentKey key, CachedDocIdSet docIdSet, AtomicReader reader) {
+        final long size = docIdSet.sizeInBytes();
+        if (size > maxBytes) {
+            return;
+        }
+        final boolean newSegment;
+        synchronized (this) {
+            final CachedDocIdSet previous = cache.put(key, docIdSet);
+            if (previous != null) {
+                bytes -= previous.sizeInBytes();
+            }
+            bytes += size;
+            Set<SegmentKey> keys = segments.get(key.coreKey);
+            newSegment = (keys == null);
+            if (newSegment) {
+                keys = new HashSet<SegmentKey>();
+                segments.put(key.coreKey, keys);
+            }
+            keys.add(key);
+            final Iterator<Map.Entry<SegmentKey, CachedDocIdSet>> it = cache.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                final Map.Entry<SegmentKey, CachedDocIdSet> eldest = it.next();
+                it.remove();
+                removed(eldest.getKey(), eldest.getValue());
+            }
+        }
+        if (newSegment) {
+            addClosedListener(reader);
+        }
+    }
+
+    private void addClosedListener(AtomicReader reader) {
+        if (reader instanceof SegmentReader) {
+            ((SegmentReader) reader).addCoreClosedListener(coreClosedListener);
+        } else {
+            final Object coreKey = reader.getCoreCacheKey();
+            reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+                @Override
+                public void onClose(IndexReader reader) {
+                    evictSegment(coreKey);
+                }
+            });
+        }
+    }
+
+    private void removed(SegmentKey key, CachedDocIdSet docIdSet) {
+        bytes -= docIdSet.sizeInBytes();
+        evictions.get(key.filterKey.type).mark();
+        final Set<SegmentKey> keys = segments.get(key.coreKey);
+        if (keys != null) {
+            keys.remove(key);
+        }
+    }
+
+    private synchronized void evictSegment(Object coreKey) {
+        final Set<SegmentKey> keys = segments.remove(coreKey);
+        if (keys != null) {
+            for (SegmentKey key : new ArrayList<SegmentKey>(keys)) {
+                final CachedDocIdSet docIdSet = cache.remove(key);
+                if (docIdSet != null) {
+                    removed(key, docIdSet);
+                }
+            }
+        }
+    }
+
+    synchronized long sizeInBytes() {
+        return bytes;
+    }
+
+    synchronized int size() {
+        return cache.size();
     }
 
     public Filter get(FilterType name, Term... key) {
+        final FilterKey filterKey;
+        final Filter filter;
         switch (name) {
-            case NGRAM:
-                return nGramCache.getUnchecked(ImmutableList.copyOf(key));
+            case NGRAM: {
+                final List<Term> terms = ImmutableList.copyOf(key);
+                filterKey = new FilterKey(name, terms);
+                final NGramPhraseQuery pq = new NGramPhraseQuery(LuceneIdentifierAnalyzer.MIN_NGRAM_SIZE);
+                for (Term term : terms) {
+                    pq.add(term);
+                }
+                filter = new QueryWrapperFilter(pq);
+                break;
+            }
             case PREFIX:
-                return prefixCache.getUnchecked(key[0]);
+                filterKey = new FilterKey(name, key[0]);
+                filter = new PrefixFilter(key[0]);
+                break;
             case WILDCARD:
-                return wildcardCache.getUnchecked(key[0]);
+                filterKey = new FilterKey(name, key[0]);
+                filter = new QueryWrapperFilter(new WildcardQuery(key[0]));
+                break;
             case TERMS:
-            default:
-                return termsCache.getUnchecked(ImmutableSet.copyOf(key));
+            default: {
+                final Set<Term> terms = ImmutableSet.copyOf(key);
+                filterKey = new FilterKey(FilterType.TERMS, terms);
+                filter = new TermsFilter(Lists.newArrayList(terms));
+                break;
+            }
         }
+        return new CachedFilter(filterKey, filter);
     }
 
 }
@@ -0,0 +1,130 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl.lucene;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.search.TimeLimitingCollector.TimeExceededException;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Counter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Index searcher which searches segments in parallel on an executor (if one is given) and can limit the time
+ * spent on a search.
+ * <p>
+ * The time limit is enforced by a {@link TimeLimitingCollector} around the collector of each group of segments,
+ * on whichever thread searches it. All of the collectors of a search share the time the search started, so the
+ * search as a whole is stopped once the limit is reached.
+ */
+public class LuceneIndexSearcher extends IndexSearcher {
+
+    private static final class TimeLimit {
+        private final long baseline;
+        private final long ticksAllowed;
+        private Weight weight;
+
+        private TimeLimit(long baseline, long ticksAllowed) {
+            this.baseline = baseline;
+            this.ticksAllowed = ticksAllowed;
+        }
+    }
+
+    // The time limit of the search running on the calling thread, until its weight is created
+    private final ThreadLocal<TimeLimit> callerTimeLimit = new ThreadLocal<TimeLimit>();
+    // The time limit of each running search, found from the weight passed to each group of segments
+    private final Map<Weight, TimeLimit> timeLimits = new ConcurrentHashMap<Weight, TimeLimit>();
+
+    public LuceneIndexSearcher(IndexReader reader, ExecutorService executor) {
+        super(reader, executor);
+    }
+
+    /**
+     * Finds the top hits of the query.
+     *
+     * @param query The query.
+     * @param sort The sort order, or null to sort by relevance.
+     * @param numDocs The number of hits to return.
+     * @param after The last hit of the previous page, or null to return the first hits.
+     * @param timeLimitMillis The maximum time to spend on the search in milliseconds, or 0 if unlimited.
+     * @return The top hits.
+     * @throws IOException If the index can't be read.
+     * @throws TimeExceededException If the search took longer than the time limit.
+     */
+    public TopDocs search(Query query, Sort sort, int numDocs, ScoreDoc after, long timeLimitMillis)
+            throws IOException {
+        if (timeLimitMillis <= 0) {
+            return search(query, sort, numDocs, after);
+        }
+        final Counter clock = TimeLimitingCollector.getGlobalCounter();
+        final TimeLimit timeLimit = new TimeLimit(clock.get(), timeLimitMillis);
+        callerTimeLimit.set(timeLimit);
+        try {
+            return search(query, sort, numDocs, after);
+        } catch (RuntimeException e) {
+            // Segments searched on the executor report the time limit wrapped in other exceptions
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof TimeExceededException) {
+                    throw (TimeExceededException) t;
+                }
+            }
+            throw e;
+        } finally {
+            callerTimeLimit.remove();
+            if (timeLimit.weight != null) {
+                timeLimits.remove(timeLimit.weight);
+            }
+        }
+    }
+
+    private TopDocs search(Query query, Sort sort, int numDocs, ScoreDoc after) throws IOException {
+        if (sort != null) {
+            return (after != null) ? searchAfter(after, query, null, numDocs, sort) :
+                    search(query, null, numDocs, sort);
+        }
+        return (after != null) ? searchAfter(after, query, null, numDocs) : search(query, null, numDocs);
+    }
+
+    @Override
+    public Weight createNormalizedWeight(Query query) throws IOException {
+        final Weight weight = super.createNormalizedWeight(query);
+        final TimeLimit timeLimit = callerTimeLimit.get();
+        if (timeLimit != null && timeLimit.weight == null) {
+            timeLimit.weight = weight;
+            timeLimits.put(weight, timeLimit);
+        }
+        return weight;
+    }
+
+    @Override
+    protected void search(List<AtomicReaderContext> leaves, Weight weight, Collector collector) throws IOException {
+        final TimeLimit timeLimit = timeLimits.get(weight);
+        if (timeLimit != null) {
+            final TimeLimitingCollector limited = new TimeLimitingCollector(collector,
+                    TimeLimitingCollector.getGlobalCounter(), timeLimit.ticksAllowed);
+            limited.setBaseline(timeLimit.baseline);
+            collector = limited;
+        }
+        super.search(leaves, weight, collector);
+    }
+}
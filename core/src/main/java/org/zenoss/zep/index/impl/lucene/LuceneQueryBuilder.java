@@ -262,22 +262,66 @@ public class LuceneQueryBuilder extends BaseQueryBuilder<LuceneQueryBuilder> {
             final String unquoted = unquote(value);
 
             if (value.isEmpty() || !unquoted.equals(value)) {
-                filter = filterCache.get(WILDCARD, new Term(nonAnalyzed(fieldName), unquoted.toLowerCase()));
-            } else if (value.length() < LuceneIdentifierAnalyzer.MIN_NGRAM_SIZE) {
-                filter = filterCache.get(PREFIX, new Term(fieldName, value.toLowerCase()));
+                filter = buildIdentifierPatternFilter(fieldName, analyzer, unquoted.toLowerCase());
             } else {
-                // Use NGramPhraseQuery (new in Lucene 3.5 and optimized for searching NGram fields)
-                List<String> tokens = getTokens(fieldName, analyzer, value);
-                Term[] terms = new Term[tokens.size()];
-                int i = 0;
-                for (String token : tokens)
-                    terms[i++] = new Term(fieldName, token);
-                filter = filterCache.get(NGRAM, terms);
+                // Unquoted values match anywhere in the identifier, so a leading wildcard adds nothing
+                value = StringUtils.trimLeadingCharacter(value, '*');
+                if (hasWildcard(value)) {
+                    filter = buildIdentifierPatternFilter(fieldName, analyzer, "*" + value.toLowerCase() + "*");
+                } else if (value.length() < LuceneIdentifierAnalyzer.MIN_NGRAM_SIZE) {
+                    filter = filterCache.get(PREFIX, new Term(fieldName, value.toLowerCase()));
+                } else {
+                    filter = buildNGramFilter(fieldName, analyzer, value);
+                }
             }
             filters.add(filter);
         }
     }
 
+    /**
+     * Builds the filter for a wildcard pattern on the whole identifier. Patterns with a wildcard at only one
+     * end are prefix filters on the non-analyzed or the reversed field, and patterns with a wildcard at both
+     * ends use the NGram field, so only patterns with wildcards inside them enumerate the terms of the field.
+     */
+    private Filter buildIdentifierPatternFilter(String fieldName, Analyzer analyzer, String pattern)
+            throws ZepException {
+        final int length = pattern.length();
+        final boolean leading = length > 0 && pattern.charAt(0) == '*';
+        final boolean trailing = length > 1 && pattern.charAt(length - 1) == '*';
+        final String literal = pattern.substring(leading ? 1 : 0, trailing ? length - 1 : length);
+        final String reversedField = IndexConstants.REVERSED.get(fieldName);
+        if (literal.isEmpty() || hasWildcard(literal) || reversedField == null) {
+            return filterCache.get(WILDCARD, new Term(nonAnalyzed(fieldName), pattern));
+        }
+        if (leading && trailing) {
+            if (literal.length() >= LuceneIdentifierAnalyzer.MIN_NGRAM_SIZE && !StringUtils.containsWhitespace(literal)) {
+                return buildNGramFilter(fieldName, analyzer, literal);
+            }
+            return filterCache.get(WILDCARD, new Term(nonAnalyzed(fieldName), pattern));
+        }
+        if (leading) {
+            return filterCache.get(PREFIX, new Term(reversedField, LuceneEventIndexMapper.reverseIdentifier(literal)));
+        }
+        if (trailing) {
+            return filterCache.get(PREFIX, new Term(nonAnalyzed(fieldName), literal));
+        }
+        return filterCache.get(TERMS, new Term(nonAnalyzed(fieldName), literal));
+    }
+
+    private Filter buildNGramFilter(String fieldName, Analyzer analyzer, String value) throws ZepException {
+        // Use NGramPhraseQuery (new in Lucene 3.5 and optimized for searching NGram fields)
+        List<String> tokens = getTokens(fieldName, analyzer, value);
+        Term[] terms = new Term[tokens.size()];
+        int i = 0;
+        for (String token : tokens)
+            terms[i++] = new Term(fieldName, token);
+        return filterCache.get(NGRAM, terms);
+    }
+
+    private static boolean hasWildcard(String value) {
+        return value.indexOf('*') >= 0 || value.indexOf('?') >= 0 || value.indexOf('\\') >= 0;
+    }
+
     private void buildIpAddressFilters(List<Filter> filters, String fieldName, Set<InetAddress> values) throws ZepException {
         if (values == null || values.isEmpty()) return;
         Set<String> hosts = new HashSet<String>(values.size());
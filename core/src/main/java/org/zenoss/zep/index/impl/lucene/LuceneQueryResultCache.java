@@ -0,0 +1,214 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl.lucene;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.zenoss.protobufs.zep.Zep.EventSummaryRequest;
+import org.zenoss.protobufs.zep.Zep.EventSummaryResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the results of list queries for one version of the index. Consoles and the heartbeat check repeat
+ * the same requests every few seconds, and between two reopens of the index reader they must get the same
+ * results, so they are served from memory.
+ * <p>
+ * Requests are compared after sorting the values of each repeated field of their filters (which are sets),
+ * so filters built in a different order share an entry. The cache is invalidated when a newer reader is
+ * used and is bounded by the serialized size of the cached results.
+ */
+public class LuceneQueryResultCache {
+
+    private static final class Key {
+        private final ByteString request;
+        private final Set<String> fields;
+        private final long readerVersion;
+
+        private Key(ByteString request, Set<String> fields, long readerVersion) {
+            this.request = request;
+            this.fields = fields;
+            this.readerVersion = readerVersion;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return readerVersion == other.readerVersion && request.equals(other.request) &&
+                    fields.equals(other.fields);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = request.hashCode();
+            result = 31 * result + fields.hashCode();
+            result = 31 * result + (int) (readerVersion ^ (readerVersion >>> 32));
+            return result;
+        }
+    }
+
+    private static final Comparator<Object> VALUE_ORDER = new Comparator<Object>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compare(Object a, Object b) {
+            if (a instanceof EnumValueDescriptor) {
+                return Integer.compare(((EnumValueDescriptor) a).getNumber(), ((EnumValueDescriptor) b).getNumber());
+            }
+            if (a instanceof ByteString) {
+                return ((ByteString) a).toStringUtf8().compareTo(((ByteString) b).toStringUtf8());
+            }
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+    };
+
+    private final Cache<Key, EventSummaryResult> cache;
+    private final AtomicLong readerVersion = new AtomicLong(-1L);
+
+    /**
+     * Creates the cache.
+     *
+     * @param maxBytes The maximum total serialized size of the cached results.
+     */
+    public LuceneQueryResultCache(long maxBytes) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Key, EventSummaryResult>() {
+                    @Override
+                    public int weigh(Key key, EventSummaryResult result) {
+                        return key.request.size() + result.getSerializedSize();
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns the key of the request on the reader, or null if the results on the reader can't be cached.
+     *
+     * @param reader The reader searched for the request.
+     * @param request The request.
+     * @param fields The stored fields loaded for each result.
+     * @return The key of the cached results.
+     */
+    private Key key(IndexReader reader, EventSummaryRequest request, Set<String> fields) {
+        if (!(reader instanceof DirectoryReader)) {
+            return null;
+        }
+        final long version = ((DirectoryReader) reader).getVersion();
+        long latest;
+        while ((latest = this.readerVersion.get()) < version) {
+            if (this.readerVersion.compareAndSet(latest, version)) {
+                // The index changed - none of the cached results are current
+                this.cache.invalidateAll();
+                break;
+            }
+        }
+        if (version < this.readerVersion.get()) {
+            // A search still using an older reader
+            return null;
+        }
+        return new Key(canonicalize(request).toByteString(), fields, version);
+    }
+
+    /**
+     * Returns the cached results of the request on the reader.
+     *
+     * @param reader The reader searched for the request.
+     * @param request The request.
+     * @param fields The stored fields loaded for each result.
+     * @return The cached results, or null if they are not cached.
+     */
+    public EventSummaryResult get(IndexReader reader, EventSummaryRequest request, Set<String> fields) {
+        final Key key = key(reader, request, fields);
+        return (key == null) ? null : this.cache.getIfPresent(key);
+    }
+
+    /**
+     * Caches the results of the request on the reader.
+     *
+     * @param reader The reader searched for the request.
+     * @param request The request.
+     * @param fields The stored fields loaded for each result.
+     * @param result The results.
+     */
+    public void put(IndexReader reader, EventSummaryRequest request, Set<String> fields, EventSummaryResult result) {
+        final Key key = key(reader, request, fields);
+        if (key != null) {
+            this.cache.put(key, result);
+        }
+    }
+
+    public CacheStats stats() {
+        return this.cache.stats();
+    }
+
+    public long size() {
+        return this.cache.size();
+    }
+
+    static EventSummaryRequest canonicalize(EventSummaryRequest request) {
+        final EventSummaryRequest.Builder builder = request.toBuilder();
+        if (request.hasEventFilter()) {
+            builder.setEventFilter(canonicalizeFilter(request.getEventFilter()));
+        }
+        if (request.hasExclusionFilter()) {
+            builder.setExclusionFilter(canonicalizeFilter(request.getExclusionFilter()));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Sorts the values of the repeated fields of a filter and its nested messages. The repeated messages
+     * themselves are kept in order.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends Message> T canonicalizeFilter(T message) {
+        final Message.Builder builder = message.toBuilder();
+        for (Map.Entry<FieldDescriptor, Object> entry : message.getAllFields().entrySet()) {
+            final FieldDescriptor field = entry.getKey();
+            if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+                if (field.isRepeated()) {
+                    builder.clearField(field);
+                    for (Object value : (List<?>) entry.getValue()) {
+                        builder.addRepeatedField(field, canonicalizeFilter((Message) value));
+                    }
+                } else {
+                    builder.setField(field, canonicalizeFilter((Message) entry.getValue()));
+                }
+            } else if (field.isRepeated()) {
+                final List<Object> values = new ArrayList<Object>((List<?>) entry.getValue());
+                Collections.sort(values, VALUE_ORDER);
+                builder.setField(field, values);
+            }
+        }
+        return (T) builder.build();
+    }
+}
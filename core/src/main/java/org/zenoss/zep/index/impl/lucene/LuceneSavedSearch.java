@@ -11,6 +11,7 @@ package org.zenoss.zep.index.impl.lucene;
 
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.zenoss.zep.ZepException;
 import org.zenoss.zep.index.impl.SavedSearch;
@@ -21,6 +22,8 @@ public final class LuceneSavedSearch extends SavedSearch {
     private IndexReader reader;
     private final Query query;
     private final Sort sort;
+    private int cursorOffset = -1;
+    private ScoreDoc cursor = null;
 
     public LuceneSavedSearch(String uuid, IndexReader reader, Query query, Sort sort, int timeout) {
         super(uuid, timeout);
@@ -41,6 +44,28 @@ public final class LuceneSavedSearch extends SavedSearch {
         return sort;
     }
 
+    /**
+     * Returns the last hit of the previous page if that page ended at the offset, so the next page can be
+     * searched after it instead of collecting every hit before the offset again.
+     *
+     * @param offset The offset of the requested page.
+     * @return The hit to search after, or null to search by offset.
+     */
+    public synchronized ScoreDoc getCursor(int offset) {
+        return (offset == this.cursorOffset) ? this.cursor : null;
+    }
+
+    /**
+     * Records the last hit of a page.
+     *
+     * @param offset The offset of the page following the hit.
+     * @param cursor The last hit of the page.
+     */
+    public synchronized void setCursor(int offset, ScoreDoc cursor) {
+        this.cursorOffset = offset;
+        this.cursor = cursor;
+    }
+
     public synchronized void close() throws IOException {
         if (this.reader != null) {
             this.reader.decRef();
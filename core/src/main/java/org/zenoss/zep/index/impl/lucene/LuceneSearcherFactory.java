@@ -0,0 +1,83 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl.lucene;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the searchers of the Lucene index backends. If search threads are configured, the segments of the
+ * index are searched in parallel on a bounded pool shared by all backends. When the pool is saturated the
+ * calling thread searches the segment itself, so a busy pool slows queries down rather than failing them.
+ */
+public class LuceneSearcherFactory extends SearcherFactory {
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates the factory.
+     *
+     * @param searchThreads The number of threads searching segments, or 0 to search on the calling thread.
+     * @param queueCapacity The maximum number of segments waiting for a search thread.
+     */
+    public LuceneSearcherFactory(int searchThreads, int queueCapacity) {
+        if (searchThreads > 0) {
+            final CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("ZEP-search-");
+            threadFactory.setDaemon(true);
+            this.executor = new ThreadPoolExecutor(searchThreads, searchThreads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(queueCapacity, 1)), threadFactory,
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        } else {
+            this.executor = null;
+        }
+    }
+
+    @Autowired
+    public void setMetricRegistry(MetricRegistry metrics) {
+        if (this.executor == null) {
+            return;
+        }
+        final String prefix = this.getClass().getSimpleName();
+        metrics.register(MetricRegistry.name(prefix, "activeThreads"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return executor.getActiveCount();
+            }
+        });
+        metrics.register(MetricRegistry.name(prefix, "queueDepth"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return executor.getQueue().size();
+            }
+        });
+    }
+
+    @Override
+    public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+        return new LuceneIndexSearcher(reader, this.executor);
+    }
+
+    public void close() {
+        if (this.executor != null) {
+            this.executor.shutdown();
+        }
+    }
+}
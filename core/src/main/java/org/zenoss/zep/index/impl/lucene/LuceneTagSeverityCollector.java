@@ -0,0 +1,129 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl.lucene;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.OpenBitSet;
+import org.zenoss.protobufs.zep.Zep.EventSeverity;
+import org.zenoss.protobufs.zep.Zep.EventStatus;
+import org.zenoss.zep.index.impl.BaseEventIndexBackend.EventTagSeverityCounter;
+
+import java.io.IOException;
+
+import static org.zenoss.zep.index.impl.IndexConstants.FIELD_COUNT;
+import static org.zenoss.zep.index.impl.IndexConstants.FIELD_SEVERITY;
+import static org.zenoss.zep.index.impl.IndexConstants.FIELD_STATUS;
+import static org.zenoss.zep.index.impl.IndexConstants.FIELD_TAGS;
+
+/**
+ * Counts event tag severities from the severity, status, count and tag doc values of each matching document,
+ * without loading stored fields.
+ * <p>
+ * Documents indexed before the doc values were added have no severity doc value. They are recorded in
+ * {@link #getUnmigratedDocs()} so the caller can count them from their stored fields instead.
+ */
+public class LuceneTagSeverityCollector extends Collector {
+
+    private static final int ACKNOWLEDGED = EventStatus.STATUS_ACKNOWLEDGED.getNumber();
+
+    private final EventTagSeverityCounter counter;
+    private final OpenBitSet unmigratedDocs;
+    private int docBase;
+    private NumericDocValues severities;
+    private Bits docsWithSeverity;
+    private NumericDocValues statuses;
+    private NumericDocValues counts;
+    private SortedSetDocValues tags;
+    private String[] tagNames;
+    private final BytesRef scratch = new BytesRef();
+
+    /**
+     * Creates the collector.
+     *
+     * @param counter The counter updated for each tag of each matching document.
+     * @param maxDoc The maxDoc of the top level reader which is searched.
+     */
+    public LuceneTagSeverityCollector(EventTagSeverityCounter counter, int maxDoc) {
+        this.counter = counter;
+        this.unmigratedDocs = new OpenBitSet(maxDoc);
+    }
+
+    /**
+     * Returns the (top level) ids of matching documents which have no doc values.
+     *
+     * @return The matching documents which must be counted from stored fields.
+     */
+    public OpenBitSet getUnmigratedDocs() {
+        return unmigratedDocs;
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+    }
+
+    @Override
+    public void setNextReader(AtomicReaderContext context) throws IOException {
+        final AtomicReader reader = context.reader();
+        this.docBase = context.docBase;
+        this.severities = reader.getNumericDocValues(FIELD_SEVERITY);
+        this.docsWithSeverity = reader.getDocsWithField(FIELD_SEVERITY);
+        this.statuses = reader.getNumericDocValues(FIELD_STATUS);
+        this.counts = reader.getNumericDocValues(FIELD_COUNT);
+        this.tags = reader.getSortedSetDocValues(FIELD_TAGS);
+        this.tagNames = (this.tags == null) ? null : new String[(int) this.tags.getValueCount()];
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        // Segments merged from old and new documents have doc values, but not for the old documents.
+        if (severities == null || statuses == null || counts == null || docsWithSeverity == null ||
+                !docsWithSeverity.get(doc)) {
+            unmigratedDocs.set(docBase + doc);
+            return;
+        }
+        if (tags == null) {
+            return;
+        }
+        final EventSeverity severity = EventSeverity.valueOf((int) severities.get(doc));
+        if (severity == null) {
+            return;
+        }
+        final boolean acknowledged = statuses.get(doc) == ACKNOWLEDGED;
+        final int count = (int) counts.get(doc);
+        tags.setDocument(doc);
+        long ord;
+        while ((ord = tags.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+            counter.update(tagName(ord), severity, count, acknowledged);
+        }
+    }
+
+    private String tagName(long ord) {
+        String name = tagNames[(int) ord];
+        if (name == null) {
+            tags.lookupOrd(ord, scratch);
+            name = scratch.utf8ToString();
+            tagNames[(int) ord] = name;
+        }
+        return name;
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return true;
+    }
+}
@@ -0,0 +1,93 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl.lucene;
+
+import com.google.common.collect.Maps;
+import org.zenoss.protobufs.zep.Zep.EventSeverity;
+import org.zenoss.zep.index.impl.BaseEventIndexBackend.EventTagSeverityCounter;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The event tag severity counts of one index segment for one filter. Segments never change once written
+ * (apart from deletions, which give the segment a new reader), so a rollup stays valid for as long as its
+ * segment reader is in use and can be replayed into the counter of every later request for the same filter.
+ */
+public class LuceneTagSeverityRollup implements EventTagSeverityCounter {
+
+    private static final int NUM_SEVERITIES = EventSeverity.values().length;
+
+    private final Set<String> uuids;
+    // For each tag: the number of events and the sum of their counts by severity and acknowledgement.
+    private final Map<String, int[]> counts = Maps.newHashMap();
+
+    /**
+     * Creates an empty rollup.
+     *
+     * @param uuids The tag UUIDs to keep, or null to keep every tag.
+     */
+    public LuceneTagSeverityRollup(Set<String> uuids) {
+        this.uuids = uuids;
+    }
+
+    private static int slot(EventSeverity severity, boolean acknowledged) {
+        return (severity.ordinal() * 2 + (acknowledged ? 1 : 0)) * 2;
+    }
+
+    @Override
+    public void update(String uuid, EventSeverity severity, int count, boolean acknowledged) {
+        update(uuid, severity, 1, count, acknowledged);
+    }
+
+    @Override
+    public void update(String uuid, EventSeverity severity, int events, int count, boolean acknowledged) {
+        if (uuids != null && !uuids.contains(uuid)) {
+            return;
+        }
+        int[] tagCounts = counts.get(uuid);
+        if (tagCounts == null) {
+            tagCounts = new int[NUM_SEVERITIES * 4];
+            counts.put(uuid, tagCounts);
+        }
+        final int slot = slot(severity, acknowledged);
+        tagCounts[slot] += events;
+        tagCounts[slot + 1] += count;
+    }
+
+    /**
+     * Adds the counts of this rollup to the counter.
+     *
+     * @param counter The counter to update.
+     */
+    public void replay(EventTagSeverityCounter counter) {
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            final int[] tagCounts = entry.getValue();
+            for (EventSeverity severity : EventSeverity.values()) {
+                for (boolean acknowledged : new boolean[] { false, true }) {
+                    final int slot = slot(severity, acknowledged);
+                    if (tagCounts[slot] > 0) {
+                        counter.update(entry.getKey(), severity, tagCounts[slot], tagCounts[slot + 1], acknowledged);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tags in the rollup.
+     *
+     * @return The number of tags.
+     */
+    public int size() {
+        return counts.size();
+    }
+}
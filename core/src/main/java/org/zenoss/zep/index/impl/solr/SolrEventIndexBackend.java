@@ -28,8 +28,10 @@ import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.CoreAdminParams;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.slf4j.Logger;
@@ -456,6 +458,57 @@ public class SolrEventIndexBackend extends BaseEventIndexBackend<SolrSavedSearch
     }
 
     private EventSummaryResult execute(final SolrQuery query, boolean justUuids) throws ZepException {
+        return execute(query, (query.getStart() == null) ? 0 : query.getStart(), justUuids, null);
+    }
+
+    /**
+     * Returns a page of a saved search. If the page starts where the previous page ended, it is fetched with the
+     * Solr cursor mark returned with that page, so Solr does not collect every hit before the offset again.
+     */
+    private EventSummaryResult executeSaved(SolrSavedSearch search, int offset, int limit, boolean justUuids,
+                                            String... fields) throws ZepException {
+        SolrQuery query = search.getSolrQuery().getCopy();
+        query.setRows(limit);
+        query.setFields(fields);
+        final String cursorMark = search.getCursorMark(offset);
+        if (cursorMark != null) {
+            // Cursors need a total order, so break ties with the unique key.
+            boolean sortedByUuid = false;
+            for (SortClause clause : query.getSorts())
+                sortedByUuid |= IndexConstants.FIELD_UUID.equals(clause.getItem());
+            if (!sortedByUuid)
+                query.addSort(SortClause.asc(IndexConstants.FIELD_UUID));
+            query.setStart(0);
+            query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+            try {
+                return execute(query, offset, justUuids, search);
+            } catch (SolrException e) {
+                // Solr rejects cursor marks it can't parse (e.g. after a schema change) - page by offset instead.
+                if (!isCursorMarkRejected(e))
+                    throw e;
+                logger.debug("Invalid cursor mark for saved search {}: {}", search.getUuid(), e.getMessage());
+                search.setCursorMark(-1, null);
+                query = search.getSolrQuery().getCopy();
+                query.setRows(limit);
+                query.setFields(fields);
+            }
+        }
+        query.setStart(offset);
+        return execute(query, offset, justUuids, null);
+    }
+
+    /**
+     * Returns true if Solr rejected a request because its cursor mark is invalid, or because cursors can't be
+     * used with the query.
+     */
+    private static boolean isCursorMarkRejected(SolrException e) {
+        final String message = e.getMessage();
+        return e.code() == ErrorCode.BAD_REQUEST.code && message != null &&
+                (message.contains(CursorMarkParams.CURSOR_MARK_PARAM) || message.startsWith("Cursor functionality"));
+    }
+
+    private EventSummaryResult execute(final SolrQuery query, final int offset, boolean justUuids,
+                                       SolrSavedSearch cursorSearch) throws ZepException {
         EventSummaryResult.Builder result = EventSummaryResult.newBuilder();
 
         logger.debug("Searching SOLR for events matching: {}", query.getQuery());
@@ -467,13 +520,15 @@ public class SolrEventIndexBackend extends BaseEventIndexBackend<SolrSavedSearch
             result.setTotal(numFound);
             if (query.getRows() != null) {
                 final int limit = query.getRows();
-                final int offset = (query.getStart() == null) ? 0 : query.getStart() ;
                 result.setLimit(limit);
                 if (numFound > offset + limit)
                     result.setNextOffset(offset + limit);
             }
 
             logger.debug("Found {} results in SOLR", numFound);
+            if (cursorSearch != null && response.getNextCursorMark() != null) {
+                cursorSearch.setCursorMark(offset + response.getResults().size(), response.getNextCursorMark());
+            }
 
             if (justUuids) {
                 for (SolrDocument doc : response.getResults())
@@ -551,11 +606,8 @@ public class SolrEventIndexBackend extends BaseEventIndexBackend<SolrSavedSearch
         return new SavedSearchProcessor<SolrSavedSearch>(){
             @Override
             public EventSummaryResult result(SolrSavedSearch search, int offset, int limit) throws ZepException {
-                SolrQuery query = search.getSolrQuery().getCopy();
-                query.setRows(limit);
-                query.setStart(offset);
-                query.setFields(IndexConstants.FIELD_UUID, IndexConstants.FIELD_LAST_SEEN_TIME, IndexConstants.FIELD_PROTOBUF);
-                return execute(query, false);
+                return executeSaved(search, offset, limit, false,
+                        IndexConstants.FIELD_UUID, IndexConstants.FIELD_LAST_SEEN_TIME, IndexConstants.FIELD_PROTOBUF);
             }
         };
     }
@@ -566,11 +618,8 @@ public class SolrEventIndexBackend extends BaseEventIndexBackend<SolrSavedSearch
         return new SavedSearchProcessor<SolrSavedSearch>() {
             @Override
             public EventSummaryResult result(SolrSavedSearch search, int offset, int limit) throws ZepException {
-                SolrQuery query = search.getSolrQuery().getCopy();
-                query.setRows(limit);
-                query.setStart(offset);
-                query.setFields(IndexConstants.FIELD_UUID, IndexConstants.FIELD_LAST_SEEN_TIME);
-                return execute(query, true);
+                return executeSaved(search, offset, limit, true,
+                        IndexConstants.FIELD_UUID, IndexConstants.FIELD_LAST_SEEN_TIME);
             }
         };
     }
@@ -10,6 +10,7 @@
 package org.zenoss.zep.index.impl.solr;
 
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.zenoss.zep.index.impl.SavedSearch;
 
 import java.io.IOException;
@@ -17,6 +18,8 @@ import java.io.IOException;
 public final class SolrSavedSearch extends SavedSearch {
 
     private final SolrQuery solrQuery;
+    private int cursorOffset = 0;
+    private String cursorMark = null;
 
     public SolrSavedSearch(String uuid, int timeout, SolrQuery solrQuery) {
         super(uuid, timeout);
@@ -27,6 +30,30 @@ public final class SolrSavedSearch extends SavedSearch {
         return solrQuery;
     }
 
+    /**
+     * Returns the Solr cursor mark for a page if the previous page ended at its offset (or it is the first page).
+     *
+     * @param offset The offset of the requested page.
+     * @return The cursor mark to continue from, or null to search by offset.
+     */
+    public synchronized String getCursorMark(int offset) {
+        if (offset == 0) {
+            return CursorMarkParams.CURSOR_MARK_START;
+        }
+        return (offset == this.cursorOffset) ? this.cursorMark : null;
+    }
+
+    /**
+     * Records the cursor mark returned with a page.
+     *
+     * @param offset The offset of the page following the returned page.
+     * @param cursorMark The next cursor mark returned by Solr.
+     */
+    public synchronized void setCursorMark(int offset, String cursorMark) {
+        this.cursorOffset = offset;
+        this.cursorMark = cursorMark;
+    }
+
     @Override
     public final void close() throws IOException {
         // do nothing
@@ -139,6 +139,27 @@ public class EventsResource {
         return set;
     }
 
+    /**
+     * Returns the index fields requested with the "fields" parameter, which may be repeated or contain a comma
+     * separated list of fields. Returns null if no fields were requested.
+     */
+    private static Set<String> getQueryFields(MultivaluedMap<String, String> params) {
+        final List<String> l = params.get("fields");
+        if (l == null) {
+            return null;
+        }
+        final Set<String> fields = new HashSet<String>();
+        for (String value : l) {
+            for (String field : value.split(",")) {
+                field = field.trim();
+                if (!field.isEmpty()) {
+                    fields.add(field);
+                }
+            }
+        }
+        return fields.isEmpty() ? null : fields;
+    }
+
     private static int getQueryInteger(MultivaluedMap<String, String> params, String name, int defaultValue) {
         final String strVal = params.getFirst(name);
         return (strVal != null) ? Integer.valueOf(strVal) : defaultValue;
@@ -399,9 +420,9 @@ public class EventsResource {
     @Produces({ MediaType.APPLICATION_JSON, ProtobufConstants.CONTENT_TYPE_PROTOBUF })
     @GZIP
     @Timed(absolute=true, name="EventsResource.listEventIndex")
-    public EventSummaryResult listEventIndex(EventSummaryRequest request)
+    public EventSummaryResult listEventIndex(EventSummaryRequest request, @Context UriInfo ui)
             throws ZepException {
-        return this.eventSummaryIndexDao.list(request);
+        return this.eventSummaryIndexDao.list(request, getQueryFields(ui.getQueryParameters()));
     }
 
     private EventSummaryResult getEventArchiveResults(EventSummaryRequest request) throws ZepException {
@@ -448,7 +469,8 @@ public class EventsResource {
     @Timed(absolute=true, name="EventsResource.listEventIndexGet")
     public EventSummaryResult listEventIndexGet(@Context UriInfo ui)
             throws ParseException, ZepException {
-        return this.eventSummaryIndexDao.list(eventSummaryRequestFromUriInfo(ui));
+        return this.eventSummaryIndexDao.list(eventSummaryRequestFromUriInfo(ui),
+                getQueryFields(ui.getQueryParameters()));
     }
 
     @GET
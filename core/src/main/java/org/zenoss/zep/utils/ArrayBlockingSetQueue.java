@@ -221,7 +221,8 @@ public class ArrayBlockingSetQueue<E>
             try {
                 for (E e : c) {
                     checkNotNull(e);
-                    items[i++] = e;
+                    if (set.add(e))
+                        items[i++] = e;
                 }
             } catch (ArrayIndexOutOfBoundsException ex) {
                 throw new IllegalArgumentException();
@@ -471,7 +472,7 @@ public class ArrayBlockingSetQueue<E>
         final ReentrantLock lock = this.lock;
         lock.lock();
         try {
-            if (remove(o)) {
+            if (set.remove(o)) {
                 for (int i = takeIndex, k = count; k > 0; i = inc(i), k--) {
                     if (o.equals(items[i])) {
                         removeAt(i);
@@ -3,6 +3,7 @@ package org.zenoss.zep.utils;
 import com.google.api.client.util.ExponentialBackOff;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import redis.clients.jedis.BinaryJedisPubSub;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.exceptions.JedisConnectionException;
@@ -122,6 +123,26 @@ public final class JedisPoolUtil {
         }
     }
 
+    /**
+     * Subscribes to the specified channels on a dedicated connection from the pool. This method blocks until
+     * the subscriber unsubscribes from all channels or the connection fails, in which case the
+     * {@link JedisConnectionException} is thrown and the caller may subscribe again.
+     */
+    public void subscribe(BinaryJedisPubSub pubSub, byte[]... channels) {
+        Jedis jedis = pool.getResource();
+        try {
+            jedis.subscribe(pubSub, channels);
+            pool.returnResource(jedis);
+        } catch (JedisConnectionException e) {
+            pool.returnBrokenResource(jedis);
+            throw e;
+        } catch (RuntimeException e) {
+            // The connection may still be in subscribed mode - don't hand it to another user.
+            pool.returnBrokenResource(jedis);
+            throw e;
+        }
+    }
+
     private <T> T useJedisOnce(JedisUser<T> user) throws RedisTransactionCollision {
         ExponentialBackOff backoffTracker = null;
         Jedis jedis = null;
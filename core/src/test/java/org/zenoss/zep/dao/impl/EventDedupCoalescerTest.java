@@ -0,0 +1,95 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.dao.impl;
+
+import org.junit.Test;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.zep.ZepException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EventDedupCoalescerTest {
+
+    private static Event createEvent() {
+        return Event.newBuilder().setUuid(UUID.randomUUID().toString()).setCreatedTime(System.currentTimeMillis())
+                .build();
+    }
+
+    @Test
+    public void testSingleOccurrence() throws ZepException {
+        EventDedupCoalescer coalescer = new EventDedupCoalescer(4);
+        final Event event = createEvent();
+        String result = coalescer.coalesce(DaoUtils.sha1("fingerprint"), event,
+                new EventDedupCoalescer.Callback<String>() {
+                    @Override
+                    public String drain(List<Event> events) throws ZepException {
+                        assertEquals(1, events.size());
+                        assertEquals(event, events.get(0));
+                        return "saved";
+                    }
+                });
+        assertEquals("saved", result);
+        assertEquals(0, coalescer.getPendingCount());
+    }
+
+    @Test
+    public void testConcurrentOccurrencesSavedOnce() throws Exception {
+        final EventDedupCoalescer coalescer = new EventDedupCoalescer(2);
+        final int numThreads = 8;
+        final int numEventsPerThread = 500;
+        final AtomicInteger saved = new AtomicInteger();
+        final AtomicInteger writes = new AtomicInteger();
+        final EventDedupCoalescer.Callback<Object> callback = new EventDedupCoalescer.Callback<Object>() {
+            @Override
+            public Object drain(List<Event> events) throws ZepException {
+                if (!events.isEmpty()) {
+                    writes.incrementAndGet();
+                    saved.addAndGet(events.size());
+                }
+                return null;
+            }
+        };
+
+        ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int i = 0; i < numThreads; i++) {
+                final byte[] hash = DaoUtils.sha1("fingerprint" + (i % 3));
+                futures.add(executorService.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        for (int j = 0; j < numEventsPerThread; j++) {
+                            coalescer.coalesce(hash, createEvent(), callback);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+        assertEquals(numThreads * numEventsPerThread, saved.get());
+        assertTrue(writes.get() <= saved.get());
+        assertEquals(0, coalescer.getPendingCount());
+    }
+}
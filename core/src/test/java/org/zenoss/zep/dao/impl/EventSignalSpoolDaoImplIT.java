@@ -256,4 +256,31 @@ public class EventSignalSpoolDaoImplIT extends
         assertEquals(1, dao.update(spool));
         compareSpool(spool, dao.findByUuid(spool.getUuid()));
     }
+
+    @Test
+    public void testSaveBatch() throws ZepException {
+        EventTriggerSubscription subscription = createSubscription();
+        EventSummary eventSummary1 = createSampleSummary();
+        EventSignalSpool existing = EventSignalSpool.buildSpool(subscription, eventSummary1, uuidGenerator);
+        dao.create(existing);
+
+        EventSummary eventSummary2 = createSampleSummary();
+        EventSignalSpool created = EventSignalSpool.buildSpool(subscription, eventSummary2, uuidGenerator);
+        created.setSentSignal(true);
+        EventSummary eventSummary3 = createSampleSummary();
+        EventSignalSpool deleted = EventSignalSpool.buildSpool(subscription, eventSummary3, uuidGenerator);
+        dao.create(deleted);
+
+        existing.setFlushTime(System.currentTimeMillis());
+        existing.setSentSignal(true);
+        dao.saveBatch(Arrays.asList(created), Arrays.asList(existing), Arrays.asList(eventSummary3.getUuid()));
+        compareSpool(existing, dao.findByUuid(existing.getUuid()));
+        compareSpool(created, dao.findByUuid(created.getUuid()));
+        assertNull(dao.findByUuid(deleted.getUuid()));
+
+        // Creating an existing spool increments the event count
+        dao.saveBatch(Arrays.asList(created), Collections.<EventSignalSpool>emptyList(),
+                Collections.<String>emptyList());
+        assertEquals(created.getEventCount() + 1, dao.findByUuid(created.getUuid()).getEventCount());
+    }
 }
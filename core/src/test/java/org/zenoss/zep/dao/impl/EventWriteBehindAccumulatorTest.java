@@ -0,0 +1,315 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.dao.impl;
+
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.zep.ZepException;
+import org.zenoss.zep.impl.EventPreCreateContextImpl;
+import org.zenoss.zep.plugins.EventPreCreateContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class EventWriteBehindAccumulatorTest {
+
+    private final List<List<Event>> flushed = new ArrayList<List<Event>>();
+    // Occurrences written by committed flushes, like the event count of the summary
+    private final AtomicInteger committed = new AtomicInteger();
+    // Failures thrown by the next flushes
+    private final List<RuntimeException> failures = new ArrayList<RuntimeException>();
+    private final List<Runnable> scheduled = new ArrayList<Runnable>();
+    private EventWriteBehindAccumulator accumulator;
+    private TransactionTemplate transactionTemplate;
+    private final EventPreCreateContext context = new EventPreCreateContextImpl();
+
+    /**
+     * Runs transaction synchronizations like a database transaction manager, without a database.
+     */
+    private static class SynchronizingTransactionManager extends AbstractPlatformTransactionManager {
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+        }
+    }
+
+    private static Event createEvent() {
+        return Event.newBuilder().setUuid(UUID.randomUUID().toString()).setCreatedTime(System.currentTimeMillis())
+                .build();
+    }
+
+    @Before
+    public void setUp() {
+        SynchronizingTransactionManager transactionManager = new SynchronizingTransactionManager();
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        TaskScheduler scheduler = createNiceMock(TaskScheduler.class);
+        scheduler.schedule(anyObject(Runnable.class), anyObject(Date.class));
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                scheduled.add((Runnable) getCurrentArguments()[0]);
+                return null;
+            }
+        }).anyTimes();
+        replay(scheduler);
+        accumulator = new EventWriteBehindAccumulator(transactionManager, scheduler);
+        accumulator.setEnabled(true);
+        accumulator.setMaxOccurrences(3);
+        accumulator.setFlushIntervalMillis(1000L);
+        accumulator.setFlusher(new EventWriteBehindAccumulator.Flusher() {
+            @Override
+            public String flush(byte[] fingerprintHash, final List<Event> events, EventPreCreateContext context)
+                    throws ZepException {
+                flushed.add(new ArrayList<Event>(events));
+                if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                        @Override
+                        public void afterCommit() {
+                            committed.addAndGet(events.size());
+                        }
+                    });
+                } else {
+                    committed.addAndGet(events.size());
+                }
+                if (!failures.isEmpty()) {
+                    throw failures.remove(0);
+                }
+                return "flushed-uuid";
+            }
+        });
+    }
+
+    private void runScheduled() {
+        List<Runnable> tasks = new ArrayList<Runnable>(scheduled);
+        scheduled.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    /* Offers the occurrences in a transaction which rolls back after the offers. */
+    private void offerAndRollBack(final byte[] hash, final int count) {
+        try {
+            transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    for (int i = 0; i < count; i++) {
+                        accumulator.offer(hash, createEvent(), context);
+                    }
+                    throw new IllegalStateException("Rolled back");
+                }
+            });
+            fail("Expected rollback");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testUntrackedNotHeld() throws ZepException {
+        assertNull(accumulator.offer(DaoUtils.sha1("fingerprint"), createEvent(), context));
+    }
+
+    @Test
+    public void testFlushOnMaxOccurrences() throws ZepException {
+        byte[] hash = DaoUtils.sha1("fingerprint");
+        accumulator.track(hash, "uuid", null);
+        assertEquals("uuid", accumulator.offer(hash, createEvent(), context));
+        assertEquals("uuid", accumulator.offer(hash, createEvent(), context));
+        assertTrue(flushed.isEmpty());
+        // The held occurrences are written on the scheduler, and the caller saves the last one.
+        assertNull(accumulator.offer(hash, createEvent(), context));
+        assertTrue(flushed.isEmpty());
+        runScheduled();
+        assertEquals(1, flushed.size());
+        assertEquals(2, flushed.get(0).size());
+        assertEquals(2, committed.get());
+        // The UUID returned by the flush is used for further occurrences.
+        assertEquals("flushed-uuid", accumulator.offer(hash, createEvent(), context));
+    }
+
+    @Test
+    public void testFlushExpiredDeadlockRetry() throws Exception {
+        byte[] hash = DaoUtils.sha1("fingerprint");
+        accumulator.track(hash, "uuid", null);
+        accumulator.offer(hash, createEvent(), context);
+        accumulator.offer(hash, createEvent(), context);
+        failures.add(new DeadlockLoserDataAccessException("Deadlock", null));
+        accumulator.flushExpired(Long.MAX_VALUE);
+        // The rolled back attempt wrote nothing and the retry wrote each occurrence once.
+        assertEquals(2, flushed.size());
+        assertEquals(2, committed.get());
+        accumulator.flushExpired(Long.MAX_VALUE);
+        assertEquals(2, flushed.size());
+        assertEquals(2, committed.get());
+    }
+
+    @Test
+    public void testFlushExpiredRollback() throws Exception {
+        byte[] hash = DaoUtils.sha1("fingerprint");
+        accumulator.track(hash, "uuid", null);
+        accumulator.offer(hash, createEvent(), context);
+        accumulator.offer(hash, createEvent(), context);
+        failures.add(new IllegalStateException("Failed"));
+        try {
+            accumulator.flushExpired(Long.MAX_VALUE);
+            fail("Expected the flush to fail");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(0, committed.get());
+        // Requeued once, so the next flush writes each occurrence once.
+        accumulator.flushExpired(Long.MAX_VALUE);
+        assertEquals(2, flushed.get(1).size());
+        assertEquals(2, committed.get());
+    }
+
+    @Test
+    public void testOfferRollback() throws Exception {
+        byte[] hash = DaoUtils.sha1("fingerprint");
+        accumulator.track(hash, "uuid", null);
+        accumulator.offer(hash, createEvent(), context);
+        // The caller's occurrence is withdrawn, as it will be redelivered.
+        offerAndRollBack(hash, 1);
+        accumulator.offer(hash, createEvent(), context);
+        accumulator.flushExpired(Long.MAX_VALUE);
+        assertEquals(2, committed.get());
+    }
+
+    @Test
+    public void testOfferAtMaxOccurrencesRollback() throws Exception {
+        byte[] hash = DaoUtils.sha1("fingerprint");
+        accumulator.track(hash, "uuid", null);
+        accumulator.offer(hash, createEvent(), context);
+        accumulator.offer(hash, createEvent(), context);
+        // The offer which reaches the maximum is rolled back with the caller's transaction.
+        offerAndRollBack(hash, 1);
+        runScheduled();
+        assertEquals(2, committed.get());
+        // The redelivered occurrence is held, and only written once.
+        assertEquals("flushed-uuid", accumulator.offer(hash, createEvent(), context));
+        accumulator.flushExpired(Long.MAX_VALUE);
+        assertEquals(3, committed.get());
+        assertTrue(scheduled.isEmpty());
+    }
+
+    @Test
+    public void testScheduledFlushRollback() throws Exception {
+        byte[] hash = DaoUtils.sha1("fingerprint");
+        accumulator.track(hash, "uuid", null);
+        accumulator.offer(hash, createEvent(), context);
+        accumulator.offer(hash, createEvent(), context);
+        assertNull(accumulator.offer(hash, createEvent(), context));
+        failures.add(new IllegalStateException("Failed"));
+        runScheduled();
+        assertEquals(0, committed.get());
+        // The held occurrences are requeued once.
+        accumulator.flushExpired(Long.MAX_VALUE);
+        assertEquals(2, committed.get());
+    }
+
+    @Test
+    public void testFlushExpired() throws Exception {
+        byte[] hash = DaoUtils.sha1("fingerprint");
+        accumulator.track(hash, "uuid", null);
+        accumulator.offer(hash, createEvent(), context);
+        accumulator.flushExpired(System.currentTimeMillis());
+        assertTrue(flushed.isEmpty());
+        accumulator.flushExpired(System.currentTimeMillis() + 1000L);
+        assertEquals(1, flushed.size());
+    }
+
+    @Test
+    public void testInvalidateByUuids() throws ZepException {
+        byte[] hash = DaoUtils.sha1("fingerprint");
+        accumulator.track(hash, "uuid", null);
+        accumulator.offer(hash, createEvent(), context);
+        accumulator.invalidateByUuids(Collections.singletonList("uuid"));
+        assertEquals(1, flushed.size());
+        // No longer tracked - the caller must save further occurrences.
+        assertNull(accumulator.offer(hash, createEvent(), context));
+    }
+
+    @Test
+    public void testInvalidateByFlushedUuid() throws ZepException {
+        byte[] hash = DaoUtils.sha1("fingerprint");
+        accumulator.track(hash, "uuid", null);
+        for (int i = 0; i < 4; i++) {
+            accumulator.offer(hash, createEvent(), context);
+            runScheduled();
+        }
+        assertEquals(1, flushed.size());
+        // The entry is found by the UUID returned by the flush, not the one it was tracked with.
+        accumulator.invalidateByUuids(Collections.singletonList("uuid"));
+        assertEquals(1, flushed.size());
+        accumulator.invalidateByUuids(Collections.singletonList("flushed-uuid"));
+        assertEquals(2, flushed.size());
+        assertNull(accumulator.offer(hash, createEvent(), context));
+    }
+
+    @Test
+    public void testIdleFingerprintNotTracked() throws Exception {
+        byte[] hash = DaoUtils.sha1("fingerprint");
+        byte[] clearHash = DaoUtils.sha1("clear");
+        accumulator.setIdleTimeoutMillis(1000L);
+        accumulator.track(hash, "uuid", clearHash);
+        accumulator.flushExpired(System.currentTimeMillis() + 1000L);
+        assertNull(accumulator.offer(hash, createEvent(), context));
+        // Tracking the fingerprint again indexes it again.
+        accumulator.track(hash, "uuid", clearHash);
+        accumulator.offer(hash, createEvent(), context);
+        accumulator.invalidateByClearHashes(Collections.singletonList(clearHash));
+        assertEquals(1, flushed.size());
+    }
+
+    @Test
+    public void testInvalidateByClearHashes() throws ZepException {
+        byte[] hash = DaoUtils.sha1("fingerprint");
+        byte[] clearHash = DaoUtils.sha1("clear");
+        accumulator.track(hash, "uuid", clearHash);
+        accumulator.offer(hash, createEvent(), context);
+        accumulator.invalidateByClearHashes(Collections.singletonList(DaoUtils.sha1("other")));
+        assertTrue(flushed.isEmpty());
+        accumulator.invalidateByClearHashes(Collections.singletonList(DaoUtils.sha1("clear")));
+        assertEquals(1, flushed.size());
+    }
+}
@@ -14,6 +14,7 @@ import org.easymock.Capture;
 import org.junit.Test;
 import org.zenoss.amqp.AmqpException;
 import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.protobufs.zep.Zep.EventStatus;
 import org.zenoss.protobufs.zep.Zep.EventSummary;
 import org.zenoss.protobufs.zep.Zep.ZepRawEvent;
 import org.zenoss.zep.Counters;
@@ -28,6 +29,7 @@ import org.zenoss.zep.plugins.EventPreCreatePlugin;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 import static org.easymock.EasyMock.*;
@@ -115,6 +117,66 @@ public class EventProcessorImplTest {
         assertEquals(summary, postPlugin.eventSummary);
     }
 
+    private static class SampleDropPlugin extends EventPreCreatePlugin {
+        @Override
+        public Event processEvent(Event evt, EventPreCreateContext ctx) {
+            if (evt.getSummary().startsWith("drop")) {
+                return evt.toBuilder().setStatus(EventStatus.STATUS_DROPPED).build();
+            }
+            return evt;
+        }
+    }
+
+    private static ZepRawEvent createRawEvent(String summary) {
+        Event.Builder eventBuilder = Event.newBuilder();
+        eventBuilder.setUuid(UUID.randomUUID().toString());
+        eventBuilder.setCreatedTime(System.currentTimeMillis());
+        eventBuilder.setSummary(summary);
+        return ZepRawEvent.newBuilder().setEvent(eventBuilder.build()).build();
+    }
+
+    @Test
+    public void testEventProcessorBatch() throws ZepException {
+        PluginService pluginService = createMock(PluginService.class);
+        EventSummaryDao eventSummaryDao = createMock(EventSummaryDao.class);
+        Counters counters = createNiceMock(Counters.class);
+        SamplePostPlugin postPlugin = new SamplePostPlugin();
+
+        Capture<List<Event>> batchEvents = new Capture<List<Event>>();
+        Capture<List<EventPreCreateContext>> batchContexts = new Capture<List<EventPreCreateContext>>();
+
+        String uuid1 = UUID.randomUUID().toString();
+        String uuid2 = UUID.randomUUID().toString();
+        EventSummary summary = EventSummary.newBuilder().setUuid(uuid2).build();
+        expect(eventSummaryDao.createBatch(capture(batchEvents), capture(batchContexts)))
+                .andReturn(Arrays.asList(uuid1, uuid2));
+        expect(pluginService.getPluginsByType(EventPreCreatePlugin.class))
+                .andReturn(Arrays.<EventPreCreatePlugin>asList(new SampleDropPlugin(), new SampleTransformPlugin()));
+        expect(pluginService.getPluginsByType(EventPostCreatePlugin.class))
+                .andReturn(Arrays.<EventPostCreatePlugin> asList(postPlugin));
+        expect(eventSummaryDao.findByUuid(uuid1)).andReturn(summary);
+        expect(eventSummaryDao.findByUuid(uuid2)).andReturn(summary);
+        replay(pluginService, eventSummaryDao, counters);
+
+        EventProcessorImpl eventProcessor = new EventProcessorImpl();
+        eventProcessor.setPluginService(pluginService);
+        eventProcessor.setEventSummaryDao(eventSummaryDao);
+        eventProcessor.setCounters(counters);
+
+        eventProcessor.processEvents(Arrays.asList(createRawEvent("first"), createRawEvent("drop me"),
+                createRawEvent("second")));
+        verify(pluginService, eventSummaryDao);
+
+        List<Event> events = batchEvents.getValue();
+        assertEquals(2, events.size());
+        assertEquals(2, batchContexts.getValue().size());
+        assertEquals("FIRST!!!", events.get(0).getSummary());
+        assertEquals("SECOND!!!", events.get(1).getSummary());
+        assertEquals("/Unknown", events.get(0).getEventClass());
+        assertEquals(events.get(1), postPlugin.eventOccurrence);
+        assertEquals(summary, postPlugin.eventSummary);
+    }
+
     @Test
     public void testEventProcessorNoEventClass() throws ZepException,
             IOException, AmqpException {
@@ -0,0 +1,79 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.zenoss.zep.events.EventIndexQueueSizeEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FlowControllerTest {
+
+    private FlowController controller;
+    private final List<Double> credits = new ArrayList<Double>();
+
+    @Before
+    public void setUp() {
+        controller = new FlowController(null);
+        controller.setIndexQueueThreshold(1000);
+        controller.addListener(new FlowController.Listener() {
+            @Override
+            public void flowChanged(boolean paused, double credit) {
+                credits.add(paused ? -1.0 : credit);
+            }
+        });
+    }
+
+    private void indexQueueSize(long size) {
+        controller.onApplicationEvent(new EventIndexQueueSizeEvent(this, "event_summary_index_queue", size, 100));
+    }
+
+    @Test
+    public void testCreditScalesWithPressure() {
+        indexQueueSize(0);
+        assertTrue(credits.isEmpty());
+        indexQueueSize(500);
+        assertFalse(controller.isPaused());
+        assertEquals(0.5, controller.getCredit(), 0.001);
+        assertEquals(1, credits.size());
+    }
+
+    @Test
+    public void testPauseAndResume() {
+        indexQueueSize(1000);
+        assertTrue(controller.isPaused());
+        assertEquals(-1.0, credits.get(0), 0.001);
+        // Below the threshold, but not yet below the resume ratio.
+        indexQueueSize(700);
+        assertTrue(controller.isPaused());
+        indexQueueSize(100);
+        assertFalse(controller.isPaused());
+        assertEquals(0.9, controller.getCredit(), 0.001);
+    }
+
+    @Test
+    public void testIgnoresArchiveQueue() {
+        controller.onApplicationEvent(new EventIndexQueueSizeEvent(this, "event_archive_index_queue", 5000, 100));
+        assertFalse(controller.isPaused());
+        assertTrue(credits.isEmpty());
+    }
+
+    @Test
+    public void testDisabled() {
+        controller.setEnabled(false);
+        indexQueueSize(5000);
+        assertFalse(controller.isPaused());
+    }
+}
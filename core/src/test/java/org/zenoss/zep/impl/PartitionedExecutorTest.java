@@ -0,0 +1,153 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PartitionedExecutorTest {
+
+    @Test
+    public void testSameKeyRunsInOrder() throws InterruptedException {
+        PartitionedExecutor executor = new PartitionedExecutor("test", 4, 2);
+        final Map<String, List<Integer>> results = Collections.synchronizedMap(new HashMap<String, List<Integer>>());
+        final int numTasks = 100;
+        for (int i = 0; i < numTasks; i++) {
+            for (final String key : new String[] { "a", "b", "c" }) {
+                final int value = i;
+                executor.execute(key, new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Integer> values = results.get(key);
+                        if (values == null) {
+                            values = new ArrayList<Integer>();
+                            results.put(key, values);
+                        }
+                        values.add(value);
+                    }
+                });
+            }
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10L, TimeUnit.SECONDS));
+        assertEquals(3, results.size());
+        for (List<Integer> values : results.values()) {
+            assertEquals(numTasks, values.size());
+            for (int i = 0; i < numTasks; i++) {
+                assertEquals(i, values.get(i).intValue());
+            }
+        }
+        assertEquals(0, executor.getQueueDepth());
+    }
+
+    @Test
+    public void testLaneIsStable() {
+        PartitionedExecutor executor = new PartitionedExecutor("test", 8, 1);
+        try {
+            for (int i = 0; i < 100; i++) {
+                String key = "fingerprint" + i;
+                int lane = executor.getLane(key);
+                assertTrue(lane >= 0 && lane < 8);
+                assertEquals(lane, executor.getLane(new String(key)));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDisabled() {
+        PartitionedExecutor executor = new PartitionedExecutor("test", 0, 1);
+        assertFalse(executor.isEnabled());
+    }
+
+    @Test
+    public void testShutdownRejectsBlockedTask() throws Exception {
+        final PartitionedExecutor executor = new PartitionedExecutor("test", 1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger ran = new AtomicInteger();
+        final Runnable counter = new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        };
+        executor.execute("a", new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(10L, TimeUnit.SECONDS));
+        executor.execute("a", counter);
+
+        // The lane is full, so the next task blocks until the lane is shut down
+        final ExecutorService submitter = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Void> blocked = submitter.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    executor.execute("a", counter);
+                    return null;
+                }
+            });
+            try {
+                blocked.get(250L, TimeUnit.MILLISECONDS);
+                fail("Expected the task to block");
+            } catch (TimeoutException e) {
+                // Expected
+            }
+            executor.shutdown();
+            release.countDown();
+            try {
+                blocked.get(10L, TimeUnit.SECONDS);
+                fail("Expected the blocked task to be rejected");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+        } finally {
+            submitter.shutdownNow();
+        }
+        assertTrue(executor.awaitTermination(10L, TimeUnit.SECONDS));
+        assertEquals(1, ran.get());
+        assertEquals(0, executor.getQueueDepth());
+
+        try {
+            executor.execute("a", counter);
+            fail("Expected the task to be rejected");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+    }
+}
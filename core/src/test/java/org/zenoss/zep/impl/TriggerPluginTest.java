@@ -21,6 +21,10 @@ import org.zenoss.protobufs.zep.Zep.Event;
 import org.zenoss.protobufs.zep.Zep.EventActor;
 import org.zenoss.protobufs.zep.Zep.EventDetail;
 import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.protobufs.zep.Zep.EventTrigger;
+import org.zenoss.protobufs.zep.Zep.EventTriggerSubscription;
+import org.zenoss.protobufs.zep.Zep.Rule;
+import org.zenoss.protobufs.zep.Zep.RuleType;
 import org.zenoss.protobufs.zep.Zep.SyslogPriority;
 import org.zenoss.zep.ZepConstants;
 import org.zenoss.zep.ZepException;
@@ -30,8 +34,11 @@ import org.zenoss.zep.impl.TriggerPlugin.RuleContext;
 import org.zenoss.zep.impl.TriggerPlugin.TriggerRuleCache;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ScheduledFuture;
@@ -153,7 +160,7 @@ public class TriggerPluginTest {
                 "\"/Infrastructure\" in dev.systems"
         };
 
-        RuleContext ctx = RuleContext.createContext(triggerPlugin.pythonHelper.getToObject(), evtSummary);
+        RuleContext ctx = RuleContext.createContext(evtSummary);
         for (String rule : true_rules) {
             String triggerUuid = UUID.randomUUID().toString();
             assertTrue(rule + " (should evaluate True)",
@@ -176,8 +183,8 @@ public class TriggerPluginTest {
         String triggerUuid = UUID.randomUUID().toString();
         String rule = "\"/Production/Infrastructure\" not in dev.groups";
 
-        RuleContext ctx = RuleContext.createContext(triggerPlugin.pythonHelper.getToObject(), evtSummary.build());
-        assertEquals(0, ctx.device.__getattr__("groups").__len__());
+        RuleContext ctx = RuleContext.createContext(evtSummary.build());
+        assertEquals(0, ctx.getPythonArguments()[1].__getattr__("groups").__len__());
         assertTrue(rule + " (should evaluate True)", this.triggerPlugin.eventSatisfiesRule(ctx, triggerUuid, rule));
     }
 
@@ -190,8 +197,8 @@ public class TriggerPluginTest {
         String triggerUuid = UUID.randomUUID().toString();
         String rule = "\"/Production/Infrastructure\" not in dev.systems";
 
-        RuleContext ctx = RuleContext.createContext(triggerPlugin.pythonHelper.getToObject(), evtSummary.build());
-        assertEquals(0, ctx.device.__getattr__("systems").__len__());
+        RuleContext ctx = RuleContext.createContext(evtSummary.build());
+        assertEquals(0, ctx.getPythonArguments()[1].__getattr__("systems").__len__());
         assertTrue(rule + " (should evaluate True)", this.triggerPlugin.eventSatisfiesRule(ctx, triggerUuid, rule));
     }
 
@@ -207,7 +214,7 @@ public class TriggerPluginTest {
 
         String triggerUuid = UUID.randomUUID().toString();
         String rule = "(\"chassis-12\" not in sub_elem.name) and (\"ucs-12\" not in elem.name)";
-        RuleContext ctx = RuleContext.createContext(triggerPlugin.pythonHelper.getToObject(), evtSummary.build());
+        RuleContext ctx = RuleContext.createContext(evtSummary.build());
         assertTrue(rule + " (should evalutate True)", this.triggerPlugin.eventSatisfiesRule(ctx, triggerUuid, rule));
     }
 
@@ -220,12 +227,13 @@ public class TriggerPluginTest {
         // Validate that we cache an invalid rule - prevents compiling the same rule over and over again
         String triggerUuid = UUID.randomUUID().toString();
         String rule = "THIS IS INVALID PYTHON";
-        RuleContext ctx = RuleContext.createContext(triggerPlugin.pythonHelper.getToObject(), evtSummary);
+        RuleContext ctx = RuleContext.createContext(evtSummary);
         assertFalse(this.triggerPlugin.eventSatisfiesRule(ctx, triggerUuid, rule));
         TriggerRuleCache ruleCache = this.triggerPlugin.triggerRuleCache.get(triggerUuid);
         assertNotNull(ruleCache);
         assertEquals(rule, ruleCache.getRuleSource());
         assertNull(ruleCache.getPyFunction());
+        assertNull(ruleCache.getCompiledRule());
 
         // Run it again and validate that the ruleCache didn't change.
         assertFalse(this.triggerPlugin.eventSatisfiesRule(ctx, triggerUuid, rule));
@@ -238,5 +246,58 @@ public class TriggerPluginTest {
         assertNotNull(ruleCache);
         assertEquals(rule, ruleCache.getRuleSource());
         assertNotNull(ruleCache.getPyFunction());
+        assertNotNull(ruleCache.getCompiledRule());
+    }
+
+    @Test
+    public void testParallelEvaluation() throws Exception {
+        String[] rules = {
+                "evt.severity >= 3",
+                "evt.count > 15",
+                "\"/US/Texas\" in dev.groups",
+                "dev.production_state == 1000 and evt.severity == 4",
+                "len(evt.message) > 4"
+        };
+        List<EventTrigger> triggers = new ArrayList<EventTrigger>();
+        for (String rule : rules) {
+            String triggerUuid = UUID.randomUUID().toString();
+            EventTriggerSubscription subscription = EventTriggerSubscription.newBuilder()
+                    .setUuid(UUID.randomUUID().toString()).setTriggerUuid(triggerUuid)
+                    .setSubscriberUuid(UUID.randomUUID().toString()).buildPartial();
+            triggers.add(EventTrigger.newBuilder().setUuid(triggerUuid)
+                    .setRule(Rule.newBuilder().setApiVersion(1).setType(RuleType.RULE_TYPE_JYTHON).setSource(rule))
+                    .addSubscriptions(subscription).buildPartial());
+        }
+        List<EventSummary> events = new ArrayList<EventSummary>();
+        for (int i = 0; i < 20; i++) {
+            Event.Builder occurrence = createEventOccurrence(createActor().build())
+                    .setSeverity(Zep.EventSeverity.valueOf(i % 6));
+            events.add(createEvent(occurrence.build()).setCount(i).build());
+        }
+
+        TriggerPlugin parallelPlugin = new TriggerPlugin();
+        parallelPlugin.setTriggerRuleCacheSize(10);
+        parallelPlugin.setRuleEvaluationThreads(4);
+        parallelPlugin.setSignalSpoolDao(this.spoolDaoMock);
+        TaskScheduler scheduler = createNiceMock(TaskScheduler.class);
+        replay(scheduler);
+        parallelPlugin.setTaskScheduler(scheduler);
+        parallelPlugin.start(Collections.<String, String>emptyMap());
+        try {
+            Map<EventSummary, BitSet> matches = parallelPlugin.evaluateTriggers(events, triggers,
+                    new TriggerRuleIndex(triggers));
+            assertEquals(events.size(), matches.size());
+            for (EventSummary event : events) {
+                RuleContext ctx = RuleContext.createContext(event);
+                for (int i = 0; i < triggers.size(); i++) {
+                    EventTrigger trigger = triggers.get(i);
+                    assertEquals(trigger.getRule().getSource(),
+                            triggerPlugin.eventSatisfiesRule(ctx, trigger.getUuid(), trigger.getRule().getSource()),
+                            matches.get(event).get(i));
+                }
+            }
+        } finally {
+            parallelPlugin.stop();
+        }
     }
 }
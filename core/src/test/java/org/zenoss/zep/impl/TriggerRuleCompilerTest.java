@@ -0,0 +1,173 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.python.core.PyException;
+import org.python.core.PyFunction;
+import org.zenoss.protobufs.model.Model.ModelElementType;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.protobufs.zep.Zep.EventActor;
+import org.zenoss.protobufs.zep.Zep.EventSeverity;
+import org.zenoss.protobufs.zep.Zep.EventStatus;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.zep.ZepConstants;
+import org.zenoss.zep.impl.TriggerPlugin.PythonHelper;
+import org.zenoss.zep.impl.TriggerPlugin.RuleContext;
+import org.zenoss.zep.impl.TriggerRuleCompiler.EvaluationException;
+import org.zenoss.zep.impl.TriggerRuleCompiler.UnsupportedRuleException;
+
+import static org.junit.Assert.*;
+
+public class TriggerRuleCompilerTest {
+
+    private PythonHelper pythonHelper;
+    private RuleContext ctx;
+
+    @Before
+    public void setUp() {
+        pythonHelper = new PythonHelper();
+        EventActor.Builder actor = EventActor.newBuilder().setElementTypeId(ModelElementType.DEVICE)
+                .setElementIdentifier("BHM1000").setElementTitle("BHM TITLE")
+                .setElementSubTypeId(ModelElementType.COMPONENT).setElementSubIdentifier("Fuse-10A");
+        Event.Builder event = Event.newBuilder().setActor(actor).setMessage("TEST - 1-2-check")
+                .setSummary("  Padded summary\t").setEventClass("/Status/Ping")
+                .setSeverity(EventSeverity.SEVERITY_ERROR);
+        event.addDetailsBuilder().setName(ZepConstants.DETAIL_DEVICE_GROUPS).addValue("/US/Texas/Austin");
+        event.addDetailsBuilder().setName(ZepConstants.DETAIL_DEVICE_PRODUCTION_STATE).addValue("1000");
+        event.addDetailsBuilder().setName("zenpack.detail").addValue("value");
+        EventSummary summary = EventSummary.newBuilder().setStatus(EventStatus.STATUS_NEW).setCount(10)
+                .addOccurrence(event).build();
+        ctx = RuleContext.createContext(summary);
+    }
+
+    @After
+    public void tearDown() {
+        pythonHelper.cleanup();
+    }
+
+    private boolean evaluateJython(String rule) {
+        PyFunction fn = (PyFunction) pythonHelper.getPythonInterpreter().eval(
+                "lambda evt, dev, elem, sub_elem, zp_det : " + rule);
+        try {
+            return fn.__call__(ctx.getPythonArguments()).__nonzero__();
+        } catch (PyException e) {
+            return false;
+        }
+    }
+
+    private boolean evaluateCompiled(String rule) throws UnsupportedRuleException {
+        try {
+            return TriggerRuleCompiler.compile(rule).matches(ctx);
+        } catch (EvaluationException e) {
+            assertFalse(rule + " (should not fall back)", e.isFallback());
+            return false;
+        }
+    }
+
+    private void assertRules(boolean expected, String... rules) throws UnsupportedRuleException {
+        for (String rule : rules) {
+            assertEquals(rule + " (Jython)", expected, evaluateJython(rule));
+            assertEquals(rule + " (compiled)", expected, evaluateCompiled(rule));
+        }
+    }
+
+    @Test
+    public void testCompiledRules() throws UnsupportedRuleException {
+        assertRules(true,
+                "evt.severity == 4",
+                "evt.severity >= 3 and evt.status == 0",
+                "3 <= evt.severity < 5",
+                "evt.severity != -1",
+                "evt.severity == 4.0",
+                "evt.count == True or evt.count > 5",
+                "not evt.message.startswith('BEST')",
+                "evt.message.endswith(\"check\")",
+                "evt.summary.strip() == 'Padded summary'",
+                "evt.summary.upper().strip().startswith('PADDED')",
+                "evt.event_class in ('/Status/Ping', '/Status/Snmp')",
+                "evt.event_class not in ['/Status/Snmp']",
+                "'Ping' in evt.event_class",
+                "'/US/Texas' in dev.groups",
+                "dev.production_state >= 1000 and dev.priority == 3",
+                "dev.name == 'BHM' ' TITLE'",
+                "elem.production_state == 1000",
+                "sub_elem.name.lower() == 'fuse-10a'",
+                "sub_elem.uuid == ''",
+                "zp_det.zenpack_detail == 'value'",
+                "evt.message is not None",
+                "(evt.severity == 4) and (evt.agent == '' or evt.monitor == 'localhost')",
+                "evt.message.startswith(r'TEST')"
+        );
+        assertRules(false,
+                "evt.severity == 5",
+                "evt.severity > 4 or evt.status > 0",
+                "not evt.severity",
+                "evt.message == 'TEST - 1-2-check' and ''",
+                "evt.event_class in ()",
+                "'/Texas' in dev.groups",
+                "dev.systems",
+                "evt.nosuchattribute == 1",
+                "evt.syslog_priority == 7",
+                "zp_det.missing == 'value'",
+                "sub_elem.production_state == 1000",
+                "dev.groups.startswith('/US')",
+                "1 in evt.message",
+                "evt.message is None"
+        );
+    }
+
+    @Test
+    public void testUnsupportedRules() {
+        String[] rules = {
+                "",
+                "1 = 0",
+                "len(dev.groups) > 0",
+                "evt.severity + 1 > 4",
+                "evt.message[0] == 'T'",
+                "evt.message.count('T') == 1",
+                "evt.__class__ is not None",
+                "evt.severity is 4",
+                "evt.message == u'TEST'",
+                "evt.severity == 0x4",
+                "evt",
+                "lambda: True",
+                "evt.message == '''TEST'''"
+        };
+        for (String rule : rules) {
+            try {
+                TriggerRuleCompiler.compile(rule);
+                fail(rule + " (should not compile)");
+            } catch (UnsupportedRuleException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testFallback() throws UnsupportedRuleException {
+        String[] rules = {
+                "[evt.severity] == [4]",
+                "evt.message > 5",
+                "evt.message.startswith(('A', 'T'))"
+        };
+        for (String rule : rules) {
+            try {
+                TriggerRuleCompiler.compile(rule).matches(ctx);
+                fail(rule + " (should fall back to Jython)");
+            } catch (EvaluationException e) {
+                assertTrue(e.isFallback());
+            }
+        }
+    }
+}
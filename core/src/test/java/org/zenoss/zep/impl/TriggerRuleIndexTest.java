@@ -0,0 +1,90 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.impl;
+
+import org.junit.Test;
+import org.zenoss.protobufs.model.Model.ModelElementType;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.protobufs.zep.Zep.EventActor;
+import org.zenoss.protobufs.zep.Zep.EventSeverity;
+import org.zenoss.protobufs.zep.Zep.EventStatus;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.protobufs.zep.Zep.EventTrigger;
+import org.zenoss.protobufs.zep.Zep.Rule;
+import org.zenoss.protobufs.zep.Zep.RuleType;
+import org.zenoss.zep.ZepConstants;
+import org.zenoss.zep.impl.TriggerPlugin.RuleContext;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class TriggerRuleIndexTest {
+
+    private static EventTrigger createTrigger(String source) {
+        return EventTrigger.newBuilder().setUuid(UUID.randomUUID().toString())
+                .setRule(Rule.newBuilder().setApiVersion(1).setType(RuleType.RULE_TYPE_JYTHON).setSource(source))
+                .build();
+    }
+
+    private static RuleContext createContext(EventSeverity severity, String eventClass, int prodState,
+                                             String deviceClass) {
+        Event.Builder event = Event.newBuilder().setSeverity(severity).setEventClass(eventClass)
+                .setActor(EventActor.newBuilder().setElementTypeId(ModelElementType.DEVICE)
+                        .setElementIdentifier("localhost"));
+        event.addDetailsBuilder().setName(ZepConstants.DETAIL_DEVICE_PRODUCTION_STATE)
+                .addValue(Integer.toString(prodState));
+        event.addDetailsBuilder().setName(ZepConstants.DETAIL_DEVICE_CLASS).addValue(deviceClass);
+        EventSummary summary = EventSummary.newBuilder().setStatus(EventStatus.STATUS_NEW).addOccurrence(event)
+                .build();
+        return RuleContext.createContext(summary);
+    }
+
+    private static BitSet bits(int... indexes) {
+        BitSet bits = new BitSet();
+        for (int index : indexes) {
+            bits.set(index);
+        }
+        return bits;
+    }
+
+    @Test
+    public void testCandidates() {
+        String[] rules = {
+                "(dev.production_state == 1000) and (evt.severity >= 4)",
+                "evt.severity in (3, 4) and evt.event_class == '/Status/Ping'",
+                "(dev.device_class == '/Server/Linux' and evt.severity > 4) and evt.agent == 'zenping'",
+                "4 <= evt.severity < 5",
+                "evt.severity == 5 or evt.event_class == '/Status/Ping'",
+                "dev.production_state == 1000 and dev.production_state < 500",
+                "len(dev.groups) > 0 and evt.severity == 5",
+                "not evt.severity == 5",
+                "evt.event_class > 5 and evt.severity == 4.0",
+        };
+        List<EventTrigger> triggers = new ArrayList<EventTrigger>();
+        for (String rule : rules) {
+            triggers.add(createTrigger(rule));
+        }
+        triggers.add(EventTrigger.newBuilder().setUuid(UUID.randomUUID().toString()).buildPartial());
+        TriggerRuleIndex index = new TriggerRuleIndex(triggers);
+        assertEquals(6, index.getGuardedTriggerCount());
+
+        assertEquals(bits(0, 1, 3, 4, 6, 7, 8, 9), index.getCandidates(createContext(EventSeverity.SEVERITY_ERROR,
+                "/Status/Ping", 1000, "/Server/Linux")));
+        assertEquals(bits(0, 2, 4, 6, 7, 9), index.getCandidates(createContext(EventSeverity.SEVERITY_CRITICAL,
+                "/Status/Snmp", 1000, "/Server/Linux")));
+        assertEquals(bits(1, 4, 6, 7, 9), index.getCandidates(createContext(EventSeverity.SEVERITY_WARNING,
+                "/Status/Ping", 300, "/Server/Windows")));
+    }
+}
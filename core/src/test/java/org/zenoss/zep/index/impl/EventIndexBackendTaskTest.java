@@ -0,0 +1,69 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class EventIndexBackendTaskTest {
+
+    private static void assertTaskEquals(EventIndexBackendTask expected, EventIndexBackendTask actual) {
+        assertEquals(expected.op, actual.op);
+        assertEquals(expected.uuid, actual.uuid);
+        assertEquals(expected.lastSeen, actual.lastSeen);
+    }
+
+    @Test
+    public void testBinaryRoundTrip() {
+        EventIndexBackendTask task = EventIndexBackendTask.Index(UUID.randomUUID().toString(), 1400000000000L);
+        byte[] encoded = task.toBytes();
+        assertTrue(EventIndexBackendTask.isBinary(encoded));
+        // header + 16 byte uuid + 6 byte varint
+        assertEquals(23, encoded.length);
+        assertTaskEquals(task, EventIndexBackendTask.parse(encoded));
+    }
+
+    @Test
+    public void testBinaryFlush() {
+        EventIndexBackendTask task = EventIndexBackendTask.Flush();
+        byte[] encoded = task.toBytes();
+        assertEquals(1, encoded.length);
+        assertTaskEquals(task, EventIndexBackendTask.parse(encoded));
+    }
+
+    @Test
+    public void testBinaryNonCanonicalUuid() {
+        EventIndexBackendTask task = EventIndexBackendTask.Index("not-a-uuid", null);
+        assertTaskEquals(task, EventIndexBackendTask.parse(task.toBytes()));
+        task = EventIndexBackendTask.Index(UUID.randomUUID().toString().toUpperCase(), -1L);
+        assertTaskEquals(task, EventIndexBackendTask.parse(task.toBytes()));
+    }
+
+    @Test
+    public void testTextEncodingStillReadable() {
+        EventIndexBackendTask task = EventIndexBackendTask.Index(UUID.randomUUID().toString(), 1400000000000L);
+        byte[] text = task.toString().getBytes(Charset.forName("UTF-8"));
+        assertFalse(EventIndexBackendTask.isBinary(text));
+        assertTaskEquals(task, EventIndexBackendTask.parse(text));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedBinary() {
+        byte[] encoded = EventIndexBackendTask.Index(UUID.randomUUID().toString(), 1L).toBytes();
+        byte[] truncated = new byte[10];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        EventIndexBackendTask.parse(truncated);
+    }
+}
@@ -88,6 +88,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @ContextConfiguration({"classpath:zep-config.xml"})
 public class EventIndexDaoImplIT extends AbstractTransactionalJUnit4SpringContextTests {
@@ -464,7 +465,7 @@ public class EventIndexDaoImplIT extends AbstractTransactionalJUnit4SpringContex
 
         List<String> queries = Arrays.asList("tes*", "test", "test-jboss*", "zenoss", "loc", "test-jboss*",
                 "test-jboss.zenoss.loc", "\"test-jboss.zenoss.loc\"", "noss", "\"TEST-jBoss.Zenoss.lOc\"",
-                "\"test-jboss*\"");
+                "\"test-jboss*\"", "\"*zenoss.LOC\"", "\"*jboss.zen*\"", "\"*-j*ss.*\"", "*jboss", "jb*ss");
         for (String query : queries) {
             EventFilter.Builder filterBuilder = EventFilter.newBuilder();
             filterBuilder.addElementIdentifier(query);
@@ -1480,6 +1481,95 @@ public class EventIndexDaoImplIT extends AbstractTransactionalJUnit4SpringContex
         }
     }
 
+    @Test
+    public void testSavedSearchPages() throws ZepException {
+        Set<String> uuids = new HashSet<String>();
+        for (int i = 0; i < 5; i++) {
+            EventSummary summary = createSummaryNew(EventTestUtils.createSampleEvent());
+            eventIndexDao.index(summary);
+            uuids.add(summary.getUuid());
+        }
+        EventQuery query = EventQuery.newBuilder().setTimeout(60)
+                .addSort(EventSort.newBuilder().setField(Field.LAST_SEEN).setDirection(Direction.DESCENDING))
+                .build();
+        String searchUuid = this.eventIndexDao.createSavedSearch(query);
+        try {
+            Set<String> found = new HashSet<String>();
+            for (int offset = 0; offset < uuids.size(); offset += 2) {
+                EventSummaryResult result = this.eventIndexDao.savedSearch(searchUuid, offset, 2);
+                assertEquals(uuids.size(), result.getTotal());
+                for (EventSummary summary : result.getEventsList()) {
+                    assertTrue(found.add(summary.getUuid()));
+                }
+            }
+            assertEquals(uuids, found);
+
+            EventSummaryResult result = this.eventIndexDao.savedSearchUuids(searchUuid, 0, 2);
+            assertEquals(2, result.getEventsCount());
+            assertTrue(uuids.contains(result.getEvents(0).getUuid()));
+        } finally {
+            this.eventIndexDao.deleteSavedSearch(searchUuid);
+        }
+    }
+
+    private static List<String> getUuids(EventSummaryResult result) {
+        List<String> uuids = new ArrayList<String>(result.getEventsCount());
+        for (EventSummary summary : result.getEventsList()) {
+            uuids.add(summary.getUuid());
+        }
+        return uuids;
+    }
+
+    @Test
+    public void testSavedSearchCursorPaging() throws ZepException {
+        final int numEvents = 7;
+        for (int i = 0; i < numEvents; i++) {
+            // Several events share each last seen time
+            EventSummary summary = EventSummary.newBuilder(createSummaryNew(EventTestUtils.createSampleEvent()))
+                    .setLastSeenTime(1000L * (i % 3)).build();
+            eventIndexDao.index(summary);
+        }
+        EventQuery query = EventQuery.newBuilder().setTimeout(60)
+                .addSort(EventSort.newBuilder().setField(Field.LAST_SEEN).setDirection(Direction.DESCENDING))
+                .build();
+        String searchUuid = this.eventIndexDao.createSavedSearch(query);
+        try {
+            // Every hit in one page, collected by offset
+            List<String> expected = getUuids(this.eventIndexDao.savedSearch(searchUuid, 0, 100));
+            assertEquals(numEvents, expected.size());
+
+            // Following pages continue after the last hit of the previous page
+            List<String> found = new ArrayList<String>();
+            int offset = 0;
+            while (true) {
+                EventSummaryResult result = this.eventIndexDao.savedSearch(searchUuid, offset, 2);
+                assertEquals(numEvents, result.getTotal());
+                found.addAll(getUuids(result));
+                if (!result.hasNextOffset()) {
+                    break;
+                }
+                offset = result.getNextOffset();
+            }
+            assertEquals(expected, found);
+
+            // Pages which don't follow the previous page are searched by offset
+            assertEquals(expected.subList(2, 4), getUuids(this.eventIndexDao.savedSearch(searchUuid, 2, 2)));
+            assertEquals(expected.subList(5, 7), getUuids(this.eventIndexDao.savedSearch(searchUuid, 5, 2)));
+            assertEquals(expected.subList(1, 3), getUuids(this.eventIndexDao.savedSearchUuids(searchUuid, 1, 2)));
+            assertEquals(0, this.eventIndexDao.savedSearch(searchUuid, numEvents, 2).getEventsCount());
+        } finally {
+            this.eventIndexDao.deleteSavedSearch(searchUuid);
+        }
+
+        // The cursor doesn't outlive its saved search
+        try {
+            this.eventIndexDao.savedSearch(searchUuid, 2, 2);
+            fail("Expected the deleted saved search to be rejected");
+        } catch (ZepException e) {
+            // Expected
+        }
+    }
+
     @Test
     public void testFailMaxCountClauseParam() throws ZepException {
 
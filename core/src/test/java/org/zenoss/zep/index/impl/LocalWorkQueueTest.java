@@ -0,0 +1,131 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+package org.zenoss.zep.index.impl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LocalWorkQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static EventIndexBackendTask createTask() {
+        return EventIndexBackendTask.Index(UUID.randomUUID().toString(), System.currentTimeMillis());
+    }
+
+    @Test
+    public void testDeduplicates() throws Exception {
+        LocalWorkQueue queue = new LocalWorkQueue("test", 10);
+        EventIndexBackendTask task = createTask();
+        EventIndexBackendTask other = createTask();
+        queue.addAll(Arrays.asList(task, other, task));
+        queue.add(task);
+        assertEquals(2, queue.size());
+        assertEquals(Arrays.asList(task, other), queue.poll(10, 0, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.size());
+        assertTrue(queue.poll(10, 10, TimeUnit.MILLISECONDS).isEmpty());
+    }
+
+    private static Thread startAdd(final LocalWorkQueue queue, final EventIndexBackendTask task,
+                                   final List<Throwable> failures) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.add(task);
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testBlockedAddFails() throws Exception {
+        LocalWorkQueue queue = new LocalWorkQueue("test", 1);
+        queue.add(createTask());
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        // An interrupted add gives up
+        Thread thread = startAdd(queue, createTask(), failures);
+        Thread.sleep(100);
+        assertTrue(thread.isAlive());
+        thread.interrupt();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof IllegalStateException);
+
+        // Closing the queue fails waiting adds
+        thread = startAdd(queue, createTask(), failures);
+        Thread.sleep(100);
+        assertTrue(thread.isAlive());
+        queue.close();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertEquals(2, failures.size());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testRequeueOldTasks() throws Exception {
+        LocalWorkQueue queue = new LocalWorkQueue("test", 10);
+        queue.setInProgressDuration(1, TimeUnit.SECONDS);
+        EventIndexBackendTask completed = createTask();
+        EventIndexBackendTask abandoned = createTask();
+        queue.addAll(Arrays.asList(completed, abandoned));
+        queue.poll(10, 0, TimeUnit.MILLISECONDS);
+        queue.complete(completed);
+        assertEquals(0, queue.requeueOldTasks());
+        Thread.sleep(1100);
+        assertEquals(1, queue.requeueOldTasks());
+        assertEquals(Arrays.asList(abandoned), queue.poll(10, 0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testJournalRecovery() throws Exception {
+        File journal = new File(folder.getRoot(), "test.journal");
+        EventIndexBackendTask completed = createTask();
+        EventIndexBackendTask inProgress = createTask();
+        EventIndexBackendTask requeued = createTask();
+        EventIndexBackendTask queued = createTask();
+
+        LocalWorkQueue queue = new LocalWorkQueue("test", 10, journal, false);
+        queue.addAll(Arrays.asList(completed, inProgress, requeued));
+        assertEquals(3, queue.poll(10, 0, TimeUnit.MILLISECONDS).size());
+        queue.add(requeued);
+        queue.add(queued);
+        // Completing a task which was queued again while in-progress leaves it outstanding.
+        queue.completeAll(Arrays.asList(completed, requeued));
+        queue.close();
+
+        LocalWorkQueue recovered = new LocalWorkQueue("test", 10, journal, false);
+        List<EventIndexBackendTask> tasks = recovered.poll(10, 0, TimeUnit.MILLISECONDS);
+        assertEquals(3, tasks.size());
+        assertTrue(tasks.containsAll(Arrays.asList(inProgress, requeued, queued)));
+        recovered.completeAll(tasks);
+        recovered.close();
+
+        assertEquals(0, new LocalWorkQueue("test", 10, journal, false).size());
+    }
+}
@@ -0,0 +1,273 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl;
+
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.zep.dao.EventSummaryBaseDao;
+import org.zenoss.zep.index.EventIndexBackend;
+import org.zenoss.zep.index.WorkQueue;
+import org.zenoss.zep.index.WorkQueueBuilder;
+import org.zenoss.zep.index.impl.MultiBackendEventIndexDao.BackendStatus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the pipeline which fetches queued events from the database and indexes them.
+ */
+public class MultiBackendEventIndexDaoTest {
+
+    private static final String BACKEND_ID = "test";
+    private static final int NUM_EVENTS = 20;
+    private static final int FETCH_THREADS = 4;
+
+    /** The copy of each event in the "database", by uuid. */
+    private final Map<String, EventSummary> database = new ConcurrentHashMap<String, EventSummary>();
+    /** The copy of each event in the backend, by uuid. */
+    private final Map<String, EventSummary> indexed = new ConcurrentHashMap<String, EventSummary>();
+    private final AtomicInteger fetching = new AtomicInteger();
+    private final AtomicInteger maxFetching = new AtomicInteger();
+    private CheckingWorkQueue queue;
+    private MultiBackendEventIndexDao dao;
+
+    /**
+     * Checks that tasks are only completed once their event is indexed, and records the polled and completed tasks.
+     */
+    private class CheckingWorkQueue implements WorkQueue {
+        private final LocalWorkQueue delegate = new LocalWorkQueue(BACKEND_ID, 10000);
+        private final Set<EventIndexBackendTask> polled =
+                Collections.newSetFromMap(new ConcurrentHashMap<EventIndexBackendTask, Boolean>());
+        private final Set<EventIndexBackendTask> completed =
+                Collections.newSetFromMap(new ConcurrentHashMap<EventIndexBackendTask, Boolean>());
+        private final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public List<EventIndexBackendTask> poll(int maxSize, int timeout, TimeUnit unit) throws InterruptedException {
+            final List<EventIndexBackendTask> tasks = delegate.poll(maxSize, timeout, unit);
+            polled.addAll(tasks);
+            return tasks;
+        }
+
+        @Override
+        public void complete(EventIndexBackendTask task) {
+            completeAll(Collections.singleton(task));
+        }
+
+        @Override
+        public void completeAll(Collection<EventIndexBackendTask> tasks) {
+            for (EventIndexBackendTask task : tasks) {
+                final EventSummary event = indexed.get(task.uuid);
+                if (event == null || event.getLastSeenTime() < task.lastSeen) {
+                    errors.add("Completed " + task + " before it was indexed");
+                }
+                if (!completed.add(task)) {
+                    errors.add("Completed " + task + " twice");
+                }
+            }
+            delegate.completeAll(tasks);
+        }
+
+        @Override
+        public void add(EventIndexBackendTask task) {
+            delegate.add(task);
+        }
+
+        @Override
+        public void addAll(Collection<EventIndexBackendTask> tasks) {
+            delegate.addAll(tasks);
+        }
+
+        @Override
+        public long requeueOldTasks() {
+            return 0;
+        }
+
+        @Override
+        public long size() {
+            return delegate.size();
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        final Random random = new Random(1L);
+        final EventSummaryBaseDao eventDao = createNiceMock(EventSummaryBaseDao.class);
+        expect(eventDao.findByKey(anyObject(Collection.class))).andAnswer(new IAnswer<List<EventSummary>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public List<EventSummary> answer() throws Throwable {
+                final int concurrent = fetching.incrementAndGet();
+                try {
+                    int max = maxFetching.get();
+                    while (max < concurrent && !maxFetching.compareAndSet(max, concurrent)) {
+                        max = maxFetching.get();
+                    }
+                    final List<EventSummary> events = new ArrayList<EventSummary>();
+                    for (EventSummary key : (Collection<EventSummary>) getCurrentArguments()[0]) {
+                        final EventSummary event = database.get(key.getUuid());
+                        if (event != null) {
+                            events.add(event);
+                        }
+                    }
+                    // Finish the fetches out of order
+                    final long delay;
+                    synchronized (random) {
+                        delay = random.nextInt(20);
+                    }
+                    Thread.sleep(delay);
+                    return events;
+                } finally {
+                    fetching.decrementAndGet();
+                }
+            }
+        }).anyTimes();
+
+        final EventIndexBackend backend = createNiceMock(EventIndexBackend.class);
+        expect(backend.isReady()).andReturn(true).anyTimes();
+        expect(backend.ping()).andReturn(true).anyTimes();
+        backend.index(anyObject(Collection.class));
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object answer() throws Throwable {
+                for (EventSummary event : (Collection<EventSummary>) getCurrentArguments()[0]) {
+                    indexed.put(event.getUuid(), event);
+                }
+                return null;
+            }
+        }).anyTimes();
+
+        final WorkQueueBuilder queueBuilder = createNiceMock(WorkQueueBuilder.class);
+        queue = new CheckingWorkQueue();
+        expect(queueBuilder.build(BACKEND_ID)).andReturn(queue).anyTimes();
+        replay(eventDao, backend, queueBuilder);
+
+        dao = new MultiBackendEventIndexDao("test", eventDao, queueBuilder, null, null, null, null);
+        dao.disableRebuilders();
+        dao.setFetchThreads(FETCH_THREADS);
+        dao.setPipelineDepth(FETCH_THREADS);
+        dao.setInitialBackendConfigurations(Collections.singletonList(EventIndexBackendConfiguration.createInstance(
+                true, BACKEND_ID, backend, BackendStatus.READER, true, false, 5)));
+        dao.init();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dao.disableAsyncProcessing();
+    }
+
+    private static String uuid(int i) {
+        return "uuid-" + i;
+    }
+
+    /**
+     * Updates every event in the database, and queues the updates for indexing.
+     */
+    private void update(long lastSeen) throws Exception {
+        for (int i = 0; i < NUM_EVENTS; i++) {
+            final EventSummary event = EventSummary.newBuilder().setUuid(uuid(i)).setLastSeenTime(lastSeen).build();
+            database.put(event.getUuid(), event);
+            dao.index(event);
+        }
+    }
+
+    private static Thread findThread(String suffix) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().contains(" backend " + BACKEND_ID + " ") && thread.getName().endsWith(suffix)) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testNewestCopyIndexed() throws Exception {
+        // Each event is queued several times, so the same events are fetched by overlapping batches.
+        final int numUpdates = 10;
+        for (int lastSeen = 1; lastSeen <= numUpdates; lastSeen++) {
+            update(lastSeen);
+            Thread.sleep(5L);
+        }
+
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while (queue.completed.size() < NUM_EVENTS * numUpdates) {
+            assertTrue("Tasks not completed: " + queue.completed.size(), System.currentTimeMillis() < deadline);
+            Thread.sleep(50L);
+        }
+        assertEquals(Collections.emptyList(), queue.errors);
+        assertEquals(0, queue.size());
+        assertEquals(queue.polled, queue.completed);
+        for (int i = 0; i < NUM_EVENTS; i++) {
+            assertEquals(numUpdates, indexed.get(uuid(i)).getLastSeenTime());
+        }
+        assertTrue("Fetches didn't overlap", maxFetching.get() > 1);
+    }
+
+    @Test
+    public void testMissingEventsCompleted() throws Exception {
+        update(1L);
+        database.remove(uuid(0));
+        update(2L);
+        database.remove(uuid(1));
+
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while (queue.completed.size() < NUM_EVENTS * 2) {
+            assertTrue("Tasks not completed: " + queue.completed.size(), System.currentTimeMillis() < deadline);
+            Thread.sleep(50L);
+        }
+        assertEquals(0, queue.size());
+        assertEquals(queue.polled, queue.completed);
+    }
+
+    @Test
+    public void testShutdownDrainsPipeline() throws Exception {
+        assertNotNull(findThread("event indexing thread"));
+        for (int lastSeen = 1; lastSeen <= 10; lastSeen++) {
+            update(lastSeen);
+        }
+        Thread.sleep(20L);
+
+        // Batches already polled are fetched, indexed and completed before the workers exit; the rest stay queued.
+        dao.disableAsyncProcessing();
+        assertNull(findThread("event indexing worker thread"));
+        assertNull(findThread("event indexing thread"));
+        assertFalse(queue.polled.isEmpty());
+        assertEquals(Collections.emptyList(), queue.errors);
+        assertEquals(queue.polled, queue.completed);
+        assertEquals(NUM_EVENTS * 10, queue.completed.size() + queue.size());
+
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while (findThread("fetch-1") != null) {
+            assertTrue("Fetch threads still running", System.currentTimeMillis() < deadline);
+            Thread.sleep(50L);
+        }
+    }
+}
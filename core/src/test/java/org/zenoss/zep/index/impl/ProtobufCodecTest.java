@@ -0,0 +1,204 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zenoss.protobufs.zep.Zep.EventStatus;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.zep.ZepException;
+import org.zenoss.zep.dao.EventBatch;
+import org.zenoss.zep.dao.EventBatchParams;
+import org.zenoss.zep.dao.EventSummaryBaseDao;
+import org.zenoss.zep.dao.impl.EventTestUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class ProtobufCodecTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<EventSummary> createSummaries(int count) {
+        List<EventSummary> summaries = new ArrayList<EventSummary>(count);
+        for (int i = 0; i < count; i++) {
+            summaries.add(EventSummary.newBuilder().setUuid("uuid-" + i).setStatus(EventStatus.STATUS_NEW)
+                    .setCount(i + 1).setFirstSeenTime(1000L + i).setLastSeenTime(2000L + i)
+                    .addOccurrence(EventTestUtils.createSampleEvent()).build());
+        }
+        return summaries;
+    }
+
+    private static EventSummary roundTrip(ProtobufCodec writer, ProtobufCodec reader, EventSummary summary)
+            throws ZepException {
+        final byte[] compressed = writer.compress(summary);
+        // Read from the middle of a larger buffer like a stored field
+        final byte[] buffer = new byte[compressed.length + 10];
+        System.arraycopy(compressed, 0, buffer, 5, compressed.length);
+        return reader.uncompress(buffer, 5, compressed.length);
+    }
+
+    @Test
+    public void testRoundTrip() throws ZepException {
+        final List<EventSummary> summaries = createSummaries(20);
+        final byte[] dictionary = ProtobufCodec.trainDictionary(summaries, 4096);
+        for (ProtobufCodec.Type type : ProtobufCodec.Type.values()) {
+            final ProtobufCodec codec = new ProtobufCodec(type, dictionary);
+            for (EventSummary summary : summaries) {
+                assertEquals(type.name(), summary, roundTrip(codec, codec, summary));
+            }
+        }
+    }
+
+    @Test
+    public void testMixedCodecs() throws ZepException {
+        final List<EventSummary> summaries = createSummaries(20);
+        final byte[] dictionary = ProtobufCodec.trainDictionary(summaries, 4096);
+        final ProtobufCodec reader = new ProtobufCodec(ProtobufCodec.Type.LZ4, dictionary);
+        for (ProtobufCodec.Type type : ProtobufCodec.Type.values()) {
+            final ProtobufCodec writer = new ProtobufCodec(type, dictionary);
+            assertEquals(type.name(), summaries.get(0), roundTrip(writer, reader, summaries.get(0)));
+        }
+        // Protobufs written before codecs were added are plain GZIP streams.
+        assertEquals(summaries.get(1), roundTrip(ProtobufCodec.DEFAULT, reader, summaries.get(1)));
+    }
+
+    @Test
+    public void testDictionaryCompresses() throws ZepException {
+        final List<EventSummary> summaries = createSummaries(50);
+        final byte[] dictionary = ProtobufCodec.trainDictionary(summaries.subList(0, 40), 8192);
+        assertTrue(dictionary.length > 0);
+        assertTrue(dictionary.length <= 8192);
+        final ProtobufCodec withDictionary = new ProtobufCodec(ProtobufCodec.Type.DICTIONARY, dictionary);
+        int gzipSize = 0, dictionarySize = 0;
+        for (EventSummary summary : summaries.subList(40, 50)) {
+            gzipSize += ProtobufCodec.DEFAULT.compress(summary).length;
+            dictionarySize += withDictionary.compress(summary).length;
+        }
+        assertTrue(dictionarySize < gzipSize);
+    }
+
+    @Test(expected = ZepException.class)
+    public void testWrongDictionary() throws ZepException {
+        final List<EventSummary> summaries = createSummaries(20);
+        final ProtobufCodec writer = new ProtobufCodec(ProtobufCodec.Type.DICTIONARY,
+                ProtobufCodec.trainDictionary(summaries, 4096));
+        final ProtobufCodec reader = new ProtobufCodec(ProtobufCodec.Type.DICTIONARY,
+                ProtobufCodec.trainDictionary(summaries.subList(0, 2), 1024));
+        roundTrip(writer, reader, summaries.get(0));
+    }
+
+    @Test
+    public void testCreate() throws Exception {
+        assertEquals(ProtobufCodec.Type.LZ4, ProtobufCodec.create(" lz4 ", "").getType());
+        assertEquals(ProtobufCodec.Type.NONE, ProtobufCodec.create("none", null).getType());
+    }
+
+    @Test
+    public void testDictionaryId() {
+        final List<EventSummary> summaries = createSummaries(20);
+        final byte[] dictionary = ProtobufCodec.trainDictionary(summaries, 4096);
+        assertNull(ProtobufCodec.DEFAULT.getDictionaryId());
+        final String id = new ProtobufCodec(ProtobufCodec.Type.DICTIONARY, dictionary).getDictionaryId();
+        assertEquals(40, id.length());
+        assertEquals(id, new ProtobufCodec(ProtobufCodec.Type.LZ4, dictionary.clone()).getDictionaryId());
+        assertFalse(id.equals(new ProtobufCodec(ProtobufCodec.Type.DICTIONARY,
+                ProtobufCodec.trainDictionary(summaries.subList(0, 2), 1024)).getDictionaryId()));
+    }
+
+    @Test
+    public void testCreateTrainsDictionary() throws Exception {
+        final List<EventSummary> summaries = createSummaries(20);
+        final File file = new File(folder.getRoot(), "dictionary/protobuf.dict");
+        final EventSummaryBaseDao dao = createMock(EventSummaryBaseDao.class);
+        expect(dao.listBatch(isNull(EventBatchParams.class), anyLong(), eq(20)))
+                .andReturn(new EventBatch(summaries, 0L, null));
+        replay(dao);
+
+        final ProtobufCodec trained = ProtobufCodec.create("dictionary", file.getPath(), dao, 20);
+        verify(dao);
+        assertEquals(ProtobufCodec.Type.DICTIONARY, trained.getType());
+        assertTrue(file.isFile());
+
+        // The trained dictionary is read back on the next start
+        final ProtobufCodec reloaded = ProtobufCodec.create("dictionary", file.getPath(), dao, 20);
+        assertEquals(trained.getDictionaryId(), reloaded.getDictionaryId());
+        assertEquals(summaries.get(0), roundTrip(trained, reloaded, summaries.get(0)));
+    }
+
+    @Test
+    public void testCreateWithoutSamples() throws Exception {
+        final File file = new File(folder.getRoot(), "protobuf.dict");
+        final EventSummaryBaseDao dao = createMock(EventSummaryBaseDao.class);
+        expect(dao.listBatch(isNull(EventBatchParams.class), anyLong(), eq(20)))
+                .andReturn(new EventBatch(Collections.<EventSummary>emptyList(), 0L, null));
+        replay(dao);
+
+        final ProtobufCodec codec = ProtobufCodec.create("dictionary", file.getPath(), dao, 20);
+        verify(dao);
+        assertEquals(ProtobufCodec.Type.GZIP, codec.getType());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testTrainingIsBounded() throws ZepException {
+        // An endless supply of distinct samples: training must stop at its byte budget, and the random uuids
+        // fill the gram table well before that.
+        final long[] consumed = new long[2];
+        final Iterable<EventSummary> samples = new Iterable<EventSummary>() {
+            @Override
+            public Iterator<EventSummary> iterator() {
+                return new Iterator<EventSummary>() {
+                    @Override
+                    public boolean hasNext() {
+                        return true;
+                    }
+
+                    @Override
+                    public EventSummary next() {
+                        final EventSummary summary = EventSummary.newBuilder()
+                                .setUuid(UUID.randomUUID().toString()).setStatus(EventStatus.STATUS_NEW)
+                                .setCount(1).setFirstSeenTime(1000L).setLastSeenTime(2000L)
+                                .addOccurrence(EventTestUtils.createSampleEvent()).build();
+                        consumed[0]++;
+                        consumed[1] += summary.getSerializedSize();
+                        return summary;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+        final byte[] dictionary = ProtobufCodec.trainDictionary(samples, 8192);
+        assertTrue(consumed[0] > 1);
+        assertTrue(consumed[1] >= ProtobufCodec.MAX_TRAINING_BYTES);
+        assertTrue(consumed[1] - consumed[1] / consumed[0] < ProtobufCodec.MAX_TRAINING_BYTES);
+        assertTrue(dictionary.length > 0);
+        assertTrue(dictionary.length <= 8192);
+
+        // The shared parts of the samples are still learned
+        final EventSummary summary = createSummaries(1).get(0);
+        assertTrue(new ProtobufCodec(ProtobufCodec.Type.DICTIONARY, dictionary).compress(summary).length <
+                ProtobufCodec.DEFAULT.compress(summary).length);
+    }
+}
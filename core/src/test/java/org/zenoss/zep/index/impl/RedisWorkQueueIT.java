@@ -0,0 +1,140 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.zenoss.zep.utils.JedisPoolUtil;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@ContextConfiguration({"classpath:zep-config.xml"})
+public class RedisWorkQueueIT extends AbstractJUnit4SpringContextTests {
+
+    @Autowired
+    public JedisPoolUtil jedisPoolUtil;
+
+    private String name;
+    private RedisWorkQueue queue;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        name = "test-" + UUID.randomUUID();
+        queue = new RedisWorkQueue(jedisPoolUtil, name);
+        queue.clearAll();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        queue.close();
+        queue.clearAll();
+    }
+
+    private static EventIndexBackendTask createTask() {
+        return EventIndexBackendTask.Index(UUID.randomUUID().toString(), System.currentTimeMillis());
+    }
+
+    private static Thread findSubscriber(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("RedisWorkQueue-notify-" + name)) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    private Future<List<EventIndexBackendTask>> startPoll(final RedisWorkQueue queue) {
+        return executor.submit(new Callable<List<EventIndexBackendTask>>() {
+            @Override
+            public List<EventIndexBackendTask> call() throws Exception {
+                return queue.poll(10, 30, TimeUnit.SECONDS);
+            }
+        });
+    }
+
+    @Test
+    public void testNotificationWakesPoller() throws Exception {
+        // Subscribe, and give the subscription time to be established
+        assertTrue(queue.poll(10, 0, TimeUnit.SECONDS).isEmpty());
+        assertNotNull(findSubscriber(name));
+        Thread.sleep(500L);
+
+        // Without a notification, a waiting poller only polls again after up to a second.
+        for (int i = 0; i < 3; i++) {
+            Future<List<EventIndexBackendTask>> poll = startPoll(queue);
+            Thread.sleep(100L);
+            assertFalse(poll.isDone());
+            EventIndexBackendTask task = createTask();
+            queue.add(task);
+            List<EventIndexBackendTask> polled = poll.get(250L, TimeUnit.MILLISECONDS);
+            assertEquals(1, polled.size());
+            assertEquals(task, polled.get(0));
+            queue.complete(task);
+        }
+    }
+
+    @Test
+    public void testCloseStopsSubscriber() throws Exception {
+        queue.poll(10, 0, TimeUnit.SECONDS);
+        Thread subscriber = findSubscriber(name);
+        assertNotNull(subscriber);
+        Thread.sleep(500L);
+        queue.close();
+        assertFalse(subscriber.isAlive());
+
+        // Polls after closing fall back to the poll interval, without another subscriber
+        EventIndexBackendTask task = createTask();
+        queue.add(task);
+        List<EventIndexBackendTask> polled = queue.poll(10, 5, TimeUnit.SECONDS);
+        assertEquals(1, polled.size());
+        assertEquals(task, polled.get(0));
+        assertNull(findSubscriber(name));
+        queue.close();
+    }
+
+    @Test
+    public void testCloseWithoutSubscriber() throws Exception {
+        queue.close();
+        queue.poll(10, 0, TimeUnit.SECONDS);
+        assertNull(findSubscriber(name));
+    }
+
+    @Test
+    public void testBuilderClosesQueues() throws Exception {
+        RedisWorkQueueBuilder builder = new RedisWorkQueueBuilder(jedisPoolUtil);
+        RedisWorkQueue built = (RedisWorkQueue) builder.build(name + "-built");
+        try {
+            assertSame(built, builder.build(name + "-built"));
+            built.poll(10, 0, TimeUnit.SECONDS);
+            Thread subscriber = findSubscriber(name + "-built");
+            assertNotNull(subscriber);
+            builder.close();
+            assertFalse(subscriber.isAlive());
+        } finally {
+            built.clearAll();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl.lucene;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.zenoss.protobufs.zep.Zep.EventDetailItem;
+import org.zenoss.protobufs.zep.Zep.EventFilter;
+import org.zenoss.protobufs.zep.Zep.EventSeverity;
+import org.zenoss.protobufs.zep.Zep.EventSort;
+import org.zenoss.protobufs.zep.Zep.EventSort.Direction;
+import org.zenoss.protobufs.zep.Zep.EventStatus;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.protobufs.zep.Zep.EventSummaryRequest;
+import org.zenoss.protobufs.zep.Zep.EventSummaryResult;
+import org.zenoss.zep.dao.impl.DaoUtils;
+import org.zenoss.zep.dao.impl.EventTestUtils;
+import org.zenoss.zep.index.IndexedDetailsConfiguration;
+import org.zenoss.zep.index.impl.IndexConstants;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class LuceneEventIndexBackendWarmTest {
+
+    private static final Set<String> PROTO_FIELDS = ImmutableSet.of(IndexConstants.FIELD_PROTOBUF);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LuceneEventIndexBackend backend;
+    private IndexWriter writer;
+
+    @After
+    public void tearDown() throws Exception {
+        if (backend != null) {
+            backend.close();
+        }
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    private LuceneEventIndexBackend createBackend(int readerReopenInterval) throws Exception {
+        final IndexedDetailsConfiguration detailsConfiguration = createNiceMock(IndexedDetailsConfiguration.class);
+        expect(detailsConfiguration.getEventDetailItemsByName())
+                .andReturn(Collections.<String, EventDetailItem>emptyMap()).anyTimes();
+        replay(detailsConfiguration);
+        writer = new IndexWriter(new RAMDirectory(),
+                new IndexWriterConfig(IndexConstants.LUCENE_VERSION, LuceneEventIndexMapper.createAnalyzer()));
+        backend = new LuceneEventIndexBackend("event_summary", writer, null, 1024, new LuceneFilterCacheManager(1),
+                readerReopenInterval, null, null, null, 0, 3600);
+        backend.setIndexDetailsConfiguration(detailsConfiguration);
+        backend.setResultCacheSizeMb(1);
+        return backend;
+    }
+
+    private static EventSummaryRequest createRequest(EventSeverity severity, int limit) {
+        return EventSummaryRequest.newBuilder()
+                .setEventFilter(EventFilter.newBuilder().addStatus(EventStatus.STATUS_NEW).addSeverity(severity))
+                .addSort(EventSort.newBuilder().setField(EventSort.Field.LAST_SEEN).setDirection(Direction.DESCENDING))
+                .setLimit(limit).build();
+    }
+
+    private File writeRequests(EventSummaryRequest... requests) throws Exception {
+        final StringBuilder sb = new StringBuilder("# Requests to warm\n\n");
+        for (EventSummaryRequest request : requests) {
+            sb.append(DaoUtils.protobufToJson(request)).append('\n');
+        }
+        final File file = folder.newFile();
+        Files.write(sb.toString(), file, Charsets.UTF_8);
+        return file;
+    }
+
+    private static EventSummary createSummary(EventSeverity severity) {
+        return EventSummary.newBuilder().setUuid(UUID.randomUUID().toString()).setStatus(EventStatus.STATUS_NEW)
+                .setCount(1).setFirstSeenTime(1000L).setLastSeenTime(2000L).setStatusChangeTime(2000L)
+                .setUpdateTime(2000L)
+                .addOccurrence(EventTestUtils.createSampleEvent().toBuilder().setSeverity(severity)).build();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testWarmRequestsFile() throws Exception {
+        createBackend(0);
+        final List<EventSummaryRequest> defaults =
+                (List<EventSummaryRequest>) ReflectionTestUtils.getField(backend, "warmRequests");
+        assertEquals(1, defaults.size());
+
+        final EventSummaryRequest critical = createRequest(EventSeverity.SEVERITY_CRITICAL, 10);
+        final EventSummaryRequest error = createRequest(EventSeverity.SEVERITY_ERROR, 20);
+        backend.setWarmRequestsFile(writeRequests(critical, error).getPath());
+        assertEquals(Arrays.asList(critical, error), ReflectionTestUtils.getField(backend, "warmRequests"));
+
+        // A file without requests falls back to the default request
+        backend.setWarmRequestsFile(writeRequests().getPath());
+        assertEquals(defaults, ReflectionTestUtils.getField(backend, "warmRequests"));
+        backend.setWarmRequestsFile("");
+        assertEquals(defaults, ReflectionTestUtils.getField(backend, "warmRequests"));
+    }
+
+    @Test
+    public void testReopenedSearcherIsWarmed() throws Exception {
+        createBackend(1);
+        final EventSummaryRequest critical = createRequest(EventSeverity.SEVERITY_CRITICAL, 10);
+        backend.setWarmRequestsFile(writeRequests(critical).getPath());
+        backend.setWarmOnReopen(true);
+
+        final EventSummary summary = createSummary(EventSeverity.SEVERITY_CRITICAL);
+        backend.index(summary);
+        backend.index(createSummary(EventSeverity.SEVERITY_WARNING));
+
+        // The reopen thread publishes the searcher which sees the new events only after warming it, so the
+        // first searcher a query can acquire already has the warm request's results cached.
+        final SearcherManager searcherManager = (SearcherManager) ReflectionTestUtils.getField(backend,
+                "searcherManager");
+        final LuceneQueryResultCache cache = (LuceneQueryResultCache) ReflectionTestUtils.getField(backend,
+                "resultCache");
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while (true) {
+            final IndexSearcher searcher = searcherManager.acquire();
+            try {
+                if (searcher.getIndexReader().numDocs() == 2) {
+                    final EventSummaryResult result = cache.get(searcher.getIndexReader(), critical, PROTO_FIELDS);
+                    assertNotNull(result);
+                    assertEquals(1, result.getTotal());
+                    assertEquals(summary.getUuid(), result.getEvents(0).getUuid());
+                    break;
+                }
+            } finally {
+                searcherManager.release(searcher);
+            }
+            assertTrue("Searcher not reopened", System.currentTimeMillis() < deadline);
+            Thread.sleep(50L);
+        }
+
+        // Queries are served from the warmed results
+        final long hits = cache.stats().hitCount();
+        final EventSummaryResult result = backend.list(critical);
+        assertEquals(1, result.getEventsCount());
+        assertEquals(summary.getUuid(), result.getEvents(0).getUuid());
+        assertEquals(hits + 1, cache.stats().hitCount());
+    }
+
+    @Test
+    public void testNotWarmedWithoutReopenThread() throws Exception {
+        createBackend(0);
+        final EventSummaryRequest critical = createRequest(EventSeverity.SEVERITY_CRITICAL, 10);
+        backend.setWarmRequestsFile(writeRequests(critical).getPath());
+        backend.setWarmOnReopen(true);
+        backend.index(createSummary(EventSeverity.SEVERITY_CRITICAL));
+
+        // Queries refresh the searcher themselves, and aren't delayed by warming it
+        final SearcherManager searcherManager = (SearcherManager) ReflectionTestUtils.getField(backend,
+                "searcherManager");
+        final LuceneQueryResultCache cache = (LuceneQueryResultCache) ReflectionTestUtils.getField(backend,
+                "resultCache");
+        searcherManager.maybeRefreshBlocking();
+        final IndexSearcher searcher = searcherManager.acquire();
+        try {
+            assertEquals(1, searcher.getIndexReader().numDocs());
+            assertNull(cache.get(searcher.getIndexReader(), critical, PROTO_FIELDS));
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+}
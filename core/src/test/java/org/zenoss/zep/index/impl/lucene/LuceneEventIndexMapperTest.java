@@ -0,0 +1,100 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl.lucene;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+import org.zenoss.protobufs.zep.Zep.Event;
+import org.zenoss.protobufs.zep.Zep.EventDetailItem;
+import org.zenoss.protobufs.zep.Zep.EventSeverity;
+import org.zenoss.protobufs.zep.Zep.EventStatus;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.zep.dao.impl.EventTestUtils;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import static org.zenoss.zep.index.impl.IndexConstants.*;
+
+public class LuceneEventIndexMapperTest {
+
+    private static EventSummary createSummary() {
+        return EventSummary.newBuilder().setUuid("summary-uuid").setStatus(EventStatus.STATUS_ACKNOWLEDGED)
+                .setCount(7).setFirstSeenTime(1000L).setLastSeenTime(2000L).setStatusChangeTime(1500L)
+                .setUpdateTime(2500L).setCurrentUserName("admin")
+                .addOccurrence(EventTestUtils.createSampleEvent()).build();
+    }
+
+    private static Document indexAndLoad(EventSummary summary, boolean isArchive, String... fields) throws Exception {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory,
+                new IndexWriterConfig(LUCENE_VERSION, LuceneEventIndexMapper.createAnalyzer()));
+        writer.addDocument(LuceneEventIndexMapper.fromEventSummary(summary,
+                Collections.<String, EventDetailItem>emptyMap(), isArchive));
+        writer.close();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        try {
+            return reader.document(0, ImmutableSet.copyOf(fields));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testProjectedFields() throws Exception {
+        final EventSummary summary = createSummary();
+        final Event event = summary.getOccurrence(0);
+        final Document doc = indexAndLoad(summary, false, FIELD_UUID, FIELD_STATUS, FIELD_COUNT,
+                FIELD_FIRST_SEEN_TIME, FIELD_CURRENT_USER_NAME, FIELD_SEVERITY, FIELD_SUMMARY, FIELD_EVENT_CLASS,
+                FIELD_ELEMENT_IDENTIFIER, FIELD_ELEMENT_SUB_TITLE);
+        assertNull(doc.getBinaryValue(FIELD_PROTOBUF));
+
+        final EventSummary projected = LuceneEventIndexMapper.toEventSummary(doc);
+        assertEquals("summary-uuid", projected.getUuid());
+        assertEquals(EventStatus.STATUS_ACKNOWLEDGED, projected.getStatus());
+        assertEquals(7, projected.getCount());
+        assertEquals(1000L, projected.getFirstSeenTime());
+        assertFalse(projected.hasLastSeenTime());
+        assertEquals("admin", projected.getCurrentUserName());
+        assertEquals(1, projected.getOccurrenceCount());
+        final Event projectedEvent = projected.getOccurrence(0);
+        assertEquals(EventSeverity.SEVERITY_CRITICAL, projectedEvent.getSeverity());
+        assertEquals(event.getSummary(), projectedEvent.getSummary());
+        assertEquals(event.getEventClass(), projectedEvent.getEventClass());
+        assertFalse(projectedEvent.hasAgent());
+        assertEquals(event.getActor().getElementIdentifier(), projectedEvent.getActor().getElementIdentifier());
+        assertEquals(event.getActor().getElementSubTitle(), projectedEvent.getActor().getElementSubTitle());
+        assertFalse(projectedEvent.getActor().hasElementTitle());
+    }
+
+    @Test
+    public void testProtobufPreferred() throws Exception {
+        final EventSummary summary = createSummary();
+        final Document doc = indexAndLoad(summary, false, FIELD_PROTOBUF, FIELD_UUID, FIELD_SEVERITY);
+        assertEquals(summary, LuceneEventIndexMapper.toEventSummary(doc));
+    }
+
+    @Test
+    public void testArchiveDoesNotStoreProjection() throws Exception {
+        final Document doc = indexAndLoad(createSummary(), true, FIELD_UUID, FIELD_LAST_SEEN_TIME, FIELD_SUMMARY,
+                FIELD_FIRST_SEEN_TIME);
+        final EventSummary projected = LuceneEventIndexMapper.toEventSummary(doc);
+        assertEquals("summary-uuid", projected.getUuid());
+        assertEquals(2000L, projected.getLastSeenTime());
+        assertFalse(projected.hasFirstSeenTime());
+        assertEquals(0, projected.getOccurrenceCount());
+    }
+}
@@ -0,0 +1,118 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl.lucene;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.zenoss.zep.index.impl.IndexConstants.*;
+import static org.zenoss.zep.index.impl.lucene.LuceneFilterCacheManager.FilterType.*;
+
+public class LuceneFilterCacheManagerTest {
+
+    private static final int NUM_SEGMENTS = 3;
+    private static final int DOCS_PER_SEGMENT = 100;
+
+    private RAMDirectory directory;
+    private IndexWriter writer;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(LUCENE_VERSION, new KeywordAnalyzer());
+        config.setMergePolicy(NoMergePolicy.COMPOUND_FILES);
+        writer = new IndexWriter(directory, config);
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            for (int j = 0; j < DOCS_PER_SEGMENT; j++) {
+                Document doc = new Document();
+                doc.add(new Field(FIELD_AGENT, (j % 10 == 0) ? "zenping" : "zenperfsnmp-" + j, Field.Store.NO,
+                        Field.Index.NOT_ANALYZED_NO_NORMS));
+                writer.addDocument(doc);
+            }
+            writer.commit();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writer.close();
+        directory.close();
+    }
+
+    @Test
+    public void testCachedPerSegment() throws Exception {
+        LuceneFilterCacheManager manager = new LuceneFilterCacheManager();
+        DirectoryReader reader = DirectoryReader.open(writer, true);
+        try {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            Query wildcard = new ConstantScoreQuery(manager.get(WILDCARD, new Term(FIELD_AGENT, "zenperf*")));
+            Query terms = new ConstantScoreQuery(manager.get(TERMS, new Term(FIELD_AGENT, "zenping")));
+
+            assertEquals(searcher.search(new WildcardQuery(new Term(FIELD_AGENT, "zenperf*")), 1).totalHits,
+                    searcher.search(wildcard, 1).totalHits);
+            assertEquals(NUM_SEGMENTS * DOCS_PER_SEGMENT / 10, searcher.search(terms, 1).totalHits);
+            assertEquals(2 * NUM_SEGMENTS, manager.size());
+            long size = manager.sizeInBytes();
+            assertTrue(size > 0);
+
+            // Served from the cache
+            assertEquals(NUM_SEGMENTS * DOCS_PER_SEGMENT / 10, searcher.search(terms, 1).totalHits);
+            assertEquals(size, manager.sizeInBytes());
+
+            // Deleted documents are filtered from cached segments
+            writer.deleteDocuments(new Term(FIELD_AGENT, "zenping"));
+            DirectoryReader newReader = DirectoryReader.openIfChanged(reader, writer, true);
+            assertNotNull(newReader);
+            try {
+                assertEquals(0, new IndexSearcher(newReader).search(terms, 1).totalHits);
+                assertEquals(2 * NUM_SEGMENTS, manager.size());
+            } finally {
+                newReader.close();
+            }
+        } finally {
+            reader.close();
+        }
+
+        // Entries are evicted with their segments
+        writer.close();
+        assertEquals(0, manager.size());
+        assertEquals(0L, manager.sizeInBytes());
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        LuceneFilterCacheManager manager = new LuceneFilterCacheManager(0);
+        DirectoryReader reader = DirectoryReader.open(writer, true);
+        try {
+            Query terms = new ConstantScoreQuery(manager.get(TERMS, new Term(FIELD_AGENT, "zenping")));
+            assertEquals(NUM_SEGMENTS * DOCS_PER_SEGMENT / 10, new IndexSearcher(reader).search(terms, 1).totalHits);
+            assertEquals(0, manager.size());
+            assertEquals(0L, manager.sizeInBytes());
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl.lucene;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.zenoss.zep.index.impl.IndexConstants.*;
+
+public class LuceneIndexSearcherTest {
+
+    private static final int NUM_SEGMENTS = 5;
+    private static final int DOCS_PER_SEGMENT = 20;
+
+    private RAMDirectory directory;
+    private DirectoryReader reader;
+    private LuceneSearcherFactory parallelFactory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(LUCENE_VERSION, new KeywordAnalyzer());
+        config.setMergePolicy(NoMergePolicy.COMPOUND_FILES);
+        IndexWriter writer = new IndexWriter(directory, config);
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            for (int j = 0; j < DOCS_PER_SEGMENT; j++) {
+                Document doc = new Document();
+                doc.add(new Field(FIELD_UUID, "uuid-" + i + "-" + j, Field.Store.YES,
+                        Field.Index.NOT_ANALYZED_NO_NORMS));
+                doc.add(new Field(FIELD_AGENT, (j % 2 == 0) ? "even" : "odd", Field.Store.NO,
+                        Field.Index.NOT_ANALYZED_NO_NORMS));
+                // Interleave the sort values across segments
+                doc.add(new LongField(FIELD_LAST_SEEN_TIME, j * NUM_SEGMENTS + i, Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            writer.commit();
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        assertEquals(NUM_SEGMENTS, reader.leaves().size());
+        parallelFactory = new LuceneSearcherFactory(3, 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        parallelFactory.close();
+        reader.close();
+        directory.close();
+    }
+
+    private static void assertSameHits(TopDocs expected, TopDocs actual) {
+        assertEquals(expected.totalHits, actual.totalHits);
+        assertEquals(expected.scoreDocs.length, actual.scoreDocs.length);
+        for (int i = 0; i < expected.scoreDocs.length; i++) {
+            assertEquals(expected.scoreDocs[i].doc, actual.scoreDocs[i].doc);
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSerial() throws Exception {
+        LuceneIndexSearcher serial = (LuceneIndexSearcher) new LuceneSearcherFactory(0, 0).newSearcher(reader);
+        LuceneIndexSearcher parallel = (LuceneIndexSearcher) parallelFactory.newSearcher(reader);
+        Sort sort = new Sort(new SortField(FIELD_LAST_SEEN_TIME, SortField.Type.LONG, true));
+        TermQuery query = new TermQuery(new Term(FIELD_AGENT, "even"));
+
+        TopDocs expected = serial.search(query, sort, 15, null, 0L);
+        assertEquals(NUM_SEGMENTS * DOCS_PER_SEGMENT / 2, expected.totalHits);
+        assertSameHits(expected, parallel.search(query, sort, 15, null, 0L));
+        assertSameHits(expected, parallel.search(query, sort, 15, null, 60000L));
+
+        // Next page
+        TopDocs next = serial.search(query, sort, 15, expected.scoreDocs[14], 60000L);
+        assertSameHits(next, parallel.search(query, sort, 15, expected.scoreDocs[14], 60000L));
+
+        // Unsorted
+        assertSameHits(serial.search(new MatchAllDocsQuery(), null, 10, null, 0L),
+                parallel.search(new MatchAllDocsQuery(), null, 10, null, 60000L));
+    }
+}
@@ -0,0 +1,136 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl.lucene;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zenoss.protobufs.zep.Zep.EventFilter;
+import org.zenoss.protobufs.zep.Zep.EventSeverity;
+import org.zenoss.protobufs.zep.Zep.EventSort;
+import org.zenoss.protobufs.zep.Zep.EventStatus;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.protobufs.zep.Zep.EventSummaryRequest;
+import org.zenoss.protobufs.zep.Zep.EventSummaryResult;
+
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static org.zenoss.zep.index.impl.IndexConstants.*;
+
+public class LuceneQueryResultCacheTest {
+
+    private static final Set<String> FIELDS = ImmutableSet.of(FIELD_PROTOBUF);
+
+    private RAMDirectory directory;
+    private IndexWriter writer;
+    private DirectoryReader reader;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new RAMDirectory();
+        writer = new IndexWriter(directory, new IndexWriterConfig(LUCENE_VERSION, new KeywordAnalyzer()));
+        addDocument("uuid-1");
+        reader = DirectoryReader.open(writer, true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        reader.close();
+        writer.close();
+        directory.close();
+    }
+
+    private void addDocument(String uuid) throws Exception {
+        Document doc = new Document();
+        doc.add(new Field(FIELD_UUID, uuid, Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
+        writer.addDocument(doc);
+    }
+
+    private static EventSummaryResult result(String uuid) {
+        return EventSummaryResult.newBuilder().addEvents(EventSummary.newBuilder().setUuid(uuid)).setTotal(1)
+                .setLimit(100).build();
+    }
+
+    private static EventSummaryRequest request(EventFilter filter) {
+        return EventSummaryRequest.newBuilder().setEventFilter(filter).setLimit(100)
+                .addSort(EventSort.newBuilder().setField(EventSort.Field.SEVERITY))
+                .addSort(EventSort.newBuilder().setField(EventSort.Field.LAST_SEEN)).build();
+    }
+
+    @Test
+    public void testCanonicalFilter() {
+        EventSummaryRequest request = request(EventFilter.newBuilder()
+                .addSeverity(EventSeverity.SEVERITY_ERROR).addSeverity(EventSeverity.SEVERITY_CRITICAL)
+                .addStatus(EventStatus.STATUS_ACKNOWLEDGED).addStatus(EventStatus.STATUS_NEW)
+                .addElementIdentifier("b").addElementIdentifier("a").build());
+        EventSummaryRequest reordered = request(EventFilter.newBuilder()
+                .addStatus(EventStatus.STATUS_NEW).addStatus(EventStatus.STATUS_ACKNOWLEDGED)
+                .addSeverity(EventSeverity.SEVERITY_CRITICAL).addSeverity(EventSeverity.SEVERITY_ERROR)
+                .addElementIdentifier("a").addElementIdentifier("b").build());
+        assertFalse(request.equals(reordered));
+        assertEquals(LuceneQueryResultCache.canonicalize(request), LuceneQueryResultCache.canonicalize(reordered));
+
+        // The sort order is significant
+        EventSummaryRequest resorted = reordered.toBuilder().clearSort()
+                .addSort(EventSort.newBuilder().setField(EventSort.Field.LAST_SEEN))
+                .addSort(EventSort.newBuilder().setField(EventSort.Field.SEVERITY)).build();
+        assertFalse(LuceneQueryResultCache.canonicalize(request).equals(
+                LuceneQueryResultCache.canonicalize(resorted)));
+    }
+
+    @Test
+    public void testCachedUntilReopen() throws Exception {
+        LuceneQueryResultCache cache = new LuceneQueryResultCache(1024 * 1024);
+        EventSummaryRequest request = request(EventFilter.newBuilder()
+                .addStatus(EventStatus.STATUS_NEW).addStatus(EventStatus.STATUS_ACKNOWLEDGED).build());
+        EventSummaryRequest reordered = request(EventFilter.newBuilder()
+                .addStatus(EventStatus.STATUS_ACKNOWLEDGED).addStatus(EventStatus.STATUS_NEW).build());
+
+        assertNull(cache.get(reader, request, FIELDS));
+        cache.put(reader, request, FIELDS, result("uuid-1"));
+        assertEquals(result("uuid-1"), cache.get(reader, request, FIELDS));
+        assertEquals(result("uuid-1"), cache.get(reader, reordered, FIELDS));
+        assertNull(cache.get(reader, request, ImmutableSet.of(FIELD_UUID)));
+        assertEquals(2, cache.stats().hitCount());
+
+        addDocument("uuid-2");
+        DirectoryReader newReader = DirectoryReader.openIfChanged(reader, writer, true);
+        assertNotNull(newReader);
+        try {
+            assertNull(cache.get(newReader, request, FIELDS));
+            assertEquals(0, cache.size());
+
+            // Results from a search still using the old reader aren't cached
+            cache.put(reader, request, FIELDS, result("uuid-1"));
+            assertEquals(0, cache.size());
+            assertNull(cache.get(reader, request, FIELDS));
+        } finally {
+            newReader.close();
+        }
+    }
+
+    @Test
+    public void testBoundedBySize() throws Exception {
+        LuceneQueryResultCache cache = new LuceneQueryResultCache(1);
+        EventSummaryRequest request = request(EventFilter.newBuilder().addStatus(EventStatus.STATUS_NEW).build());
+        cache.put(reader, request, FIELDS, result("uuid-1"));
+        assertNull(cache.get(reader, request, FIELDS));
+    }
+}
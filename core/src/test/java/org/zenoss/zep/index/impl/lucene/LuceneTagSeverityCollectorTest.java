@@ -0,0 +1,104 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl.lucene;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+import org.zenoss.protobufs.zep.Zep.EventSeverity;
+import org.zenoss.protobufs.zep.Zep.EventStatus;
+import org.zenoss.zep.index.impl.BaseEventIndexBackend.EventTagSeverityCounter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.zenoss.zep.index.impl.IndexConstants.*;
+
+public class LuceneTagSeverityCollectorTest {
+
+    private static Document createDocument(boolean docValues, EventSeverity severity, EventStatus status, int count,
+                                           String... tags) {
+        Document doc = new Document();
+        doc.add(new IntField(FIELD_SEVERITY, severity.getNumber(), Field.Store.YES));
+        doc.add(new IntField(FIELD_STATUS, status.getNumber(), Field.Store.YES));
+        doc.add(new LongField(FIELD_COUNT, count, Field.Store.YES));
+        for (String tag : tags) {
+            doc.add(new Field(FIELD_TAGS, tag, Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
+        }
+        if (docValues) {
+            doc.add(new NumericDocValuesField(FIELD_SEVERITY, severity.getNumber()));
+            doc.add(new NumericDocValuesField(FIELD_STATUS, status.getNumber()));
+            doc.add(new NumericDocValuesField(FIELD_COUNT, count));
+            for (String tag : tags) {
+                doc.add(new SortedSetDocValuesField(FIELD_TAGS, new BytesRef(tag)));
+            }
+        }
+        return doc;
+    }
+
+    @Test
+    public void testCountsFromDocValues() throws Exception {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(LUCENE_VERSION, new KeywordAnalyzer()));
+        writer.addDocument(createDocument(true, EventSeverity.SEVERITY_ERROR, EventStatus.STATUS_NEW, 3, "a", "b"));
+        writer.addDocument(createDocument(true, EventSeverity.SEVERITY_ERROR, EventStatus.STATUS_ACKNOWLEDGED, 2, "a"));
+        writer.addDocument(createDocument(false, EventSeverity.SEVERITY_WARNING, EventStatus.STATUS_NEW, 1, "a"));
+        writer.commit();
+        writer.addDocument(createDocument(true, EventSeverity.SEVERITY_INFO, EventStatus.STATUS_NEW, 5, "c"));
+        writer.close();
+
+        DirectoryReader reader = DirectoryReader.open(directory);
+        try {
+            final Map<String, int[]> counts = new HashMap<String, int[]>();
+            LuceneTagSeverityCollector collector = new LuceneTagSeverityCollector(new EventTagSeverityCounter() {
+                @Override
+                public void update(String uuid, EventSeverity severity, int count, boolean acknowledged) {
+                    int[] c = counts.get(uuid);
+                    if (c == null) {
+                        c = new int[2];
+                        counts.put(uuid, c);
+                    }
+                    c[0] += count;
+                    if (acknowledged)
+                        c[1] += count;
+                }
+
+                @Override
+                public void update(String uuid, EventSeverity severity, int events, int count, boolean acknowledged) {
+                    throw new UnsupportedOperationException();
+                }
+            }, reader.maxDoc());
+            new IndexSearcher(reader).search(new MatchAllDocsQuery(), collector);
+
+            assertArrayEquals(new int[] { 5, 2 }, counts.get("a"));
+            assertArrayEquals(new int[] { 3, 0 }, counts.get("b"));
+            assertArrayEquals(new int[] { 5, 0 }, counts.get("c"));
+            // The document without doc values is left for the stored field fallback.
+            assertEquals(1, collector.getUnmigratedDocs().cardinality());
+            assertTrue(collector.getUnmigratedDocs().get(2));
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl.lucene;
+
+import org.junit.Test;
+import org.zenoss.protobufs.zep.Zep.EventSeverity;
+import org.zenoss.zep.index.impl.BaseEventIndexBackend.EventTagSeverityCounter;
+
+import java.util.Collections;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class LuceneTagSeverityRollupTest {
+
+    @Test
+    public void testReplay() {
+        LuceneTagSeverityRollup rollup = new LuceneTagSeverityRollup(null);
+        rollup.update("a", EventSeverity.SEVERITY_ERROR, 3, false);
+        rollup.update("a", EventSeverity.SEVERITY_ERROR, 2, false);
+        rollup.update("a", EventSeverity.SEVERITY_ERROR, 4, true);
+        rollup.update("b", EventSeverity.SEVERITY_INFO, 1, false);
+        assertEquals(2, rollup.size());
+
+        EventTagSeverityCounter counter = createStrictMock(EventTagSeverityCounter.class);
+        counter.update("a", EventSeverity.SEVERITY_ERROR, 2, 5, false);
+        counter.update("a", EventSeverity.SEVERITY_ERROR, 1, 4, true);
+        counter.update("b", EventSeverity.SEVERITY_INFO, 1, 1, false);
+        checkOrder(counter, false);
+        replay(counter);
+        rollup.replay(counter);
+        verify(counter);
+    }
+
+    @Test
+    public void testKeepsOnlyFilteredTags() {
+        LuceneTagSeverityRollup rollup = new LuceneTagSeverityRollup(Collections.singleton("a"));
+        rollup.update("a", EventSeverity.SEVERITY_ERROR, 3, false);
+        rollup.update("b", EventSeverity.SEVERITY_ERROR, 3, false);
+        assertEquals(1, rollup.size());
+    }
+}
@@ -0,0 +1,299 @@
+/*****************************************************************************
+ *
+ * Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ * This content is made available according to terms specified in
+ * License.zenoss under the directory where your Zenoss product is installed.
+ *
+ ****************************************************************************/
+
+
+package org.zenoss.zep.index.impl.solr;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrQuery.SortClause;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.zenoss.protobufs.zep.Zep.EventSummary;
+import org.zenoss.protobufs.zep.Zep.EventSummaryResult;
+import org.zenoss.zep.ZepException;
+import org.zenoss.zep.index.SavedSearchProcessor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.zenoss.zep.index.impl.IndexConstants.*;
+
+public class SolrSavedSearchPagingTest {
+
+    private static final int NUM_DOCS = 7;
+
+    private FakeSolrServer server;
+    private SolrEventIndexBackend backend;
+    private List<String> expected;
+
+    /**
+     * Serves a fixed set of documents, with the cursor mark rules of Solr: cursors require start=0 and a sort
+     * on the uniqueKey, and continue after the sort values encoded in the mark.
+     */
+    private static class FakeSolrServer extends SolrServer {
+        private final List<SolrDocument> docs = new ArrayList<SolrDocument>();
+        private final List<SolrParams> requests = new ArrayList<SolrParams>();
+        private SolrException failure;
+
+        @Override
+        public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+            final SolrParams params = request.getParams();
+            requests.add(new ModifiableSolrParams(params));
+            if (failure != null) {
+                final SolrException e = failure;
+                failure = null;
+                throw e;
+            }
+            final List<String> sortFields = new ArrayList<String>();
+            final Comparator<SolrDocument> comparator = comparator(params.get(CommonParams.SORT), sortFields);
+            final List<SolrDocument> sorted = new ArrayList<SolrDocument>(docs);
+            Collections.sort(sorted, comparator);
+
+            final String cursorMark = params.get(CursorMarkParams.CURSOR_MARK_PARAM);
+            final int start = params.getInt(CommonParams.START, 0);
+            final int rows = params.getInt(CommonParams.ROWS, 10);
+            int from = start;
+            if (cursorMark != null) {
+                if (start != 0) {
+                    throw new SolrException(ErrorCode.BAD_REQUEST, "Cursor functionality requires start=0");
+                }
+                if (!sortFields.contains(FIELD_UUID)) {
+                    throw new SolrException(ErrorCode.BAD_REQUEST,
+                            "Cursor functionality requires a sort containing a uniqueKey field tie breaker");
+                }
+                if (!CursorMarkParams.CURSOR_MARK_START.equals(cursorMark)) {
+                    final SolrDocument after = parseMark(cursorMark);
+                    while (from < sorted.size() && comparator.compare(sorted.get(from), after) <= 0) {
+                        from++;
+                    }
+                }
+            }
+            final List<SolrDocument> page = sorted.subList(Math.min(from, sorted.size()),
+                    Math.min(from + rows, sorted.size()));
+
+            final SolrDocumentList results = new SolrDocumentList();
+            results.setNumFound(docs.size());
+            results.setStart(start);
+            results.addAll(page);
+            final NamedList<Object> response = new NamedList<Object>();
+            response.add("response", results);
+            if (cursorMark != null) {
+                response.add(CursorMarkParams.CURSOR_MARK_NEXT,
+                        page.isEmpty() ? cursorMark : mark(page.get(page.size() - 1)));
+            }
+            return response;
+        }
+
+        private static Comparator<SolrDocument> comparator(String sort, final List<String> fields) {
+            final List<Boolean> ascending = new ArrayList<Boolean>();
+            for (String clause : sort.split(",")) {
+                final String[] parts = clause.trim().split("\\s+");
+                fields.add(parts[0]);
+                ascending.add("asc".equals(parts[1]));
+            }
+            return new Comparator<SolrDocument>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public int compare(SolrDocument a, SolrDocument b) {
+                    for (int i = 0; i < fields.size(); i++) {
+                        final Comparable<Object> va = (Comparable<Object>) a.getFieldValue(fields.get(i));
+                        final int cmp = va.compareTo(b.getFieldValue(fields.get(i)));
+                        if (cmp != 0) {
+                            return ascending.get(i) ? cmp : -cmp;
+                        }
+                    }
+                    return 0;
+                }
+            };
+        }
+
+        private static String mark(SolrDocument doc) {
+            return doc.getFieldValue(FIELD_LAST_SEEN_TIME) + ":" + doc.getFieldValue(FIELD_UUID);
+        }
+
+        private static SolrDocument parseMark(String mark) {
+            final String[] parts = mark.split(":");
+            try {
+                if (parts.length != 2) {
+                    throw new NumberFormatException(mark);
+                }
+                return createDoc(parts[1], Long.parseLong(parts[0]));
+            } catch (NumberFormatException e) {
+                throw new SolrException(ErrorCode.BAD_REQUEST, "Unable to parse 'cursorMark': " + mark);
+            }
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    private static SolrDocument createDoc(String uuid, long lastSeen) {
+        final SolrDocument doc = new SolrDocument();
+        doc.setField(FIELD_UUID, uuid);
+        doc.setField(FIELD_LAST_SEEN_TIME, lastSeen);
+        return doc;
+    }
+
+    @Before
+    public void setUp() {
+        server = new FakeSolrServer();
+        expected = new ArrayList<String>();
+        // Several documents share each last seen time. Expected order: last seen descending, then uuid.
+        for (int lastSeen = 2; lastSeen >= 0; lastSeen--) {
+            for (int i = 0; i < NUM_DOCS; i++) {
+                if (i % 3 == lastSeen) {
+                    expected.add("uuid-" + i);
+                }
+            }
+        }
+        for (int i = 0; i < NUM_DOCS; i++) {
+            server.docs.add(createDoc("uuid-" + i, 1000L * (i % 3)));
+        }
+        backend = new SolrEventIndexBackend("test", "http://localhost:8983/solr", null, null, 1, 1, 1, 1, 1,
+                null, null, null, 0, 3600);
+        ReflectionTestUtils.setField(backend, "queryServer", server);
+        ReflectionTestUtils.setField(backend, "ready", true);
+    }
+
+    @After
+    public void tearDown() {
+        backend.shutdown();
+    }
+
+    private static SolrSavedSearch createSearch() {
+        final SolrQuery query = new SolrQuery().setQuery("*:*");
+        query.addSort(SortClause.desc(FIELD_LAST_SEEN_TIME));
+        return new SolrSavedSearch("search", 60, query);
+    }
+
+    private static List<String> uuids(EventSummaryResult result) {
+        final List<String> uuids = new ArrayList<String>();
+        for (EventSummary summary : result.getEventsList()) {
+            uuids.add(summary.getUuid());
+        }
+        return uuids;
+    }
+
+    private SolrParams lastRequest() {
+        return server.requests.get(server.requests.size() - 1);
+    }
+
+    @Test
+    public void testCursorPaging() throws ZepException {
+        final SavedSearchProcessor<SolrSavedSearch> processor = backend.savedSearchUuidsProcessor();
+        final SolrSavedSearch search = createSearch();
+        final List<String> found = new ArrayList<String>();
+        int offset = 0;
+        while (true) {
+            final EventSummaryResult result = processor.result(search, offset, 2);
+            assertEquals(NUM_DOCS, result.getTotal());
+            assertEquals(0, lastRequest().getInt(CommonParams.START).intValue());
+            assertNotNull(lastRequest().get(CursorMarkParams.CURSOR_MARK_PARAM));
+            found.addAll(uuids(result));
+            if (!result.hasNextOffset()) {
+                break;
+            }
+            offset = result.getNextOffset();
+        }
+        assertEquals(expected, found);
+        assertEquals(4, server.requests.size());
+    }
+
+    @Test
+    public void testOffsetPagingWithoutCursor() throws ZepException {
+        final SavedSearchProcessor<SolrSavedSearch> processor = backend.savedSearchUuidsProcessor();
+        final SolrSavedSearch search = createSearch();
+        assertEquals(expected.subList(0, 2), uuids(processor.result(search, 0, 2)));
+
+        // A page which doesn't follow the previous one has no cursor mark
+        assertEquals(expected.subList(4, 6), uuids(processor.result(search, 4, 2)));
+        assertNull(lastRequest().get(CursorMarkParams.CURSOR_MARK_PARAM));
+        assertEquals(4, lastRequest().getInt(CommonParams.START).intValue());
+    }
+
+    @Test
+    public void testInvalidCursorMark() throws ZepException {
+        final SavedSearchProcessor<SolrSavedSearch> processor = backend.savedSearchUuidsProcessor();
+        final SolrSavedSearch search = createSearch();
+        assertEquals(expected.subList(0, 2), uuids(processor.result(search, 0, 2)));
+
+        search.setCursorMark(2, "invalid");
+        assertEquals(expected.subList(2, 4), uuids(processor.result(search, 2, 2)));
+        assertNull(lastRequest().get(CursorMarkParams.CURSOR_MARK_PARAM));
+
+        // The invalid cursor mark is discarded
+        assertEquals(expected.subList(4, 6), uuids(processor.result(search, 4, 2)));
+        assertNull(lastRequest().get(CursorMarkParams.CURSOR_MARK_PARAM));
+    }
+
+    @Test
+    public void testUnsupportedCursor() throws ZepException {
+        final SavedSearchProcessor<SolrSavedSearch> processor = backend.savedSearchUuidsProcessor();
+        final SolrSavedSearch search = createSearch();
+        assertEquals(expected.subList(0, 2), uuids(processor.result(search, 0, 2)));
+
+        server.failure = new SolrException(ErrorCode.BAD_REQUEST,
+                "Cursor functionality is not available unless the IndexSchema defines a uniqueKey field");
+        assertEquals(expected.subList(2, 4), uuids(processor.result(search, 2, 2)));
+        assertEquals(3, server.requests.size());
+        assertNull(lastRequest().get(CursorMarkParams.CURSOR_MARK_PARAM));
+        assertEquals(2, lastRequest().getInt(CommonParams.START).intValue());
+    }
+
+    private void assertRethrown(SolrException failure) throws ZepException {
+        final SavedSearchProcessor<SolrSavedSearch> processor = backend.savedSearchUuidsProcessor();
+        final SolrSavedSearch search = createSearch();
+        assertEquals(expected.subList(0, 2), uuids(processor.result(search, 0, 2)));
+        final String cursorMark = search.getCursorMark(2);
+        assertNotNull(cursorMark);
+
+        server.failure = failure;
+        try {
+            processor.result(search, 2, 2);
+            fail("Expected " + failure);
+        } catch (SolrException e) {
+            assertSame(failure, e);
+        }
+        // No offset query is made, and the cursor mark is kept
+        assertEquals(2, server.requests.size());
+        assertEquals(cursorMark, search.getCursorMark(2));
+
+        assertEquals(expected.subList(2, 4), uuids(processor.result(search, 2, 2)));
+        assertEquals(cursorMark, lastRequest().get(CursorMarkParams.CURSOR_MARK_PARAM));
+    }
+
+    @Test
+    public void testServerErrorRethrown() throws ZepException {
+        assertRethrown(new SolrException(ErrorCode.SERVER_ERROR, "Error reading 'cursorMark' index"));
+    }
+
+    @Test
+    public void testBadRequestRethrown() throws ZepException {
+        assertRethrown(new SolrException(ErrorCode.BAD_REQUEST, "undefined field: bogus"));
+    }
+}